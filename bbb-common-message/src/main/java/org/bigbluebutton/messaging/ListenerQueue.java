@@ -0,0 +1,127 @@
+/**
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+* 
+* Copyright (c) 2012 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 3.0 of the License, or (at your option) any later
+* version.
+* 
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.bigbluebutton.messaging;
+
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Calls a listener, in order, from its own thread.
+ *
+ * When the queue is full, droppable messages are dropped. Any other message
+ * makes the caller wait until there is room for it, so state changes like
+ * users joining or meetings ending are never lost.
+ */
+class ListenerQueue<L> {
+	private static Logger log = LoggerFactory.getLogger(ListenerQueue.class);
+	
+	private final L listener;
+	private final BlockingQueue<Delivery<L>> deliveries;
+	private final ExecutorService exec = Executors.newSingleThreadExecutor();
+	private volatile boolean running = true;
+	
+	final AtomicLong delivered = new AtomicLong();
+	final AtomicLong dropped = new AtomicLong();
+	final AtomicLong stalls = new AtomicLong();
+	final AtomicLong totalLagNanos = new AtomicLong();
+	volatile long maxLagNanos = 0;
+	
+	ListenerQueue(L listener, int capacity) {
+		this.listener = listener;
+		deliveries = new ArrayBlockingQueue<Delivery<L>>(capacity);
+		exec.execute(new Runnable() {
+			public void run() {
+				processDeliveries();
+			}
+		});
+	}
+	
+	void dispatch(MessageRoute<L> route, boolean droppable, HashMap<String, String> message, long receivedAt) {
+		Delivery<L> delivery = new Delivery<L>(route, message, receivedAt);
+		if (deliveries.offer(delivery)) return;
+		
+		if (droppable) {
+			dropped.incrementAndGet();
+			log.warn("Listener queue full. Dropping message " + message.get("messageId"));
+			return;
+		}
+		
+		stalls.incrementAndGet();
+		log.warn("Listener queue full. Waiting to deliver message " + message.get("messageId"));
+		try {
+			while (!deliveries.offer(delivery, 100, TimeUnit.MILLISECONDS)) {
+				if (!running) return;
+			}
+		} catch (InterruptedException e) {
+			log.warn("Interrupted while waiting to deliver message " + message.get("messageId"));
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void processDeliveries() {
+		while (running) {
+			Delivery<L> delivery;
+			try {
+				delivery = deliveries.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			
+			long lag = System.nanoTime() - delivery.receivedAt;
+			totalLagNanos.addAndGet(lag);
+			if (lag > maxLagNanos) maxLagNanos = lag;
+			delivered.incrementAndGet();
+			
+			try {
+				delivery.route.deliver(listener, delivery.message);
+			} catch (Exception e) {
+				log.error("Listener failed to handle message: " + e.getMessage());
+			}
+		}
+	}
+	
+	int size() {
+		return deliveries.size();
+	}
+	
+	void stop() {
+		running = false;
+		exec.shutdownNow();
+	}
+	
+	private static final class Delivery<L> {
+		final MessageRoute<L> route;
+		final HashMap<String, String> message;
+		final long receivedAt;
+		
+		Delivery(MessageRoute<L> route, HashMap<String, String> message, long receivedAt) {
+			this.route = route;
+			this.message = message;
+			this.receivedAt = receivedAt;
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/**
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+* 
+* Copyright (c) 2012 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 3.0 of the License, or (at your option) any later
+* version.
+* 
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.bigbluebutton.messaging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * Publishes messages to redis from a single thread, pipelining whatever
+ * has queued up since the last write.
+ *
+ * When the queue is full, callers block until the publisher catches up.
+ * Stopping waits for the queued messages to be published.
+ */
+public class RedisPublisher {
+	private static Logger log = LoggerFactory.getLogger(RedisPublisher.class);
+	
+	private final ExecutorService publisher = Executors.newSingleThreadExecutor();
+	private BlockingQueue<OutgoingMessage> outgoing;
+	private volatile boolean publishing = false;
+	
+	private JedisPool redisPool;
+	private int queueCapacity = 10000;
+	private int maxBatchSize = 100;
+	private long shutdownTimeout = 5000;
+	
+	private final AtomicLong messagesPublished = new AtomicLong();
+	private final AtomicLong publishBatches = new AtomicLong();
+	private final AtomicLong publishFailures = new AtomicLong();
+	
+	public void start() {
+		log.debug("Starting redis publisher [capacity=" + queueCapacity + ",batch=" + maxBatchSize + "]");
+		outgoing = new ArrayBlockingQueue<OutgoingMessage>(queueCapacity);
+		publishing = true;
+		publisher.execute(new Runnable() {
+			public void run() {
+				processOutgoingMessages();
+			}
+		});
+	}
+	
+	/**
+	 * Publishes the queued messages and stops. The redis pool must not be
+	 * destroyed before this returns.
+	 */
+	public void stop() {
+		log.debug("Stopping redis publisher with " + getQueueDepth() + " pending messages.");
+		publishing = false;
+		publisher.shutdown();
+		try {
+			if (publisher.awaitTermination(shutdownTimeout, TimeUnit.MILLISECONDS)) {
+				// Messages queued while the publisher was finishing.
+				publishRemaining(new ArrayList<OutgoingMessage>(maxBatchSize));
+			} else {
+				log.warn("Timed out publishing messages to redis. Dropping " + getQueueDepth() + " messages.");
+				publisher.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			log.warn("Interrupted while publishing the remaining messages to redis.");
+			publisher.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		log.debug("Published " + messagesPublished.get() + " messages in " + publishBatches.get() + " batches, " 
+				+ publishFailures.get() + " failed.");
+	}
+	
+	public void send(String channel, String message) {
+		if (!publishing) {
+			publish(channel, message);
+			return;
+		}
+		
+		try {
+			outgoing.put(new OutgoingMessage(channel, message));
+		} catch (InterruptedException e) {
+			log.warn("Interrupted while queueing message for channel " + channel);
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void publish(String channel, String message) {
+		Jedis jedis = redisPool.getResource();
+		try {
+			jedis.publish(channel, message);
+			messagesPublished.incrementAndGet();
+		} catch(Exception e){
+			publishFailures.incrementAndGet();
+			log.warn("Cannot publish the message to redis", e);
+		}finally{
+			redisPool.returnResource(jedis);
+		}
+	}
+	
+	private void processOutgoingMessages() {
+		List<OutgoingMessage> batch = new ArrayList<OutgoingMessage>(maxBatchSize);
+		while (publishing) {
+			try {
+				OutgoingMessage message = outgoing.poll(100, TimeUnit.MILLISECONDS);
+				if (message == null) continue;
+				batch.add(message);
+				outgoing.drainTo(batch, maxBatchSize - 1);
+				publish(batch);
+			} catch (InterruptedException e) {
+				log.debug("Redis publisher interrupted.");
+				return;
+			} finally {
+				batch.clear();
+			}
+		}
+		publishRemaining(batch);
+	}
+	
+	private void publishRemaining(List<OutgoingMessage> batch) {
+		while (outgoing.drainTo(batch, maxBatchSize) > 0) {
+			publish(batch);
+			batch.clear();
+		}
+	}
+	
+	private void publish(List<OutgoingMessage> batch) {
+		Jedis jedis = null;
+		try {
+			jedis = redisPool.getResource();
+			Pipeline pipeline = jedis.pipelined();
+			for (OutgoingMessage m : batch) {
+				pipeline.publish(m.channel, m.message);
+			}
+			pipeline.sync();
+			messagesPublished.addAndGet(batch.size());
+			publishBatches.incrementAndGet();
+			redisPool.returnResource(jedis);
+		} catch (Exception e) {
+			publishFailures.addAndGet(batch.size());
+			log.warn("Cannot publish " + batch.size() + " messages to redis: " + e.getMessage());
+			if (jedis != null) {
+				redisPool.returnBrokenResource(jedis);
+			}
+		}
+	}
+	
+	public void setRedisPool(JedisPool redisPool) {
+		this.redisPool = redisPool;
+	}
+	
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+	
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+	
+	/**
+	 * How long, in ms, stop() waits for the queued messages to be published.
+	 */
+	public void setShutdownTimeout(long shutdownTimeout) {
+		this.shutdownTimeout = shutdownTimeout;
+	}
+	
+	public long getMessagesPublished() {
+		return messagesPublished.get();
+	}
+	
+	public long getPublishBatches() {
+		return publishBatches.get();
+	}
+	
+	public long getPublishFailures() {
+		return publishFailures.get();
+	}
+	
+	public int getQueueDepth() {
+		return outgoing == null ? 0 : outgoing.size();
+	}
+	
+	private static final class OutgoingMessage {
+		final String channel;
+		final String message;
+		
+		OutgoingMessage(String channel, String message) {
+			this.channel = channel;
+			this.message = message;
+		}
+	}
+}
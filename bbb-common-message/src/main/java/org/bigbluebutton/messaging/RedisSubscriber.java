@@ -0,0 +1,301 @@
+/**
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+* 
+* Copyright (c) 2012 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 3.0 of the License, or (at your option) any later
+* version.
+* 
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.bigbluebutton.messaging;
+
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+
+/**
+ * Subscribes to redis channels and calls the listeners with the messages.
+ *
+ * Received messages are decoded once and routed by channel and messageId
+ * through a lookup table built up front. Each listener is called on its
+ * own thread from a bounded queue so a slow listener doesn't hold up the
+ * other listeners. Only messages of droppable routes are dropped when a
+ * listener's queue is full, other messages wait for room.
+ */
+public class RedisSubscriber<L> {
+	private static Logger log = LoggerFactory.getLogger(RedisSubscriber.class);
+	
+	private static final Gson gson = new Gson();
+	private static final Type MESSAGE_TYPE = new TypeToken<HashMap<String, String>>() {}.getType();
+	
+	private JedisPool redisPool;
+	private final Executor exec = Executors.newSingleThreadExecutor();
+	private int listenerQueueCapacity = 1000;
+	
+	private final Map<L, ListenerQueue<L>> listeners = new ConcurrentHashMap<L, ListenerQueue<L>>();
+	
+	/* Routes for all the messages of a channel, and for a messageId (lower case) of a channel. */
+	private final Map<String, Route<L>> channelRoutes = new HashMap<String, Route<L>>();
+	private final Map<String, Route<L>> messageRoutes = new HashMap<String, Route<L>>();
+	private final Set<String> routedChannels = new HashSet<String>();
+	
+	private final AtomicLong messagesReceived = new AtomicLong();
+	private final AtomicLong messagesDecoded = new AtomicLong();
+	private final AtomicLong decodeFailures = new AtomicLong();
+	private final AtomicLong totalDecodeNanos = new AtomicLong();
+	private long lastRateSampleTime = System.currentTimeMillis();
+	private long lastRateSampleCount = 0;
+	
+	/**
+	 * Routes the messages with messageId, or all the messages of the channel
+	 * if messageId is null. The message is never dropped.
+	 */
+	public void addRoute(String channel, String messageId, MessageRoute<L> route) {
+		addRoute(channel, messageId, new Route<L>(route, false));
+	}
+	
+	/**
+	 * Routes messages that can be dropped when a listener falls behind, like
+	 * status updates that are superseded by the next one.
+	 */
+	public void addDroppableRoute(String channel, String messageId, MessageRoute<L> route) {
+		addRoute(channel, messageId, new Route<L>(route, true));
+	}
+	
+	private void addRoute(String channel, String messageId, Route<L> route) {
+		routedChannels.add(channel);
+		if (messageId == null) {
+			channelRoutes.put(channel, route);
+		} else {
+			messageRoutes.put(routeKey(channel, messageId), route);
+		}
+	}
+	
+	private static String routeKey(String channel, String messageId) {
+		return channel + "/" + messageId.toLowerCase();
+	}
+	
+	public void start(final String pattern) {
+		log.debug("Subscribing to redis pattern " + pattern);
+		final Jedis jedis = redisPool.getResource();
+		try {
+			exec.execute(new Runnable() {
+				public void run() {
+					jedis.psubscribe(new PubSubListener(), pattern);
+				}
+			});
+		} catch (Exception e) {
+			log.error("Error subscribing to channels: " + e.getMessage());
+		}
+	}
+	
+	public void stop() {
+		for (ListenerQueue<L> queue : listeners.values()) {
+			queue.stop();
+		}
+		log.debug("Received " + messagesReceived.get() + " messages, " + getListenerDrops() + " dropped and " 
+				+ getListenerStalls() + " waited for a full listener queue.");
+	}
+	
+	public void addListener(L listener) {
+		if (!listeners.containsKey(listener)) {
+			listeners.put(listener, new ListenerQueue<L>(listener, listenerQueueCapacity));
+		}
+	}
+	
+	public void removeListener(L listener) {
+		ListenerQueue<L> queue = listeners.remove(listener);
+		if (queue != null) {
+			queue.stop();
+		}
+	}
+	
+	void onMessage(String channel, String message) {
+		long receivedAt = System.nanoTime();
+		messagesReceived.incrementAndGet();
+		
+		if (!routedChannels.contains(channel)) return;
+		
+		HashMap<String,String> map;
+		try {
+			map = gson.fromJson(message, MESSAGE_TYPE);
+		} catch (JsonParseException e) {
+			decodeFailures.incrementAndGet();
+			log.warn("Cannot decode message in channel " + channel + ": " + e.getMessage());
+			return;
+		}
+		totalDecodeNanos.addAndGet(System.nanoTime() - receivedAt);
+		messagesDecoded.incrementAndGet();
+		if (map == null) return;
+		
+		Route<L> route = channelRoutes.get(channel);
+		if (route == null) {
+			String messageId = map.get("messageId");
+			if (messageId == null) return;
+			route = messageRoutes.get(routeKey(channel, messageId));
+			if (route == null) return;
+		}
+		
+		for (ListenerQueue<L> queue : listeners.values()) {
+			queue.dispatch(route.route, route.droppable, map, receivedAt);
+		}
+	}
+	
+	public void setRedisPool(JedisPool redisPool) {
+		this.redisPool = redisPool;
+	}
+	
+	public void setListenerQueueCapacity(int listenerQueueCapacity) {
+		this.listenerQueueCapacity = listenerQueueCapacity;
+	}
+	
+	public long getMessagesReceived() {
+		return messagesReceived.get();
+	}
+	
+	/**
+	 * Messages received per second since the previous call.
+	 */
+	public synchronized double getMessagesPerSecond() {
+		long now = System.currentTimeMillis();
+		long count = messagesReceived.get();
+		double rate = now > lastRateSampleTime ? (count - lastRateSampleCount) * 1000.0 / (now - lastRateSampleTime) : 0;
+		lastRateSampleTime = now;
+		lastRateSampleCount = count;
+		return rate;
+	}
+	
+	public long getDecodeFailures() {
+		return decodeFailures.get();
+	}
+	
+	/**
+	 * Average time, in microseconds, to decode a received message.
+	 */
+	public long getAverageDecodeTime() {
+		long decoded = messagesDecoded.get();
+		return decoded == 0 ? 0 : totalDecodeNanos.get() / decoded / 1000;
+	}
+	
+	/**
+	 * Average time, in microseconds, a message waits before a listener is called with it.
+	 */
+	public long getAverageListenerLag() {
+		long delivered = 0;
+		long lag = 0;
+		for (ListenerQueue<L> queue : listeners.values()) {
+			delivered += queue.delivered.get();
+			lag += queue.totalLagNanos.get();
+		}
+		return delivered == 0 ? 0 : lag / delivered / 1000;
+	}
+	
+	public long getMaxListenerLag() {
+		long max = 0;
+		for (ListenerQueue<L> queue : listeners.values()) {
+			if (queue.maxLagNanos > max) max = queue.maxLagNanos;
+		}
+		return max / 1000;
+	}
+	
+	public int getListenerQueueDepth() {
+		int depth = 0;
+		for (ListenerQueue<L> queue : listeners.values()) {
+			depth += queue.size();
+		}
+		return depth;
+	}
+	
+	public long getListenerDrops() {
+		long dropped = 0;
+		for (ListenerQueue<L> queue : listeners.values()) {
+			dropped += queue.dropped.get();
+		}
+		return dropped;
+	}
+	
+	/**
+	 * Number of times the subscriber had to wait for room in a listener's queue.
+	 */
+	public long getListenerStalls() {
+		long stalls = 0;
+		for (ListenerQueue<L> queue : listeners.values()) {
+			stalls += queue.stalls.get();
+		}
+		return stalls;
+	}
+	
+	private static final class Route<L> {
+		final MessageRoute<L> route;
+		final boolean droppable;
+		
+		Route(MessageRoute<L> route, boolean droppable) {
+			this.route = route;
+			this.droppable = droppable;
+		}
+	}
+	
+	private class PubSubListener extends JedisPubSub {
+		
+		public PubSubListener() {
+			super();			
+		}
+
+		@Override
+		public void onMessage(String channel, String message) {
+			// Not used.
+		}
+
+		@Override
+		public void onPMessage(String pattern, String channel, String message) {
+			log.debug("Message Received in channel: " + channel);
+			RedisSubscriber.this.onMessage(channel, message);
+		}
+
+		@Override
+		public void onPSubscribe(String pattern, int subscribedChannels) {
+			log.debug("Subscribed to the pattern: " + pattern);
+		}
+
+		@Override
+		public void onPUnsubscribe(String pattern, int subscribedChannels) {
+			// Not used.
+		}
+
+		@Override
+		public void onSubscribe(String channel, int subscribedChannels) {
+			// Not used.
+		}
+
+		@Override
+		public void onUnsubscribe(String channel, int subscribedChannels) {
+			// Not used.
+		}		
+	}
+}
@@ -0,0 +1,130 @@
+package org.bigbluebutton.messaging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ListenerQueueTest {
+	private BlockingListener listener;
+	private ListenerQueue<BlockingListener> queue;
+	
+	private final MessageRoute<BlockingListener> route = new MessageRoute<BlockingListener>() {
+		public void deliver(BlockingListener listener, HashMap<String, String> message) {
+			listener.received(message.get("messageId"));
+		}
+	};
+	
+	@BeforeMethod
+	public void init() throws Exception {
+		listener = new BlockingListener();
+		queue = new ListenerQueue<BlockingListener>(listener, 2);
+		
+		// Keep the listener busy with the first message so the queue fills up.
+		queue.dispatch(route, false, message("first"), System.nanoTime());
+		Assert.assertTrue(listener.started.await(5, TimeUnit.SECONDS), "Listener should be called.");
+		queue.dispatch(route, false, message("second"), System.nanoTime());
+		queue.dispatch(route, false, message("third"), System.nanoTime());
+	}
+	
+	@AfterMethod
+	public void cleanup() {
+		queue.stop();
+	}
+	
+	private static HashMap<String, String> message(String messageId) {
+		HashMap<String, String> message = new HashMap<String, String>();
+		message.put("messageId", messageId);
+		return message;
+	}
+	
+	@Test
+	public void testDroppableMessagesAreDroppedWhenFull() throws Exception {
+		queue.dispatch(route, true, message("status"), System.nanoTime());
+		Assert.assertEquals(queue.dropped.get(), 1);
+		
+		listener.release.countDown();
+		Assert.assertTrue(listener.awaitMessages(3), "Queued messages should be delivered.");
+		Assert.assertEquals(listener.messages(), messages("first", "second", "third"));
+	}
+	
+	@Test
+	public void testOtherMessagesWaitForRoom() throws Exception {
+		Thread subscriber = new Thread(new Runnable() {
+			public void run() {
+				queue.dispatch(route, false, message("userLeft"), System.nanoTime());
+			}
+		});
+		subscriber.start();
+		subscriber.join(300);
+		Assert.assertTrue(subscriber.isAlive(), "Dispatch should wait while the queue is full.");
+		
+		listener.release.countDown();
+		subscriber.join(5000);
+		Assert.assertFalse(subscriber.isAlive(), "Dispatch should finish once there is room.");
+		Assert.assertTrue(listener.awaitMessages(4), "All messages should be delivered.");
+		Assert.assertEquals(listener.messages(), messages("first", "second", "third", "userLeft"));
+		Assert.assertEquals(queue.dropped.get(), 0);
+		Assert.assertEquals(queue.stalls.get(), 1);
+	}
+	
+	@Test
+	public void testWaitingStopsWhenQueueIsStopped() throws Exception {
+		Thread subscriber = new Thread(new Runnable() {
+			public void run() {
+				queue.dispatch(route, false, message("userLeft"), System.nanoTime());
+			}
+		});
+		subscriber.start();
+		subscriber.join(300);
+		Assert.assertTrue(subscriber.isAlive(), "Dispatch should wait while the queue is full.");
+		
+		queue.stop();
+		subscriber.join(5000);
+		Assert.assertFalse(subscriber.isAlive(), "Dispatch should not wait for a stopped listener.");
+	}
+	
+	private static List<String> messages(String... ids) {
+		List<String> messages = new ArrayList<String>();
+		Collections.addAll(messages, ids);
+		return messages;
+	}
+	
+	private static class BlockingListener {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		private final List<String> messages = new ArrayList<String>();
+		
+		void received(String messageId) {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			synchronized (this) {
+				messages.add(messageId);
+				notifyAll();
+			}
+		}
+		
+		synchronized boolean awaitMessages(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (messages.size() < count && System.currentTimeMillis() < deadline) {
+				wait(100);
+			}
+			return messages.size() >= count;
+		}
+		
+		synchronized List<String> messages() {
+			return new ArrayList<String>(messages);
+		}
+	}
+}
@@ -22,6 +22,8 @@ import java.util.List;
 import java.util.Set;
 
 import org.slf4j.Logger;
+import org.bigbluebutton.voiceconf.red5.media.net.RtpIoEngine;
+import org.bigbluebutton.voiceconf.red5.media.transcoder.TranscoderPool;
 import org.bigbluebutton.voiceconf.sip.PeerNotFoundException;
 import org.bigbluebutton.voiceconf.sip.SipPeerManager;
 import org.red5.logging.Red5LoggerFactory;
@@ -47,6 +49,8 @@ public class Application extends MultiThreadedApplicationAdapter {
 	private String password = "secret";
 	private String username;
 	private CallStreamFactory callStreamFactory;
+	private RtpIoEngine rtpIoEngine;
+	private TranscoderPool transcoderPool;
 	
     @Override
     public boolean appStart(IScope scope) {
@@ -54,6 +58,8 @@ public class Application extends MultiThreadedApplicationAdapter {
     	super.setScope(scope);
     	callStreamFactory = new CallStreamFactory();
     	callStreamFactory.setScope(scope);
+    	callStreamFactory.setRtpIoEngine(rtpIoEngine);
+    	callStreamFactory.setTranscoderPool(transcoderPool);
     	sipPeerManager.setCallStreamFactory(callStreamFactory);
         sipPeerManager.setClientConnectionManager(clientConnManager);
         sipPeerManager.createSipPeer("default", sipClientRtpIp, sipServerHost, sipPort, startAudioPort, stopAudioPort);
@@ -213,6 +219,14 @@ public class Application extends MultiThreadedApplicationAdapter {
 		clientConnManager = ccm;
 	}
 	
+	public void setRtpIoEngine(RtpIoEngine engine) {
+		rtpIoEngine = engine;
+	}
+	
+	public void setTranscoderPool(TranscoderPool pool) {
+		transcoderPool = pool;
+	}
+	
 	private String getUserId() {
 		String userid = (String) Red5.getConnectionLocal().getAttribute("USERID");
 		if ((userid == null) || ("".equals(userid))) userid = "unknown-userid";
@@ -19,18 +19,30 @@
 package org.bigbluebutton.voiceconf.red5;
 
 import org.bigbluebutton.voiceconf.red5.media.CallStream;
+import org.bigbluebutton.voiceconf.red5.media.net.RtpIoEngine;
+import org.bigbluebutton.voiceconf.red5.media.transcoder.TranscoderPool;
 import org.bigbluebutton.voiceconf.sip.SipConnectInfo;
 import org.red5.app.sip.codecs.Codec;
 import org.red5.server.api.scope.IScope;
 
 public class CallStreamFactory {
 	private IScope scope;
+	private RtpIoEngine rtpIoEngine;
+	private TranscoderPool transcoderPool;
 	
 	public CallStream createCallStream(Codec sipCodec, SipConnectInfo connInfo) {
-		return new CallStream(sipCodec, connInfo, scope);
+		return new CallStream(sipCodec, connInfo, scope, rtpIoEngine, transcoderPool);
 	}
 	
 	public void setScope(IScope scope) {
 		this.scope = scope;
 	}
+	
+	public void setRtpIoEngine(RtpIoEngine rtpIoEngine) {
+		this.rtpIoEngine = rtpIoEngine;
+	}
+	
+	public void setTranscoderPool(TranscoderPool transcoderPool) {
+		this.transcoderPool = transcoderPool;
+	}
 }
@@ -18,9 +18,11 @@
 */
 package org.bigbluebutton.voiceconf.red5.media;
 
+import org.bigbluebutton.voiceconf.red5.media.net.RtpIoEngine;
 import org.bigbluebutton.voiceconf.red5.media.transcoder.FlashToSipTranscoder;
 import org.bigbluebutton.voiceconf.red5.media.transcoder.NellyFlashToSipTranscoderImp;
 import org.bigbluebutton.voiceconf.red5.media.transcoder.NellySipToFlashTranscoderImp;
+import org.bigbluebutton.voiceconf.red5.media.transcoder.TranscoderPool;
 import org.bigbluebutton.voiceconf.red5.media.transcoder.SipToFlashTranscoder;
 import org.bigbluebutton.voiceconf.red5.media.transcoder.SpeexFlashToSipTranscoderImp;
 import org.bigbluebutton.voiceconf.red5.media.transcoder.SpeexSipToFlashTranscoderImp;
@@ -40,12 +42,16 @@ public class CallStream implements StreamObserver {
     private final Codec sipCodec;
     private final SipConnectInfo connInfo;
     private final IScope scope;
+    private final RtpIoEngine rtpIoEngine;
+    private final TranscoderPool transcoderPool;
     private CallStreamObserver callStreamObserver;
     
-    public CallStream(Codec sipCodec, SipConnectInfo connInfo, IScope scope) {        
+    public CallStream(Codec sipCodec, SipConnectInfo connInfo, IScope scope, RtpIoEngine rtpIoEngine, TranscoderPool transcoderPool) {        
     	this.sipCodec = sipCodec;
     	this.connInfo = connInfo;
     	this.scope = scope;
+    	this.rtpIoEngine = rtpIoEngine;
+    	this.transcoderPool = transcoderPool;
     }
     
     public void addCallStreamObserver(CallStreamObserver observer) {
@@ -57,8 +63,8 @@ public class CallStream implements StreamObserver {
     	FlashToSipTranscoder flashToSipTranscoder = new SpeexFlashToSipTranscoderImp(sipCodec);
 
 		if (sipCodec.getCodecId() != SpeexCodec.codecId) {			
-			flashToSipTranscoder = new NellyFlashToSipTranscoderImp(sipCodec);
-			sipToFlashTranscoder = new NellySipToFlashTranscoderImp(sipCodec);
+			flashToSipTranscoder = new NellyFlashToSipTranscoderImp(sipCodec, transcoderPool);
+			sipToFlashTranscoder = new NellySipToFlashTranscoderImp(sipCodec, transcoderPool);
 		} 
 		
 		log.info("Using codec=" + sipCodec.getCodecName() + " id=" + sipCodec.getCodecId());
@@ -66,7 +72,7 @@ public class CallStream implements StreamObserver {
 		log.debug("Outgoing Frame size [" + sipCodec.getOutgoingEncodedFrameSize() + ", " + sipCodec.getOutgoingDecodedFrameSize() + "]");
 		log.debug("Incoming Frame size [" + sipCodec.getIncomingEncodedFrameSize() + ", " + sipCodec.getIncomingDecodedFrameSize() + "]");
 
-		userListenStream = new SipToFlashAudioStream(scope, sipToFlashTranscoder, connInfo.getSocket());
+		userListenStream = new SipToFlashAudioStream(scope, sipToFlashTranscoder, rtpIoEngine, connInfo.getSocket());
 		userListenStream.addListenStreamObserver(this);	
 		log.debug("Starting userListenStream so that users with no mic can listen.");
 		userListenStream.start();
@@ -20,25 +20,28 @@ package org.bigbluebutton.voiceconf.red5.media;
 
 import java.io.IOException;
 import java.net.DatagramSocket;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import org.slf4j.Logger;
+import org.bigbluebutton.voiceconf.red5.media.net.RtpIoEngine;
 import org.bigbluebutton.voiceconf.red5.media.net.RtpPacket;
-import org.bigbluebutton.voiceconf.red5.media.net.RtpSocket;
+import org.bigbluebutton.voiceconf.red5.media.net.RtpPacketHandler;
 import org.red5.logging.Red5LoggerFactory;
 
-public class RtpStreamReceiver {
+/**
+ * Receives the RTP packets of a call from the shared {@link RtpIoEngine} and passes
+ * the audio of the valid ones to the listener.
+ */
+public class RtpStreamReceiver implements RtpPacketHandler {
     protected static Logger log = Red5LoggerFactory.getLogger(RtpStreamReceiver.class, "sip");
     
     // Maximum blocking time, spent waiting for reading new bytes [milliseconds]     
 //    private static final int SO_TIMEOUT = 200;
     private static int RTP_HEADER_SIZE = 12;
-    private RtpSocket rtpSocket = null;
-    private final Executor exec = Executors.newSingleThreadExecutor();
-	private Runnable rtpPacketReceiver;
-	private volatile boolean receivePackets = false;
+    private final RtpIoEngine ioEngine;
+    private final DatagramSocket socket;
+    private final byte[] internalBuffer;
+    private final RtpPacket rtpPacket;
 	private RtpStreamReceiverListener listener;
-    private final int payloadLength;
+    private int packetReceivedCounter = 0;
     private int lastSequenceNumber = 0;
     private long lastPacketTimestamp = 0;
     private boolean firstPacket = true;
@@ -47,73 +50,66 @@ public class RtpStreamReceiver {
     
     private long lastPacketReceived = 0;
     
-    public RtpStreamReceiver(DatagramSocket socket, int expectedPayloadLength) {
-    	this.payloadLength = expectedPayloadLength;
-        rtpSocket = new RtpSocket(socket);
-
-        initializeSocket();
+    /**
+     * The socket must have been opened through a DatagramChannel.
+     */
+    public RtpStreamReceiver(RtpIoEngine ioEngine, DatagramSocket socket, int expectedPayloadLength) {
+    	this.ioEngine = ioEngine;
+    	this.socket = socket;
+        int internalBufferLength = expectedPayloadLength + RTP_HEADER_SIZE;
+        internalBuffer = new byte[internalBufferLength];
+        rtpPacket = new RtpPacket(internalBuffer, internalBufferLength);
     }
     
     public void setRtpStreamReceiverListener(RtpStreamReceiverListener listener) {
     	this.listener = listener;
     }
     
-    private void initializeSocket() {
-    }
-    
     public void start() {
-    	receivePackets = true;
-    	rtpPacketReceiver = new Runnable() {
-    		public void run() {
-    			receiveRtpPackets();   			
-    		}
-    	};
-    	exec.execute(rtpPacketReceiver);
+    	try {
+			ioEngine.register(socket.getChannel(), rtpPacket, this);
+		} catch (IOException e) {
+			log.error("Failed to start receiving RTP packets on port " + socket.getLocalPort() + ": " + e.getMessage());
+			onStoppedReceiving();
+		}
     }
     
     public void stop() {
-    	receivePackets = false;
+    	ioEngine.unregister(socket.getChannel());
     }
     
-    public void receiveRtpPackets() {    
-        int packetReceivedCounter = 0;
-        int internalBufferLength = payloadLength + RTP_HEADER_SIZE;
-        byte[] internalBuffer = new byte[internalBufferLength];
-        RtpPacket rtpPacket = new RtpPacket(internalBuffer, internalBufferLength);;
-        
-        while (receivePackets) {
-        	try {       			
-        		rtpSocket.receive(rtpPacket);        		
-        		packetReceivedCounter++;  
-        		if (shouldDropDelayedPacket(rtpPacket)) {
-        			continue;
-        		}
-        		if (rtpPacket.isRtcpPacket()) {
-        			/**
-        			 * Asterisk (1.6.2.5) send RTCP packets. We just ignore them (for now).
-        			 * It could be for KeepAlive (http://tools.ietf.org/html/draft-ietf-avt-app-rtp-keepalive-09)
-        			 */
-        			if (log.isDebugEnabled()) 
-        				log.debug("RTCP packet [" + rtpPacket.getRtcpPayloadType() + ", length=" + rtpPacket.getPayloadLength() + "] seqNum[rtpSeqNum=" + rtpPacket.getSeqNum() + ",lastSeqNum=" + lastSequenceNumber 
-        					+ "][rtpTS=" + rtpPacket.getTimestamp() + ",lastTS=" + lastPacketTimestamp + "][port=" + rtpSocket.getDatagramSocket().getLocalPort() + "]");          			
-        		} else {
-            		if (shouldHandlePacket(rtpPacket)) {        			            			
-            			lastSequenceNumber = rtpPacket.getSeqNum();
-            			lastPacketTimestamp = rtpPacket.getTimestamp();
-            			processRtpPacket(internalBuffer, RTP_HEADER_SIZE, rtpPacket.getPayloadLength());
-            		} else {
-            			if (log.isDebugEnabled())
-            				log.debug("Corrupt packet [" + rtpPacket.getRtcpPayloadType() + "," + rtpPacket.getPayloadType() + ", length=" + rtpPacket.getPayloadLength() + "] seqNum[rtpSeqNum=" + rtpPacket.getSeqNum() + ",lastSeqNum=" + lastSequenceNumber 
-            					+ "][rtpTS=" + rtpPacket.getTimestamp() + ",lastTS=" + lastPacketTimestamp + "][port=" + rtpSocket.getDatagramSocket().getLocalPort() + "]");          			       			
+    @Override
+    public void onPacketReceived(RtpPacket rtpPacket) {
+    	packetReceivedCounter++;  
+    	if (shouldDropDelayedPacket(rtpPacket)) {
+    		return;
+    	}
+    	if (rtpPacket.isRtcpPacket()) {
+    		/**
+    		 * Asterisk (1.6.2.5) send RTCP packets. We just ignore them (for now).
+    		 * It could be for KeepAlive (http://tools.ietf.org/html/draft-ietf-avt-app-rtp-keepalive-09)
+    		 */
+    		if (log.isDebugEnabled()) 
+    			log.debug("RTCP packet [" + rtpPacket.getRtcpPayloadType() + ", length=" + rtpPacket.getPayloadLength() + "] seqNum[rtpSeqNum=" + rtpPacket.getSeqNum() + ",lastSeqNum=" + lastSequenceNumber 
+    				+ "][rtpTS=" + rtpPacket.getTimestamp() + ",lastTS=" + lastPacketTimestamp + "][port=" + socket.getLocalPort() + "]");          			
+    	} else {
+    		if (shouldHandlePacket(rtpPacket)) {        			            			
+    			lastSequenceNumber = rtpPacket.getSeqNum();
+    			lastPacketTimestamp = rtpPacket.getTimestamp();
+    			processRtpPacket(internalBuffer, RTP_HEADER_SIZE, rtpPacket.getPayloadLength());
+    		} else {
+    			if (log.isDebugEnabled())
+    				log.debug("Corrupt packet [" + rtpPacket.getRtcpPayloadType() + "," + rtpPacket.getPayloadType() + ", length=" + rtpPacket.getPayloadLength() + "] seqNum[rtpSeqNum=" + rtpPacket.getSeqNum() + ",lastSeqNum=" + lastSequenceNumber 
+    					+ "][rtpTS=" + rtpPacket.getTimestamp() + ",lastTS=" + lastPacketTimestamp + "][port=" + socket.getLocalPort() + "]");          			       			
 
-            			if (lastPacketDropped) successivePacketDroppedCount++;
-            			else lastPacketDropped = true;           			
-            		}
-            	}
-        	} catch (IOException e) { // We get this when the socket closes when the call hangs up.        		
-        		receivePackets = false;
-        	}
-        }
+    			if (lastPacketDropped) successivePacketDroppedCount++;
+    			else lastPacketDropped = true;           			
+    		}
+    	}
+    }
+    
+    @Override
+    public void onStoppedReceiving() {
         log.debug("Rtp Receiver stopped. Packet Received = " + packetReceivedCounter + "." );
         if (listener != null) listener.onStoppedReceiving();
     }
@@ -123,7 +119,7 @@ public class RtpStreamReceiver {
     	if (now - lastPacketReceived > 200) {
     		if (log.isDebugEnabled())
     			log.debug("Delayed packet [" + rtpPacket.getRtcpPayloadType() + "," + rtpPacket.getPayloadType() + ", length=" + rtpPacket.getPayloadLength() + "] seqNum[rtpSeqNum=" + rtpPacket.getSeqNum() + ",lastSeqNum=" + lastSequenceNumber 
-					+ "][rtpTS=" + rtpPacket.getTimestamp() + ",lastTS=" + lastPacketTimestamp + "][port=" + rtpSocket.getDatagramSocket().getLocalPort() + "]");          			       			
+					+ "][rtpTS=" + rtpPacket.getTimestamp() + ",lastTS=" + lastPacketTimestamp + "][port=" + socket.getLocalPort() + "]");          			       			
 			lastPacketReceived = now;
     		return true;
     	}
@@ -139,7 +135,7 @@ public class RtpStreamReceiver {
 		if (rtpPacket.hasMarker()) {
 			if (log.isDebugEnabled())
 				log.debug("Marked packet [" + rtpPacket.getPayloadType() + ", length=" + rtpPacket.getPayloadLength() + "] seqNum[rtpSeqNum=" + rtpPacket.getSeqNum() + ",lastSeqNum=" + lastSequenceNumber 
-   					+ "][rtpTS=" + rtpPacket.getTimestamp() + ",lastTS=" + lastPacketTimestamp + "][port=" + rtpSocket.getDatagramSocket().getLocalPort() + "]");       				        			
+   					+ "][rtpTS=" + rtpPacket.getTimestamp() + ",lastTS=" + lastPacketTimestamp + "][port=" + socket.getLocalPort() + "]");       				        			
    			return true;
 		}    	
 		
@@ -164,7 +160,7 @@ public class RtpStreamReceiver {
     	if (lastPacketDropped && successivePacketDroppedCount > 3) {
     		if (log.isDebugEnabled())
     			log.debug("Resetting after successive dropped packets [successivePacketDroppedCount=" + successivePacketDroppedCount + 
-   					"][port=" + rtpSocket.getDatagramSocket().getLocalPort() + "]");
+   					"][port=" + socket.getLocalPort() + "]");
     		lastPacketDropped = false;
     		successivePacketDroppedCount = 0;
     		return true;
@@ -178,7 +174,7 @@ public class RtpStreamReceiver {
 			firstPacket = false;
 			if (log.isDebugEnabled())
 				log.debug("First packet [" + rtpPacket.getPayloadType() + ", length=" + rtpPacket.getPayloadLength() + "] seqNum[rtpSeqNum=" + rtpPacket.getSeqNum() + ",lastSeqNum=" + lastSequenceNumber 
-						+ "][rtpTS=" + rtpPacket.getTimestamp() + ",lastTS=" + lastPacketTimestamp + "][port=" + rtpSocket.getDatagramSocket().getLocalPort() + "]");
+						+ "][rtpTS=" + rtpPacket.getTimestamp() + ",lastTS=" + lastPacketTimestamp + "][port=" + socket.getLocalPort() + "]");
 			return true;
 		}
 		return false;
@@ -199,7 +195,7 @@ public class RtpStreamReceiver {
     	if (lastSequenceNumber - rtpPacket.getSeqNum() > 65000) {
     		if (log.isDebugEnabled())
     			log.debug("Packet rolling over seqNum[rtpSeqNum=" + rtpPacket.getSeqNum() + ",lastSeqNum=" + lastSequenceNumber 
-    					+ "][rtpTS=" + rtpPacket.getTimestamp() + ",lastTS=" + lastPacketTimestamp + "][port=" + rtpSocket.getDatagramSocket().getLocalPort() + "]");  
+    					+ "][rtpTS=" + rtpPacket.getTimestamp() + ",lastTS=" + lastPacketTimestamp + "][port=" + socket.getLocalPort() + "]");  
 			return true;	
     	}
     	return false;
@@ -20,6 +20,7 @@ package org.bigbluebutton.voiceconf.red5.media;
 
 import java.net.DatagramSocket;
 import org.apache.mina.core.buffer.IoBuffer;
+import org.bigbluebutton.voiceconf.red5.media.net.RtpIoEngine;
 import org.bigbluebutton.voiceconf.red5.media.transcoder.SipToFlashTranscoder;
 import org.bigbluebutton.voiceconf.red5.media.transcoder.TranscodedAudioDataListener;
 import org.red5.logging.Red5LoggerFactory;
@@ -57,10 +58,10 @@ public class SipToFlashAudioStream implements TranscodedAudioDataListener, RtpSt
 		(byte)0xc8, 0x73, 0x69, 0x7a, 0x65, 0x00, 0x40, (byte)0xf3, (byte)0xf5, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00  
 	};
 	
-	public SipToFlashAudioStream(IScope scope, SipToFlashTranscoder transcoder, DatagramSocket socket) {
+	public SipToFlashAudioStream(IScope scope, SipToFlashTranscoder transcoder, RtpIoEngine rtpIoEngine, DatagramSocket socket) {
 		this.scope = scope;
 		this.transcoder = transcoder;
-		rtpStreamReceiver = new RtpStreamReceiver(socket, transcoder.getIncomingEncodedFrameSize());
+		rtpStreamReceiver = new RtpStreamReceiver(rtpIoEngine, socket, transcoder.getIncomingEncodedFrameSize());
 		rtpStreamReceiver.setRtpStreamReceiverListener(this);
 		listenStreamName = "speaker_" + System.currentTimeMillis();		
 		mBuffer = IoBuffer.allocate(1024);
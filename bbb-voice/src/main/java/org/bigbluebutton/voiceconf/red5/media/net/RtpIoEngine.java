@@ -0,0 +1,265 @@
+/**
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+* 
+* Copyright (c) 2012 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 3.0 of the License, or (at your option) any later
+* version.
+* 
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.bigbluebutton.voiceconf.red5.media.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.red5.logging.Red5LoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * Receives the RTP packets of all the calls on a few selector threads.
+ * 
+ * Each registered channel is served by one selector thread, picked round robin, 
+ * so the packets of a call are handled in order on the same thread. Packets are read
+ * into the RtpPacket given at registration, which is reused for every packet.
+ * 
+ * Handlers run on the selector thread and must not block.
+ */
+public class RtpIoEngine {
+	private static Logger log = Red5LoggerFactory.getLogger(RtpIoEngine.class, "sip");
+	
+	// How often the selector threads look for channels that were closed without being unregistered.
+	private static final long CLOSED_CHANNEL_CHECK_INTERVAL = 1000;
+	// Maximum number of packets read from a channel before serving the others.
+	private static final int MAX_PACKETS_PER_READ = 16;
+	
+	private int numSelectorThreads = 2;
+	private SelectorLoop[] loops;
+	private ExecutorService exec;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private final ConcurrentHashMap<DatagramChannel, SelectorLoop> channels = new ConcurrentHashMap<DatagramChannel, SelectorLoop>();
+	
+	private final AtomicLong packetsReceived = new AtomicLong();
+	
+	public void start() throws IOException {
+		log.debug("Starting RTP I/O engine with " + numSelectorThreads + " selector threads.");
+		loops = new SelectorLoop[numSelectorThreads];
+		exec = Executors.newFixedThreadPool(numSelectorThreads);
+		for (int i = 0; i < numSelectorThreads; i++) {
+			loops[i] = new SelectorLoop(i, Selector.open());
+			exec.execute(loops[i]);
+		}
+	}
+	
+	/**
+	 * Stops the selector threads. Handlers still registered are told that they stopped receiving.
+	 */
+	public void stop() {
+		log.debug("Stopping RTP I/O engine with " + channels.size() + " registered channels.");
+		for (SelectorLoop loop : loops) {
+			loop.stop();
+		}
+		exec.shutdown();
+	}
+	
+	/**
+	 * Starts receiving the packets of the channel into the packet's buffer. The channel is
+	 * put in non-blocking mode.
+	 */
+	public void register(DatagramChannel channel, RtpPacket packet, RtpPacketHandler handler) throws IOException {
+		channel.configureBlocking(false);
+		
+		SelectorLoop loop = loops[(nextLoop.getAndIncrement() & 0x7fffffff) % loops.length];
+		if (channels.putIfAbsent(channel, loop) != null) {
+			throw new IllegalStateException("Channel already registered.");
+		}
+		loop.add(new Registration(channel, packet, handler));
+	}
+	
+	/**
+	 * Stops receiving the packets of the channel. The handler is told once it has stopped.
+	 */
+	public void unregister(DatagramChannel channel) {
+		SelectorLoop loop = channels.get(channel);
+		if (loop != null) loop.remove(channel);
+	}
+	
+	public int getNumRegisteredChannels() {
+		return channels.size();
+	}
+	
+	public long getPacketsReceived() {
+		return packetsReceived.get();
+	}
+	
+	public void setNumSelectorThreads(int numSelectorThreads) {
+		this.numSelectorThreads = numSelectorThreads;
+	}
+	
+	private static class Registration {
+		final DatagramChannel channel;
+		final RtpPacket packet;
+		final ByteBuffer buffer;
+		final RtpPacketHandler handler;
+		SelectionKey key;
+		
+		Registration(DatagramChannel channel, RtpPacket packet, RtpPacketHandler handler) {
+			this.channel = channel;
+			this.packet = packet;
+			this.buffer = ByteBuffer.wrap(packet.getPacket());
+			this.handler = handler;
+		}
+	}
+	
+	private class SelectorLoop implements Runnable {
+		private final int id;
+		private final Selector selector;
+		private final Queue<Registration> added = new ConcurrentLinkedQueue<Registration>();
+		private final Queue<DatagramChannel> removed = new ConcurrentLinkedQueue<DatagramChannel>();
+		private final List<Registration> registrations = new ArrayList<Registration>();
+		private volatile boolean running = true;
+		private long lastClosedChannelCheck = System.currentTimeMillis();
+		
+		SelectorLoop(int id, Selector selector) {
+			this.id = id;
+			this.selector = selector;
+		}
+		
+		void add(Registration registration) {
+			added.add(registration);
+			selector.wakeup();
+		}
+		
+		void remove(DatagramChannel channel) {
+			removed.add(channel);
+			selector.wakeup();
+		}
+		
+		void stop() {
+			running = false;
+			selector.wakeup();
+		}
+		
+		public void run() {
+			while (running) {
+				try {
+					selector.select(CLOSED_CHANNEL_CHECK_INTERVAL);
+				} catch (IOException e) {
+					log.error("Selector " + id + " failed: " + e.getMessage());
+					break;
+				}
+				
+				registerAdded();
+				unregisterRemoved();
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid()) receive((Registration) key.attachment());
+				}
+				
+				long now = System.currentTimeMillis();
+				if (now - lastClosedChannelCheck >= CLOSED_CHANNEL_CHECK_INTERVAL) {
+					lastClosedChannelCheck = now;
+					unregisterClosed();
+				}
+			}
+			
+			registerAdded();
+			for (Registration registration : new ArrayList<Registration>(registrations)) {
+				stopped(registration);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				log.warn("Failed to close selector " + id + ": " + e.getMessage());
+			}
+			log.debug("Selector " + id + " stopped.");
+		}
+		
+		private void receive(Registration registration) {
+			try {
+				for (int i = 0; i < MAX_PACKETS_PER_READ; i++) {
+					registration.buffer.clear();
+					if (registration.channel.receive(registration.buffer) == null) return;
+					
+					packetsReceived.incrementAndGet();
+					registration.packet.setPacketLength(registration.buffer.position());
+					try {
+						registration.handler.onPacketReceived(registration.packet);
+					} catch (RuntimeException e) {
+						log.error("Failed to handle RTP packet on selector " + id + ": " + e.getMessage());
+					}
+				}
+			} catch (IOException e) {
+				// We get this when the socket closes when the call hangs up.
+				stopped(registration);
+			}
+		}
+		
+		private void registerAdded() {
+			Registration registration;
+			while ((registration = added.poll()) != null) {
+				try {
+					registration.key = registration.channel.register(selector, SelectionKey.OP_READ, registration);
+					registrations.add(registration);
+				} catch (ClosedChannelException e) {
+					registrations.add(registration);
+					stopped(registration);
+				}
+			}
+		}
+		
+		private void unregisterRemoved() {
+			DatagramChannel channel;
+			while ((channel = removed.poll()) != null) {
+				for (Registration registration : registrations) {
+					if (registration.channel == channel) {
+						stopped(registration);
+						break;
+					}
+				}
+			}
+		}
+		
+		private void unregisterClosed() {
+			for (int i = registrations.size() - 1; i >= 0; i--) {
+				if (!registrations.get(i).channel.isOpen()) stopped(registrations.get(i));
+			}
+		}
+		
+		private void stopped(Registration registration) {
+			if (registration.key != null) registration.key.cancel();
+			registrations.remove(registration);
+			channels.remove(registration.channel);
+			try {
+				registration.handler.onStoppedReceiving();
+			} catch (RuntimeException e) {
+				log.error("Failed to stop RTP handler on selector " + id + ": " + e.getMessage());
+			}
+		}
+	}
+}
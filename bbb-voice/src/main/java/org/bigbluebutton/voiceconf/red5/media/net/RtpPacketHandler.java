@@ -16,28 +16,21 @@
 * with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
 *
 */
-package org.bigbluebutton.deskshare.client.blocks;
+package org.bigbluebutton.voiceconf.red5.media.net;
 
-import java.util.zip.Adler32;
-
-/*
- * Provides a wrapper for the checksum of a block so we can syncronize properly.
+/**
+ * Receives the RTP packets of one channel registered with the {@link RtpIoEngine}.
+ * Both methods are called on the engine's selector thread for the channel.
  */
-class BlockChecksum {
-	private final Adler32 checksum;
-	
-	public BlockChecksum() {
-		checksum = new Adler32();
-	}
-	
-	public synchronized boolean isChecksumSame(byte[] pixels) {
-	    long oldsum = checksum.getValue(); 
-	    checksum.reset();
-	    checksum.update(pixels); 
-	    return (oldsum == checksum.getValue());	
-	}
+public interface RtpPacketHandler {
+
+	/**
+	 * The packet is only valid during the call. Its buffer is reused for the next packet.
+	 */
+	void onPacketReceived(RtpPacket packet);
 	
-	public synchronized void reset() {
-		checksum.reset();
-	}
+	/**
+	 * Called once when the channel is unregistered, closed or fails.
+	 */
+	void onStoppedReceiving();
 }
@@ -21,12 +21,17 @@ package org.bigbluebutton.voiceconf.red5.media.net;
 import java.net.InetAddress;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.io.IOException;
 
 
 /** RtpSocket implements a RTP socket for receiving and sending RTP packets. 
   * <p> RtpSocket is associated to a DatagramSocket that is used
   * to send and/or receive RtpPackets.
+  * <p> Sockets opened through a DatagramChannel send through the channel, so
+  * they can be sent on while the channel is registered with the {@link RtpIoEngine}.
   */
 public class RtpSocket {
    /** UDP socket */
@@ -38,6 +43,9 @@ public class RtpSocket {
    /** Remote port */
    int r_port;
 
+   /** Remote address and port, for sending through the channel */
+   InetSocketAddress r_socket_addr;
+
    private final byte[] payload = new byte[10];
    
    /** Creates a new RTP socket (only receiver) */ 
@@ -52,6 +60,7 @@ public class RtpSocket {
 	   socket = datagram_socket;
 	   r_addr = remote_address;
 	   r_port = remote_port;
+	   r_socket_addr = new InetSocketAddress(remote_address, remote_port);
    }
 
    /** Returns the RTP DatagramSocket */ 
@@ -72,6 +81,13 @@ public class RtpSocket {
    
    /** Sends a RTP packet from this socket */      
    public void send(RtpPacket rtpp) throws IOException {  
+	   DatagramChannel channel = socket.getChannel();
+	   if (channel != null) {
+		   if (channel.isOpen())
+			   channel.send(ByteBuffer.wrap(rtpp.getPacket()), r_socket_addr);
+		   return;
+	   }
+	   
 	   txDatagram.setData(rtpp.getPacket());
 	   txDatagram.setAddress(r_addr);
 	   txDatagram.setPort(r_port);
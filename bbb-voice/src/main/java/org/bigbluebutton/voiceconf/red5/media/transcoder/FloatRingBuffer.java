@@ -0,0 +1,88 @@
+/**
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+* 
+* Copyright (c) 2012 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 3.0 of the License, or (at your option) any later
+* version.
+* 
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.bigbluebutton.voiceconf.red5.media.transcoder;
+
+/**
+ * Ring buffer of audio samples between one producer thread and one consumer thread.
+ * 
+ * Neither side locks. The producer only moves the tail and the consumer only moves
+ * the head, so a sample is written before the tail that covers it is published and
+ * is only overwritten once the head has moved past it.
+ */
+public class FloatRingBuffer {
+	private final float[] samples;
+	private final int mask;
+	
+	// Total number of samples read and written. Only the consumer writes head, only the producer writes tail.
+	private volatile long head = 0;
+	private volatile long tail = 0;
+	
+	/**
+	 * @param capacity rounded up to a power of two
+	 */
+	public FloatRingBuffer(int capacity) {
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) size <<= 1;
+		samples = new float[size];
+		mask = size - 1;
+	}
+	
+	/**
+	 * Writes all of the samples or, if they don't fit, none of them. Producer only.
+	 * @return false if there isn't enough room
+	 */
+	public boolean offer(float[] src, int offset, int length) {
+		long t = tail;
+		if (samples.length - (t - head) < length) return false;
+		
+		int index = (int) t & mask;
+		int first = Math.min(length, samples.length - index);
+		System.arraycopy(src, offset, samples, index, first);
+		System.arraycopy(src, offset + first, samples, 0, length - first);
+		tail = t + length;
+		return true;
+	}
+	
+	/**
+	 * Reads exactly length samples, or nothing if there are fewer available. Consumer only.
+	 * @return false if there aren't enough samples
+	 */
+	public boolean poll(float[] dst, int offset, int length) {
+		long h = head;
+		if (tail - h < length) return false;
+		
+		int index = (int) h & mask;
+		int first = Math.min(length, samples.length - index);
+		System.arraycopy(samples, index, dst, offset, first);
+		System.arraycopy(samples, 0, dst, offset + first, length - first);
+		head = h + length;
+		return true;
+	}
+	
+	/**
+	 * Number of samples that can be read.
+	 */
+	public int available() {
+		return (int) (tail - head);
+	}
+	
+	public int capacity() {
+		return samples.length;
+	}
+}
@@ -18,13 +18,9 @@
 */
 package org.bigbluebutton.voiceconf.red5.media.transcoder;
 
-import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.nio.FloatBuffer;
 import java.util.Random;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.bigbluebutton.voiceconf.red5.media.FlashToSipAudioStream.TranscodedAudioListener;
@@ -47,18 +43,27 @@ public class NellyFlashToSipTranscoderImp implements FlashToSipTranscoder {
     private static final int ULAW_AUDIO_LENGTH = 160;
     
     /**
-     * Max buffer length when 5 Nelly/L16 packets equals 8 Ulaw packets.
+     * Ulaw audio is sent every 20ms (160 samples at 8kHz).
      */
-    private static final int MAX_BUFFER_LENGTH = 1280;
+    private static final int PTIME = 20;
     /**
-     * Allocate a fixed buffer length so we don't have to copy elements around. We'll use the
-     * position, limit, mart attributes of the NIO Buffer.
+     * Max L16 audio waiting to be sent, about half a second.
      */
-    private final FloatBuffer l16Audio = FloatBuffer.allocate(MAX_BUFFER_LENGTH);
+    private static final int MAX_BUFFER_LENGTH = 4096;
     /**
-     * This is a view read-only copy of the buffer to track which byte are being transcoded from L16->Ulaw
+     * When more L16 audio than this is waiting, more than one Ulaw packet is sent in a 20ms
+     * tick so the delay doesn't grow when Flash sends audio faster than we send it.
      */
-    private FloatBuffer viewBuffer;
+    private static final int MAX_DELAY_LENGTH = 4 * ULAW_AUDIO_LENGTH;
+    /**
+     * L16 audio decoded from Nelly waiting to be converted to Ulaw. 
+     */
+    private final FloatRingBuffer l16Audio = new FloatRingBuffer(MAX_BUFFER_LENGTH);
+    /**
+     * Nelly audio received but not yet decoded, as packets may not hold whole Nelly frames.
+     */
+    private final byte[] nellyAudio = new byte[NELLY_AUDIO_LENGTH];
+    private int nellyAudioLength = 0;
     
     private Codec sipCodec = null;						
     private Decoder decoder;
@@ -70,13 +75,10 @@ public class NellyFlashToSipTranscoderImp implements FlashToSipTranscoder {
     private long timestamp = 0;
     private final static int TS_INCREMENT = 180;		// Determined from PCAP traces.
 
-	private final PipedOutputStream streamFromFlash;
-	private PipedInputStream streamToSip;
-	
-	private final Executor exec = Executors.newSingleThreadExecutor();
-	private Runnable audioDataProcessor;
+	private ScheduledFuture<?> audioDataProcessor;
 	private volatile boolean processAudioData = false;
 	private TranscodedAudioListener transcodedAudioListener;
+	private final TranscoderPool transcoderPool;
 	
 	/**
 	 * The transcode process works by taking a 64-byte-array Nelly audio and converting it into a 256-float-array L16 audio. From the 
@@ -84,33 +86,30 @@ public class NellyFlashToSipTranscoderImp implements FlashToSipTranscoder {
 	 * will be used in the next iteration.
 	 * Therefore, 5 Nelly/L16 packets (5x256 = 1280) will result into 8 Ulaw packets (8x160 = 1280). 
 	 *
+	 * The Nelly audio is decoded on the thread receiving it. The Ulaw audio is encoded and sent every
+	 * 20ms on the shared transcoder threads.
 	 */
-    public NellyFlashToSipTranscoderImp(Codec sipCodec) {
+    public NellyFlashToSipTranscoderImp(Codec sipCodec, TranscoderPool transcoderPool) {
     	this.sipCodec = sipCodec;
+    	this.transcoderPool = transcoderPool;
     	decoder = new Decoder();
         decoderMap = null;
         Random rgen = new Random();
         timestamp = rgen.nextInt(1000);
-        viewBuffer = l16Audio.asReadOnlyBuffer();
-        
-		streamFromFlash = new PipedOutputStream();
-		try {
-			streamToSip = new PipedInputStream(streamFromFlash);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
     }
     
     @Override
     public void start() {
     	processAudioData = true;	 
-	    audioDataProcessor = new Runnable() {
+	    audioDataProcessor = transcoderPool.getExecutor().scheduleAtFixedRate(new Runnable() {
     		public void run() {
-    			processAudioData();   			
+    			try {
+    				processAudioData();
+    			} catch (RuntimeException e) {
+    				log.error("Failed to send transcoded audio: " + e.getMessage());
+    			}
     		}
-    	};
-    	exec.execute(audioDataProcessor);
+    	}, PTIME, PTIME, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -125,98 +124,73 @@ public class NellyFlashToSipTranscoderImp implements FlashToSipTranscoder {
     
     @Override
     public void handlePacket(byte[] data, int begin, int end) {
-		try {
-			streamFromFlash.write(data, begin, end);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}    	
+    	// end is the number of bytes, not an index.
+    	int offset = begin;
+    	int remaining = end;
+    	while (remaining > 0) {
+    		if (nellyAudioLength == 0 && remaining >= NELLY_AUDIO_LENGTH) {
+    			transcode(data, offset, NELLY_AUDIO_LENGTH);
+    			offset += NELLY_AUDIO_LENGTH;
+    			remaining -= NELLY_AUDIO_LENGTH;
+    		} else {
+    			int n = Math.min(remaining, NELLY_AUDIO_LENGTH - nellyAudioLength);
+    			System.arraycopy(data, offset, nellyAudio, nellyAudioLength, n);
+    			nellyAudioLength += n;
+    			offset += n;
+    			remaining -= n;
+    			if (nellyAudioLength == NELLY_AUDIO_LENGTH) {
+    				nellyAudioLength = 0;
+    				transcode(nellyAudio, 0, NELLY_AUDIO_LENGTH);
+    			}
+    		}
+    	}
     }
 
+	/**
+	 * Runs every 20ms on the transcoder threads. Sends a Ulaw packet if there is enough audio,
+	 * and more if the audio waiting is getting too long.
+	 */
 	private void processAudioData() {
-		int len = 64;
-		byte[] nellyAudio = new byte[len];		
-		int remaining = len;
-		int offset = 0;
+		if (!processAudioData) return;
+		
+		if (l16Audio.available() >= ULAW_AUDIO_LENGTH) {
+			sendUlawAudio();
+		}
+		while (l16Audio.available() > MAX_DELAY_LENGTH) {
+			sendUlawAudio();
+		}
+	}
+	
+	private void sendUlawAudio() {
+		// Read 160-float worth of audio
+		l16Audio.poll(tempUlawBuffer, 0, ULAW_AUDIO_LENGTH);
 		
-		while (processAudioData) {			
-			try {
-				int bytesRead =  streamToSip.read(nellyAudio, offset, remaining);
-				remaining -= bytesRead;
-				if (remaining == 0) {
-					remaining = len;
-					offset = 0;
-					transcode(nellyAudio, 0, nellyAudio.length);
-				} else {
-					offset += bytesRead; 
-				}
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}        		
-		}	
+		// Convert the L16 audio to Ulaw
+		int encodedBytes = sipCodec.pcmToCodec(tempUlawBuffer, ulawEncodedBuffer);
+		if (encodedBytes == sipCodec.getOutgoingEncodedFrameSize()) {
+			// Send it to the server
+			transcodedAudioListener.handleTranscodedAudioData(ulawEncodedBuffer, timestamp += TS_INCREMENT);
+		} else {
+			log.error("Failure encoding buffer." );
+		}
 	}
 	
+	/**
+	 * Decodes one Nelly audio at startOffset and stores the L16 audio until it is sent.
+	 */
 	@Override
 	public void transcode(byte[] audioData, int startOffset, int length) {
-		if (audioData.length != NELLY_AUDIO_LENGTH) {
-			if (log.isWarnEnabled()) log.warn("Receiving bad nelly audio. Expecting {}, got {}.", NELLY_AUDIO_LENGTH, audioData.length);
+		if (length != NELLY_AUDIO_LENGTH) {
+			if (log.isWarnEnabled()) log.warn("Receiving bad nelly audio. Expecting {}, got {}.", NELLY_AUDIO_LENGTH, length);
 			return;
 		}
 				
 		// Convert the Nelly audio to L16.
-    	decoderMap = decoder.decode(decoderMap, audioData, 0, tempL16Buffer, 0);
+    	decoderMap = decoder.decode(decoderMap, audioData, startOffset, tempL16Buffer, 0);
     	
     	// Store the L16 audio into the buffer
-    	l16Audio.put(tempL16Buffer);
-    	
-    	// Read 160-float worth of audio
-    	viewBuffer.get(tempUlawBuffer);
-    	
-    	// Convert the L16 audio to Ulaw
-    	int encodedBytes = sipCodec.pcmToCodec(tempUlawBuffer, ulawEncodedBuffer);
-
-    	// Send it to the server
-    	transcodedAudioListener.handleTranscodedAudioData(ulawEncodedBuffer, timestamp += TS_INCREMENT);
-     	
-    	if (l16Audio.position() == l16Audio.capacity()) {
-    		/**
-    		 *  This means we already processed 5 Nelly packets and sent 5 Ulaw packets. 
-    		 *  However, we have 3 extra Ulaw packets.
-    		 *  Fire them off to the server. We don't want to discard them as it will
-    		 *  result in choppy audio.
-    		 */
-    		
-    		// Get the 6th packet and send
-    		viewBuffer.get(tempUlawBuffer);
-        	encodedBytes = sipCodec.pcmToCodec(tempUlawBuffer, ulawEncodedBuffer);
-        	if (encodedBytes == sipCodec.getOutgoingEncodedFrameSize()) {
-        		transcodedAudioListener.handleTranscodedAudioData(ulawEncodedBuffer, timestamp += TS_INCREMENT);
-        	} else {
-        		log.error("Failure encoding buffer." );
-        	}
-        	
-        	// Get the 7th packet and send
-        	viewBuffer.get(tempUlawBuffer);
-        	encodedBytes = sipCodec.pcmToCodec(tempUlawBuffer, ulawEncodedBuffer);
-        	if (encodedBytes == sipCodec.getOutgoingEncodedFrameSize()) {
-        		transcodedAudioListener.handleTranscodedAudioData(ulawEncodedBuffer, timestamp += TS_INCREMENT);
-        	} else {
-        		log.error("Failure encoding buffer." );
-        	}
-
-        	// Get the 8th packet and send
-        	viewBuffer.get(tempUlawBuffer);
-        	encodedBytes = sipCodec.pcmToCodec(tempUlawBuffer, ulawEncodedBuffer);
-        	if (encodedBytes == sipCodec.getOutgoingEncodedFrameSize()) {
-        		transcodedAudioListener.handleTranscodedAudioData(ulawEncodedBuffer, timestamp += TS_INCREMENT);
-        	} else {
-        		log.error("Failure encoding buffer." );
-        	}
-        	
-        	// Reset the buffer's position back to zero and start over.
-    		l16Audio.clear();
-    		viewBuffer.clear();
+    	if (!l16Audio.offer(tempL16Buffer, 0, NELLY_TO_L16_AUDIO_SIZE)) {
+    		if (log.isInfoEnabled()) log.info("Dropping packet. {} samples waiting to be sent.", l16Audio.available());
     	}
 	}	
 	
@@ -227,6 +201,7 @@ public class NellyFlashToSipTranscoderImp implements FlashToSipTranscoder {
 	@Override
     public void stop() {
     	processAudioData = false;
+    	if (audioDataProcessor != null) audioDataProcessor.cancel(false);
     }
 
 }
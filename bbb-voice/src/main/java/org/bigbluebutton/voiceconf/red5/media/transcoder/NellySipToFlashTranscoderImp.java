@@ -18,13 +18,8 @@
 */
 package org.bigbluebutton.voiceconf.red5.media.transcoder;
 
-import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.nio.FloatBuffer;
 import java.util.Random;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.bigbluebutton.voiceconf.red5.media.SipToFlashAudioStream;
@@ -53,18 +48,20 @@ public class NellySipToFlashTranscoderImp implements SipToFlashTranscoder {
      */
     private static final int ULAW_AUDIO_LENGTH = 160;
     /**
-     * The maximum size of our processing buffer. 8 Ulaw packets (8x160 = 1280) yields 5 L16/Nelly audio (5x256 = 1280). 
+     * The maximum L16 audio waiting to be converted to Nelly, about half a second. 
      */
-    private static final int MAX_BUFFER_LENGTH = 1280;
+    private static final int MAX_BUFFER_LENGTH = 4096;
     
     /**
      * Buffer that contain L16 transcoded audio from Ulaw.
      */
-    private final FloatBuffer l16Audio = FloatBuffer.allocate(MAX_BUFFER_LENGTH);
-    /*
-     * A view read-only buffer that keeps track of which part of the L16 buffer will be converted to Nelly.
+    private final FloatRingBuffer l16Audio = new FloatRingBuffer(MAX_BUFFER_LENGTH);
+    
+    /**
+     * Ulaw audio received but not yet converted to L16, as packets may not be 160 bytes.
      */
-    private FloatBuffer viewBuffer;
+    private final byte[] ulawAudio = new byte[ULAW_AUDIO_LENGTH];
+    private int ulawAudioLength = 0;
     
     private final float[] tempL16Buffer = new float[ULAW_AUDIO_LENGTH];
     private float[] tempNellyBuffer = new float[L16_AUDIO_LENGTH]; 					
@@ -76,34 +73,38 @@ public class NellySipToFlashTranscoderImp implements SipToFlashTranscoder {
     private long timestamp = 0;
     private final static int TS_INCREMENT = 32; 	// Determined from PCAP traces.
     
-	private final PipedOutputStream streamFromSip;
-	private PipedInputStream streamToFlash;
-
 	private TranscodedAudioDataListener transcodedAudioListener;
-	private boolean processAudioData;
+	private final TranscoderPool transcoderPool;
+	private volatile boolean processAudioData = false;
 
-	private final Executor exec = Executors.newSingleThreadExecutor();
-	private Runnable audioDataProcessor;
+	private final AtomicBoolean processorScheduled = new AtomicBoolean(false);
+	private final Runnable audioDataProcessor = new Runnable() {
+		public void run() {
+			processAudioData();
+		}
+	};
+	
     /**
      * The transcode takes a 160-byte Ulaw audio and converts it to a 160-float L16 audio. Whenever there is an
      * available 256-float L16 audio, that gets converted into a 64-byte Nelly audio. Therefore, 8 Ulaw packets
      * are needed to generate 5 Nelly packets.
+     * 
+     * The Ulaw audio is converted to L16 on the thread receiving it. The Nelly audio is encoded on the
+     * shared transcoder threads whenever there is enough L16 audio.
      * @param audioCodec
+     * @param transcoderPool
      */
-    public NellySipToFlashTranscoderImp(Codec audioCodec) {
+    public NellySipToFlashTranscoderImp(Codec audioCodec, TranscoderPool transcoderPool) {
     	this.audioCodec = audioCodec;    	    	
+    	this.transcoderPool = transcoderPool;
       	encoderMap = new float[64];
         Random rgen = new Random();
         timestamp = rgen.nextInt(1000);
-        viewBuffer = l16Audio.asReadOnlyBuffer();
-		streamFromSip = new PipedOutputStream();
-		try {
-			streamToFlash = new PipedInputStream(streamFromSip);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
     }
 
+	/**
+	 * Converts the Ulaw audio to L16 and stores it until it is converted to Nelly.
+	 */
 	@Override
 	public void transcode(byte[] audioData) { 
 		if (audioData.length != ULAW_AUDIO_LENGTH) {
@@ -115,39 +116,50 @@ public class NellySipToFlashTranscoderImp implements SipToFlashTranscoder {
         audioCodec.codecToPcm(audioData, tempL16Buffer);
 
         // Store into the buffer
-        l16Audio.put(tempL16Buffer);
-        
-        if ((l16Audio.position() - viewBuffer.position()) >= L16_AUDIO_LENGTH) {
-        	// We have enough L16 audio to generate a Nelly audio.
-        	// Get some L16 audio
-        	viewBuffer.get(tempNellyBuffer);
-        	// Convert it into Nelly
-			encoderMap = CodecImpl.encode(encoderMap, tempNellyBuffer, nellyBytes);
-			
-			// Having done all of that, we now see if we need to send the audio or drop it.
-			// We have to encode to build the encoderMap so that data from previous audio packet 
-			// will be used for the next packet.			
-			boolean sendPacket = true;			
-			IConnection conn = Red5.getConnectionLocal();
-			if (conn instanceof RTMPMinaConnection) {
-				long pendingMessages = ((RTMPMinaConnection)conn).getPendingMessages();
-				if (pendingMessages > 25) {   
-					// Message backed up probably due to slow connection to client (25 messages * 20ms ptime = 500ms audio)
-					sendPacket = false;
-					if (log.isInfoEnabled())
-						log.info("Dropping packet. Connection {} congested with {} pending messages (~500ms worth of audio) .", conn.getClient().getId(), pendingMessages);
-				}    					
-			} 
-				
-			if (sendPacket) transcodedAudioListener.handleTranscodedAudioData(nellyBytes, timestamp += TS_INCREMENT);			
+        if (!l16Audio.offer(tempL16Buffer, 0, ULAW_AUDIO_LENGTH)) {
+        	if (log.isInfoEnabled()) log.info("Dropping packet. Transcoding is {} samples behind.", l16Audio.available());
         }
-        
-        if (l16Audio.position() == l16Audio.capacity()) {
-        	// We've processed 8 Ulaw packets (5 Nelly packets), reset the buffers.
-        	l16Audio.clear();
-        	viewBuffer.clear();
-        }
-    }
+	}
+	
+	/**
+	 * Runs on the transcoder threads, one at a time for this transcoder.
+	 */
+	private void processAudioData() {
+		do {
+			while (processAudioData && l16Audio.poll(tempNellyBuffer, 0, L16_AUDIO_LENGTH)) {
+				encodeNelly();
+			}
+			processorScheduled.set(false);
+		} while (processAudioData && l16Audio.available() >= L16_AUDIO_LENGTH && processorScheduled.compareAndSet(false, true));
+	}
+	
+	private void scheduleAudioDataProcessor() {
+		if (processAudioData && l16Audio.available() >= L16_AUDIO_LENGTH && processorScheduled.compareAndSet(false, true)) {
+			transcoderPool.getExecutor().execute(audioDataProcessor);
+		}
+	}
+	
+	private void encodeNelly() {
+		// Convert it into Nelly
+		encoderMap = CodecImpl.encode(encoderMap, tempNellyBuffer, nellyBytes);
+		
+		// Having done all of that, we now see if we need to send the audio or drop it.
+		// We have to encode to build the encoderMap so that data from previous audio packet 
+		// will be used for the next packet.			
+		boolean sendPacket = true;			
+		IConnection conn = Red5.getConnectionLocal();
+		if (conn instanceof RTMPMinaConnection) {
+			long pendingMessages = ((RTMPMinaConnection)conn).getPendingMessages();
+			if (pendingMessages > 25) {   
+				// Message backed up probably due to slow connection to client (25 messages * 20ms ptime = 500ms audio)
+				sendPacket = false;
+				if (log.isInfoEnabled())
+					log.info("Dropping packet. Connection {} congested with {} pending messages (~500ms worth of audio) .", conn.getClient().getId(), pendingMessages);
+			}    					
+		} 
+			
+		if (sendPacket) transcodedAudioListener.handleTranscodedAudioData(nellyBytes, timestamp += TS_INCREMENT);			
+	}
 		
 	@Override 
     public int getIncomingEncodedFrameSize() {
@@ -161,47 +173,24 @@ public class NellySipToFlashTranscoderImp implements SipToFlashTranscoder {
 
 	@Override
 	public void handleData(byte[] audioData, int offset, int len) {
-		try {
-			streamFromSip.write(audioData, offset, len);
-		} catch (IOException e) {
-			e.printStackTrace();
+		while (len > 0) {
+			int n = Math.min(len, ULAW_AUDIO_LENGTH - ulawAudioLength);
+			System.arraycopy(audioData, offset, ulawAudio, ulawAudioLength, n);
+			ulawAudioLength += n;
+			offset += n;
+			len -= n;
+			if (ulawAudioLength == ULAW_AUDIO_LENGTH) {
+				ulawAudioLength = 0;
+				transcode(ulawAudio);
+			}
 		}
-	
-	}
-	
-	private void processAudioData() {
-		int len = 160;
-		byte[] pcmAudio = new byte[len];		
-		int remaining = len;
-		int offset = 0;
-
-		while (processAudioData) {
-			try {
-				int bytesRead =  streamToFlash.read(pcmAudio, offset, remaining);	
-				remaining -= bytesRead;
-				if (remaining == 0) {
-					remaining = len;
-					offset = 0;
-					transcode(pcmAudio);
-				} else {
-					offset += bytesRead; 
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-			}        		
-		}	
+		scheduleAudioDataProcessor();
 	}
 	
 	@Override
     public void start(){
     	processAudioData = true;
-    	
-    	audioDataProcessor = new Runnable() {
-    		public void run() {
-    			processAudioData();       			
-    		}
-    	};
-    	exec.execute(audioDataProcessor);
+    	scheduleAudioDataProcessor();
 	}
 	
 	@Override
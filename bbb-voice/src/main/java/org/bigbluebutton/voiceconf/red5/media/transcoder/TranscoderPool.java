@@ -0,0 +1,64 @@
+/**
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+* 
+* Copyright (c) 2012 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 3.0 of the License, or (at your option) any later
+* version.
+* 
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.bigbluebutton.voiceconf.red5.media.transcoder;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import org.red5.logging.Red5LoggerFactory;
+import org.slf4j.Logger;
+
+/**
+ * Threads shared by the transcoders of all the calls. There are as many as
+ * there are processors unless set, however many calls there are.
+ */
+public class TranscoderPool {
+	private static Logger log = Red5LoggerFactory.getLogger(TranscoderPool.class, "sip");
+	
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private ScheduledExecutorService executor;
+	
+	public void start() {
+		log.debug("Starting transcoder pool with " + numThreads + " threads.");
+		executor = Executors.newScheduledThreadPool(numThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Transcoder");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Stops the threads. The audio of calls still running is no longer transcoded.
+	 */
+	public void stop() {
+		log.debug("Stopping transcoder pool.");
+		executor.shutdown();
+	}
+	
+	ScheduledExecutorService getExecutor() {
+		return executor;
+	}
+	
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+}
@@ -35,10 +35,12 @@ import org.slf4j.Logger;
 import org.red5.logging.Red5LoggerFactory;
 import org.red5.server.api.scope.IScope;
 import org.red5.server.api.stream.IBroadcastStream;
+import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
 import java.util.Vector;
 
 public class CallAgent extends CallListenerAdapter implements CallStreamObserver  {
@@ -146,13 +148,18 @@ public class CallAgent extends CallListenerAdapter implements CallStreamObserver
     	
     	for (int i = portProvider.getStartAudioPort(); i <= portProvider.getStopAudioPort(); i++) {
     		int freePort = portProvider.getFreeAudioPort();
-    		try {    			
-        		socket = new DatagramSocket(freePort);
+    		DatagramChannel channel = null;
+    		try {
+    			// Opened through a channel so the RtpIoEngine can receive on it.
+    			channel = DatagramChannel.open();
+    			channel.socket().bind(new InetSocketAddress(freePort));
+        		socket = channel.socket();
         		failedToGetSocket = false;
         		log.info("Successfully setup local audio port {}. {}", freePort, failedPorts);
         		break;
-    		} catch (SocketException e) {
-    			failedPorts.append(freePort + ", ");   			
+    		} catch (IOException e) {
+    			failedPorts.append(freePort + ", ");
+    			if (channel != null) channel.close();
     		}
     	}
     	
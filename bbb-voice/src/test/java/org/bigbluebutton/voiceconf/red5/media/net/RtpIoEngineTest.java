@@ -0,0 +1,211 @@
+package org.bigbluebutton.voiceconf.red5.media.net;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class RtpIoEngineTest {
+	private static final int PACKET_LENGTH = 172;
+	
+	private RtpIoEngine engine;
+	private List<DatagramChannel> channels;
+	
+	@BeforeMethod
+	public void init() throws IOException {
+		engine = new RtpIoEngine();
+		engine.setNumSelectorThreads(2);
+		engine.start();
+		channels = new ArrayList<DatagramChannel>();
+	}
+	
+	@AfterMethod
+	public void cleanup() throws IOException {
+		engine.stop();
+		for (DatagramChannel channel : channels) {
+			channel.close();
+		}
+	}
+	
+	private DatagramChannel openChannel() throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		channels.add(channel);
+		return channel;
+	}
+	
+	private void send(DatagramChannel from, DatagramChannel to, int seqNum) throws IOException {
+		RtpPacket packet = new RtpPacket(new byte[PACKET_LENGTH], PACKET_LENGTH);
+		packet.setSeqNum(seqNum);
+		from.send(ByteBuffer.wrap(packet.getPacket()), to.socket().getLocalSocketAddress());
+	}
+	
+	@Test
+	public void testDispatchesPacketsToTheirHandler() throws Exception {
+		DatagramChannel sender = openChannel();
+		int numCalls = 5;
+		RecordingHandler[] handlers = new RecordingHandler[numCalls];
+		DatagramChannel[] receivers = new DatagramChannel[numCalls];
+		RtpPacket[] packets = new RtpPacket[numCalls];
+		for (int i = 0; i < numCalls; i++) {
+			receivers[i] = openChannel();
+			handlers[i] = new RecordingHandler(3);
+			packets[i] = new RtpPacket(new byte[PACKET_LENGTH], PACKET_LENGTH);
+			engine.register(receivers[i], packets[i], handlers[i]);
+		}
+		
+		for (int n = 0; n < 3; n++) {
+			for (int i = 0; i < numCalls; i++) {
+				send(sender, receivers[i], i * 100 + n);
+			}
+		}
+		
+		for (int i = 0; i < numCalls; i++) {
+			Assert.assertTrue(handlers[i].received.await(5, TimeUnit.SECONDS), "Call " + i + " should receive its packets.");
+			Assert.assertEquals(handlers[i].lastSeqNum, i * 100 + 2);
+			Assert.assertSame(handlers[i].lastPacket, packets[i], "Packets should be read into the registered packet.");
+			Assert.assertEquals(handlers[i].lastLength, PACKET_LENGTH);
+		}
+		Assert.assertEquals(engine.getPacketsReceived(), numCalls * 3);
+	}
+	
+	@Test
+	public void testUnregisterStopsReceiving() throws Exception {
+		DatagramChannel receiver = openChannel();
+		RecordingHandler handler = new RecordingHandler(1);
+		engine.register(receiver, new RtpPacket(new byte[PACKET_LENGTH], PACKET_LENGTH), handler);
+		Assert.assertEquals(engine.getNumRegisteredChannels(), 1);
+		
+		engine.unregister(receiver);
+		Assert.assertTrue(handler.stopped.await(5, TimeUnit.SECONDS), "Handler should be told it stopped.");
+		Assert.assertEquals(engine.getNumRegisteredChannels(), 0);
+		
+		engine.unregister(receiver);
+		Thread.sleep(100);
+		Assert.assertEquals(handler.stopCount.get(), 1);
+	}
+	
+	@Test
+	public void testClosingChannelStopsReceiving() throws Exception {
+		DatagramChannel receiver = openChannel();
+		RecordingHandler handler = new RecordingHandler(1);
+		engine.register(receiver, new RtpPacket(new byte[PACKET_LENGTH], PACKET_LENGTH), handler);
+		
+		receiver.close();
+		Assert.assertTrue(handler.stopped.await(5, TimeUnit.SECONDS), "Handler should be told it stopped.");
+		Assert.assertEquals(engine.getNumRegisteredChannels(), 0);
+	}
+	
+	/**
+	 * Load test, in the benchmark group which the unit test suite doesn't run.
+	 */
+	@Test(groups = "benchmark")
+	public void benchmarkSimulatedCalls() throws Exception {
+		for (int numCalls : new int[] {100, 500, 1000}) {
+			simulateCalls(numCalls, 2000);
+		}
+	}
+	
+	/**
+	 * Sends a 20ms packet to each call for the duration and reports the threads and CPU used.
+	 */
+	private void simulateCalls(int numCalls, long duration) throws Exception {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+		
+		DatagramChannel sender = openChannel();
+		CountingHandler handler = new CountingHandler();
+		DatagramChannel[] receivers = new DatagramChannel[numCalls];
+		for (int i = 0; i < numCalls; i++) {
+			receivers[i] = openChannel();
+			engine.register(receivers[i], new RtpPacket(new byte[PACKET_LENGTH], PACKET_LENGTH), handler);
+		}
+		
+		ByteBuffer packet = ByteBuffer.wrap(new RtpPacket(new byte[PACKET_LENGTH], PACKET_LENGTH).getPacket());
+		long sent = 0;
+		long cpuStart = getProcessCpuTime(os);
+		long start = System.nanoTime();
+		long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+		for (long tick = start; tick < end; tick += TimeUnit.MILLISECONDS.toNanos(20)) {
+			for (int i = 0; i < numCalls; i++) {
+				packet.clear();
+				if (sender.send(packet, receivers[i].socket().getLocalSocketAddress()) > 0) sent++;
+			}
+			long sleep = tick + TimeUnit.MILLISECONDS.toNanos(20) - System.nanoTime();
+			if (sleep > 0) TimeUnit.NANOSECONDS.sleep(sleep);
+		}
+		Thread.sleep(100);
+		long elapsed = System.nanoTime() - start;
+		long cpu = getProcessCpuTime(os) - cpuStart;
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+		
+		System.out.println(numCalls + " calls: " + threads + " threads added, " 
+				+ (cpu < 0 ? "n/a" : (cpu * 100 / elapsed) + "%") + " CPU, received " + handler.packets.get() + " of " + sent + " packets.");
+		
+		for (int i = 0; i < numCalls; i++) {
+			engine.unregister(receivers[i]);
+			receivers[i].close();
+			channels.remove(receivers[i]);
+		}
+		sender.close();
+		channels.remove(sender);
+		Assert.assertTrue(handler.packets.get() > 0);
+	}
+	
+	private long getProcessCpuTime(OperatingSystemMXBean os) {
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		}
+		return -1;
+	}
+	
+	private static class RecordingHandler implements RtpPacketHandler {
+		final CountDownLatch received;
+		final CountDownLatch stopped = new CountDownLatch(1);
+		final AtomicInteger stopCount = new AtomicInteger();
+		volatile RtpPacket lastPacket;
+		volatile int lastSeqNum;
+		volatile int lastLength;
+		
+		RecordingHandler(int expectedPackets) {
+			received = new CountDownLatch(expectedPackets);
+		}
+		
+		public void onPacketReceived(RtpPacket packet) {
+			lastPacket = packet;
+			lastSeqNum = packet.getSeqNum();
+			lastLength = packet.getLength();
+			received.countDown();
+		}
+		
+		public void onStoppedReceiving() {
+			stopCount.incrementAndGet();
+			stopped.countDown();
+		}
+	}
+	
+	private static class CountingHandler implements RtpPacketHandler {
+		final AtomicLong packets = new AtomicLong();
+		
+		public void onPacketReceived(RtpPacket packet) {
+			packets.incrementAndGet();
+		}
+		
+		public void onStoppedReceiving() {
+		}
+	}
+}
@@ -0,0 +1,314 @@
+package org.bigbluebutton.voiceconf.red5.media.transcoder;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.red5.app.sip.codecs.PCMUCodec;
+import org.red5.app.sip.codecs.asao.CodecImpl;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class FloatRingBufferTest {
+	private static final int ULAW_FRAME = 160;
+	private static final int NELLY_FRAME = 256;
+	
+	@Test
+	public void testCapacityIsRoundedUpToPowerOfTwo() {
+		Assert.assertEquals(new FloatRingBuffer(4096).capacity(), 4096);
+		Assert.assertEquals(new FloatRingBuffer(1000).capacity(), 1024);
+	}
+	
+	@Test
+	public void testSamplesWrapAround() {
+		FloatRingBuffer ring = new FloatRingBuffer(8);
+		float[] out = new float[5];
+		for (int n = 0; n < 10; n++) {
+			Assert.assertTrue(ring.offer(new float[] {n, n + 0.1f, n + 0.2f, n + 0.3f, n + 0.4f}, 0, 5));
+			Assert.assertEquals(ring.available(), 5);
+			Assert.assertTrue(ring.poll(out, 0, 5));
+			for (int i = 0; i < 5; i++) {
+				Assert.assertEquals(out[i], n + i * 0.1f, 0.0001f);
+			}
+		}
+		Assert.assertEquals(ring.available(), 0);
+	}
+	
+	@Test
+	public void testOfferIsRejectedWhenFull() {
+		FloatRingBuffer ring = new FloatRingBuffer(8);
+		Assert.assertTrue(ring.offer(new float[6], 0, 6));
+		Assert.assertFalse(ring.offer(new float[3], 0, 3), "Samples that don't fit should be dropped.");
+		Assert.assertEquals(ring.available(), 6);
+		Assert.assertTrue(ring.offer(new float[2], 0, 2));
+		Assert.assertEquals(ring.available(), 8);
+	}
+	
+	@Test
+	public void testPollIsRejectedWithoutEnoughSamples() {
+		FloatRingBuffer ring = new FloatRingBuffer(8);
+		float[] out = new float[4];
+		Assert.assertTrue(ring.offer(new float[] {1, 2, 3}, 0, 3));
+		Assert.assertFalse(ring.poll(out, 0, 4), "A partial read should not consume samples.");
+		Assert.assertEquals(ring.available(), 3);
+		Assert.assertTrue(ring.offer(new float[] {4}, 0, 1));
+		Assert.assertTrue(ring.poll(out, 0, 4));
+		Assert.assertEquals(out[3], 4f, 0f);
+	}
+	
+	@Test
+	public void testProducerAndConsumerThreads() throws Exception {
+		final FloatRingBuffer ring = new FloatRingBuffer(1024);
+		final int total = 1000000;
+		
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				float[] frame = new float[ULAW_FRAME];
+				int next = 0;
+				while (next < total) {
+					int length = Math.min(frame.length, total - next);
+					for (int i = 0; i < length; i++) {
+						frame[i] = next + i;
+					}
+					if (ring.offer(frame, 0, length)) {
+						next += length;
+					} else {
+						Thread.yield();
+					}
+				}
+			}
+		});
+		producer.start();
+		
+		float[] frame = new float[100];
+		int expected = 0;
+		long deadline = System.currentTimeMillis() + 30000;
+		while (expected < total && System.currentTimeMillis() < deadline) {
+			if (ring.poll(frame, 0, frame.length)) {
+				for (int i = 0; i < frame.length; i++) {
+					Assert.assertEquals(frame[i], (float) expected++, 0f);
+				}
+			} else {
+				Thread.yield();
+			}
+		}
+		producer.join();
+		Assert.assertEquals(expected, total);
+	}
+	
+	@Test(groups = "benchmark")
+	public void benchmarkAgainstPipedStreams() throws Exception {
+		byte[] ulaw = syntheticUlaw();
+		for (int numStreams : new int[] {50, 200}) {
+			runStreams(true, numStreams, ulaw, 2000);
+			runStreams(false, numStreams, ulaw, 2000);
+		}
+	}
+	
+	/**
+	 * One second of a 440Hz tone at 8kHz in ulaw.
+	 */
+	private byte[] syntheticUlaw() {
+		PCMUCodec codec = new PCMUCodec();
+		float[] pcm = new float[8000];
+		for (int i = 0; i < pcm.length; i++) {
+			pcm[i] = (float) (Math.sin(2 * Math.PI * 440 * i / 8000) * 8000);
+		}
+		byte[] ulaw = new byte[pcm.length];
+		codec.pcmToCodec(pcm, ulaw);
+		return ulaw;
+	}
+	
+	/**
+	 * Writes a 20ms ulaw frame to each stream from a single thread, like the RTP receiver
+	 * does, and reports the delay until the Nelly frames were encoded and the CPU used.
+	 */
+	private void runStreams(boolean piped, int numStreams, byte[] ulaw, long duration) throws Exception {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+		TranscoderPool pool = new TranscoderPool();
+		pool.start();
+		Stats stats = new Stats();
+		Stream[] streams = new Stream[numStreams];
+		for (int i = 0; i < streams.length; i++) {
+			streams[i] = piped ? new PipedStream(stats) : new RingStream(stats, pool);
+		}
+		
+		long cpuStart = getProcessCpuTime(os);
+		long start = System.nanoTime();
+		long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+		int offset = 0;
+		for (long tick = start; tick < end; tick += TimeUnit.MILLISECONDS.toNanos(20)) {
+			for (Stream stream : streams) {
+				stream.write(ulaw, offset);
+			}
+			offset = (offset + ULAW_FRAME) % ulaw.length;
+			long sleep = tick + TimeUnit.MILLISECONDS.toNanos(20) - System.nanoTime();
+			if (sleep > 0) TimeUnit.NANOSECONDS.sleep(sleep);
+		}
+		Thread.sleep(100);
+		long elapsed = System.nanoTime() - start;
+		long cpu = getProcessCpuTime(os) - cpuStart;
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+		for (Stream stream : streams) {
+			stream.close();
+		}
+		pool.stop();
+		
+		long frames = stats.frames.get();
+		System.out.println((piped ? "piped" : "ring") + ", " + streams.length + " streams: " + threads + " threads added, " 
+				+ (cpu < 0 ? "n/a" : (cpu * 100 / elapsed) + "%") + " CPU, " + frames + " Nelly frames, latency avg " 
+				+ (frames == 0 ? 0 : stats.totalLatency.get() / frames / 1000) + "us max " + stats.maxLatency / 1000 + "us.");
+		Assert.assertTrue(frames > 0);
+	}
+	
+	private long getProcessCpuTime(OperatingSystemMXBean os) {
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		}
+		return -1;
+	}
+	
+	private static class Stats {
+		final AtomicLong frames = new AtomicLong();
+		final AtomicLong totalLatency = new AtomicLong();
+		volatile long maxLatency = 0;
+		
+		void encoded(long writtenAt) {
+			long latency = System.nanoTime() - writtenAt;
+			frames.incrementAndGet();
+			totalLatency.addAndGet(latency);
+			if (latency > maxLatency) maxLatency = latency;
+		}
+	}
+	
+	private abstract static class Stream {
+		final Stats stats;
+		final PCMUCodec codec = new PCMUCodec();
+		final float[] l16 = new float[NELLY_FRAME];
+		final byte[] nelly = new byte[64];
+		float[] encoderMap = new float[64];
+		volatile long writtenAt;
+		
+		Stream(Stats stats) {
+			this.stats = stats;
+		}
+		
+		void encode() {
+			encoderMap = CodecImpl.encode(encoderMap, l16, nelly);
+			stats.encoded(writtenAt);
+		}
+		
+		abstract void write(byte[] ulaw, int offset) throws IOException;
+		
+		abstract void close() throws Exception;
+	}
+	
+	/**
+	 * The way the transcoder used to stage audio: a pipe read by a thread of its own.
+	 */
+	private static class PipedStream extends Stream {
+		final PipedOutputStream out = new PipedOutputStream();
+		final PipedInputStream in;
+		final Thread reader;
+		
+		PipedStream(Stats stats) throws IOException {
+			super(stats);
+			in = new PipedInputStream(out);
+			reader = new Thread(new Runnable() {
+				public void run() {
+					read();
+				}
+			});
+			reader.start();
+		}
+		
+		private void read() {
+			byte[] ulaw = new byte[ULAW_FRAME];
+			float[] frame = new float[ULAW_FRAME];
+			int samples = 0;
+			try {
+				while (true) {
+					int read = 0;
+					while (read < ulaw.length) {
+						int n = in.read(ulaw, read, ulaw.length - read);
+						if (n < 0) return;
+						read += n;
+					}
+					codec.codecToPcm(ulaw, frame);
+					int i = 0;
+					while (i < frame.length) {
+						int length = Math.min(frame.length - i, NELLY_FRAME - samples);
+						System.arraycopy(frame, i, l16, samples, length);
+						samples += length;
+						i += length;
+						if (samples == NELLY_FRAME) {
+							encode();
+							samples = 0;
+						}
+					}
+				}
+			} catch (IOException e) {
+				// Pipe closed.
+			}
+		}
+		
+		void write(byte[] ulaw, int offset) throws IOException {
+			writtenAt = System.nanoTime();
+			out.write(ulaw, offset, ULAW_FRAME);
+		}
+		
+		void close() throws Exception {
+			out.close();
+			reader.join();
+		}
+	}
+	
+	/**
+	 * Audio is converted on the writing thread and encoded on the shared pool once
+	 * a whole Nelly frame is in the ring.
+	 */
+	private static class RingStream extends Stream implements Runnable {
+		final FloatRingBuffer ring = new FloatRingBuffer(4096);
+		final AtomicBoolean scheduled = new AtomicBoolean(false);
+		final byte[] ulaw = new byte[ULAW_FRAME];
+		final float[] frame = new float[ULAW_FRAME];
+		final TranscoderPool pool;
+		
+		RingStream(Stats stats, TranscoderPool pool) {
+			super(stats);
+			this.pool = pool;
+		}
+		
+		void write(byte[] data, int offset) {
+			writtenAt = System.nanoTime();
+			System.arraycopy(data, offset, ulaw, 0, ULAW_FRAME);
+			codec.codecToPcm(ulaw, frame);
+			ring.offer(frame, 0, frame.length);
+			schedule();
+		}
+		
+		private void schedule() {
+			if (ring.available() >= NELLY_FRAME && scheduled.compareAndSet(false, true)) {
+				pool.getExecutor().execute(this);
+			}
+		}
+		
+		public void run() {
+			do {
+				while (ring.poll(l16, 0, NELLY_FRAME)) {
+					encode();
+				}
+				scheduled.set(false);
+			} while (ring.available() >= NELLY_FRAME && scheduled.compareAndSet(false, true));
+		}
+		
+		void close() {
+		}
+	}
+}
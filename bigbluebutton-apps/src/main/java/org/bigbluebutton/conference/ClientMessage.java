@@ -28,6 +28,7 @@ public class ClientMessage {
 	private String dest;
 	private Map<String, Object> message;
 	private String messageName;
+	private long queuedAt;
 	
 	public ClientMessage(String type, String dest, String messageName, Map<String, Object> message) {
 		this.type = type;
@@ -51,4 +52,16 @@ public class ClientMessage {
 	public Map<String, Object> getMessage() {
 		return message;
 	}
+	
+	/**
+	 * Time (System.nanoTime) the message was queued for sending. Used
+	 * to track dispatch latency.
+	 */
+	long getQueuedAt() {
+		return queuedAt;
+	}
+	
+	void setQueuedAt(long queuedAt) {
+		this.queuedAt = queuedAt;
+	}
 }
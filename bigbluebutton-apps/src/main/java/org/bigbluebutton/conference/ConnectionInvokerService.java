@@ -19,45 +19,112 @@
 package org.bigbluebutton.conference;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.red5.logging.Red5LoggerFactory;
 import org.red5.server.api.IConnection;
 import org.red5.server.api.scope.IScope;
 import org.red5.server.api.service.ServiceUtils;
+import org.slf4j.Logger;
 
+/**
+ * Sends messages to the clients.
+ *
+ * Messages are dispatched on a fixed number of lanes, each served by its
+ * own thread. A meeting is always mapped to the same lane (by hashing the
+ * meeting id) so messages for a meeting are sent in the order they were
+ * queued while different meetings don't contend with each other.
+ *
+ * A lane sends everything that has queued up since its last run in one go.
+ * Consecutive broadcasts to the same meeting are coalesced: the meeting's
+ * connections are walked once and each connection is sent all the
+ * messages, in order.
+ *
+ * A lane holds at most laneCapacity messages. When it is full, sendMessage()
+ * blocks the caller (the Red5 thread handling a client call or a redis
+ * message) until the lane catches up, rather than dropping messages or
+ * growing without bound.
+ *
+ * The queue depth, the messages sent and the dispatch latency of each lane
+ * are logged every statsInterval seconds.
+ */
 public class ConnectionInvokerService {
+	private static Logger log = Red5LoggerFactory.getLogger(ConnectionInvokerService.class, "bigbluebutton");
 
-	private static final int NTHREADS = 4;
-	private static final Executor exec = Executors.newFixedThreadPool(NTHREADS);
-			
-//	private ConcurrentLinkedQueue<ClientMessage> messages;
+	private static final String CLIENT_METHOD = "onMessageFromServer";
 	
 	private ConcurrentHashMap<String, IConnection> connections;
 	private ConcurrentHashMap<String, IScope> scopes;
 	
+	private int numLanes = 4;
+	private int laneCapacity = 10000;
+	private int maxBatchSize = 100;
+	private int statsInterval = 60;
+	private Lane[] lanes;
+	private ScheduledExecutorService statsReporter;
+
 	public ConnectionInvokerService() {
-//		messages = new ConcurrentLinkedQueue<ClientMessage>();
-		System.out.print("Starting conn invoket service!!!!");
 		connections = new ConcurrentHashMap<String, IConnection>();
 		scopes = new ConcurrentHashMap<String, IScope>();
 	}
 	
-	public void addConnection(String id, IConnection conn) {
-		if (connections == null) {
-			System.out.println("Connections is null!!!!");
-			return;
+	public void start() {
+		log.debug("Starting connection invoker service with " + numLanes + " lanes.");
+		lanes = new Lane[numLanes];
+		for (int i = 0; i < numLanes; i++) {
+			lanes[i] = new Lane(i);
+			lanes[i].start();
 		}
-		if (id == null) {
-			System.out.println("CONN ID IS NULL!!!");
-			
+		startStatsReporter();
+	}
+	
+	private void startStatsReporter() {
+		if (statsInterval <= 0) return;
+		statsReporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "bbb-invoker-stats");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		statsReporter.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				logStats();
+			}
+		}, statsInterval, statsInterval, TimeUnit.SECONDS);
+	}
+	
+	private void logStats() {
+		for (int i = 0; i < lanes.length; i++) {
+			log.info("Lane " + i + ": queued=" + getQueueDepth(i) + " sent=" + getMessagesSent(i) + " batches=" + getBatchesSent(i) 
+					+ " avgLatency=" + getAverageDispatchLatency(i) + "us maxLatency=" + getMaxDispatchLatency(i) + "us");
 		}
-		if (conn == null) {
-			System.out.println("CONN IS NULL");
+	}
+
+	public void stop() {
+		log.debug("Stopping connection invoker service.");
+		if (statsReporter != null) {
+			statsReporter.shutdownNow();
+		}
+		if (lanes == null) return;
+		for (Lane lane : lanes) {
+			if (lane != null) lane.stop();
+		}
+	}
+
+	public void addConnection(String id, IConnection conn) {
+		if (id == null || conn == null) {
+			log.warn("Not adding connection [id=" + id + ",conn=" + conn + "]");
+			return;
 		}
 		connections.putIfAbsent(id, conn);
 	}
@@ -74,35 +141,225 @@ public class ConnectionInvokerService {
 		scopes.remove(id);
 	}
 	
+	/**
+	 * Queues the message on the lane of its meeting. Blocks while that lane is full.
+	 */
 	public void sendMessage(final ClientMessage message) {
-		Runnable sender = new Runnable() {
-			public void run() {
-				sendMessageToClient(message);
+		String meetingId;
+		if (message.getType().equals(ClientMessage.BROADCAST)) {
+			meetingId = message.getDest();
+		} else {
+			/*
+			 * Send direct messages on the lane of the user's meeting so they
+			 * are not reordered with the broadcasts to that meeting.
+			 */
+			IConnection conn = connections.get(message.getDest());
+			if (conn == null) return;
+			IScope scope = conn.getScope();
+			if (scope == null) {
+				log.debug("Dropping message " + message.getMessageName() + " to " + message.getDest() + ": connection has no scope.");
+				return;
 			}
-		};
-		exec.execute(sender);
+			meetingId = scope.getName();
+		}
+
+		message.setQueuedAt(System.nanoTime());
+		laneFor(meetingId).queue(message);
 	}
 	
-	private void sendMessageToClient(ClientMessage message) {
-		if (message.getType().equals(ClientMessage.BROADCAST)) {
-			IScope scope = scopes.get(message.getDest());
-			if (scope != null) {
-				List<Object> params = new ArrayList<Object>();
-				params.add(message.getMessageName());
-				params.add(message.getMessage());
-				ServiceUtils.invokeOnAllConnections(scope, "onMessageFromServer", params.toArray());				
+	private Lane laneFor(String meetingId) {
+		int hash = meetingId.hashCode();
+		hash ^= (hash >>> 16);
+		return lanes[(hash & 0x7fffffff) % lanes.length];
+	}
+
+	private void sendMessagesToClients(List<ClientMessage> batch) {
+		int i = 0;
+		while (i < batch.size()) {
+			ClientMessage message = batch.get(i);
+			if (message.getType().equals(ClientMessage.BROADCAST)) {
+				int end = i + 1;
+				while (end < batch.size() && isBroadcastTo(batch.get(end), message.getDest())) {
+					end++;
+				}
+				try {
+					broadcast(message.getDest(), batch, i, end);
+				} catch (Exception e) {
+					log.error("Failed to broadcast " + (end - i) + " messages to " + message.getDest() + ": " + e.getMessage());
+				}
+				i = end;
+			} else {
+				try {
+					sendDirect(message);
+				} catch (Exception e) {
+					log.error("Failed to send " + message.getMessageName() + " to " + message.getDest() + ": " + e.getMessage());
+				}
+				i++;
 			}
-		} else if (message.getType().equals(ClientMessage.DIRECT)) {
-			IConnection conn = connections.get(message.getDest());
-			if (conn != null) {
-				if (conn.isConnected()) {
-					List<Object> params = new ArrayList<Object>();
-					params.add(message.getMessageName());
-					params.add(message.getMessage());
-					ServiceUtils.invokeOnConnection(conn, "onMessageFromServer", params.toArray());
+		}
+	}
+
+	private boolean isBroadcastTo(ClientMessage message, String meetingId) {
+		return message.getType().equals(ClientMessage.BROADCAST) && message.getDest().equals(meetingId);
+	}
+
+	/**
+	 * Send the messages in batch[from, to) to all connections of the meeting.
+	 */
+	private void broadcast(String meetingId, List<ClientMessage> batch, int from, int to) {
+		IScope scope = scopes.get(meetingId);
+		if (scope == null) return;
+
+		Object[][] params = new Object[to - from][];
+		for (int i = from; i < to; i++) {
+			params[i - from] = new Object[] {batch.get(i).getMessageName(), batch.get(i).getMessage()};
+		}
+
+		for (Set<IConnection> conns : scope.getConnections()) {
+			for (IConnection conn : conns) {
+				for (Object[] p : params) {
+					invoke(conn, p);
 				}
 			}
 		}
 	}
 	
+	private void sendDirect(ClientMessage message) {
+		IConnection conn = connections.get(message.getDest());
+		if (conn != null && conn.isConnected()) {
+			invoke(conn, new Object[] {message.getMessageName(), message.getMessage()});
+		}
+	}
+	
+	/*
+	 * A failure only loses the message to this connection, not the rest of the batch.
+	 */
+	private void invoke(IConnection conn, Object[] params) {
+		try {
+			ServiceUtils.invokeOnConnection(conn, CLIENT_METHOD, params);
+		} catch (Exception e) {
+			log.error("Failed to send " + params[0] + " to a client: " + e.getMessage());
+		}
+	}
+
+	public int getNumLanes() {
+		return numLanes;
+	}
+
+	public int getQueueDepth(int lane) {
+		return lanes[lane].messages.size();
+	}
+
+	public long getMessagesSent(int lane) {
+		return lanes[lane].messagesSent.get();
+	}
+
+	public long getBatchesSent(int lane) {
+		return lanes[lane].batchesSent.get();
+	}
+
+	/**
+	 * Average time, in microseconds, between queueing a message and sending it.
+	 */
+	public long getAverageDispatchLatency(int lane) {
+		long sent = lanes[lane].messagesSent.get();
+		return sent == 0 ? 0 : lanes[lane].totalLatencyNanos.get() / sent / 1000;
+	}
+
+	public long getMaxDispatchLatency(int lane) {
+		return lanes[lane].maxLatencyNanos / 1000;
+	}
+
+	public void setNumLanes(int numLanes) {
+		this.numLanes = numLanes;
+	}
+
+	public void setLaneCapacity(int laneCapacity) {
+		this.laneCapacity = laneCapacity;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Seconds between two logs of the lane stats. 0 to not log them.
+	 */
+	public void setStatsInterval(int statsInterval) {
+		this.statsInterval = statsInterval;
+	}
+
+	private class Lane {
+		private final int id;
+		private ExecutorService exec;
+		private final BlockingQueue<ClientMessage> messages = new ArrayBlockingQueue<ClientMessage>(laneCapacity);
+		private volatile boolean sendMessages = false;
+
+		private final AtomicLong messagesSent = new AtomicLong();
+		private final AtomicLong batchesSent = new AtomicLong();
+		private final AtomicLong totalLatencyNanos = new AtomicLong();
+		private volatile long maxLatencyNanos = 0;
+
+		Lane(int id) {
+			this.id = id;
+		}
+
+		void start() {
+			sendMessages = true;
+			exec = Executors.newSingleThreadExecutor();
+			exec.execute(new Runnable() {
+				public void run() {
+					List<ClientMessage> batch = new ArrayList<ClientMessage>(maxBatchSize);
+					while (sendMessages) {
+						try {
+							batch.add(messages.take());
+							messages.drainTo(batch, maxBatchSize - 1);
+							sendBatch(batch);
+						} catch (InterruptedException e) {
+							log.debug("Lane " + id + " interrupted.");
+							sendMessages = false;
+						} finally {
+							batch.clear();
+						}
+					}
+				}
+			});
+		}
+
+		/*
+		 * Blocks the caller while the lane is full.
+		 */
+		void queue(ClientMessage message) {
+			try {
+				messages.put(message);
+			} catch (InterruptedException e) {
+				log.warn("Interrupted while queueing message " + message.getMessageName());
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void sendBatch(List<ClientMessage> batch) {
+			sendMessagesToClients(batch);
+
+			long now = System.nanoTime();
+			long latency = 0;
+			long max = maxLatencyNanos;
+			for (int i = 0; i < batch.size(); i++) {
+				long l = now - batch.get(i).getQueuedAt();
+				latency += l;
+				if (l > max) max = l;
+			}
+			maxLatencyNanos = max;
+			totalLatencyNanos.addAndGet(latency);
+			messagesSent.addAndGet(batch.size());
+			batchesSent.incrementAndGet();
+		}
+
+		void stop() {
+			sendMessages = false;
+			if (exec != null) {
+				exec.shutdownNow();
+			}
+		}
+	}
 }
@@ -33,6 +33,7 @@ import com.google.gson.Gson;
 public class ParticipantUpdatingRoomListener implements IRoomListener{
 
 	private static Logger log = Red5LoggerFactory.getLogger(ParticipantUpdatingRoomListener.class, "bigbluebutton");
+	private static final Gson gson = new Gson();
 	
 	MessagingService messagingService;
 	private Room room;
@@ -56,7 +57,6 @@ public class ParticipantUpdatingRoomListener implements IRoomListener{
 			map.put("status", status);
 			map.put("value", value.toString());
 			
-			Gson gson= new Gson();
 			messagingService.send(MessagingConstants.PARTICIPANTS_CHANNEL, gson.toJson(map));
 			log.debug("Publishing a status change in: " + this.room.getName());
 		}
@@ -72,7 +72,6 @@ public class ParticipantUpdatingRoomListener implements IRoomListener{
 			map.put("fullname", p.getName());
 			map.put("role", p.getRole());
 			
-			Gson gson= new Gson();
 			messagingService.send(MessagingConstants.PARTICIPANTS_CHANNEL, gson.toJson(map));
 			log.debug("Publishing message participant joined in " + this.room.getName());
 		}
@@ -85,7 +84,6 @@ public class ParticipantUpdatingRoomListener implements IRoomListener{
 			map.put("messageId", MessagingConstants.USER_LEFT_EVENT);
 			map.put("internalUserId", p.getInternalUserID());
 			
-			Gson gson= new Gson();
 			messagingService.send(MessagingConstants.PARTICIPANTS_CHANNEL, gson.toJson(map));
 			log.debug("Publishing message participant left in " + this.room.getName());
 		}
@@ -37,6 +37,7 @@ import java.util.concurrent.ConcurrentHashMap;
 @ThreadSafe
 public class RoomsManager {
 	private static Logger log = Red5LoggerFactory.getLogger(RoomsManager.class, "bigbluebutton");
+	private static final Gson gson = new Gson();
 	
 	private final Map <String, Room> rooms;
 
@@ -56,7 +57,6 @@ public class RoomsManager {
 			map.put("meetingId", room.getName());
 			map.put("messageId", MessagingConstants.MEETING_STARTED_EVENT);
 			
-			Gson gson = new Gson();
 			messagingService.send(MessagingConstants.SYSTEM_CHANNEL, gson.toJson(map));
 			
 			log.debug("Notified event listener of conference start");
@@ -73,7 +73,6 @@ public class RoomsManager {
 			map.put("meetingId", room.getName());
 			map.put("messageId", MessagingConstants.MEETING_ENDED_EVENT);
 			
-			Gson gson = new Gson();
 			messagingService.send(MessagingConstants.SYSTEM_CHANNEL, gson.toJson(map));
 			
 			log.debug("Notified event listener of conference end");
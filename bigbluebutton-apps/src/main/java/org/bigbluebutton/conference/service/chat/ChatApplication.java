@@ -40,9 +40,11 @@ public class ChatApplication {
 	private ChatRoomsManager roomsManager;
 	public ChatHandler handler;
 	private ConnectionInvokerService connInvokerService;
+	private int maxMessages = ChatRoom.DEFAULT_MAX_MESSAGES;
+	private int historyPageSize = 100;
 	
 	public boolean createRoom(String name) {
-		roomsManager.addRoom(new ChatRoom(name));
+		roomsManager.addRoom(new ChatRoom(name, maxMessages));
 		return true;
 	}
 	
@@ -66,10 +68,24 @@ public class ChatApplication {
 		return false;
 	}
 	
+	/**
+	 * Send all the messages kept, for the clients that don't ask for pages.
+	 */
 	public void sendPublicChatHistory(String meetingID) {
-		List<ChatMessageVO> messages = roomsManager.getChatMessages(meetingID);
+		sendPublicChatHistory(meetingID, 0, maxMessages);
+	}
+	
+	/**
+	 * Send up to count (historyPageSize if not positive) messages sent before
+	 * the message with id beforeID, or the most recent ones if beforeID is
+	 * not positive. The reply tells whether older messages are available.
+	 */
+	public void sendPublicChatHistory(String meetingID, long beforeID, int count) {
+		ChatHistory history = roomsManager.getChatHistory(meetingID, beforeID, count > 0 ? count : historyPageSize);
+		if (history == null) return;
 		
-		List<Map<String, Object>> msgs = new ArrayList<Map<String, Object>>();
+		List<ChatMessageVO> messages = history.getMessages();
+		List<Map<String, Object>> msgs = new ArrayList<Map<String, Object>>(messages.size());
 		for (ChatMessageVO v : messages) {
 			msgs.add(v.toMap());
 		}
@@ -77,6 +93,7 @@ public class ChatApplication {
 		Map<String, Object> messageToSend = new HashMap<String, Object>();
 		messageToSend.put("count", new Integer(msgs.size()));
 		messageToSend.put("messages", msgs);
+		messageToSend.put("complete", history.isComplete());
 		
 		ClientMessage m = new ClientMessage(ClientMessage.DIRECT, getBbbSession().getInternalUserID(), "ChatRequestMessageHistoryReply", messageToSend);
 		connInvokerService.sendMessage(m);
@@ -110,6 +127,14 @@ public class ChatApplication {
 		return (BigBlueButtonSession) Red5.getConnectionLocal().getAttribute(Constants.SESSION);
 	}
 	
+	public void setMaxMessages(int maxMessages) {
+		this.maxMessages = maxMessages;
+	}
+	
+	public void setHistoryPageSize(int historyPageSize) {
+		this.historyPageSize = historyPageSize;
+	}
+	
 	public void setConnInvokerService(ConnectionInvokerService connInvokerService) {
 		this.connInvokerService = connInvokerService;
 	}
@@ -0,0 +1,49 @@
+/**
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+* 
+* Copyright (c) 2012 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 3.0 of the License, or (at your option) any later
+* version.
+* 
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.bigbluebutton.conference.service.chat;
+
+import java.util.List;
+
+/**
+ * A page of public chat history returned by {@link ChatRoom#getChatHistory(long, int)}.
+ */
+public class ChatHistory {
+	private final List<ChatMessageVO> messages;
+	private final boolean complete;
+	
+	public ChatHistory(List<ChatMessageVO> messages, boolean complete) {
+		this.messages = messages;
+		this.complete = complete;
+	}
+	
+	/**
+	 * The messages, oldest first. The id of the first one is the id to ask
+	 * for older messages with.
+	 */
+	public List<ChatMessageVO> getMessages() {
+		return messages;
+	}
+	
+	/**
+	 * True if there are no older messages kept before this page.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+}
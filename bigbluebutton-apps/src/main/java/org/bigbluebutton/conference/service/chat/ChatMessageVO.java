@@ -22,6 +22,9 @@ import java.util.HashMap;
 import java.util.Map;
 
 public class ChatMessageVO {
+    // Position of a public message in the room's history. Not set for PRIVATE chat.
+    public long id;
+    
     // The type of chat (PUBLIC or PRIVATE)
     public String chatType;
     
@@ -47,6 +50,7 @@ public class ChatMessageVO {
 			
 	public Map<String, Object> toMap() {
 		Map<String, Object> msg = new HashMap<String, Object>();
+		msg.put("id", new Double(id));
 		msg.put("fromUserID", fromUserID);
 		msg.put("fromUsername", fromUsername);
 		msg.put("fromColor", fromColor);
@@ -27,19 +27,33 @@ import java.util.List;
 import java.util.Map;
 /**
  * Contains information about a ChatRoom. 
+ * 
+ * Only the last maxMessages public messages are kept, in a ring buffer.
+ * Each message is given an id, increasing by one for each message, which
+ * clients use to page through the history.
  */
 @ThreadSafe
 public class ChatRoom {
 	private static Logger log = Red5LoggerFactory.getLogger( ChatRoom.class, "bigbluebutton" );
 	
+	public static final int DEFAULT_MAX_MESSAGES = 2000;
+	
 	private final String name;
 	private final Map<String, IChatRoomListener> listeners;
-	ArrayList<ChatMessageVO> messages;
+	
+	private final ChatMessageVO[] messages;
+	private int head = 0;
+	private int count = 0;
+	private long nextId = 1;
 	
 	public ChatRoom(String name) {
+		this(name, DEFAULT_MAX_MESSAGES);
+	}
+	
+	public ChatRoom(String name, int maxMessages) {
 		this.name = name;
 		listeners   = new ConcurrentHashMap<String, IChatRoomListener>();
-		this.messages = new ArrayList<ChatMessageVO>();
+		this.messages = new ChatMessageVO[maxMessages > 0 ? maxMessages : DEFAULT_MAX_MESSAGES];
 	}
 	
 	public String getName() {
@@ -58,13 +72,43 @@ public class ChatRoom {
 		listeners.remove(listener);		
 	}
 	
+	/**
+	 * Returns a copy of all the messages kept, oldest first.
+	 */
 	public List<ChatMessageVO> getChatMessages(){
-		return messages;
+		return getChatHistory(0, 0).getMessages();
+	}
+	
+	/**
+	 * Returns up to maxCount (all if not positive) of the most recent
+	 * messages with an id lower than beforeId, oldest first. If beforeId is
+	 * not positive the most recent messages are returned.
+	 */
+	public synchronized ChatHistory getChatHistory(long beforeId, int maxCount) {
+		long oldestId = nextId - count;
+		long to = (beforeId > 0 && beforeId < nextId) ? beforeId : nextId;
+		long from = (maxCount > 0 && to - maxCount > oldestId) ? to - maxCount : oldestId;
+		
+		List<ChatMessageVO> page = new ArrayList<ChatMessageVO>(from < to ? (int) (to - from) : 0);
+		for (long id = from; id < to; id++) {
+			page.add(messages[indexOf(id)]);
+		}
+		return new ChatHistory(page, from <= oldestId);
+	}
+	
+	private int indexOf(long id) {
+		int index = head - (int) (nextId - id);
+		return index < 0 ? index + messages.length : index;
 	}
 	
 	@SuppressWarnings("unchecked")
 	public void sendMessage(ChatMessageVO chatobj){
-		messages.add(chatobj);
+		synchronized (this) {
+			chatobj.id = nextId++;
+			messages[head] = chatobj;
+			head = (head + 1) % messages.length;
+			if (count < messages.length) count++;
+		}
 		
 		for (Iterator iter = listeners.values().iterator(); iter.hasNext();) {
 			log.debug("calling on listener");
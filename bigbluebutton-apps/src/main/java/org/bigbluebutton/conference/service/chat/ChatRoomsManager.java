@@ -72,6 +72,15 @@ public class ChatRoomsManager {
 		return null;
 	}
 	
+	public ChatHistory getChatHistory(String room, long beforeId, int maxCount) {
+		ChatRoom r = getRoom(room);
+		if (r != null) {
+			return r.getChatHistory(beforeId, maxCount);
+		}
+		log.warn("Getting chat history from a non-existing room " + room);
+		return null;
+	}
+	
 	public void sendMessage(String room, ChatMessageVO chatobj) {
 		ChatRoom r = getRoom(room);
 		if (r != null) {
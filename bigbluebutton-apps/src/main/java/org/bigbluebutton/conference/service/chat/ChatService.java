@@ -33,6 +33,20 @@ public class ChatService {
 		application.sendPublicChatHistory(meetingID);
 	}
 	
+	public void sendPublicChatHistory(Map<String, Object> msg) {
+		String meetingID = Red5.getConnectionLocal().getScope().getName();
+		
+		long beforeID = 0;
+		int count = 0;
+		if (msg.get("beforeID") != null) {
+			beforeID = ((Number) msg.get("beforeID")).longValue();
+		}
+		if (msg.get("count") != null) {
+			count = ((Number) msg.get("count")).intValue();
+		}
+		application.sendPublicChatHistory(meetingID, beforeID, count);
+	}
+	
 	public void sendPublicMessage(Map<String, Object> msg) {
 		String meetingID = Red5.getConnectionLocal().getScope().getName();
 		
@@ -19,54 +19,54 @@
 package org.bigbluebutton.conference.service.messaging;
 
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 
+import org.bigbluebutton.messaging.MessageRoute;
+import org.bigbluebutton.messaging.RedisPublisher;
+import org.bigbluebutton.messaging.RedisSubscriber;
 import org.red5.logging.Red5LoggerFactory;
 import org.slf4j.Logger;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-
-import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPubSub;
 
+/**
+ * Publishes and subscribes to the bigbluebutton redis channels.
+ *
+ * The queueing and batching is done by the publisher and subscriber shared
+ * with bigbluebutton-web. This class only sets up the routes to the
+ * listener methods. None of the routed messages can be dropped.
+ */
 public class RedisMessagingService implements MessagingService{
 
 	private static Logger log = Red5LoggerFactory.getLogger(RedisMessagingService.class, "bigbluebutton");
 	
 	private JedisPool redisPool;
-	private final Executor exec = Executors.newSingleThreadExecutor();
-	private Runnable pubsubListener;
-	
-	private final Set<MessageListener> listeners = new HashSet<MessageListener>();
+	private final RedisPublisher publisher = new RedisPublisher();
+	private final RedisSubscriber<MessageListener> subscriber = new RedisSubscriber<MessageListener>();
 
 	public RedisMessagingService(){
-		
+		subscriber.addRoute(MessagingConstants.SYSTEM_CHANNEL, MessagingConstants.END_MEETING_REQUEST_EVENT, new MessageRoute<MessageListener>() {
+			public void deliver(MessageListener listener, HashMap<String, String> message) {
+				listener.endMeetingRequest(message.get("meetingId"));
+			}
+		});
+		subscriber.addRoute(MessagingConstants.PRESENTATION_CHANNEL, null, new MessageRoute<MessageListener>() {
+			public void deliver(MessageListener listener, HashMap<String, String> message) {
+				listener.presentationUpdates(message);
+			}
+		});
 	}
 	
 	@Override
 	public void start() {
-		log.debug("Starting redis pubsub...");		
-		final Jedis jedis = redisPool.getResource();
-		try {
-			pubsubListener = new Runnable() {
-			    public void run() {
-			    	jedis.psubscribe(new PubSubListener(), MessagingConstants.BIGBLUEBUTTON_PATTERN);       			
-			    }
-			};
-			exec.execute(pubsubListener);
-		} catch (Exception e) {
-			log.error("Error subscribing to channels: " + e.getMessage());
-		}
+		log.debug("Starting redis pubsub...");
+		publisher.start();
+		subscriber.start(MessagingConstants.BIGBLUEBUTTON_PATTERN);
 	}
 
 	@Override
 	public void stop() {
+		publisher.stop();
+		subscriber.stop();
 		try {
 			redisPool.destroy();
 		} catch (Exception e) {
@@ -76,84 +76,34 @@ public class RedisMessagingService implements MessagingService{
 
 	@Override
 	public void send(String channel, String message) {
-		Jedis jedis = redisPool.getResource();
-		try {
-			jedis.publish(channel, message);
-		} catch(Exception e){
-			log.warn("Cannot publish the message to redis", e);
-		}finally{
-			redisPool.returnResource(jedis);
-		}
+		publisher.send(channel, message);
 	}
 
 	@Override
 	public void addListener(MessageListener listener) {
-		listeners.add(listener);
+		subscriber.addListener(listener);
 	}
 
 	@Override
 	public void removeListener(MessageListener listener) {
-		listeners.remove(listener);
+		subscriber.removeListener(listener);
 	}
 	
 	public void setRedisPool(JedisPool redisPool){
 		this.redisPool=redisPool;
+		publisher.setRedisPool(redisPool);
+		subscriber.setRedisPool(redisPool);
 	}
-
-	private class PubSubListener extends JedisPubSub {
-		
-		public PubSubListener() {
-			super();			
-		}
-
-		@Override
-		public void onMessage(String channel, String message) {
-			// Not used.
-		}
-
-		@Override
-		public void onPMessage(String pattern, String channel, String message) {
-			log.debug("Message Received in channel: " + channel);
-			Gson gson = new Gson();
-			HashMap<String,String> map = gson.fromJson(message, new TypeToken<Map<String, String>>() {}.getType());
-			
-			if(channel.equalsIgnoreCase(MessagingConstants.SYSTEM_CHANNEL)){
-				String meetingId = map.get("meetingId");
-				String messageId = map.get("messageId");
-				if(messageId != null){
-					if(MessagingConstants.END_MEETING_REQUEST_EVENT.equalsIgnoreCase(messageId)){
-						for (MessageListener listener : listeners) {
-							listener.endMeetingRequest(meetingId);
-						}
-					}
-				}
-			}
-			else if(channel.equalsIgnoreCase(MessagingConstants.PRESENTATION_CHANNEL)){
-				for (MessageListener listener : listeners) {
-					listener.presentationUpdates(map);
-				}
-			}
-			
-		}
-
-		@Override
-		public void onPSubscribe(String pattern, int subscribedChannels) {
-			log.debug("Subscribed to the pattern: " + pattern);
-		}
-
-		@Override
-		public void onPUnsubscribe(String pattern, int subscribedChannels) {
-			// Not used.
-		}
-
-		@Override
-		public void onSubscribe(String channel, int subscribedChannels) {
-			// Not used.
-		}
-
-		@Override
-		public void onUnsubscribe(String channel, int subscribedChannels) {
-			// Not used.
-		}		
+	
+	public void setListenerQueueCapacity(int listenerQueueCapacity) {
+		subscriber.setListenerQueueCapacity(listenerQueueCapacity);
+	}
+	
+	public void setPublishQueueCapacity(int publishQueueCapacity) {
+		publisher.setQueueCapacity(publishQueueCapacity);
+	}
+	
+	public void setMaxPublishBatchSize(int maxPublishBatchSize) {
+		publisher.setMaxBatchSize(maxPublishBatchSize);
 	}
 }
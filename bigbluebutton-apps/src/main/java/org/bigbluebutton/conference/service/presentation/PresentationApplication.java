@@ -19,11 +19,9 @@
 package org.bigbluebutton.conference.service.presentation;
 
 import org.slf4j.Logger;
-import org.bigbluebutton.conference.ClientMessage;
 import org.bigbluebutton.conference.ConnectionInvokerService;
 import org.red5.logging.Red5LoggerFactory;
-import org.red5.server.api.Red5;import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Map;
 
 public class PresentationApplication {
@@ -33,7 +31,9 @@ public class PresentationApplication {
 	private ConnectionInvokerService connInvokerService;
 	
 	public boolean createRoom(String name) {
-		roomsManager.addRoom(new PresentationRoom(name));
+		PresentationRoom room = new PresentationRoom(name, roomsManager.isCoalescingUpdates());
+		room.addRoomListener(new PresentationCursorSender(name, connInvokerService));
+		roomsManager.addRoom(room);
 		return true;
 	}
 	
@@ -120,13 +120,6 @@ public class PresentationApplication {
 		if (roomsManager.hasRoom(room)){
 			log.debug("Request to update cursor[" + xPercent + "," + yPercent + "]");
 			roomsManager.sendCursorUpdate(room, xPercent, yPercent);
-			
-			Map<String, Object> message = new HashMap<String, Object>();	
-			message.put("xPercent", xPercent);
-			message.put("yPercent", yPercent);
-			ClientMessage m = new ClientMessage(ClientMessage.BROADCAST, getMeetingId(), "PresentationCursorUpdateCommand", message);
-			connInvokerService.sendMessage(m);
-			
 			return;
 		}
 				
@@ -166,10 +159,6 @@ public class PresentationApplication {
 		log.debug("Done setting room manager");
 	}
 
-	private String getMeetingId(){
-		return Red5.getConnectionLocal().getScope().getName();
-	}
-	
 	
 	public void setConnInvokerService(ConnectionInvokerService connInvokerService) {
 		this.connInvokerService = connInvokerService;
@@ -0,0 +1,78 @@
+/**
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+* 
+* Copyright (c) 2012 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 3.0 of the License, or (at your option) any later
+* version.
+* 
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.bigbluebutton.conference.service.presentation;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.bigbluebutton.conference.ClientMessage;
+import org.bigbluebutton.conference.ConnectionInvokerService;
+
+/**
+ * Sends cursor updates to the clients of a room through the connection invoker.
+ */
+public class PresentationCursorSender implements IPresentationRoomListener {
+	private static final String APP_NAME = "CLIENT:PRESENTATION";
+	
+	private final String meetingId;
+	private final ConnectionInvokerService connInvokerService;
+	
+	public PresentationCursorSender(String meetingId, ConnectionInvokerService connInvokerService) {
+		this.meetingId = meetingId;
+		this.connInvokerService = connInvokerService;
+	}
+	
+	@Override
+	public String getName() {
+		return APP_NAME;
+	}
+
+	@Override
+	public void sendCursorUpdate(Double xPercent, Double yPercent) {
+		Map<String, Object> message = new HashMap<String, Object>();	
+		message.put("xPercent", xPercent);
+		message.put("yPercent", yPercent);
+		ClientMessage m = new ClientMessage(ClientMessage.BROADCAST, meetingId, "PresentationCursorUpdateCommand", message);
+		connInvokerService.sendMessage(m);
+	}
+	
+	@Override
+	public void sendUpdateMessage(Map<String, Object> message) {
+		// Sent through the presentation shared object.
+	}
+
+	@Override
+	public void gotoSlide(int curslide) {
+		// Sent through the presentation shared object.
+	}
+
+	@Override
+	public void resizeAndMoveSlide(Double xOffset, Double yOffset, Double widthRatio, Double heightRatio) {
+		// Sent through the presentation shared object.
+	}
+
+	@Override
+	public void removePresentation(String name) {
+		// Sent through the presentation shared object.
+	}
+
+	@Override
+	public void sharePresentation(String presentationName, Boolean share) {
+		// Sent through the presentation shared object.
+	}
+}
@@ -28,6 +28,11 @@ import java.util.List;
 import java.util.Map;
 /**
  * Contains information about a PresentationRoom. 
+ * 
+ * Cursor and slide position updates can be coalesced. When enabled, only
+ * the latest position is kept and listeners are notified of it on the next
+ * call to {@link #flushPendingUpdates()}. Pending updates are flushed before
+ * a change of slide or presentation so listeners get them in order.
  */
 @ThreadSafe
 public class PresentationRoom {
@@ -50,8 +55,24 @@ public class PresentationRoom {
 	
 	ArrayList<String> presentationNames = new ArrayList<String>();
 	
+	private final boolean coalesceUpdates;
+	private final Object pendingLock = new Object();
+	/* Held while notifying listeners of pending updates or of what must follow them. */
+	private final Object notifyLock = new Object();
+	private boolean cursorPending = false;
+	private boolean slidePositionPending = false;
+	private long cursorUpdatesReceived = 0;
+	private long cursorUpdatesSent = 0;
+	private long slideUpdatesReceived = 0;
+	private long slideUpdatesSent = 0;
+	
 	public PresentationRoom(String name) {
+		this(name, false);
+	}
+	
+	public PresentationRoom(String name, boolean coalesceUpdates) {
 		this.name = name;
+		this.coalesceUpdates = coalesceUpdates;
 		listeners   = new ConcurrentHashMap<String, IPresentationRoomListener>();
 	}
 	
@@ -95,23 +116,74 @@ public class PresentationRoom {
     }
 	
 	public void sendCursorUpdate(Double xPercent, Double yPercent) {
-		this.xPercent = xPercent;
-		this.yPercent = yPercent;
+		synchronized (pendingLock) {
+			this.xPercent = xPercent;
+			this.yPercent = yPercent;
+			cursorUpdatesReceived++;
+			if (coalesceUpdates) {
+				cursorPending = true;
+				return;
+			}
+			cursorUpdatesSent++;
+		}
+		notifyCursorUpdate(xPercent, yPercent);
+	}
+	
+	public void resizeAndMoveSlide(Double xOffset, Double yOffset, Double widthRatio, Double heightRatio) {
+		synchronized (pendingLock) {
+			this.xOffset = xOffset;
+			this.yOffset = yOffset;
+			this.widthRatio = widthRatio;
+			this.heightRatio = heightRatio;
+			slideUpdatesReceived++;
+			if (coalesceUpdates) {
+				slidePositionPending = true;
+				return;
+			}
+			slideUpdatesSent++;
+		}
+		notifyResizeAndMoveSlide(xOffset, yOffset, widthRatio, heightRatio);
+	}
+	
+	/**
+	 * Notify listeners of the latest cursor and slide position if they
+	 * changed since the last flush.
+	 */
+	public void flushPendingUpdates() {
+		Double x = null, y = null;
+		Double xOff = null, yOff = null, wRatio = null, hRatio = null;
 		
+		synchronized (notifyLock) {
+			synchronized (pendingLock) {
+				if (cursorPending) {
+					x = xPercent;
+					y = yPercent;
+					cursorPending = false;
+					cursorUpdatesSent++;
+				}
+				if (slidePositionPending) {
+					xOff = xOffset;
+					yOff = yOffset;
+					wRatio = widthRatio;
+					hRatio = heightRatio;
+					slidePositionPending = false;
+					slideUpdatesSent++;
+				}
+			}
+			
+			if (x != null) notifyCursorUpdate(x, y);
+			if (xOff != null) notifyResizeAndMoveSlide(xOff, yOff, wRatio, hRatio);
+		}
+	}
+	
+	private void notifyCursorUpdate(Double xPercent, Double yPercent) {
 		for (Iterator iter = listeners.values().iterator(); iter.hasNext();) {
-			log.debug("calling on listener");
 			IPresentationRoomListener listener = (IPresentationRoomListener) iter.next();
-			log.debug("calling sendCursorUpdate on listener " + listener.getName());
 			listener.sendCursorUpdate(xPercent,yPercent);
 		}
 	}
 	
-	public void resizeAndMoveSlide(Double xOffset, Double yOffset, Double widthRatio, Double heightRatio) {
-		this.xOffset = xOffset;
-		this.yOffset = yOffset;
-		this.widthRatio = widthRatio;
-		this.heightRatio = heightRatio;
-		
+	private void notifyResizeAndMoveSlide(Double xOffset, Double yOffset, Double widthRatio, Double heightRatio) {
 		for (Iterator iter = listeners.values().iterator(); iter.hasNext();) {
 			log.debug("calling on listener");
 			IPresentationRoomListener listener = (IPresentationRoomListener) iter.next();
@@ -119,17 +191,32 @@ public class PresentationRoom {
 			listener.resizeAndMoveSlide(xOffset, yOffset, widthRatio, heightRatio);
 		}		
 	}
+	
+	/**
+	 * Number of cursor and slide position updates that were replaced by a
+	 * newer one before listeners were notified.
+	 */
+	public long getCollapsedUpdates() {
+		synchronized (pendingLock) {
+			long cursorCollapsed = cursorUpdatesReceived - cursorUpdatesSent - (cursorPending ? 1 : 0);
+			long slideCollapsed = slideUpdatesReceived - slideUpdatesSent - (slidePositionPending ? 1 : 0);
+			return cursorCollapsed + slideCollapsed;
+		}
+	}
 		
 	@SuppressWarnings("unchecked")
 	public void gotoSlide(int curslide){
 		log.debug("Request to go to slide " + curslide + "for room " + name);
 		currentSlide = curslide;
-		for (Iterator iter = listeners.values().iterator(); iter.hasNext();) {
-			log.debug("calling on listener");
-			IPresentationRoomListener listener = (IPresentationRoomListener) iter.next();
-			log.debug("calling sendUpdateMessage on listener " + listener.getName());
-			listener.gotoSlide(curslide);
-		}			
+		synchronized (notifyLock) {
+			flushPendingUpdates();
+			for (Iterator iter = listeners.values().iterator(); iter.hasNext();) {
+				log.debug("calling on listener");
+				IPresentationRoomListener listener = (IPresentationRoomListener) iter.next();
+				log.debug("calling sendUpdateMessage on listener " + listener.getName());
+				listener.gotoSlide(curslide);
+			}
+		}
 	}	
 	
 	@SuppressWarnings("unchecked")
@@ -143,12 +230,15 @@ public class PresentationRoom {
 		  currentPresentation = "";
 		}
 		 
-		for (Iterator iter = listeners.values().iterator(); iter.hasNext();) {
-			log.debug("calling on listener");
-			IPresentationRoomListener listener = (IPresentationRoomListener) iter.next();
-			log.debug("calling sharePresentation on listener " + listener.getName());
-			listener.sharePresentation(presentationName, share);
-		}			
+		synchronized (notifyLock) {
+			flushPendingUpdates();
+			for (Iterator iter = listeners.values().iterator(); iter.hasNext();) {
+				log.debug("calling on listener");
+				IPresentationRoomListener listener = (IPresentationRoomListener) iter.next();
+				log.debug("calling sharePresentation on listener " + listener.getName());
+				listener.sharePresentation(presentationName, share);
+			}
+		}
 	}
 	    
     public void removePresentation(String presentationName){
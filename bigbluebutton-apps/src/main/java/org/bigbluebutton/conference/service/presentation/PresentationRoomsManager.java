@@ -23,11 +23,17 @@ import org.red5.logging.Red5LoggerFactory;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import net.jcip.annotations.ThreadSafe;
 import java.util.concurrent.ConcurrentHashMap;
 /**
  * This encapsulates access to Room and messages. This class must be threadsafe.
+ * 
+ * When updateInterval is set, cursor and slide position updates are
+ * coalesced per room and sent at most once every updateInterval ms.
  */
 @ThreadSafe
 public class PresentationRoomsManager {
@@ -35,11 +41,42 @@ public class PresentationRoomsManager {
 	
 	private final Map <String, PresentationRoom> rooms;
 	
+	private final ScheduledExecutorService updatesFlusher = Executors.newSingleThreadScheduledExecutor();
+	private long updateInterval = 0;
+	
 	public PresentationRoomsManager() {
 		log.debug("In PresentationRoomsManager constructor");	
 		rooms = new ConcurrentHashMap<String, PresentationRoom>();
 	}
 	
+	public void start() {
+		if (updateInterval <= 0) {
+			log.debug("Not coalescing cursor and slide position updates.");
+			return;
+		}
+		
+		log.debug("Sending cursor and slide position updates every " + updateInterval + "ms.");
+		updatesFlusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				for (PresentationRoom room : rooms.values()) {
+					try {
+						room.flushPendingUpdates();
+					} catch (Exception e) {
+						log.error("Failed to send position updates for room " + room.getName() + ": " + e.getMessage());
+					}
+				}
+			}
+		}, updateInterval, updateInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	public void stop() {
+		updatesFlusher.shutdownNow();
+	}
+	
+	public boolean isCoalescingUpdates() {
+		return updateInterval > 0;
+	}
+	
 	public void addRoom(PresentationRoom room) {
 		log.debug("In PresentationRoomsManager adding room " + room.getName());
 		rooms.put(room.getName(), room);
@@ -47,7 +84,26 @@ public class PresentationRoomsManager {
 	
 	public void removeRoom(String name) {
 		log.debug("In PresentationRoomsManager remove room " + name);
-		rooms.remove(name);
+		PresentationRoom room = rooms.remove(name);
+		if (room != null && isCoalescingUpdates()) {
+			room.flushPendingUpdates();
+			log.debug("Collapsed " + room.getCollapsedUpdates() + " position updates in room " + name);
+		}
+	}
+	
+	/**
+	 * Number of cursor and slide position updates collapsed in the current rooms.
+	 */
+	public long getCollapsedUpdates() {
+		long collapsed = 0;
+		for (PresentationRoom room : rooms.values()) {
+			collapsed += room.getCollapsedUpdates();
+		}
+		return collapsed;
+	}
+	
+	public void setUpdateInterval(long updateInterval) {
+		this.updateInterval = updateInterval;
 	}
 		
 	public boolean hasRoom(String name) {
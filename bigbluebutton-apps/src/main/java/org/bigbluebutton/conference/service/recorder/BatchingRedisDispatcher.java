@@ -0,0 +1,359 @@
+/**
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+*
+* Copyright (c) 2012 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 3.0 of the License, or (at your option) any later
+* version.
+*
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.bigbluebutton.conference.service.recorder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.red5.logging.Red5LoggerFactory;
+import org.slf4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * Asynchronous {@link Recorder} that queues events and writes them to redis
+ * in batches from a single writer thread.
+ *
+ * Each batch reserves a contiguous block of ids with one INCRBY on
+ * global:nextRecordedMsgId, assigned in the order the events were queued, so
+ * ids within a meeting keep increasing just like with {@link RedisDispatcher}.
+ * The HMSET/RPUSH commands for the batch are then sent, grouped per meeting,
+ * in a single pipeline.
+ *
+ * When the queue is full, callers block until the writer catches up.
+ *
+ * A batch that fails to be written is retried once, with the same ids, on
+ * another connection. If the first attempt got partly through, the retry can
+ * list some events twice in the meeting's recordings list. A batch that
+ * fails twice is dropped and counted in eventsFailed.
+ *
+ * The queue depth, the events written and failed, and the producer stalls
+ * are logged every statsInterval seconds.
+ */
+public class BatchingRedisDispatcher implements Recorder {
+	private static Logger log = Red5LoggerFactory.getLogger(BatchingRedisDispatcher.class, "bigbluebutton");
+	private static final String COLON=":";
+	// How often an idle writer checks whether it was stopped.
+	private static final long IDLE_CHECK_MILLIS = 100;
+	private static final long STOP_TIMEOUT_SECONDS = 10;
+
+	private final ExecutorService writer = Executors.newSingleThreadExecutor();
+	private ScheduledExecutorService statsReporter;
+	private BlockingQueue<PendingEvent> events;
+	private volatile boolean recording = false;
+	// Held by record() while it queues an event, and by stop() to stop recording, 
+	// so no event is queued after stop() has flushed the queue.
+	private final ReadWriteLock recordingLock = new ReentrantReadWriteLock();
+
+	private JedisPool redisPool;
+	private int queueCapacity = 10000;
+	private int maxBatchSize = 200;
+	private long maxLingerMillis = 20;
+	private int statsInterval = 60;
+
+	private final AtomicLong eventsQueued = new AtomicLong();
+	private final AtomicLong eventsWritten = new AtomicLong();
+	private final AtomicLong eventsFailed = new AtomicLong();
+	private final AtomicLong batchesWritten = new AtomicLong();
+	private final AtomicLong producerStalls = new AtomicLong();
+	private final AtomicLong producerStallMillis = new AtomicLong();
+
+	public void start() {
+		log.debug("Starting batching redis recorder [capacity=" + queueCapacity + ",batch=" + maxBatchSize + ",linger=" + maxLingerMillis + "ms]");
+		events = new ArrayBlockingQueue<PendingEvent>(queueCapacity);
+		recording = true;
+
+		writer.execute(new Runnable() {
+			public void run() {
+				processEvents();
+			}
+		});
+		startStatsReporter();
+	}
+
+	private void startStatsReporter() {
+		if (statsInterval <= 0) return;
+		statsReporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "bbb-recorder-stats");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		statsReporter.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				log.info("Redis recorder: queued=" + getQueueDepth() + " written=" + getEventsWritten() + " failed=" + getEventsFailed() 
+						+ " batches=" + getBatchesWritten() + " producerStalls=" + getProducerStalls() + " stallTime=" + getProducerStallMillis() + "ms");
+			}
+		}, statsInterval, statsInterval, TimeUnit.SECONDS);
+	}
+
+	public void stop() {
+		log.debug("Stopping batching redis recorder with " + getQueueDepth() + " pending events.");
+		if (statsReporter != null) {
+			statsReporter.shutdownNow();
+		}
+		// Waits for the callers queueing an event. The writer keeps draining the queue meanwhile.
+		recordingLock.writeLock().lock();
+		try {
+			recording = false;
+		} finally {
+			recordingLock.writeLock().unlock();
+		}
+		writer.shutdown();
+		try {
+			if (!writer.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				log.warn("Redis recorder writer didn't stop within " + STOP_TIMEOUT_SECONDS + "s. Dropping " + getQueueDepth() + " pending events.");
+				writer.shutdownNow();
+				return;
+			}
+		} catch (InterruptedException e) {
+			log.warn("Interrupted while waiting for the redis recorder writer to stop.");
+			writer.shutdownNow();
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		// Flush whatever is left so we don't lose the tail of the recordings on shutdown.
+		flush();
+	}
+
+	@Override
+	public void record(String session, RecordEvent event) {
+		PendingEvent pending = new PendingEvent(session, event.toMap());
+		recordingLock.readLock().lock();
+		try {
+			if (!recording) {
+				log.warn("Recorder not started. Dropping event " + event + " for " + session);
+				return;
+			}
+
+			if (!events.offer(pending)) {
+				producerStalls.incrementAndGet();
+				long start = System.currentTimeMillis();
+				try {
+					events.put(pending);
+				} catch (InterruptedException e) {
+					log.warn("Interrupted while waiting to queue event " + event + " for " + session);
+					Thread.currentThread().interrupt();
+					return;
+				} finally {
+					producerStallMillis.addAndGet(System.currentTimeMillis() - start);
+				}
+			}
+			eventsQueued.incrementAndGet();
+		} finally {
+			recordingLock.readLock().unlock();
+		}
+	}
+
+	private void processEvents() {
+		List<PendingEvent> batch = new ArrayList<PendingEvent>(maxBatchSize);
+
+		while (recording) {
+			try {
+				PendingEvent first = events.poll(IDLE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+				if (first == null) continue;
+				batch.add(first);
+				collectBatch(batch);
+			} catch (InterruptedException e) {
+				log.debug("Redis recorder writer interrupted.");
+				break;
+			} finally {
+				if (!batch.isEmpty()) {
+					write(batch);
+					batch.clear();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the events still queued. Only called once the writer has stopped.
+	 */
+	private void flush() {
+		if (events == null) return;
+
+		List<PendingEvent> batch = new ArrayList<PendingEvent>(maxBatchSize);
+		while (events.drainTo(batch, maxBatchSize) > 0) {
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Add events to the batch until it is full or maxLingerMillis has
+	 * elapsed since the first event was taken.
+	 */
+	private void collectBatch(List<PendingEvent> batch) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxLingerMillis);
+
+		while (batch.size() < maxBatchSize) {
+			events.drainTo(batch, maxBatchSize - batch.size());
+			if (batch.size() >= maxBatchSize) return;
+
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) return;
+
+			PendingEvent next = events.poll(remaining, TimeUnit.NANOSECONDS);
+			if (next == null) return;
+			batch.add(next);
+		}
+	}
+
+	private void write(List<PendingEvent> batch) {
+		if (write(batch, false)) return;
+		if (write(batch, true)) return;
+		eventsFailed.addAndGet(batch.size());
+	}
+
+	/**
+	 * @return true if the batch was written
+	 */
+	private boolean write(List<PendingEvent> batch, boolean retry) {
+		Jedis jedis = null;
+		try {
+			jedis = redisPool.getResource();
+
+			// On a retry the ids are only reserved if the first attempt failed before it got them.
+			if (batch.get(0).msgId == 0) {
+				long lastId = jedis.incrBy("global:nextRecordedMsgId", batch.size());
+				long msgId = lastId - batch.size() + 1;
+				for (PendingEvent pending : batch) {
+					pending.msgId = msgId++;
+				}
+			}
+
+			Map<String, List<PendingEvent>> meetings = new LinkedHashMap<String, List<PendingEvent>>();
+			for (PendingEvent pending : batch) {
+				List<PendingEvent> meetingEvents = meetings.get(pending.session);
+				if (meetingEvents == null) {
+					meetingEvents = new ArrayList<PendingEvent>();
+					meetings.put(pending.session, meetingEvents);
+				}
+				meetingEvents.add(pending);
+			}
+
+			Pipeline pipeline = jedis.pipelined();
+			for (Map.Entry<String, List<PendingEvent>> meeting : meetings.entrySet()) {
+				String session = meeting.getKey();
+				for (PendingEvent pending : meeting.getValue()) {
+					pipeline.hmset("recording" + COLON + session + COLON + pending.msgId, pending.event);
+				}
+				for (PendingEvent pending : meeting.getValue()) {
+					pipeline.rpush("meeting" + COLON + session + COLON + "recordings", Long.toString(pending.msgId));
+				}
+			}
+			pipeline.sync();
+
+			eventsWritten.addAndGet(batch.size());
+			batchesWritten.incrementAndGet();
+			redisPool.returnResource(jedis);
+			return true;
+		} catch (Exception e) {
+			if (retry) {
+				log.error("Failed to write " + batch.size() + " recorded events to redis. Dropping them: " + e.getMessage());
+			} else {
+				log.warn("Failed to write " + batch.size() + " recorded events to redis. Retrying: " + e.getMessage());
+			}
+			if (jedis != null) {
+				redisPool.returnBrokenResource(jedis);
+			}
+			return false;
+		}
+	}
+
+	public int getQueueDepth() {
+		return events == null ? 0 : events.size();
+	}
+
+	public long getEventsQueued() {
+		return eventsQueued.get();
+	}
+
+	public long getEventsWritten() {
+		return eventsWritten.get();
+	}
+
+	public long getEventsFailed() {
+		return eventsFailed.get();
+	}
+
+	public long getBatchesWritten() {
+		return batchesWritten.get();
+	}
+
+	/**
+	 * Number of times a caller of {@link #record(String, RecordEvent)} had
+	 * to wait because the queue was full.
+	 */
+	public long getProducerStalls() {
+		return producerStalls.get();
+	}
+
+	public long getProducerStallMillis() {
+		return producerStallMillis.get();
+	}
+
+	public void setRedisPool(JedisPool redisPool) {
+		this.redisPool = redisPool;
+	}
+
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public void setMaxLingerMillis(long maxLingerMillis) {
+		this.maxLingerMillis = maxLingerMillis;
+	}
+
+	/**
+	 * Seconds between two logs of the recorder stats. 0 to not log them.
+	 */
+	public void setStatsInterval(int statsInterval) {
+		this.statsInterval = statsInterval;
+	}
+
+	private static final class PendingEvent {
+		final String session;
+		final Map<String, String> event;
+		long msgId;
+
+		PendingEvent(String session, Map<String, String> event) {
+			this.session = session;
+			this.event = event;
+		}
+	}
+}
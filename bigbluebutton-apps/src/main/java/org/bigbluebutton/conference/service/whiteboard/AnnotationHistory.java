@@ -0,0 +1,66 @@
+/**
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+* 
+* Copyright (c) 2012 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 3.0 of the License, or (at your option) any later
+* version.
+* 
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.bigbluebutton.conference.service.whiteboard;
+
+import java.util.List;
+
+import org.bigbluebutton.conference.service.whiteboard.shapes.Annotation;
+
+/**
+ * A page of annotation history returned by {@link Page#getAnnotationsSince(long, int)}.
+ */
+public class AnnotationHistory {
+	private final List<Annotation> annotations;
+	private final long version;
+	private final boolean reset;
+	private final boolean complete;
+	
+	public AnnotationHistory(List<Annotation> annotations, long version, boolean reset, boolean complete) {
+		this.annotations = annotations;
+		this.version = version;
+		this.reset = reset;
+		this.complete = complete;
+	}
+	
+	public List<Annotation> getAnnotations() {
+		return annotations;
+	}
+	
+	/**
+	 * The version to ask for the next page with.
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * True if annotations were modified or removed since the requested
+	 * version, in which case the history starts from the first annotation.
+	 */
+	public boolean isReset() {
+		return reset;
+	}
+	
+	/**
+	 * True if there are no more annotations after this page.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+}
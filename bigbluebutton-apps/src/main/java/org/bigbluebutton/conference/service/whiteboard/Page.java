@@ -18,72 +18,167 @@
 */
 package org.bigbluebutton.conference.service.whiteboard;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.bigbluebutton.conference.service.whiteboard.shapes.Annotation;
 
+/**
+ * Annotations of a page.
+ * 
+ * Readers work on an immutable snapshot and never lock. Writers are
+ * serialized and publish a new snapshot after each change. Adding an
+ * annotation and undo don't copy the annotations; only changing or
+ * removing an annotation in the middle of the page does.
+ * 
+ * Every change bumps the page version. Annotations remember the version
+ * they were added at so clients can fetch only what was added since the
+ * last version they saw.
+ * 
+ * Any other change resets the history. The annotations left on the page
+ * are then numbered again, one version each, right after the reset, so a
+ * client that pages through them from the start moves past the reset.
+ */
 public class Page {
-	private ArrayList<Annotation> annotations;	
+	private static final int INITIAL_CAPACITY = 16;
+	
+	private volatile Snapshot snapshot = new Snapshot(new Annotation[INITIAL_CAPACITY], new long[INITIAL_CAPACITY], 0, 0, 0);
+	private final Map<String, Integer> annotationIndex = new HashMap<String, Integer>();
+	
 	private int pageIndex;
 	private boolean isGrid = false;
 	
-	public Page(int pageIndex){
-		annotations = new ArrayList<Annotation>();
+	public Page(int pageIndex){
 		this.setPageIndex(pageIndex);
 	}
 		
-	public void addAnnotation(Annotation annotation) {
-		annotations.add(annotation);
-	}
-	
-	public List<Annotation> getAnnotations() {
-		List<Annotation> a = new ArrayList<Annotation>();
-		for (Annotation v : annotations) {
-			a.add(v);
+	public synchronized void addAnnotation(Annotation annotation) {
+		Snapshot s = snapshot;
+		Annotation[] items = s.items;
+		long[] versions = s.versions;
+		
+		/*
+		 * Slots past count may still be visible to readers of an older snapshot
+		 * after an undo, so copy rather than overwrite them.
+		 */
+		if (s.count == items.length || items[s.count] != null) {
+			int capacity = s.count == items.length ? items.length * 2 : items.length;
+			items = Arrays.copyOf(items, capacity);
+			versions = Arrays.copyOf(versions, capacity);
 		}
 		
-		return a;
+		long version = s.version + 1;
+		items[s.count] = annotation;
+		versions[s.count] = version;
+		annotationIndex.put(annotation.getID(), s.count);
+		snapshot = new Snapshot(items, versions, s.count + 1, version, s.resetVersion);
 	}
 	
-	public void deleteAnnotation(String id) {
-		int foundIndex = findAnnotation(id);
-		if (foundIndex >= 0) annotations.remove(foundIndex);
+	/**
+	 * Returns a read-only view of the annotations on the page.
+	 */
+	public List<Annotation> getAnnotations() {
+		Snapshot s = snapshot;
+		return Collections.unmodifiableList(Arrays.asList(s.items).subList(0, s.count));
 	}
 	
-	public void clear() {
-		annotations.clear();
+	/**
+	 * Returns up to maxCount (all if not positive) annotations added after
+	 * the given version.
+	 * If annotations were modified or removed since that version, the
+	 * history starts over from the first annotation and is marked as reset.
+	 */
+	public AnnotationHistory getAnnotationsSince(long sinceVersion, int maxCount) {
+		Snapshot s = snapshot;
+		
+		boolean reset = sinceVersion < s.resetVersion;
+		int from = reset ? 0 : firstAddedAfter(s, sinceVersion);
+		int to = (maxCount > 0 && s.count - from > maxCount) ? from + maxCount : s.count;
+		
+		List<Annotation> annotations = Collections.unmodifiableList(Arrays.asList(s.items).subList(from, to));
+		long version = to == s.count ? s.version : s.versionAt(to - 1);
+		return new AnnotationHistory(annotations, version, reset, to == s.count);
 	}
 	
-	public void undo() {
-		if (!annotations.isEmpty()) {
-			annotations.remove(annotations.size() - 1);
+	private int firstAddedAfter(Snapshot s, long version) {
+		int low = 0;
+		int high = s.count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (s.versionAt(mid) <= version) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
 		}
+		return low;
 	}
 	
-	public int getNumShapesOnPage() {
-		return annotations.size();
+	public long getVersion() {
+		return snapshot.version;
 	}
+	
+	public synchronized void deleteAnnotation(String id) {
+		Integer foundIndex = annotationIndex.get(id);
+		if (foundIndex == null) return;
+		
+		Snapshot s = snapshot;
+		int index = foundIndex.intValue();
+		Annotation[] items = new Annotation[s.items.length];
+		long[] versions = new long[s.versions.length];
+		System.arraycopy(s.items, 0, items, 0, index);
+		System.arraycopy(s.versions, 0, versions, 0, index);
+		System.arraycopy(s.items, index + 1, items, index, s.count - index - 1);
+		System.arraycopy(s.versions, index + 1, versions, index, s.count - index - 1);
 		
-	public void modifyText(String id, Annotation annotation){
-		int foundIndex = findAnnotation(id);
-		if (foundIndex >= 0) {			
-			annotations.set(foundIndex, annotation);
+		annotationIndex.remove(id);
+		for (int i = index; i < s.count - 1; i++) {
+			annotationIndex.put(items[i].getID(), i);
 		}
+		
+		snapshot = reset(s, items, versions, s.count - 1);
 	}
-
-	private int findAnnotation(String id) {
-		int foundIndex = -1;
-		for (int i=0; i < annotations.size(); i++) {
-			Annotation annotation = annotations.get(i);
-			if (annotation.getID().equals(id)) {
-				foundIndex = i;
-				break;
-			}
+	
+	public synchronized void clear() {
+		annotationIndex.clear();
+		snapshot = reset(snapshot, new Annotation[INITIAL_CAPACITY], new long[INITIAL_CAPACITY], 0);
+	}
+	
+	public synchronized void undo() {
+		Snapshot s = snapshot;
+		if (s.count > 0) {
+			annotationIndex.remove(s.items[s.count - 1].getID());
+			snapshot = reset(s, s.items, s.versions, s.count - 1);
 		}
-		return foundIndex;
+	}
+	
+	public int getNumShapesOnPage() {
+		return snapshot.count;
+	}
+		
+	public synchronized void modifyText(String id, Annotation annotation){
+		Integer foundIndex = annotationIndex.get(id);
+		if (foundIndex == null) return;
+		
+		Snapshot s = snapshot;
+		Annotation[] items = Arrays.copyOf(s.items, s.items.length);
+		long[] versions = Arrays.copyOf(s.versions, s.versions.length);
+		items[foundIndex.intValue()] = annotation;
 		
+		snapshot = reset(s, items, versions, s.count);
+	}
+	
+	/*
+	 * The snapshot after a change other than an add. Versions from
+	 * resetVersion up to the new page version number the count annotations
+	 * left.
+	 */
+	private Snapshot reset(Snapshot s, Annotation[] items, long[] versions, int count) {
+		long resetVersion = s.version + 1;
+		return new Snapshot(items, versions, count, resetVersion + count, resetVersion);
 	}
 	
 	public void toggleGrid() {
@@ -103,5 +198,26 @@ public class Page {
 		return pageIndex;
 	}
 
-
+	private static final class Snapshot {
+		final Annotation[] items;
+		/* Version at which each annotation was added. Increasing. */
+		final long[] versions;
+		final int count;
+		final long version;
+		/* Version of the last change that wasn't an add. */
+		final long resetVersion;
+		
+		Snapshot(Annotation[] items, long[] versions, int count, long version, long resetVersion) {
+			this.items = items;
+			this.versions = versions;
+			this.count = count;
+			this.version = version;
+			this.resetVersion = resetVersion;
+		}
+		
+		/* Version of the annotation at index, as numbered since the last reset. */
+		long versionAt(int index) {
+			return versions[index] >= resetVersion ? versions[index] : resetVersion + index;
+		}
+	}
 }
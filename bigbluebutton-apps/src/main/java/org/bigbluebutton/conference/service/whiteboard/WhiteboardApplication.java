@@ -93,12 +93,22 @@ public class WhiteboardApplication extends MultiThreadedApplicationAdapter imple
 	}
 
 	public void sendAnnotationHistory(String userid, String presentationID, Integer pageNumber) {
+		sendAnnotationHistory(userid, presentationID, pageNumber, 0, 0);
+	}
+	
+	/**
+	 * Send the annotations added to the page after sinceVersion, at most
+	 * maxCount (all if not positive) of them. The reply carries the version
+	 * to request the next page with and whether the history is complete.
+	 */
+	public void sendAnnotationHistory(String userid, String presentationID, Integer pageNumber, long sinceVersion, int maxCount) {
 		Map<String, Object> message = new HashMap<String, Object>();		
-		List<Annotation> annotations = roomManager.getRoom(getMeetingId()).getAnnotations(presentationID, pageNumber);
+		AnnotationHistory history = roomManager.getRoom(getMeetingId()).getAnnotationsSince(presentationID, pageNumber, sinceVersion, maxCount);
+		List<Annotation> annotations = history.getAnnotations();
 		message.put("count", new Integer(annotations.size()));
 		
 		/** extract annotation into a Map */
-		List<Map<String, Object>> a = new ArrayList<Map<String, Object>>();
+		List<Map<String, Object>> a = new ArrayList<Map<String, Object>>(annotations.size());
 		for (Annotation v : annotations) {
 			a.add(v.getAnnotation());
 		}
@@ -106,6 +116,9 @@ public class WhiteboardApplication extends MultiThreadedApplicationAdapter imple
 		message.put("presentationID", presentationID);
 		message.put("pageNumber", pageNumber);
 		message.put("annotations", a);
+		message.put("version", new Double(history.getVersion()));
+		message.put("reset", history.isReset());
+		message.put("complete", history.isComplete());
 		ClientMessage m = new ClientMessage(ClientMessage.DIRECT, userid, "WhiteboardRequestAnnotationHistoryReply", message);
 		connInvokerService.sendMessage(m);
 	}
@@ -100,6 +100,18 @@ public class WhiteboardRoom {
 		return new ArrayList<Annotation>();
 	}
 	
+	public AnnotationHistory getAnnotationsSince(String presentationID, Integer pageNumber, long sinceVersion, int maxCount) {
+		Presentation p = getPresentation(presentationID);
+		if (p != null) {
+			Page pg = p.getPage(pageNumber.intValue());
+			if (pg != null) {
+				return pg.getAnnotationsSince(sinceVersion, maxCount);
+			}
+		}
+
+		return new AnnotationHistory(new ArrayList<Annotation>(), 0, false, true);
+	}
+	
 	public void modifyText(Annotation annotation) {
 		activePresentation.getActivePage().modifyText(annotation.getID(), annotation);
 		notifyModifyText(activePresentation, annotation);
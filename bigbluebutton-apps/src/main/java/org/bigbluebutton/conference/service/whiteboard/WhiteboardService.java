@@ -53,7 +53,7 @@ public class WhiteboardService {
 //		    }
 //		}
 		
-		Annotation a = new Annotation(annotation);
+		Annotation a = Annotation.fromMap(annotation);
 		
 		application.sendAnnotation(a);
 	}
@@ -78,8 +78,16 @@ public class WhiteboardService {
 	
 	public void requestAnnotationHistory(Map<String, Object> message) {
 		log.info("WhiteboardApplication - requestAnnotationHistory");
+		long sinceVersion = 0;
+		int maxCount = 0;
+		if (message.get("sinceVersion") != null) {
+			sinceVersion = ((Number) message.get("sinceVersion")).longValue();
+		}
+		if (message.get("maxCount") != null) {
+			maxCount = ((Number) message.get("maxCount")).intValue();
+		}
 		application.sendAnnotationHistory(getBbbSession().getInternalUserID(), 
-				(String) message.get("presentationID"), (Integer) message.get("pageNumber"));
+				(String) message.get("presentationID"), (Integer) message.get("pageNumber"), sinceVersion, maxCount);
 	}
 		
 	public void clear() {
@@ -18,33 +18,190 @@
 */
 package org.bigbluebutton.conference.service.whiteboard.shapes;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+/**
+ * A whiteboard annotation.
+ * 
+ * Annotations are kept as typed objects on the server. Clients send and
+ * receive them as maps; use {@link #fromMap(Map)} and {@link #getAnnotation()}
+ * to convert at the client boundary. The map sent back has the same keys and
+ * values as the one received, so what is recorded doesn't change either: a 
+ * value is only held in a field when it has the type the field is for (e.g. 
+ * an Integer color, a list of Double points). Other values, and keys this 
+ * class doesn't know about, are kept as-is and sent back with the rest.
+ */
 public class Annotation {
-
-	private Map<String, Object> annotation;
+	/** Value of the int fields that are missing or not held in the field. */
+	public static final int NO_INT = Integer.MIN_VALUE;
+	
+	protected static final String ID = "id";
+	protected static final String TYPE = "type";
+	protected static final String STATUS = "status";
+	protected static final String PRESENTATION_ID = "presentationID";
+	protected static final String PAGE_NUMBER = "pageNumber";
 	
-	public Annotation(Map<String, Object> annotation) {
-		this.annotation = annotation;
+	private String id;
+	private final String type;
+	private final String status;
+	private final String presentationID;
+	private final int pageNumber;
+	private Map<String, Object> extras;
+	
+	protected Annotation(Map<String, Object> annotation) {
+		this.id = toString(annotation.get(ID));
+		this.type = toString(annotation.get(TYPE));
+		this.status = toString(annotation.get(STATUS));
+		this.presentationID = toString(annotation.get(PRESENTATION_ID));
+		this.pageNumber = toInt(annotation.get(PAGE_NUMBER));
 	}
 	
+	/**
+	 * Create the annotation for a map received from a client.
+	 */
+	public static Annotation fromMap(Map<String, Object> annotation) {
+		Object type = annotation.get(TYPE);
+		Annotation a;
+		if (AnnotationType.PENCIL.equals(type)) {
+			a = new Scribble(annotation);
+		} else if (AnnotationType.RECTANGLE.equals(type)) {
+			a = new Rectangle(annotation);
+		} else if (AnnotationType.ELLIPSE.equals(type)) {
+			a = new Ellipse(annotation);
+		} else if (AnnotationType.TRIANGLE.equals(type)) {
+			a = new Triangle(annotation);
+		} else if (AnnotationType.LINE.equals(type)) {
+			a = new Line(annotation);
+		} else if (AnnotationType.TEXT.equals(type)) {
+			a = new Text(annotation);
+		} else {
+			a = new Annotation(annotation);
+		}
+		a.keepExtras(annotation);
+		return a;
+	}
+	
+	private void keepExtras(Map<String, Object> annotation) {
+		for (Map.Entry<String, Object> entry : annotation.entrySet()) {
+			if (!isField(entry.getKey())) {
+				if (extras == null) extras = new HashMap<String, Object>(4);
+				extras.put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+	
+	/**
+	 * Whether the value for the key is held in a field of this class.
+	 */
+	protected boolean isField(String key) {
+		return (ID.equals(key) && id != null) || (TYPE.equals(key) && type != null) 
+				|| (STATUS.equals(key) && status != null)
+				|| (PRESENTATION_ID.equals(key) && presentationID != null) 
+				|| (PAGE_NUMBER.equals(key) && pageNumber != NO_INT);
+	}
+	
+	/**
+	 * Convert the annotation into the map sent to the clients.
+	 */
 	public Map<String, Object> getAnnotation() {
+		Map<String, Object> annotation = new HashMap<String, Object>();
+		if (extras != null) annotation.putAll(extras);
+		put(annotation, ID, id);
+		put(annotation, TYPE, type);
+		put(annotation, STATUS, status);
+		put(annotation, PRESENTATION_ID, presentationID);
+		put(annotation, PAGE_NUMBER, pageNumber);
+		addFields(annotation);
 		return annotation;
 	}
 	
+	/**
+	 * Add the fields of the annotation type to the map sent to the clients.
+	 */
+	protected void addFields(Map<String, Object> annotation) {
+		
+	}
+	
 	public String getID() {
-		return (String) annotation.get("id");
+		return id;
 	}
 	
 	public void setID(String id) {
-		annotation.put("id", id);
+		this.id = id;
 	}
 	
 	public String getType() {
-		return (String) annotation.get("type");
+		return type;
 	}
 	
 	public String getStatus() {
-		return (String) annotation.get("status");
+		return status;
+	}
+	
+	public String getPresentationID() {
+		return presentationID;
+	}
+	
+	public int getPageNumber() {
+		return pageNumber;
+	}
+	
+	protected static String toString(Object value) {
+		return value instanceof String ? (String) value : null;
+	}
+	
+	protected static int toInt(Object value) {
+		return value instanceof Integer ? ((Integer) value).intValue() : NO_INT;
+	}
+	
+	/**
+	 * @return NaN if the value isn't a Double (or is NaN)
+	 */
+	protected static double toDouble(Object value) {
+		return value instanceof Double ? ((Double) value).doubleValue() : Double.NaN;
+	}
+	
+	protected static Boolean toBoolean(Object value) {
+		return value instanceof Boolean ? (Boolean) value : null;
+	}
+	
+	/**
+	 * @return null unless the value is an ArrayList of Doubles
+	 */
+	protected static double[] toPoints(Object value) {
+		if (!(value instanceof ArrayList)) return null;
+		
+		List<?> list = (List<?>) value;
+		double[] points = new double[list.size()];
+		for (int i = 0; i < points.length; i++) {
+			Object point = list.get(i);
+			if (!(point instanceof Double)) return null;
+			points[i] = ((Double) point).doubleValue();
+		}
+		return points;
+	}
+	
+	protected static void put(Map<String, Object> annotation, String key, Object value) {
+		if (value != null) annotation.put(key, value);
+	}
+	
+	protected static void put(Map<String, Object> annotation, String key, int value) {
+		if (value != NO_INT) annotation.put(key, value);
+	}
+	
+	protected static void put(Map<String, Object> annotation, String key, double value) {
+		if (!Double.isNaN(value)) annotation.put(key, value);
+	}
+	
+	protected static void put(Map<String, Object> annotation, String key, double[] points) {
+		if (points == null) return;
+		ArrayList<Object> p = new ArrayList<Object>(points.length);
+		for (int i = 0; i < points.length; i++) {
+			p.add(Double.valueOf(points[i]));
+		}
+		annotation.put(key, p);
 	}
 }
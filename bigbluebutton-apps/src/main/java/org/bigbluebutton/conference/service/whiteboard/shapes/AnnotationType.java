@@ -22,5 +22,7 @@ public class AnnotationType {
 	public static final String PENCIL = "pencil";
 	public static final String RECTANGLE = "rectangle";
 	public static final String ELLIPSE = "ellipse";
+	public static final String TRIANGLE = "triangle";
+	public static final String LINE = "line";
 	public static final String TEXT = "text";
 }
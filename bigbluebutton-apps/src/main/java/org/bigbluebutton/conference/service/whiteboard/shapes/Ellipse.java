@@ -18,6 +18,30 @@
 */
 package org.bigbluebutton.conference.service.whiteboard.shapes;
 
-public class Ellipse {
+import java.util.Map;
 
+public class Ellipse extends Shape {
+	private static final String CIRCLE = "circle";
+	
+	private final Boolean circle;
+	
+	Ellipse(Map<String, Object> annotation) {
+		super(annotation);
+		circle = toBoolean(annotation.get(CIRCLE));
+	}
+	
+	@Override
+	protected boolean isField(String key) {
+		return (CIRCLE.equals(key) && circle != null) || super.isField(key);
+	}
+	
+	@Override
+	protected void addFields(Map<String, Object> annotation) {
+		super.addFields(annotation);
+		put(annotation, CIRCLE, circle);
+	}
+	
+	public boolean isCircle() {
+		return Boolean.TRUE.equals(circle);
+	}
 }
@@ -18,6 +18,14 @@
 */
 package org.bigbluebutton.conference.service.whiteboard.shapes;
 
-public class Line {
+import java.util.Map;
 
+/**
+ * A straight line between two points.
+ */
+public class Line extends Shape {
+
+	Line(Map<String, Object> annotation) {
+		super(annotation);
+	}
 }
@@ -18,6 +18,30 @@
 */
 package org.bigbluebutton.conference.service.whiteboard.shapes;
 
-public class Rectangle {
+import java.util.Map;
 
+public class Rectangle extends Shape {
+	private static final String SQUARE = "square";
+	
+	private final Boolean square;
+	
+	Rectangle(Map<String, Object> annotation) {
+		super(annotation);
+		square = toBoolean(annotation.get(SQUARE));
+	}
+	
+	@Override
+	protected boolean isField(String key) {
+		return (SQUARE.equals(key) && square != null) || super.isField(key);
+	}
+	
+	@Override
+	protected void addFields(Map<String, Object> annotation) {
+		super.addFields(annotation);
+		put(annotation, SQUARE, square);
+	}
+	
+	public boolean isSquare() {
+		return Boolean.TRUE.equals(square);
+	}
 }
@@ -18,6 +18,14 @@
 */
 package org.bigbluebutton.conference.service.whiteboard.shapes;
 
-public class Scribble {
+import java.util.Map;
 
+/**
+ * A pencil stroke.
+ */
+public class Scribble extends Shape {
+
+	Scribble(Map<String, Object> annotation) {
+		super(annotation);
+	}
 }
@@ -0,0 +1,80 @@
+/**
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+* 
+* Copyright (c) 2012 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 3.0 of the License, or (at your option) any later
+* version.
+* 
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.bigbluebutton.conference.service.whiteboard.shapes;
+
+import java.util.Map;
+
+/**
+ * An annotation drawn as a list of points, e.g. a pencil stroke or a rectangle.
+ * The points are kept as a double array rather than a list of boxed numbers.
+ */
+public abstract class Shape extends Annotation {
+	protected static final String POINTS = "points";
+	protected static final String COLOR = "color";
+	protected static final String THICKNESS = "thickness";
+	protected static final String TRANSPARENCY = "transparency";
+	
+	private final double[] points;
+	private final int color;
+	private final int thickness;
+	private final Boolean transparency;
+	
+	protected Shape(Map<String, Object> annotation) {
+		super(annotation);
+		points = toPoints(annotation.get(POINTS));
+		color = toInt(annotation.get(COLOR));
+		thickness = toInt(annotation.get(THICKNESS));
+		transparency = toBoolean(annotation.get(TRANSPARENCY));
+	}
+	
+	@Override
+	protected boolean isField(String key) {
+		return (POINTS.equals(key) && points != null) || (COLOR.equals(key) && color != NO_INT) 
+				|| (THICKNESS.equals(key) && thickness != NO_INT)
+				|| (TRANSPARENCY.equals(key) && transparency != null) || super.isField(key);
+	}
+	
+	@Override
+	protected void addFields(Map<String, Object> annotation) {
+		put(annotation, POINTS, points);
+		put(annotation, COLOR, color);
+		put(annotation, THICKNESS, thickness);
+		put(annotation, TRANSPARENCY, transparency);
+	}
+	
+	/**
+	 * The points as x,y pairs, or null if the client didn't send a list of
+	 * numbers. Do not modify.
+	 */
+	public double[] getPoints() {
+		return points;
+	}
+	
+	public int getColor() {
+		return color;
+	}
+	
+	public int getThickness() {
+		return thickness;
+	}
+	
+	public boolean isTransparent() {
+		return Boolean.TRUE.equals(transparency);
+	}
+}
@@ -18,6 +18,90 @@
 */
 package org.bigbluebutton.conference.service.whiteboard.shapes;
 
-public class Text {
+import java.util.Map;
 
+public class Text extends Annotation {
+	private static final String TEXT = "text";
+	private static final String FONT_COLOR = "fontColor";
+	private static final String X = "x";
+	private static final String Y = "y";
+	private static final String FONT_SIZE = "fontSize";
+	private static final String CALCED_FONT_SIZE = "calcedFontSize";
+	private static final String TEXT_BOX_WIDTH = "textBoxWidth";
+	private static final String TEXT_BOX_HEIGHT = "textBoxHeight";
+	
+	private final String text;
+	private final int fontColor;
+	private final double x;
+	private final double y;
+	private final int fontSize;
+	private final double calcedFontSize;
+	private final double textBoxWidth;
+	private final double textBoxHeight;
+	
+	Text(Map<String, Object> annotation) {
+		super(annotation);
+		text = toString(annotation.get(TEXT));
+		fontColor = toInt(annotation.get(FONT_COLOR));
+		x = toDouble(annotation.get(X));
+		y = toDouble(annotation.get(Y));
+		fontSize = toInt(annotation.get(FONT_SIZE));
+		calcedFontSize = toDouble(annotation.get(CALCED_FONT_SIZE));
+		textBoxWidth = toDouble(annotation.get(TEXT_BOX_WIDTH));
+		textBoxHeight = toDouble(annotation.get(TEXT_BOX_HEIGHT));
+	}
+	
+	@Override
+	protected boolean isField(String key) {
+		return (TEXT.equals(key) && text != null) || (FONT_COLOR.equals(key) && fontColor != NO_INT) 
+				|| (X.equals(key) && !Double.isNaN(x)) || (Y.equals(key) && !Double.isNaN(y))
+				|| (FONT_SIZE.equals(key) && fontSize != NO_INT) 
+				|| (CALCED_FONT_SIZE.equals(key) && !Double.isNaN(calcedFontSize))
+				|| (TEXT_BOX_WIDTH.equals(key) && !Double.isNaN(textBoxWidth)) 
+				|| (TEXT_BOX_HEIGHT.equals(key) && !Double.isNaN(textBoxHeight)) || super.isField(key);
+	}
+	
+	@Override
+	protected void addFields(Map<String, Object> annotation) {
+		put(annotation, TEXT, text);
+		put(annotation, FONT_COLOR, fontColor);
+		put(annotation, X, x);
+		put(annotation, Y, y);
+		put(annotation, FONT_SIZE, fontSize);
+		put(annotation, CALCED_FONT_SIZE, calcedFontSize);
+		put(annotation, TEXT_BOX_WIDTH, textBoxWidth);
+		put(annotation, TEXT_BOX_HEIGHT, textBoxHeight);
+	}
+	
+	public String getText() {
+		return text;
+	}
+	
+	public int getFontColor() {
+		return fontColor;
+	}
+	
+	public double getX() {
+		return x;
+	}
+	
+	public double getY() {
+		return y;
+	}
+	
+	public int getFontSize() {
+		return fontSize;
+	}
+	
+	public double getCalcedFontSize() {
+		return calcedFontSize;
+	}
+	
+	public double getTextBoxWidth() {
+		return textBoxWidth;
+	}
+	
+	public double getTextBoxHeight() {
+		return textBoxHeight;
+	}
 }
@@ -18,6 +18,14 @@
 */
 package org.bigbluebutton.conference.service.whiteboard.shapes;
 
-public class Triangle {
+import java.util.Map;
 
+/**
+ * A triangle, given by the two corners of its bounding box.
+ */
+public class Triangle extends Shape {
+
+	Triangle(Map<String, Object> annotation) {
+		super(annotation);
+	}
 }
@@ -0,0 +1,219 @@
+package org.bigbluebutton.conference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.red5.server.api.IConnection;
+import org.red5.server.api.scope.IScope;
+import org.red5.server.api.service.IServiceCapableConnection;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ConnectionInvokerServiceTest {
+	private ConnectionInvokerService service;
+
+	/*
+	 * A meeting's scope. Counts how many times its connections are walked.
+	 */
+	private class Meeting {
+		final String id;
+		final IScope scope;
+		final Set<IConnection> connections = new LinkedHashSet<IConnection>();
+		final AtomicInteger walks = new AtomicInteger();
+
+		Meeting(String id) {
+			this.id = id;
+			scope = EasyMock.createNiceMock(IScope.class);
+			EasyMock.expect(scope.getName()).andStubReturn(id);
+			EasyMock.expect(scope.getConnections()).andStubAnswer(new IAnswer<Collection<Set<IConnection>>>() {
+				public Collection<Set<IConnection>> answer() {
+					walks.incrementAndGet();
+					return Collections.singletonList(connections);
+				}
+			});
+			EasyMock.makeThreadSafe(scope, true);
+			EasyMock.replay(scope);
+			service.addScope(id, scope);
+		}
+	}
+
+	/*
+	 * A client connection that records the names of the messages it is sent.
+	 */
+	private class Client {
+		final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+		final IServiceCapableConnection conn;
+
+		Client(String userId, Meeting meeting) {
+			this(userId, meeting, new IAnswer<Object>() {
+				public Object answer() {
+					return null;
+				}
+			});
+		}
+
+		Client(String userId, Meeting meeting, final IAnswer<Object> onInvoke) {
+			conn = EasyMock.createNiceMock(IServiceCapableConnection.class);
+			EasyMock.expect(conn.isConnected()).andStubReturn(true);
+			EasyMock.expect(conn.getScope()).andStubReturn(meeting.scope);
+			conn.invoke(EasyMock.eq("onMessageFromServer"), (Object[]) EasyMock.anyObject());
+			EasyMock.expectLastCall().andStubAnswer(new IAnswer<Object>() {
+				public Object answer() throws Throwable {
+					Object[] params = (Object[]) EasyMock.getCurrentArguments()[1];
+					received.add((String) params[0]);
+					return onInvoke.answer();
+				}
+			});
+			EasyMock.makeThreadSafe(conn, true);
+			EasyMock.replay(conn);
+			service.addConnection(userId, conn);
+		}
+	}
+
+	@BeforeMethod
+	public void setUp() {
+		service = new ConnectionInvokerService();
+		service.setStatsInterval(0);
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		service.stop();
+	}
+
+	private ClientMessage broadcast(String meetingId, String name) {
+		return new ClientMessage(ClientMessage.BROADCAST, meetingId, name, new HashMap<String, Object>());
+	}
+
+	private ClientMessage direct(String userId, String name) {
+		return new ClientMessage(ClientMessage.DIRECT, userId, name, new HashMap<String, Object>());
+	}
+
+	private void waitForSent(long messages) throws InterruptedException {
+		long until = System.currentTimeMillis() + 5000;
+		while (true) {
+			long sent = 0;
+			for (int i = 0; i < service.getNumLanes(); i++) {
+				sent += service.getMessagesSent(i);
+			}
+			if (sent >= messages) return;
+			Assert.assertTrue(System.currentTimeMillis() < until, "Only " + sent + " of " + messages + " messages sent");
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	public void testKeepsTheOrderOfEachMeeting() throws InterruptedException {
+		service.setNumLanes(4);
+		service.start();
+
+		List<Meeting> meetings = new ArrayList<Meeting>();
+		List<Client> clients = new ArrayList<Client>();
+		Map<Client, List<String>> expected = new HashMap<Client, List<String>>();
+		for (int m = 0; m < 3; m++) {
+			Meeting meeting = new Meeting("meeting-" + m);
+			meetings.add(meeting);
+			for (int u = 0; u < 2; u++) {
+				Client client = new Client("user-" + m + "-" + u, meeting);
+				meeting.connections.add(client.conn);
+				clients.add(client);
+				expected.put(client, new ArrayList<String>());
+			}
+		}
+
+		Random random = new Random(1);
+		int count = 600;
+		for (int i = 0; i < count; i++) {
+			int m = random.nextInt(3);
+			if (random.nextBoolean()) {
+				service.sendMessage(broadcast(meetings.get(m).id, "msg-" + i));
+				expected.get(clients.get(m * 2)).add("msg-" + i);
+				expected.get(clients.get(m * 2 + 1)).add("msg-" + i);
+			} else {
+				int u = random.nextInt(2);
+				service.sendMessage(direct("user-" + m + "-" + u, "msg-" + i));
+				expected.get(clients.get(m * 2 + u)).add("msg-" + i);
+			}
+		}
+		waitForSent(count);
+
+		for (Client client : clients) {
+			Assert.assertEquals(client.received, expected.get(client));
+		}
+	}
+
+	@Test
+	public void testCoalescesConsecutiveBroadcastsToAMeeting() throws InterruptedException {
+		service.setNumLanes(1);
+		service.start();
+
+		Meeting first = new Meeting("meeting-1");
+		Meeting second = new Meeting("meeting-2");
+		Client client = new Client("user-1", first);
+		first.connections.add(client.conn);
+
+		// Hold the lane until all the broadcasts are queued, so they go in one batch.
+		final CountDownLatch held = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		new Client("blocker", second, new IAnswer<Object>() {
+			public Object answer() throws Throwable {
+				held.countDown();
+				release.await(5, TimeUnit.SECONDS);
+				return null;
+			}
+		});
+		service.sendMessage(direct("blocker", "hold"));
+		Assert.assertTrue(held.await(5, TimeUnit.SECONDS));
+		service.sendMessage(broadcast("meeting-1", "a"));
+		service.sendMessage(broadcast("meeting-1", "b"));
+		service.sendMessage(broadcast("meeting-2", "c"));
+		service.sendMessage(broadcast("meeting-1", "d"));
+		service.sendMessage(broadcast("meeting-1", "e"));
+		release.countDown();
+		waitForSent(6);
+
+		Assert.assertEquals(client.received, Arrays.asList("a", "b", "d", "e"));
+		Assert.assertEquals(first.walks.get(), 2);
+		Assert.assertEquals(second.walks.get(), 1);
+	}
+
+	@Test
+	public void testAFailingClientDoesNotLoseTheRestOfTheBatch() throws InterruptedException {
+		service.setNumLanes(1);
+		service.start();
+
+		Meeting meeting = new Meeting("meeting-1");
+		Client failing = new Client("user-1", meeting, new IAnswer<Object>() {
+			public Object answer() {
+				throw new IllegalStateException("connection closed");
+			}
+		});
+		Client client = new Client("user-2", meeting);
+		meeting.connections.add(failing.conn);
+		meeting.connections.add(client.conn);
+
+		service.sendMessage(broadcast("meeting-1", "a"));
+		service.sendMessage(direct("user-1", "b"));
+		service.sendMessage(direct("user-2", "c"));
+		service.sendMessage(broadcast("meeting-1", "d"));
+		waitForSent(4);
+
+		Assert.assertEquals(failing.received, Arrays.asList("a", "b", "d"));
+		Assert.assertEquals(client.received, Arrays.asList("a", "c", "d"));
+	}
+}
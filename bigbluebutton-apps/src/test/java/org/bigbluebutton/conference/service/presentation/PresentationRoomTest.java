@@ -0,0 +1,102 @@
+package org.bigbluebutton.conference.service.presentation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PresentationRoomTest {
+	private static final String ROOM = "meeting-1";
+	
+	private List<String> events;
+	
+	private class RecordingListener implements IPresentationRoomListener {
+		public String getName() {
+			return "recorder";
+		}
+		public void sendUpdateMessage(Map<String, Object> message) {
+			events.add("update");
+		}
+		public void gotoSlide(int curslide) {
+			events.add("gotoSlide " + curslide);
+		}
+		public void resizeAndMoveSlide(Double xOffset, Double yOffset, Double widthRatio, Double heightRatio) {
+			events.add("resize " + xOffset);
+		}
+		public void removePresentation(String name) {
+			events.add("remove " + name);
+		}
+		public void sharePresentation(String presentationName, Boolean share) {
+			events.add("share " + presentationName + " " + share);
+		}
+		public void sendCursorUpdate(Double xPercent, Double yPercent) {
+			events.add("cursor " + xPercent);
+		}
+	}
+	
+	@BeforeMethod
+	public void setUp() {
+		events = new ArrayList<String>();
+	}
+	
+	private PresentationRoom coalescingRoom() {
+		PresentationRoom room = new PresentationRoom(ROOM, true);
+		room.addRoomListener(new RecordingListener());
+		return room;
+	}
+	
+	@Test
+	public void testUpdatesAreCoalescedUntilFlushed() {
+		PresentationRoom room = coalescingRoom();
+		room.sendCursorUpdate(1D, 1D);
+		room.sendCursorUpdate(2D, 2D);
+		room.resizeAndMoveSlide(10D, 0D, 100D, 100D);
+		room.resizeAndMoveSlide(20D, 0D, 100D, 100D);
+		Assert.assertTrue(events.isEmpty());
+		
+		room.flushPendingUpdates();
+		Assert.assertEquals(events.toString(), "[cursor 2.0, resize 20.0]");
+		Assert.assertEquals(room.getCollapsedUpdates(), 2);
+		
+		room.flushPendingUpdates();
+		Assert.assertEquals(events.size(), 2);
+	}
+	
+	@Test
+	public void testPendingUpdatesGoOutBeforeSlideChange() {
+		PresentationRoom room = coalescingRoom();
+		room.resizeAndMoveSlide(10D, 0D, 100D, 100D);
+		room.sendCursorUpdate(1D, 1D);
+		room.gotoSlide(2);
+		room.resizeAndMoveSlide(30D, 0D, 100D, 100D);
+		room.flushPendingUpdates();
+		
+		Assert.assertEquals(events.toString(), "[cursor 1.0, resize 10.0, gotoSlide 2, resize 30.0]");
+	}
+	
+	@Test
+	public void testPendingUpdatesGoOutBeforePresentationChange() {
+		PresentationRoom room = coalescingRoom();
+		room.resizeAndMoveSlide(10D, 0D, 100D, 100D);
+		room.sharePresentation("slides", Boolean.TRUE);
+		room.flushPendingUpdates();
+		
+		Assert.assertEquals(events.toString(), "[resize 10.0, share slides true]");
+	}
+	
+	@Test
+	public void testPendingUpdatesGoOutWhenRoomIsRemoved() {
+		PresentationRoomsManager manager = new PresentationRoomsManager();
+		manager.setUpdateInterval(60000);
+		manager.addRoom(new PresentationRoom(ROOM, true));
+		manager.addRoomListener(ROOM, new RecordingListener());
+		
+		manager.resizeAndMoveSlide(ROOM, 10D, 0D, 100D, 100D);
+		Assert.assertTrue(events.isEmpty());
+		manager.removeRoom(ROOM);
+		Assert.assertEquals(events.toString(), "[resize 10.0]");
+	}
+}
@@ -0,0 +1,222 @@
+package org.bigbluebutton.conference.service.recorder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+public class BatchingRedisDispatcherTest {
+	private FakeRedis redis;
+	private BatchingRedisDispatcher recorder;
+
+	/*
+	 * The part of redis the recorder uses. A pipeline's commands are applied
+	 * when it is synced, unless failSyncs says the sync should fail.
+	 */
+	private static class FakeRedis extends JedisPool {
+		long nextRecordedMsgId = 0;
+		final Map<String, Map<String, String>> hashes = new HashMap<String, Map<String, String>>();
+		final Map<String, List<String>> lists = new HashMap<String, List<String>>();
+		final AtomicInteger failSyncs = new AtomicInteger();
+		final AtomicInteger brokenResources = new AtomicInteger();
+
+		FakeRedis() {
+			super("localhost", 6379);
+		}
+
+		@Override
+		public Jedis getResource() {
+			return new Jedis("localhost") {
+				@Override
+				public Long incrBy(String key, long increment) {
+					synchronized (FakeRedis.this) {
+						nextRecordedMsgId += increment;
+						return nextRecordedMsgId;
+					}
+				}
+
+				@Override
+				public Pipeline pipelined() {
+					return new FakePipeline();
+				}
+			};
+		}
+
+		@Override
+		public void returnResource(Jedis jedis) {
+		}
+
+		@Override
+		public void returnBrokenResource(Jedis jedis) {
+			brokenResources.incrementAndGet();
+		}
+
+		synchronized List<String> list(String key) {
+			List<String> list = lists.get(key);
+			return list == null ? new ArrayList<String>() : new ArrayList<String>(list);
+		}
+
+		private class FakePipeline extends Pipeline {
+			private final List<String[]> commands = new ArrayList<String[]>();
+			private final List<Map<String, String>> hashValues = new ArrayList<Map<String, String>>();
+
+			@Override
+			public Response<String> hmset(String key, Map<String, String> hash) {
+				commands.add(new String[] {"hmset", key});
+				hashValues.add(hash);
+				return null;
+			}
+
+			@Override
+			public Response<Long> rpush(String key, String value) {
+				commands.add(new String[] {"rpush", key, value});
+				return null;
+			}
+
+			@Override
+			public void sync() {
+				if (failSyncs.getAndDecrement() > 0) {
+					throw new IllegalStateException("connection reset");
+				}
+				synchronized (FakeRedis.this) {
+					int hash = 0;
+					for (String[] command : commands) {
+						if (command[0].equals("hmset")) {
+							hashes.put(command[1], hashValues.get(hash++));
+						} else {
+							List<String> list = lists.get(command[1]);
+							if (list == null) {
+								list = new ArrayList<String>();
+								lists.put(command[1], list);
+							}
+							list.add(command[2]);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static class TestEvent extends RecordEvent {
+		TestEvent(String meetingId, String name) {
+			setModule("TEST");
+			setMeetingId(meetingId);
+			setEvent(name);
+		}
+	}
+
+	@BeforeMethod
+	public void setUp() {
+		redis = new FakeRedis();
+		recorder = new BatchingRedisDispatcher();
+		recorder.setRedisPool(redis);
+		recorder.setMaxBatchSize(50);
+		recorder.setStatsInterval(0);
+	}
+
+	private List<String> recordedEvents(String meetingId) {
+		List<String> names = new ArrayList<String>();
+		long lastId = 0;
+		for (String id : redis.list("meeting:" + meetingId + ":recordings")) {
+			Assert.assertTrue(Long.parseLong(id) > lastId, "Ids of " + meetingId + " increase");
+			lastId = Long.parseLong(id);
+			names.add(redis.hashes.get("recording:" + meetingId + ":" + id).get("eventName"));
+		}
+		return names;
+	}
+
+	@Test
+	public void testWritesTheEventsOfEachMeetingInOrder() {
+		recorder.start();
+		Map<String, List<String>> expected = new HashMap<String, List<String>>();
+		for (int i = 0; i < 500; i++) {
+			String meetingId = "meeting-" + (i % 3);
+			recorder.record(meetingId, new TestEvent(meetingId, "event-" + i));
+			if (!expected.containsKey(meetingId)) {
+				expected.put(meetingId, new ArrayList<String>());
+			}
+			expected.get(meetingId).add("event-" + i);
+		}
+		recorder.stop();
+
+		for (String meetingId : expected.keySet()) {
+			Assert.assertEquals(recordedEvents(meetingId), expected.get(meetingId));
+		}
+		Assert.assertEquals(redis.nextRecordedMsgId, 500);
+		Assert.assertEquals(recorder.getEventsWritten(), 500);
+		Assert.assertEquals(recorder.getEventsFailed(), 0);
+	}
+
+	@Test
+	public void testRetriesAFailedBatchWithTheSameIds() {
+		redis.failSyncs.set(1);
+		recorder.start();
+		for (int i = 0; i < 10; i++) {
+			recorder.record("meeting-1", new TestEvent("meeting-1", "event-" + i));
+		}
+		recorder.stop();
+
+		Assert.assertEquals(recordedEvents("meeting-1").size(), 10);
+		Assert.assertEquals(redis.nextRecordedMsgId, 10);
+		Assert.assertEquals(redis.brokenResources.get(), 1);
+		Assert.assertEquals(recorder.getEventsWritten(), 10);
+		Assert.assertEquals(recorder.getEventsFailed(), 0);
+	}
+
+	@Test
+	public void testDropsABatchThatFailsTwice() {
+		redis.failSyncs.set(2);
+		recorder.start();
+		recorder.record("meeting-1", new TestEvent("meeting-1", "lost"));
+		recorder.stop();
+
+		Assert.assertTrue(recordedEvents("meeting-1").isEmpty());
+		Assert.assertEquals(recorder.getEventsWritten(), 0);
+		Assert.assertEquals(recorder.getEventsFailed(), 1);
+	}
+
+	@Test
+	public void testNoEventIsLeftQueuedAfterStop() throws InterruptedException {
+		recorder.setQueueCapacity(100);
+		recorder.start();
+
+		final AtomicInteger running = new AtomicInteger(4);
+		List<Thread> producers = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final String meetingId = "meeting-" + t;
+			Thread producer = new Thread() {
+				public void run() {
+					for (int i = 0; i < 100000 && running.get() > 0; i++) {
+						recorder.record(meetingId, new TestEvent(meetingId, "event-" + i));
+					}
+				}
+			};
+			producers.add(producer);
+			producer.start();
+		}
+		Thread.sleep(50);
+		recorder.stop();
+		running.set(0);
+		for (Thread producer : producers) {
+			producer.join();
+		}
+
+		long written = 0;
+		for (int t = 0; t < 4; t++) {
+			written += recordedEvents("meeting-" + t).size();
+		}
+		Assert.assertEquals(recorder.getQueueDepth(), 0);
+		Assert.assertEquals(recorder.getEventsWritten(), recorder.getEventsQueued());
+		Assert.assertEquals(written, recorder.getEventsQueued());
+	}
+}
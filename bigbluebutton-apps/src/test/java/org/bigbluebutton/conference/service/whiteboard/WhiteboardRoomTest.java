@@ -0,0 +1,204 @@
+package org.bigbluebutton.conference.service.whiteboard;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bigbluebutton.conference.service.whiteboard.shapes.Annotation;
+import org.bigbluebutton.conference.service.whiteboard.shapes.AnnotationType;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class WhiteboardRoomTest {
+	private static final String PRESENTATION = "default-presentation";
+	private static final Integer PAGE = Integer.valueOf(1);
+	
+	private WhiteboardRoom room;
+	
+	@BeforeMethod
+	public void setUp() {
+		room = new WhiteboardRoom("meeting-1");
+		room.addPresentation(PRESENTATION, 2);
+	}
+	
+	private Annotation rectangle(String id) {
+		Map<String, Object> annotation = new HashMap<String, Object>();
+		annotation.put("id", id);
+		annotation.put("type", AnnotationType.RECTANGLE);
+		annotation.put("status", "DRAW_END");
+		annotation.put("presentationID", PRESENTATION);
+		annotation.put("pageNumber", PAGE);
+		annotation.put("points", new ArrayList<Object>());
+		return Annotation.fromMap(annotation);
+	}
+	
+	private long version() {
+		return room.getActivePresentation().getActivePage().getVersion();
+	}
+	
+	private String idsSince(long version, int maxCount) {
+		StringBuilder ids = new StringBuilder();
+		for (Annotation a : room.getAnnotationsSince(PRESENTATION, PAGE, version, maxCount).getAnnotations()) {
+			if (ids.length() > 0) ids.append(",");
+			ids.append(a.getID());
+		}
+		return ids.toString();
+	}
+	
+	@Test
+	public void testEveryChangeIncrementsTheVersion() {
+		Assert.assertEquals(version(), 0);
+		room.addAnnotation(rectangle("a"));
+		Assert.assertEquals(version(), 1);
+		room.addAnnotation(rectangle("b"));
+		Assert.assertEquals(version(), 2);
+		
+		// A reset also numbers the annotations left, one version each.
+		room.undo();
+		Assert.assertEquals(version(), 4);
+		room.modifyText(rectangle("a"));
+		Assert.assertEquals(version(), 6);
+		room.clear();
+		Assert.assertEquals(version(), 7);
+		
+		// Nothing to undo, nothing changes.
+		room.undo();
+		Assert.assertEquals(version(), 7);
+		
+		room.addAnnotation(rectangle("c"));
+		Assert.assertEquals(version(), 8);
+		Assert.assertEquals(room.getActivePresentation().getPage(2).getVersion(), 0);
+	}
+	
+	@Test
+	public void testAnnotationsSinceAreOnlyTheAdded() {
+		room.addAnnotation(rectangle("a"));
+		room.addAnnotation(rectangle("b"));
+		long seen = version();
+		room.addAnnotation(rectangle("c"));
+		room.addAnnotation(rectangle("d"));
+		
+		AnnotationHistory history = room.getAnnotationsSince(PRESENTATION, PAGE, seen, 0);
+		Assert.assertFalse(history.isReset());
+		Assert.assertTrue(history.isComplete());
+		Assert.assertEquals(history.getVersion(), version());
+		Assert.assertEquals(idsSince(seen, 0), "c,d");
+		
+		history = room.getAnnotationsSince(PRESENTATION, PAGE, 0, 3);
+		Assert.assertFalse(history.isComplete());
+		Assert.assertEquals(idsSince(0, 3), "a,b,c");
+		Assert.assertEquals(idsSince(history.getVersion(), 3), "d");
+		Assert.assertEquals(idsSince(version(), 0), "");
+	}
+	
+	@Test
+	public void testAnnotationsSinceStartOverAfterUndo() {
+		room.addAnnotation(rectangle("a"));
+		room.addAnnotation(rectangle("b"));
+		long seen = version();
+		room.undo();
+		
+		AnnotationHistory history = room.getAnnotationsSince(PRESENTATION, PAGE, seen, 0);
+		Assert.assertTrue(history.isReset());
+		Assert.assertTrue(history.isComplete());
+		Assert.assertEquals(idsSince(seen, 0), "a");
+		
+		// An add after the undo reuses the slot of the undone annotation.
+		seen = version();
+		room.addAnnotation(rectangle("c"));
+		history = room.getAnnotationsSince(PRESENTATION, PAGE, seen, 0);
+		Assert.assertFalse(history.isReset());
+		Assert.assertEquals(idsSince(seen, 0), "c");
+		Assert.assertEquals(idsSince(0, 0), "a,c");
+	}
+	
+	/*
+	 * Pages through the history from the given version, maxCount at a time.
+	 */
+	private String pageThrough(long version, int maxCount) {
+		StringBuilder ids = new StringBuilder();
+		for (int pages = 0; pages < 100; pages++) {
+			AnnotationHistory history = room.getAnnotationsSince(PRESENTATION, PAGE, version, maxCount);
+			Assert.assertTrue(history.getVersion() >= version);
+			for (Annotation a : history.getAnnotations()) {
+				if (ids.length() > 0) ids.append(",");
+				ids.append(a.getID());
+			}
+			if (history.isComplete()) return ids.toString();
+			version = history.getVersion();
+		}
+		Assert.fail("Paging doesn't move forward: " + ids);
+		return null;
+	}
+	
+	@Test
+	public void testPagingAfterUndoMovesForward() {
+		for (int i = 0; i < 10; i++) {
+			room.addAnnotation(rectangle("r" + i));
+		}
+		room.undo();
+		
+		Assert.assertTrue(room.getAnnotationsSince(PRESENTATION, PAGE, 0, 3).isReset());
+		Assert.assertEquals(pageThrough(0, 3), "r0,r1,r2,r3,r4,r5,r6,r7,r8");
+		
+		// The cursor of a page after the reset isn't reset again.
+		long cursor = room.getAnnotationsSince(PRESENTATION, PAGE, 0, 3).getVersion();
+		AnnotationHistory next = room.getAnnotationsSince(PRESENTATION, PAGE, cursor, 3);
+		Assert.assertFalse(next.isReset());
+		Assert.assertEquals(idsSince(cursor, 3), "r3,r4,r5");
+		
+		// Annotations added after the reset come after the ones left.
+		room.addAnnotation(rectangle("s0"));
+		room.addAnnotation(rectangle("s1"));
+		Assert.assertEquals(pageThrough(cursor, 4), "r3,r4,r5,r6,r7,r8,s0,s1");
+		Assert.assertEquals(pageThrough(0, 2), "r0,r1,r2,r3,r4,r5,r6,r7,r8,s0,s1");
+	}
+	
+	@Test
+	public void testPagingAfterModifyAndClearMovesForward() {
+		for (int i = 0; i < 5; i++) {
+			room.addAnnotation(rectangle("r" + i));
+		}
+		long seen = version();
+		room.modifyText(rectangle("r2"));
+		room.undo();
+		Assert.assertEquals(pageThrough(seen, 1), "r0,r1,r2,r3");
+		
+		room.clear();
+		for (int i = 0; i < 4; i++) {
+			room.addAnnotation(rectangle("c" + i));
+		}
+		Assert.assertEquals(pageThrough(seen, 3), "c0,c1,c2,c3");
+		Assert.assertEquals(pageThrough(version(), 3), "");
+	}
+	
+	@Test
+	public void testAnnotationsSinceStartOverAfterClear() {
+		room.addAnnotation(rectangle("a"));
+		room.addAnnotation(rectangle("b"));
+		long seen = version();
+		room.clear();
+		
+		AnnotationHistory history = room.getAnnotationsSince(PRESENTATION, PAGE, seen, 0);
+		Assert.assertTrue(history.isReset());
+		Assert.assertTrue(history.isComplete());
+		Assert.assertEquals(history.getAnnotations().size(), 0);
+		Assert.assertEquals(history.getVersion(), version());
+		
+		room.addAnnotation(rectangle("c"));
+		Assert.assertTrue(room.getAnnotationsSince(PRESENTATION, PAGE, seen, 0).isReset());
+		Assert.assertEquals(idsSince(seen, 0), "c");
+		Assert.assertFalse(room.getAnnotationsSince(PRESENTATION, PAGE, history.getVersion(), 0).isReset());
+		Assert.assertEquals(idsSince(history.getVersion(), 0), "c");
+	}
+	
+	@Test
+	public void testAnnotationsSinceOfUnknownPageAreEmpty() {
+		room.addAnnotation(rectangle("a"));
+		AnnotationHistory history = room.getAnnotationsSince("other-presentation", PAGE, 0, 0);
+		Assert.assertEquals(history.getAnnotations().size(), 0);
+		Assert.assertTrue(history.isComplete());
+		Assert.assertEquals(room.getAnnotationsSince(PRESENTATION, Integer.valueOf(5), 0, 0).getAnnotations().size(), 0);
+	}
+}
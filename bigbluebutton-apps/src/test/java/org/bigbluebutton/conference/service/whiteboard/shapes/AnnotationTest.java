@@ -0,0 +1,183 @@
+package org.bigbluebutton.conference.service.whiteboard.shapes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bigbluebutton.conference.service.recorder.whiteboard.AddShapeWhiteboardRecordEvent;
+import org.bigbluebutton.conference.service.recorder.whiteboard.AddTextWhiteboardRecordEvent;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AnnotationTest {
+	
+	/*
+	 * A pencil stroke as the Flex client sends it: AMF numbers come as Doubles,
+	 * uints as Integers.
+	 */
+	private Map<String, Object> pencil(int numPoints, int seed) {
+		Map<String, Object> annotation = new HashMap<String, Object>();
+		annotation.put("id", "stroke-" + seed);
+		annotation.put("type", AnnotationType.PENCIL);
+		annotation.put("status", "DRAW_END");
+		annotation.put("presentationID", "default-presentation");
+		annotation.put("pageNumber", Integer.valueOf(1));
+		ArrayList<Object> points = new ArrayList<Object>();
+		for (int i = 0; i < numPoints; i++) {
+			points.add(Double.valueOf((seed * 7 + i) / 3.0));
+		}
+		annotation.put("points", points);
+		annotation.put("color", Integer.valueOf(0xFF0000));
+		annotation.put("thickness", Integer.valueOf(3));
+		annotation.put("transparency", Boolean.FALSE);
+		return annotation;
+	}
+	
+	private Map<String, String> recordShape(Map<String, Object> annotation) {
+		AddShapeWhiteboardRecordEvent event = new AddShapeWhiteboardRecordEvent();
+		event.addAnnotation(annotation);
+		return event.toMap();
+	}
+	
+	@Test
+	public void testShapeRoundTripKeepsValues() {
+		Map<String, Object> sent = pencil(20, 1);
+		sent.put("unknownKey", "kept");
+		
+		Annotation a = Annotation.fromMap(sent);
+		Assert.assertTrue(a instanceof Scribble);
+		Assert.assertEquals(((Shape) a).getPoints().length, 20);
+		Assert.assertEquals(a.getAnnotation(), sent);
+		
+		// Points that don't fit in a float are recorded as the client sent them.
+		Map<String, String> recorded = recordShape(a.getAnnotation());
+		Assert.assertEquals(recorded, recordShape(sent));
+		Assert.assertTrue(recorded.get("dataPoints").startsWith("2.3333333333333335,2.6666666666666665,3.0,"));
+	}
+	
+	@Test
+	public void testValuesOfOtherTypesAreKeptAsIs() {
+		Map<String, Object> sent = pencil(4, 2);
+		sent.put("thickness", Double.valueOf(2.5));
+		sent.put("color", Double.valueOf(1.6777215E7));
+		ArrayList<Object> points = new ArrayList<Object>();
+		points.add(Integer.valueOf(10));
+		points.add(Double.valueOf(20.5));
+		sent.put("points", points);
+		
+		Annotation a = Annotation.fromMap(sent);
+		Assert.assertNull(((Shape) a).getPoints());
+		Assert.assertEquals(((Shape) a).getThickness(), Annotation.NO_INT);
+		Assert.assertEquals(a.getAnnotation(), sent);
+		Assert.assertEquals(recordShape(a.getAnnotation()).get("thickness"), "2.5");
+		Assert.assertEquals(recordShape(a.getAnnotation()).get("dataPoints"), "10,20.5");
+	}
+	
+	@Test
+	public void testMissingKeysStayMissing() {
+		Map<String, Object> sent = new HashMap<String, Object>();
+		sent.put("id", "r1");
+		sent.put("type", AnnotationType.RECTANGLE);
+		sent.put("points", new ArrayList<Object>());
+		
+		Annotation a = Annotation.fromMap(sent);
+		Assert.assertTrue(a instanceof Rectangle);
+		Assert.assertEquals(a.getAnnotation(), sent);
+		Assert.assertFalse(((Rectangle) a).isSquare());
+		Assert.assertEquals(((Shape) a).getColor(), Annotation.NO_INT);
+	}
+	
+	@Test
+	public void testTextRoundTripKeepsValues() {
+		Map<String, Object> sent = new HashMap<String, Object>();
+		sent.put("id", "t1");
+		sent.put("type", AnnotationType.TEXT);
+		sent.put("status", "textPublished");
+		sent.put("text", "Hello");
+		sent.put("fontColor", Integer.valueOf(0));
+		sent.put("x", Double.valueOf(12.345678901));
+		sent.put("y", Double.valueOf(0.1));
+		sent.put("fontSize", Integer.valueOf(18));
+		sent.put("calcedFontSize", Double.valueOf(2.7777777777777777));
+		sent.put("textBoxWidth", Double.valueOf(30.000001));
+		sent.put("textBoxHeight", Double.valueOf(5));
+		
+		Annotation a = Annotation.fromMap(sent);
+		Assert.assertTrue(a instanceof Text);
+		Assert.assertEquals(a.getAnnotation(), sent);
+		
+		AddTextWhiteboardRecordEvent recorded = new AddTextWhiteboardRecordEvent();
+		recorded.addAnnotation(a.getAnnotation());
+		AddTextWhiteboardRecordEvent before = new AddTextWhiteboardRecordEvent();
+		before.addAnnotation(sent);
+		Assert.assertEquals(recorded.toMap(), before.toMap());
+	}
+	
+	@Test
+	public void testStrokesKeepTheirPointsInAnArrayAndRecordLikeTheMaps() {
+		for (int i = 0; i < 100; i++) {
+			Map<String, Object> sent = pencil(50, i);
+			Annotation a = Annotation.fromMap(pencil(50, i));
+			
+			double[] points = ((Shape) a).getPoints();
+			Assert.assertEquals(points.length, 50);
+			List<?> sentPoints = (List<?>) sent.get("points");
+			for (int p = 0; p < points.length; p++) {
+				Assert.assertEquals(points[p], ((Double) sentPoints.get(p)).doubleValue());
+			}
+			Assert.assertEquals(recordShape(a.getAnnotation()), recordShape(sent));
+		}
+	}
+	
+	private long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+	
+	/*
+	 * 10k pencil strokes of 50 points, kept as the maps received from the client
+	 * (as before) and as typed annotations. Serializing is converting to the map
+	 * sent to the clients and recording the stroke. Run with gradle benchmark.
+	 */
+	@Test(groups = "benchmark")
+	public void benchmarkHeapAndSerializationPer10kStrokes() {
+		int strokes = 10000;
+		
+		long start = usedHeap();
+		List<Map<String, Object>> maps = new ArrayList<Map<String, Object>>(strokes);
+		for (int i = 0; i < strokes; i++) {
+			maps.add(pencil(50, i));
+		}
+		long mapHeap = usedHeap() - start;
+		
+		start = usedHeap();
+		List<Annotation> typed = new ArrayList<Annotation>(strokes);
+		for (int i = 0; i < strokes; i++) {
+			typed.add(Annotation.fromMap(pencil(50, i)));
+		}
+		long typedHeap = usedHeap() - start;
+		
+		for (int i = 0; i < strokes; i++) {
+			recordShape(maps.get(i));
+			recordShape(typed.get(i).getAnnotation());
+		}
+		long nanos = System.nanoTime();
+		for (int i = 0; i < strokes; i++) {
+			recordShape(maps.get(i));
+		}
+		long mapNanos = System.nanoTime() - nanos;
+		nanos = System.nanoTime();
+		for (int i = 0; i < strokes; i++) {
+			recordShape(typed.get(i).getAnnotation());
+		}
+		long typedNanos = System.nanoTime() - nanos;
+		
+		System.out.println("10k strokes of 50 points: maps " + (mapHeap / 1024) + " KB, " + (mapNanos / 1000000) 
+				+ " ms to serialize. Typed " + (typedHeap / 1024) + " KB, " + (typedNanos / 1000000) + " ms to serialize.");
+		Assert.assertEquals(maps.size(), typed.size());
+	}
+}
@@ -23,6 +23,11 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.*;
 import org.bigbluebutton.api.domain.Meeting;
 import org.bigbluebutton.api.domain.Playback;
@@ -35,10 +40,26 @@ import org.bigbluebutton.web.services.ExpiredMeetingCleanupTimerTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Keeps the running meetings.
+ * 
+ * Meetings are looked up by internal id in a hash map. They are also
+ * indexed by voice bridge. A sorted copy of the internal ids is kept so a
+ * meeting can still be found from a prefix of its id.
+ * The indexes are only changed under the service lock so they stay
+ * consistent with each other.
+ * 
+ * Whenever a meeting is created, started or ended its next deadline is
+ * given to the cleaner, which calls {@link #checkMeeting(String)} once it
+ * is reached. Recordings are handed to a separate thread for processing.
+ */
 public class MeetingService {
 	private static Logger log = LoggerFactory.getLogger(MeetingService.class);
 	
 	private final ConcurrentMap<String, Meeting> meetings;	
+	private final ConcurrentNavigableMap<String, Meeting> meetingsById;
+	/* Internal ids of the meetings using a voice bridge. Meetings can share one. */
+	private final ConcurrentMap<String, Set<String>> meetingsByVoiceBridge;
 	private final ConcurrentMap<String, UserSession> sessions;
 	private int defaultMeetingExpireDuration = 1;	
 	private int defaultMeetingCreateJoinDuration = 5;
@@ -46,9 +67,12 @@ public class MeetingService {
 	private MessagingService messagingService;
 	private ExpiredMeetingCleanupTimerTask cleaner;
 	private boolean removeMeetingWhenEnded = false;
+	private final ExecutorService recordingProcessor = Executors.newSingleThreadExecutor();
 	
 	public MeetingService() {
 		meetings = new ConcurrentHashMap<String, Meeting>();	
+		meetingsById = new ConcurrentSkipListMap<String, Meeting>();
+		meetingsByVoiceBridge = new ConcurrentHashMap<String, Set<String>>();
 		sessions = new ConcurrentHashMap<String, UserSession>();
 	}
 	
@@ -71,28 +95,62 @@ public class MeetingService {
 	public void removeExpiredMeetings() {
 		log.info("Cleaning up expired meetings");
 		for (Meeting m : meetings.values()) {
-			if (m.hasExpired(defaultMeetingExpireDuration) ) {
-				log.info("Removing expired meeting [id={} , name={}]", m.getInternalId(), m.getName());
-				log.info("Expired meeting [start={} , end={}]", m.getStartTime(), m.getEndTime());
-		  		if (m.isRecord() && m.getNumUsers()==0) {
-		  			log.debug("[" + m.getInternalId() + "] is recorded. Process it.");		  			
-		  			processRecording(m.getInternalId());
-		  		}
-				meetings.remove(m.getInternalId());
-				continue;
-			}
-			
-			if (m.wasNeverStarted(defaultMeetingCreateJoinDuration)) {
-				log.info("Removing non-joined meeting [{} - {}]", m.getInternalId(), m.getName());
-				meetings.remove(m.getInternalId());
-				continue;
-			}
-			
-			if (m.hasExceededDuration()) {
-				log.info("Forcibly ending meeting [{} - {}]", m.getInternalId(), m.getName());
-				endMeeting(m.getInternalId());
+			if (!removeIfExpired(m)) {
+				scheduleCheck(m);
 			}
-			
+		}
+	}
+	
+	/**
+	 * Called by the cleaner when the meeting has reached its deadline.
+	 */
+	public void checkMeeting(String meetingId) {
+		Meeting m = meetings.get(meetingId);
+		if (m == null || removeIfExpired(m)) return;
+		
+		long deadline = m.getNextDeadline(defaultMeetingExpireDuration, defaultMeetingCreateJoinDuration);
+		if (deadline > 0 && deadline <= System.currentTimeMillis()) {
+			/* Users are still in the meeting or it hasn't been reported ended yet. Try again later. */
+			cleaner.schedule(meetingId, System.currentTimeMillis() + cleaner.getRunEvery());
+		} else {
+			scheduleCheck(m);
+		}
+	}
+	
+	private boolean removeIfExpired(Meeting m) {
+		if (m.hasExpired(defaultMeetingExpireDuration) ) {
+			log.info("Removing expired meeting [id={} , name={}]", m.getInternalId(), m.getName());
+			log.info("Expired meeting [start={} , end={}]", m.getStartTime(), m.getEndTime());
+	  		if (m.isRecord() && m.getNumUsers()==0) {
+	  			log.debug("[" + m.getInternalId() + "] is recorded. Process it.");		  			
+	  			processRecording(m.getInternalId());
+	  		}
+			removeMeeting(m);
+			return true;
+		}
+		
+		if (m.wasNeverStarted(defaultMeetingCreateJoinDuration)) {
+			log.info("Removing non-joined meeting [{} - {}]", m.getInternalId(), m.getName());
+			removeMeeting(m);
+			return true;
+		}
+		
+		if (m.hasExceededDuration()) {
+			log.info("Forcibly ending meeting [{} - {}]", m.getInternalId(), m.getName());
+			endMeeting(m.getInternalId());
+			return !meetings.containsKey(m.getInternalId());
+		}
+		return false;
+	}
+	
+	private void scheduleCheck(Meeting m) {
+		if (cleaner == null) return;
+		
+		long deadline = m.getNextDeadline(defaultMeetingExpireDuration, defaultMeetingCreateJoinDuration);
+		if (deadline > 0) {
+			cleaner.schedule(m.getInternalId(), deadline);
+		} else {
+			cleaner.cancel(m.getInternalId());
 		}
 	}
 	
@@ -103,7 +161,8 @@ public class MeetingService {
 	
 	public void createMeeting(Meeting m) {
 		log.debug("Storing Meeting with internal id:" + m.getInternalId());
-		meetings.put(m.getInternalId(), m);
+		addMeeting(m);
+		scheduleCheck(m);
 		if (m.isRecord()) {
 			Map<String,String> metadata=new LinkedHashMap<String,String>();
 			metadata.putAll(m.getMetadata());
@@ -115,16 +174,77 @@ public class MeetingService {
 		}
 	}
 
+	private synchronized void addMeeting(Meeting m) {
+		Meeting old = meetings.put(m.getInternalId(), m);
+		if (old != null) {
+			unindexMeeting(old);
+		}
+		meetingsById.put(m.getInternalId(), m);
+		
+		if (m.getTelVoice() != null) {
+			Set<String> ids = meetingsByVoiceBridge.get(m.getTelVoice());
+			if (ids == null) {
+				ids = new CopyOnWriteArraySet<String>();
+				meetingsByVoiceBridge.put(m.getTelVoice(), ids);
+			}
+			ids.add(m.getInternalId());
+		}
+	}
+	
+	private synchronized void removeMeeting(Meeting m) {
+		if (meetings.remove(m.getInternalId(), m)) {
+			meetingsById.remove(m.getInternalId());
+			unindexMeeting(m);
+			if (cleaner != null) {
+				cleaner.cancel(m.getInternalId());
+			}
+		}
+	}
+	
+	private void unindexMeeting(Meeting m) {
+		if (m.getTelVoice() != null) {
+			Set<String> ids = meetingsByVoiceBridge.get(m.getTelVoice());
+			if (ids != null) {
+				ids.remove(m.getInternalId());
+				if (ids.isEmpty()) meetingsByVoiceBridge.remove(m.getTelVoice());
+			}
+		}
+	}
+	
+	/**
+	 * Returns the meeting with the given internal id or, failing that, a
+	 * meeting whose internal id starts with meetingId.
+	 */
 	public Meeting getMeeting(String meetingId) {
 		if(meetingId == null)
 			return null;
-		for (String key : meetings.keySet()) {
-			if (key.startsWith(meetingId))
-				return (Meeting) meetings.get(key);
-		}
+		
+		Meeting m = meetings.get(meetingId);
+		if (m != null)
+			return m;
+		
+		Map.Entry<String, Meeting> e = meetingsById.ceilingEntry(meetingId);
+		if (e != null && e.getKey().startsWith(meetingId))
+			return e.getValue();
 		
 		return null;
 	}
+	
+	/**
+	 * Returns a meeting using the voice bridge, the first one created if
+	 * several are.
+	 */
+	public Meeting getMeetingWithVoiceBridge(String voiceBridge) {
+		Set<String> ids = voiceBridge == null ? null : meetingsByVoiceBridge.get(voiceBridge);
+		if (ids == null)
+			return null;
+		
+		for (String id : ids) {
+			Meeting m = meetings.get(id);
+			if (m != null) return m;
+		}
+		return null;
+	}
 
 	public HashMap<String,Recording> getRecordings(ArrayList<String> idList) {
 		//TODO: this method shouldn't be used 
@@ -190,19 +310,21 @@ public class MeetingService {
 		}
 	}
 	
-	public void processRecording(String meetingId) {
+	public void processRecording(final String meetingId) {
 		log.debug("Process recording for [{}]", meetingId);
-		recordingService.startIngestAndProcessing(meetingId);
+		recordingProcessor.execute(new Runnable() {
+			public void run() {
+				try {
+					recordingService.startIngestAndProcessing(meetingId);
+				} catch (Exception e) {
+					log.error("Failed to start processing recording for [" + meetingId + "]", e);
+				}
+			}
+		});
 	}
 		
 	public boolean isMeetingWithVoiceBridgeExist(String voiceBridge) {
-/*		Collection<Meeting> confs = meetings.values();
-		for (Meeting c : confs) {
-	        if (voiceBridge == c.getVoiceBridge()) {
-	        	return true;
-	        }
-		}
-*/		return false;
+		return getMeetingWithVoiceBridge(voiceBridge) != null;
 	}
 	
 	public void send(String channel, String message) {
@@ -220,7 +342,7 @@ public class MeetingService {
 					log.debug("[" + m.getInternalId() + "] is recorded. Process it.");		  			
 					processRecording(m.getInternalId());
 				}
-				meetings.remove(m.getInternalId());
+				removeMeeting(m);
 			}
 		}else{
 			log.debug("endMeeting - meeting doesn't exist: " + meetingId);
@@ -251,6 +373,16 @@ public class MeetingService {
 		cleaner.start();
 	}
 	
+	/**
+	 * Stops the cleaner. Recordings already handed over are still processed.
+	 */
+	public void stop() {
+		if (cleaner != null) {
+			cleaner.stop();
+		}
+		recordingProcessor.shutdown();
+	}
+	
 	/**
 	 * Class that listens for messages from bbb-apps.
 	 * @author Richard Alam
@@ -268,6 +400,7 @@ public class MeetingService {
 					log.debug("The meeting " + meetingId + " has been started again...");
 				}
 				m.setEndTime(0);
+				scheduleCheck(m);
 				return;
 			}
 			log.warn("The meeting " + meetingId + " doesn't exist");
@@ -279,6 +412,7 @@ public class MeetingService {
 			if (m != null) {
 				log.debug("Setting meeting " + meetingId + " end time");
 				m.setEndTime(System.currentTimeMillis());
+				scheduleCheck(m);
 				return;
 			}
 			log.warn("The meeting " + meetingId + " doesn't exist");
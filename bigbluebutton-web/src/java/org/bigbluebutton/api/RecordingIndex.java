@@ -0,0 +1,289 @@
+/**
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+* 
+* Copyright (c) 2012 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 3.0 of the License, or (at your option) any later
+* version.
+* 
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+*
+*/
+
+package org.bigbluebutton.api;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.bigbluebutton.api.domain.Recording;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory index of the recordings in the published and unpublished
+ * directories.
+ * 
+ * Recordings are kept per playback format directory, sorted by recording id,
+ * so the recordings of a meeting (whose ids start with the meeting id) are a
+ * range lookup. The metadata.xml of a recording is parsed when the
+ * recording first shows up, and again when the file's modification time 
+ * changes (it is edited in place, which doesn't touch the directories).
+ * 
+ * A format directory is listed again only when its modification time has
+ * changed, or is too recent to be sure nothing else changed within the same
+ * timestamp. The same goes for the metadata files. Recordings whose metadata 
+ * can't be read yet are retried on the next refresh.
+ */
+public class RecordingIndex {
+	private static Logger log = LoggerFactory.getLogger(RecordingIndex.class);
+	
+	/* Directory timestamps may have as little as a second of resolution. */
+	private static final long TIMESTAMP_RESOLUTION = 2000;
+	/* Modification time of a metadata file read too soon after it changed. */
+	private static final long UNKNOWN = -1;
+	
+	private static final FileFilter DIRECTORIES = new FileFilter() {
+	    public boolean accept(File file) {
+	        return file.isDirectory();
+	    }
+	};
+	
+	private final RecordingServiceHelper helper;
+	private final ConcurrentMap<String, FormatDir> formatDirs = new ConcurrentHashMap<String, FormatDir>();
+	
+	public RecordingIndex(RecordingServiceHelper helper) {
+		this.helper = helper;
+	}
+	
+	/**
+	 * Bring the index of the format directories under path up to date.
+	 */
+	public synchronized void refresh(String path) {
+		File[] dirs = new File(path).listFiles(DIRECTORIES);
+		Set<String> present = new HashSet<String>();
+		if (dirs != null) {
+			for (File dir : dirs) {
+				String key = key(path, dir.getName());
+				present.add(key);
+				FormatDir formatDir = formatDirs.get(key);
+				if (formatDir == null) {
+					formatDir = new FormatDir(path, dir.getName());
+					formatDirs.put(key, formatDir);
+				}
+				formatDir.refresh(helper);
+			}
+		}
+		
+		for (FormatDir formatDir : formatDirs.values()) {
+			if (formatDir.path.equals(path) && !present.contains(key(path, formatDir.format))) {
+				formatDirs.remove(key(path, formatDir.format));
+			}
+		}
+	}
+	
+	/**
+	 * Returns copies of the recordings under path whose id starts with prefix.
+	 */
+	public List<Recording> getRecordings(String path, String prefix) {
+		List<Recording> recs = new ArrayList<Recording>();
+		for (FormatDir formatDir : formatDirs.values()) {
+			if (!formatDir.path.equals(path)) continue;
+			
+			for (Recording r : formatDir.recordings.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+				recs.add(r.copy());
+			}
+		}
+		return recs;
+	}
+	
+	public boolean hasRecording(String path, String recordingId) {
+		for (FormatDir formatDir : formatDirs.values()) {
+			if (formatDir.path.equals(path) && formatDir.recordings.containsKey(recordingId)) return true;
+		}
+		return false;
+	}
+	
+	public Set<String> getRecordingIds(String path) {
+		Set<String> ids = new LinkedHashSet<String>();
+		for (FormatDir formatDir : formatDirs.values()) {
+			if (formatDir.path.equals(path)) ids.addAll(formatDir.recordings.keySet());
+		}
+		return ids;
+	}
+	
+	/**
+	 * Record that the recording was written to the format directory under path.
+	 * A format directory not indexed yet is listed in full on the next refresh.
+	 */
+	public void put(String path, String format, String recordingId, Recording r) {
+		String key = key(path, format);
+		FormatDir formatDir = formatDirs.get(key);
+		if (formatDir == null) {
+			formatDir = new FormatDir(path, format);
+			FormatDir indexed = formatDirs.putIfAbsent(key, formatDir);
+			if (indexed != null) formatDir = indexed;
+		}
+		formatDir.recordings.put(recordingId, r);
+	}
+	
+	public void remove(String path, String format, String recordingId) {
+		FormatDir formatDir = formatDirs.get(key(path, format));
+		if (formatDir != null) {
+			formatDir.recordings.remove(recordingId);
+		}
+	}
+	
+	public int size() {
+		int size = 0;
+		for (FormatDir formatDir : formatDirs.values()) {
+			size += formatDir.recordings.size();
+		}
+		return size;
+	}
+	
+	/**
+	 * Load the index saved by {@link #save(File)}. Format directories that
+	 * changed since are listed again on the next refresh.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void load(File snapshot) {
+		ObjectInputStream in = null;
+		try {
+			in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+			Map<String, FormatDir> saved = (Map<String, FormatDir>) in.readObject();
+			formatDirs.clear();
+			formatDirs.putAll(saved);
+			log.info("Loaded {} recordings from {}", size(), snapshot.getAbsolutePath());
+		} catch (Exception e) {
+			log.warn("Cannot load the recordings index from " + snapshot.getAbsolutePath() + ": " + e.getMessage());
+		} finally {
+			try { if (in != null) in.close(); } catch (Exception e) {}
+		}
+	}
+	
+	public synchronized void save(File snapshot) {
+		File tmp = new File(snapshot.getAbsolutePath() + ".tmp");
+		ObjectOutputStream out = null;
+		try {
+			out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeObject(new HashMap<String, FormatDir>(formatDirs));
+			out.close();
+			out = null;
+			if (!tmp.renameTo(snapshot)) {
+				log.warn("Cannot move the recordings index to " + snapshot.getAbsolutePath());
+			}
+		} catch (Exception e) {
+			log.warn("Cannot save the recordings index to " + snapshot.getAbsolutePath() + ": " + e.getMessage());
+		} finally {
+			try { if (out != null) out.close(); } catch (Exception e) {}
+		}
+	}
+	
+	private static String key(String path, String format) {
+		return path + File.separatorChar + format;
+	}
+	
+	private static final class FormatDir implements Serializable {
+		private static final long serialVersionUID = 2L;
+		
+		final String path;
+		final String format;
+		final ConcurrentSkipListMap<String, Recording> recordings = new ConcurrentSkipListMap<String, Recording>();
+		final Set<String> unreadable = new HashSet<String>();
+		// Modification time of the metadata file of each recording when it was read.
+		final Map<String, Long> metadataModified = new HashMap<String, Long>();
+		long lastModified = 0;
+		long listedAt = 0;
+		
+		FormatDir(String path, String format) {
+			this.path = path;
+			this.format = format;
+		}
+		
+		void refresh(RecordingServiceHelper helper) {
+			File dir = new File(path, format);
+			long modified = dir.lastModified();
+			if (modified == lastModified && modified < listedAt - TIMESTAMP_RESOLUTION && unreadable.isEmpty()) {
+				rereadChangedMetadata(helper, dir);
+				return;
+			}
+			
+			long now = System.currentTimeMillis();
+			File[] dirs = dir.listFiles(DIRECTORIES);
+			if (dirs == null) return;
+			
+			Set<String> present = new HashSet<String>();
+			for (File d : dirs) {
+				String id = d.getName();
+				present.add(id);
+				if (!recordings.containsKey(id) || metadataChanged(dir, id)) {
+					read(helper, dir, id);
+				}
+			}
+			recordings.keySet().retainAll(present);
+			unreadable.retainAll(present);
+			metadataModified.keySet().retainAll(present);
+			
+			lastModified = modified;
+			listedAt = now;
+		}
+		
+		private void rereadChangedMetadata(RecordingServiceHelper helper, File dir) {
+			for (String id : recordings.keySet()) {
+				if (metadataChanged(dir, id)) {
+					read(helper, dir, id);
+				}
+			}
+		}
+		
+		private boolean metadataChanged(File dir, String id) {
+			Long modified = metadataModified.get(id);
+			return modified == null || modified.longValue() != metadataFile(dir, id).lastModified();
+		}
+		
+		private void read(RecordingServiceHelper helper, File dir, String id) {
+			long now = System.currentTimeMillis();
+			long modified = metadataFile(dir, id).lastModified();
+			try {
+				Recording r = helper.getRecordingInfo(id, path, format);
+				if (r != null) {
+					recordings.put(id, r);
+					unreadable.remove(id);
+					metadataModified.put(id, modified < now - TIMESTAMP_RESOLUTION ? modified : UNKNOWN);
+					return;
+				}
+			} catch (Exception e) {
+				log.debug("Cannot read the metadata of recording {}: {}", id, e.getMessage());
+			}
+			unreadable.add(id);
+		}
+		
+		private static File metadataFile(File dir, String id) {
+			return new File(new File(dir, id), "metadata.xml");
+		}
+	}
+}
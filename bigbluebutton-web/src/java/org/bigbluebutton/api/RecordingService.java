@@ -23,11 +23,24 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.bigbluebutton.api.domain.Recording;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Recordings are looked up in a {@link RecordingIndex} of the published and
+ * unpublished directories. The index is brought up to date in the background
+ * every indexRefreshInterval seconds and the API calls read it as it is, so
+ * a new or changed recording shows up within that interval. An interval of 0
+ * brings the index up to date on each call instead. If indexSnapshot is set,
+ * the index is saved there on shutdown and loaded back on startup so the
+ * recordings don't all have to be read again.
+ */
 public class RecordingService {
 	private static Logger log = LoggerFactory.getLogger(RecordingService.class);
 	
@@ -35,6 +48,69 @@ public class RecordingService {
 	private String unpublishedDir = "/var/bigbluebutton/unpublished";
 	private RecordingServiceHelper recordingServiceHelper;
 	private String recordStatusDir;
+	private RecordingIndex index;
+	private String indexSnapshot;
+	private int indexRefreshInterval = 10;
+	private volatile ScheduledExecutorService indexRefresher;
+	
+	public void start() {
+		if (indexSnapshot != null && indexSnapshot.length() > 0 && new File(indexSnapshot).exists()) {
+			getIndex().load(new File(indexSnapshot));
+		}
+		refreshIndex();
+		log.info("Indexed {} recordings", getIndex().size());
+		
+		if (indexRefreshInterval > 0) {
+			indexRefresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "bbb-recording-index");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			indexRefresher.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						refreshIndex();
+					} catch (Exception e) {
+						log.error("Failed to refresh the recordings index: " + e.getMessage());
+					}
+				}
+			}, indexRefreshInterval, indexRefreshInterval, TimeUnit.SECONDS);
+		}
+	}
+	
+	public void stop() {
+		if (indexRefresher != null) {
+			indexRefresher.shutdownNow();
+			indexRefresher = null;
+		}
+		if (indexSnapshot != null && indexSnapshot.length() > 0) {
+			getIndex().save(new File(indexSnapshot));
+		}
+	}
+	
+	private synchronized RecordingIndex getIndex() {
+		if (index == null) {
+			index = new RecordingIndex(recordingServiceHelper);
+		}
+		return index;
+	}
+	
+	private RecordingIndex refreshIndex() {
+		RecordingIndex idx = getIndex();
+		idx.refresh(publishedDir);
+		idx.refresh(unpublishedDir);
+		return idx;
+	}
+	
+	/*
+	 * The index to answer a call from, only brought up to date here when it
+	 * isn't refreshed in the background.
+	 */
+	private RecordingIndex currentIndex() {
+		return indexRefresher == null ? refreshIndex() : getIndex();
+	}
 	
 	public void startIngestAndProcessing(String meetingId) {	
 		String done = recordStatusDir + "/" + meetingId + ".done";
@@ -55,69 +131,32 @@ public class RecordingService {
 	
 	public ArrayList<Recording> getRecordings(ArrayList<String> meetingIds) {
 		ArrayList<Recording> recs = new ArrayList<Recording>();
+		RecordingIndex idx = currentIndex();
 		
 		if(meetingIds.isEmpty()){
-			meetingIds.addAll(getAllRecordingIds(publishedDir));
-			meetingIds.addAll(getAllRecordingIds(unpublishedDir));
+			meetingIds.addAll(idx.getRecordingIds(publishedDir));
+			meetingIds.addAll(idx.getRecordingIds(unpublishedDir));
 		}
 		
 		for(String meetingId : meetingIds){
-			ArrayList<Recording> published = getRecordingsForPath(meetingId, publishedDir);
-			if (!published.isEmpty()) {
-				recs.addAll(published);
-			}
-			
-			ArrayList<Recording> unpublished = getRecordingsForPath(meetingId, unpublishedDir);
-			if (!unpublished.isEmpty()) {
-				recs.addAll(unpublished);
-			}	
+			recs.addAll(idx.getRecordings(publishedDir, meetingId));
+			recs.addAll(idx.getRecordings(unpublishedDir, meetingId));
 		}
 		
 		return recs;
 	}
 	
 	public boolean existAnyRecording(ArrayList<String> idList){
-		ArrayList<String> publishList=getAllRecordingIds(publishedDir);
-		ArrayList<String> unpublishList=getAllRecordingIds(unpublishedDir);
+		RecordingIndex idx = currentIndex();
 		
 		for(String id:idList){
-			if(publishList.contains(id)||unpublishList.contains(id)){
+			if(idx.hasRecording(publishedDir, id)||idx.hasRecording(unpublishedDir, id)){
 				return true;
 			}
 		}
 		return false;
 	}
 	
-	private ArrayList<String> getAllRecordingIds(String path){
-		ArrayList<String> ids=new ArrayList<String>();
-		
-		String[] format = getPlaybackFormats(path);
-		for (int i = 0; i < format.length; i++) {
-			File[] recordings = getDirectories(path + File.separatorChar + format[i]);
-			for (int f = 0; f < recordings.length; f++) {
-				if(!ids.contains(recordings[f].getName()))
-					ids.add(recordings[f].getName());				
-			}
-		}
-		return ids;
-	}
-	
-	private ArrayList<Recording> getRecordingsForPath(String meetingId, String path) {
-		ArrayList<Recording> recs = new ArrayList<Recording>();
-		
-		String[] format = getPlaybackFormats(path);
-		for (int i = 0; i < format.length; i++) {
-			File[] recordings = getDirectories(path + File.separatorChar + format[i]);
-			for (int f = 0; f < recordings.length; f++) {
-				if (recordings[f].getName().startsWith(meetingId)) {
-					Recording r = getRecordingInfo(path, recordings[f].getName(), format[i]);
-					if (r != null) recs.add(r);
-				}				
-			}
-		}			
-		return recs;
-	}
-	
 	public Recording getRecordingInfo(String recordingId, String format) {
 		return getRecordingInfo(publishedDir, recordingId, format);
 	}
@@ -154,6 +193,8 @@ public class RecordingService {
 							log.debug("Recording successfully moved!");
 							r.setPublished(publish);
 							recordingServiceHelper.writeRecordingInfo(dest.getAbsolutePath() + File.separatorChar + recordings[f].getName(), r);
+							getIndex().remove(path, format[i], recordings[f].getName());
+							getIndex().put(publish ? publishedDir : unpublishedDir, format[i], recordings[f].getName(), r);
 						}
 					}
 				}				
@@ -173,6 +214,7 @@ public class RecordingService {
 			for (int f = 0; f < recordings.length; f++) {
 				if (recordings[f].getName().equals(id)) {
 					deleteDirectory(recordings[f]);
+					getIndex().remove(path, format[i], id);
 				}				
 			}
 		}		
@@ -229,6 +271,14 @@ public class RecordingService {
 		publishedDir = dir;
 	}
 	
+	public void setIndexSnapshot(String file) {
+		indexSnapshot = file;
+	}
+	
+	public void setIndexRefreshInterval(int seconds) {
+		indexRefreshInterval = seconds;
+	}
+	
 	public void setRecordingServiceHelper(RecordingServiceHelper r) {
 		recordingServiceHelper = r;
 	}
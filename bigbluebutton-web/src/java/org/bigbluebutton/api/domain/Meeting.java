@@ -212,6 +212,23 @@ public class Meeting {
 		return (hasStarted() && hasEnded() && !isRunning() && didExpire(expiry));
 	}
 	
+	/**
+	 * Returns the time after which the meeting may have expired, never been
+	 * joined or exceeded its duration, or 0 if none of these can happen
+	 * before the meeting is started or ended.
+	 */
+	public long getNextDeadline(int expiry, int createJoinExpiry) {
+		if (!hasStarted()) {
+			if (hasEnded() || createJoinExpiry == 0) return 0;
+			return createdTime + (long) createJoinExpiry * MILLIS_IN_A_MINUTE + 1;
+		}
+		if (hasEnded()) {
+			return endTime + (long) expiry * MILLIS_IN_A_MINUTE + 1;
+		}
+		if (duration == 0) return 0;
+		return startTime + (long) duration * MILLIS_IN_A_MINUTE + 1;
+	}
+	
 	public boolean hasExceededDuration() {
 		return (hasStarted() && !hasEnded() && pastDuration());
 	}
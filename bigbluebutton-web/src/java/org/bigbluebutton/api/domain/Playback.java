@@ -19,7 +19,11 @@
 
 package org.bigbluebutton.api.domain;
 
-public class Playback {
+import java.io.Serializable;
+
+public class Playback implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
 	private String format;
 	private String url;
 	private int length;
@@ -19,6 +19,7 @@
 
 package org.bigbluebutton.api.domain;
 
+import java.io.Serializable;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -26,7 +27,9 @@ import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Map;
 
-public class Recording {
+public class Recording implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
 	private String id;
 	private String meetingID;
 	private String name;
@@ -130,6 +133,26 @@ public class Recording {
 		this.playbacks = playbacks;
 	}
 	
+	/**
+	 * Returns a copy of this recording that can be changed without
+	 * changing this one.
+	 */
+	public Recording copy() {
+		Recording r = new Recording();
+		r.id = id;
+		r.meetingID = meetingID;
+		r.name = name;
+		r.published = published;
+		r.startTime = startTime;
+		r.endTime = endTime;
+		r.metadata = metadata == null ? null : new HashMap<String, String>(metadata);
+		r.playbacks = playbacks == null ? null : new ArrayList<Playback>(playbacks);
+		r.state = state;
+		r.playbackLink = playbackLink;
+		r.playbackFormat = playbackFormat;
+		return r;
+	}
+	
 	/* We used to have an old date format in the recordings 
 	 * e.g.: Thu Mar 04 14:05:56 UTC 2010
 	 * Now, we have a new one which it's a long string
@@ -19,33 +19,119 @@
 
 package org.bigbluebutton.web.services;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
 
 import org.bigbluebutton.api.MeetingService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Tells the meeting service when a meeting has reached a deadline, i.e.
+ * when it may have expired, never been joined or run past its duration.
+ * 
+ * Each meeting has at most one pending deadline, held in a delay queue, so
+ * only the meetings that reach one are looked at. Scheduling a meeting
+ * again replaces its pending deadline.
+ */
 public class ExpiredMeetingCleanupTimerTask {
+	private static Logger log = LoggerFactory.getLogger(ExpiredMeetingCleanupTimerTask.class);
 
 	private MeetingService service;
-	private Timer cleanupTimer;
+	private Thread cleanupThread;
+	private volatile boolean running = false;
 	private long runEvery = 60000;
+	
+	private final DelayQueue<Deadline> deadlines = new DelayQueue<Deadline>();
+	private final ConcurrentMap<String, Long> scheduled = new ConcurrentHashMap<String, Long>();
 
 	public void setMeetingService(MeetingService svc) {
 		this.service = svc;
 	}
 	
 	public void start() {
-		cleanupTimer = new Timer("bbb-api-cleanup", true);
-		cleanupTimer.scheduleAtFixedRate(new CleanupTask(), 60000, runEvery);				
+		running = true;
+		cleanupThread = new Thread(new Runnable() {
+			public void run() {
+				processDeadlines();
+			}
+		}, "bbb-api-cleanup");
+		cleanupThread.setDaemon(true);
+		cleanupThread.start();
+	}
+	
+	public void stop() {
+		running = false;
+		if (cleanupThread != null) {
+			cleanupThread.interrupt();
+		}
+	}
+	
+	/**
+	 * Check the meeting at the given time (in ms since the epoch).
+	 */
+	public void schedule(String meetingId, long time) {
+		scheduled.put(meetingId, time);
+		deadlines.add(new Deadline(meetingId, time));
+	}
+	
+	public void cancel(String meetingId) {
+		scheduled.remove(meetingId);
+	}
+	
+	public int getPendingDeadlines() {
+		return scheduled.size();
+	}
+	
+	/**
+	 * How long to wait before checking again a meeting which reached its
+	 * deadline but couldn't be removed yet (e.g. users are still in it).
+	 */
+	public long getRunEvery() {
+		return runEvery;
 	}
 	
 	public void setRunEvery(long v) {
 		runEvery = v;
 	}
 	
-	private class CleanupTask extends TimerTask {
-        public void run() {
-        	service.removeExpiredMeetings();
-        }
-    }
-}
\ No newline at end of file
+	private void processDeadlines() {
+		while (running) {
+			try {
+				Deadline d = deadlines.take();
+				Long time = scheduled.get(d.meetingId);
+				/* Skip deadlines that were replaced or cancelled. */
+				if (time == null || time.longValue() != d.time || !scheduled.remove(d.meetingId, time)) continue;
+				
+				service.checkMeeting(d.meetingId);
+			} catch (InterruptedException e) {
+				log.debug("Meeting cleanup interrupted.");
+				running = false;
+			} catch (Exception e) {
+				log.error("Failed to check meeting deadline: " + e.getMessage());
+			}
+		}
+	}
+	
+	private static final class Deadline implements Delayed {
+		final String meetingId;
+		final long time;
+		
+		Deadline(String meetingId, long time) {
+			this.meetingId = meetingId;
+			this.time = time;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(time - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed o) {
+			long other = ((Deadline) o).time;
+			return time < other ? -1 : (time == other ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package org.bigbluebutton.api;
+
+import org.bigbluebutton.api.domain.Meeting;
+import org.bigbluebutton.api.domain.User;
+import org.bigbluebutton.api.messaging.NullMessagingService;
+import org.bigbluebutton.web.services.ExpiredMeetingCleanupTimerTask;
+
+class MeetingExpiryTests extends GroovyTestCase {
+	final long MINUTE = 60000
+
+	MeetingService meetingService
+	ExpiredMeetingCleanupTimerTask cleaner
+
+	void setUp() {
+		meetingService = new MeetingService()
+		meetingService.setMessagingService(new NullMessagingService())
+		meetingService.setDefaultMeetingExpireDuration(1)
+		meetingService.setDefaultMeetingCreateJoinDuration(1)
+		cleaner = new ExpiredMeetingCleanupTimerTask()
+		cleaner.setRunEvery(100)
+		meetingService.setExpiredMeetingCleanupTimerTask(cleaner)
+	}
+
+	void tearDown() {
+		meetingService.stop()
+	}
+
+	Meeting newMeeting(String id, long createTime) {
+		return new Meeting.Builder(id, id, createTime).withName(id).build()
+	}
+
+	/*
+	 * Wait for the cleaner to remove the meeting, at most 5s.
+	 */
+	boolean waitForRemoval(String id) {
+		long until = System.currentTimeMillis() + 5000
+		while (meetingService.getMeeting(id) != null) {
+			if (System.currentTimeMillis() > until) return false
+			Thread.sleep(10)
+		}
+		return true
+	}
+
+	void testNeverJoinedMeetingIsRemovedAtItsDeadline() {
+		long now = System.currentTimeMillis()
+		meetingService.createMeeting(newMeeting("not-joined", now - 2 * MINUTE))
+		meetingService.createMeeting(newMeeting("just-created", now))
+
+		assertTrue(waitForRemoval("not-joined"))
+		assertNotNull(meetingService.getMeeting("just-created"))
+		assertEquals(1, cleaner.getPendingDeadlines())
+	}
+
+	void testEndedMeetingIsRemovedOnceEmpty() {
+		long now = System.currentTimeMillis()
+		Meeting m = newMeeting("ended", now - 10 * MINUTE)
+		m.setStartTime(now - 9 * MINUTE)
+		m.setEndTime(now - 2 * MINUTE)
+		m.userJoined(new User("user-1", "user-1", "User", "VIEWER"))
+		meetingService.createMeeting(m)
+
+		// Still checked every runEvery while a user is in it.
+		Thread.sleep(300)
+		assertNotNull(meetingService.getMeeting("ended"))
+		assertEquals(1, cleaner.getPendingDeadlines())
+
+		m.userLeft("user-1")
+		assertTrue(waitForRemoval("ended"))
+		assertEquals(0, cleaner.getPendingDeadlines())
+	}
+
+	void testRunningMeetingWithoutDurationHasNoDeadline() {
+		long now = System.currentTimeMillis()
+		Meeting m = newMeeting("running", now - 10 * MINUTE)
+		m.setStartTime(now - 9 * MINUTE)
+		meetingService.createMeeting(m)
+
+		assertEquals(0, cleaner.getPendingDeadlines())
+		meetingService.removeExpiredMeetings()
+		assertNotNull(meetingService.getMeeting("running"))
+	}
+}
@@ -0,0 +1,79 @@
+package org.bigbluebutton.api;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.bigbluebutton.api.domain.Meeting;
+import org.bigbluebutton.api.messaging.NullMessagingService;
+
+class MeetingServiceTests extends GroovyTestCase {
+	final int NUM_MEETINGS = 10000
+	final long CREATE_TIME = 1234567890
+	
+	MeetingService meetingService
+	
+	void setUp() {
+		meetingService = new MeetingService()
+		meetingService.setMessagingService(new NullMessagingService())
+		
+		for (int i = 0; i < NUM_MEETINGS; i++) {
+			meetingService.createMeeting(newMeeting("meeting-" + i, String.valueOf(70000 + i)))
+		}
+	}
+	
+	Meeting newMeeting(String externalId, String voiceBridge) {
+		return new Meeting.Builder(externalId, DigestUtils.shaHex(externalId), CREATE_TIME)
+					.withName(externalId).withTelVoice(voiceBridge).build()
+	}
+	
+	void testGetMeetingByInternalId() {
+		long start = System.nanoTime()
+		for (int i = 0; i < NUM_MEETINGS; i++) {
+			String internalId = DigestUtils.shaHex("meeting-" + i)
+			assertEquals(internalId, meetingService.getMeeting(internalId).getInternalId())
+		}
+		println "Looked up " + NUM_MEETINGS + " meetings by id in " + (System.nanoTime() - start) / 1000000 + "ms"
+		
+		assertNull(meetingService.getMeeting("not-a-meeting"))
+		assertNull(meetingService.getMeeting(null))
+	}
+	
+	void testGetMeetingByPrefix() {
+		long start = System.nanoTime()
+		for (int i = 0; i < NUM_MEETINGS; i++) {
+			String internalId = DigestUtils.shaHex("meeting-" + i)
+			assertTrue(meetingService.getMeeting(internalId.substring(0, 30)).getInternalId().startsWith(internalId.substring(0, 30)))
+		}
+		println "Looked up " + NUM_MEETINGS + " meetings by prefix in " + (System.nanoTime() - start) / 1000000 + "ms"
+	}
+	
+	void testVoiceBridge() {
+		long start = System.nanoTime()
+		for (int i = 0; i < NUM_MEETINGS; i++) {
+			assertTrue(meetingService.isMeetingWithVoiceBridgeExist(String.valueOf(70000 + i)))
+		}
+		println "Looked up " + NUM_MEETINGS + " voice bridges in " + (System.nanoTime() - start) / 1000000 + "ms"
+		
+		assertEquals("meeting-7", meetingService.getMeetingWithVoiceBridge("70007").getExternalId())
+		assertFalse(meetingService.isMeetingWithVoiceBridgeExist("69999"))
+	}
+	
+	void testSharedVoiceBridgeStaysIndexedUntilBothMeetingsAreRemoved() {
+		meetingService.setRemoveMeetingWhenEnded(true)
+		meetingService.createMeeting(newMeeting("meeting-7-again", "70007"))
+		
+		meetingService.endMeeting(DigestUtils.shaHex("meeting-7-again"))
+		assertEquals("meeting-7", meetingService.getMeetingWithVoiceBridge("70007").getExternalId())
+		
+		meetingService.endMeeting(DigestUtils.shaHex("meeting-7"))
+		assertFalse(meetingService.isMeetingWithVoiceBridgeExist("70007"))
+	}
+	
+	void testEndMeetingRemovesIndexes() {
+		meetingService.setRemoveMeetingWhenEnded(true)
+		String internalId = DigestUtils.shaHex("meeting-7")
+		meetingService.endMeeting(internalId)
+		
+		assertNull(meetingService.getMeeting(internalId))
+		assertFalse(meetingService.isMeetingWithVoiceBridgeExist("70007"))
+		assertEquals(NUM_MEETINGS - 1, meetingService.getMeetings().size())
+	}
+}
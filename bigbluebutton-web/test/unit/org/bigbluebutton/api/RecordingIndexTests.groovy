@@ -0,0 +1,94 @@
+package org.bigbluebutton.api;
+
+import org.bigbluebutton.api.domain.Recording;
+
+class RecordingIndexTests extends GroovyTestCase {
+	final long AN_HOUR_AGO = System.currentTimeMillis() - 3600000
+
+	File published
+	int reads
+	RecordingIndex index
+
+	void setUp() {
+		published = File.createTempFile("published", "")
+		published.delete()
+		published.mkdirs()
+		reads = 0
+
+		// The state of the recording is the content of its metadata.xml
+		def helper = [
+			getRecordingInfo: { String id, String dir, String format ->
+				reads++
+				Recording r = new Recording()
+				r.setId(id)
+				r.setState(new File(dir + File.separator + format + File.separator + id + File.separator + "metadata.xml").text)
+				return r
+			},
+			writeRecordingInfo: { String path, Recording info -> }
+		] as RecordingServiceHelper
+		index = new RecordingIndex(helper)
+	}
+
+	void tearDown() {
+		published.deleteDir()
+	}
+
+	/*
+	 * Write the metadata.xml of the recording, leaving the directories with the same modification time.
+	 */
+	void writeMetadata(String id, String state, long modified) {
+		File dir = new File(published, "presentation" + File.separator + id)
+		dir.mkdirs()
+		File metadata = new File(dir, "metadata.xml")
+		metadata.text = state
+		metadata.setLastModified(modified)
+		dir.setLastModified(AN_HOUR_AGO)
+		dir.getParentFile().setLastModified(AN_HOUR_AGO)
+	}
+
+	String stateOf(String id) {
+		return index.getRecordings(published.getPath(), id).get(0).getState()
+	}
+
+	void testMetadataEditedInPlaceIsReadAgain() {
+		writeMetadata("meeting-1", "processed", AN_HOUR_AGO)
+		writeMetadata("meeting-2", "processed", AN_HOUR_AGO)
+		index.refresh(published.getPath())
+		assertEquals(2, reads)
+		assertEquals("processed", stateOf("meeting-1"))
+
+		index.refresh(published.getPath())
+		assertEquals(2, reads)
+
+		writeMetadata("meeting-1", "published", AN_HOUR_AGO + 60000)
+		index.refresh(published.getPath())
+		assertEquals(3, reads)
+		assertEquals("published", stateOf("meeting-1"))
+		assertEquals("processed", stateOf("meeting-2"))
+	}
+
+	void testMetadataEditedWithinTheSameTimestampIsReadAgain() {
+		long now = System.currentTimeMillis()
+		writeMetadata("meeting-1", "processed", now)
+		index.refresh(published.getPath())
+		assertEquals("processed", stateOf("meeting-1"))
+
+		writeMetadata("meeting-1", "published", now)
+		index.refresh(published.getPath())
+		assertEquals("published", stateOf("meeting-1"))
+	}
+
+	void testPutIntoFormatNotIndexedYet() {
+		Recording r = new Recording()
+		r.setId("meeting-1")
+		index.put(published.getPath(), "presentation", "meeting-1", r)
+		assertTrue(index.hasRecording(published.getPath(), "meeting-1"))
+
+		// The format directory is still listed on the next refresh.
+		writeMetadata("meeting-1", "published", AN_HOUR_AGO)
+		writeMetadata("meeting-2", "published", AN_HOUR_AGO)
+		index.refresh(published.getPath())
+		assertEquals(2, index.size())
+		assertEquals("published", stateOf("meeting-1"))
+	}
+}
@@ -0,0 +1,72 @@
+package org.bigbluebutton.api;
+
+import org.bigbluebutton.api.domain.Recording;
+
+class RecordingServiceTests extends GroovyTestCase {
+	File published
+	File unpublished
+	RecordingService service
+
+	void setUp() {
+		published = File.createTempFile("published", "")
+		published.delete()
+		published.mkdirs()
+		unpublished = File.createTempFile("unpublished", "")
+		unpublished.delete()
+		unpublished.mkdirs()
+
+		def helper = [
+			getRecordingInfo: { String id, String dir, String format ->
+				Recording r = new Recording()
+				r.setId(id)
+				return r
+			},
+			writeRecordingInfo: { String path, Recording info -> }
+		] as RecordingServiceHelper
+		service = new RecordingService()
+		service.setRecordingServiceHelper(helper)
+		service.setPublishedDir(published.getPath())
+		service.setUnpublishedDir(unpublished.getPath())
+	}
+
+	void tearDown() {
+		service.stop()
+		published.deleteDir()
+		unpublished.deleteDir()
+	}
+
+	void addRecording(String id) {
+		new File(published, "presentation" + File.separator + id).mkdirs()
+	}
+
+	boolean exists(String id) {
+		return service.existAnyRecording(new ArrayList<String>([id]))
+	}
+
+	void testIndexIsRefreshedInTheBackground() {
+		service.setIndexRefreshInterval(1)
+		addRecording("meeting-1")
+		service.start()
+		assertTrue(exists("meeting-1"))
+
+		// Calls answer from the index as it is until the next refresh.
+		addRecording("meeting-2")
+		assertFalse(exists("meeting-2"))
+
+		long until = System.currentTimeMillis() + 5000
+		while (!exists("meeting-2") && System.currentTimeMillis() < until) {
+			Thread.sleep(50)
+		}
+		assertTrue(exists("meeting-2"))
+		assertEquals(2, service.getRecordings(new ArrayList<String>()).size())
+	}
+
+	void testIndexIsRefreshedOnEachCallWithoutInterval() {
+		service.setIndexRefreshInterval(0)
+		service.start()
+		assertFalse(exists("meeting-1"))
+
+		addRecording("meeting-1")
+		assertTrue(exists("meeting-1"))
+	}
+}
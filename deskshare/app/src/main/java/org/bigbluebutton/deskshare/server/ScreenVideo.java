@@ -30,7 +30,7 @@ public class ScreenVideo implements IVideoStreamCodec {
 	static final byte FLV_FRAME_KEY = 0x10;
 	static final byte FLV_CODEC_SCREEN = 0x03;
 	static final byte FLV_CODEC_SCREEN_V2 = 0x06;
-	private IoBuffer data;
+	private volatile IoBuffer data;
 	
     public ScreenVideo() {
 		this.reset();
@@ -72,14 +72,20 @@ public class ScreenVideo implements IVideoStreamCodec {
 		return true;
 	}
 
+    /*
+     * Each viewer gets its own view of the key frame so reading it 
+     * doesn't move the position for the others.
+     */
     public IoBuffer getKeyframe() {
     	log.debug("getting keyFrame");
-		return data;
+    	IoBuffer keyFrame = data;
+		return keyFrame == null ? null : keyFrame.duplicate();
 	}
 
     public IoBuffer getDecoderConfiguration() {
     	log.debug("getting DecoderConfiguration");
-		return data;
+    	IoBuffer keyFrame = data;
+		return keyFrame == null ? null : keyFrame.duplicate();
     }
 }
 
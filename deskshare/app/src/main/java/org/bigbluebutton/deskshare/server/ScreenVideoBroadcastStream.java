@@ -22,13 +22,13 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import org.apache.mina.core.buffer.IoBuffer;
 import org.red5.logging.Red5LoggerFactory;
 import org.red5.server.api.event.IEvent;
 import org.red5.server.api.scope.IScope;
 import org.red5.server.api.stream.IBroadcastStream;
 import org.red5.server.api.stream.IStreamCodecInfo;
 import org.red5.server.api.stream.IStreamListener;
-import org.red5.server.api.stream.IVideoStreamCodec;
 import org.red5.server.api.stream.ResourceExistException;
 import org.red5.server.api.stream.ResourceNotFoundException;
 import org.red5.server.messaging.IMessageComponent;
@@ -39,7 +39,6 @@ import org.red5.server.messaging.OOBControlMessage;
 import org.red5.server.messaging.PipeConnectionEvent;
 import org.red5.server.net.rtmp.event.IRTMPEvent;
 import org.red5.server.net.rtmp.event.Notify;
-import org.red5.server.net.rtmp.event.VideoData;
 import org.red5.server.stream.codec.StreamCodecInfo;
 import org.red5.server.stream.message.RTMPMessage;
 import org.slf4j.Logger;
@@ -57,6 +56,8 @@ public class ScreenVideoBroadcastStream implements IBroadcastStream, IProvider,
 
 	// Codec handling stuff for frame dropping
 	private StreamCodecInfo streamCodecInfo;
+	// Holds the key frame that Red5 sends to viewers when they start playing the stream.
+	private final ScreenVideo videoCodec = new ScreenVideo();
 	private Long creationTime;
 	
 	public ScreenVideoBroadcastStream(String name) {	
@@ -195,11 +196,6 @@ public class ScreenVideoBroadcastStream implements IBroadcastStream, IProvider,
 						creationTime = (long)rtmpEvent.getTimestamp();
           
 					try {
-						IVideoStreamCodec videoStreamCodec = new ScreenVideo();
-						streamCodecInfo.setHasVideo(true);
-						streamCodecInfo.setVideoCodec(videoStreamCodec);
-						videoStreamCodec.reset();
-						videoStreamCodec.addData(((VideoData) rtmpEvent).getData());
 						livePipe.pushMessage(msg);
 
 						// Notify listeners about received packet
@@ -221,6 +217,17 @@ public class ScreenVideoBroadcastStream implements IBroadcastStream, IProvider,
 		} finally {}
 	}
 
+	/**
+	 * Sets the key frame sent to viewers as soon as they start playing the stream.
+	 * The buffer is shared by all of them so it must not change afterwards.
+	 */
+	public void setKeyFrame(IoBuffer keyFrame) {
+		if (videoCodec.addData(keyFrame)) {
+			streamCodecInfo.setHasVideo(true);
+			streamCodecInfo.setVideoCodec(videoCodec);
+		}
+	}
+
 	public long getCreationTime() {
 		return creationTime != null ? creationTime : 0L;
 	}
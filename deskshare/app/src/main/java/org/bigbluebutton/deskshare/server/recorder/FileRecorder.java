@@ -18,43 +18,83 @@
 */
 package org.bigbluebutton.deskshare.server.recorder;
 
-import java.io.FileNotFoundException;
+import java.io.BufferedWriter;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Executor;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.mina.core.buffer.IoBuffer;
 import org.bigbluebutton.deskshare.server.recorder.event.RecordErrorEvent;
 import org.bigbluebutton.deskshare.server.recorder.event.RecordStartedEvent;
 import org.bigbluebutton.deskshare.server.recorder.event.RecordStoppedEvent;
 import org.bigbluebutton.deskshare.server.recorder.event.RecordUpdateEvent;
-import org.bigbluebutton.deskshare.server.session.FlvEncodeException;
 import org.bigbluebutton.deskshare.server.session.ScreenVideoFlvEncoder;
 import org.bigbluebutton.deskshare.server.util.StackTraceUtil;
 import org.red5.logging.Red5LoggerFactory;
 import org.slf4j.Logger;
 
+/**
+ * Records the frames of a deskshare stream into an FLV file.
+ *
+ * Frames are copied into a bounded ring and written by a single thread. The
+ * FLV tags are encoded into a direct buffer which is written to the file when
+ * it fills up or every flushInterval ms. If the disk can't keep up and the ring
+ * is full, frames are dropped instead of piling up on the heap. The frames after
+ * a dropped one only carry the blocks that changed since, so they are dropped too
+ * until the next key frame, which record() asks for.
+ *
+ * The key frames are listed in an index file next to the recording (the FLV
+ * file name plus ".idx"), one "timestamp offset" line per key frame, so the
+ * recording can be processed from a key frame without scanning the whole file.
+ */
 public class FileRecorder implements Recorder {
 	final private Logger log = Red5LoggerFactory.getLogger(FileRecorder.class, "deskshare");
 	
-	private BlockingQueue<IoBuffer> screenQueue = new LinkedBlockingQueue<IoBuffer>();
-	private final Executor exec = Executors.newSingleThreadExecutor();
-	private Runnable capturedScreenSender;
-	private volatile boolean sendCapturedScreen = false;
+	public static final int DEFAULT_MAX_QUEUED_FRAMES = 100;
+	private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+	private static final byte KEY_FRAME = 0x01;
+	
+	private final FrameRing frames;
+	private final ExecutorService exec = Executors.newSingleThreadExecutor();
+	private volatile boolean recording = false;
 
 	private FileOutputStream fo;
+	private FileChannel channel;
+	private BufferedWriter index;
+	private ByteBuffer writeBuffer;
+	private long bytesWritten = 0;
 	private ScreenVideoFlvEncoder svf = new ScreenVideoFlvEncoder();
 	private String flvFilename = "/tmp/screenvideostream.flv";
 	private final String session;
 	
+	private long flushInterval = 1000;
+	private long updateInterval = 5000;
+	
+	private final AtomicLong framesRecorded = new AtomicLong();
+	private final AtomicLong framesDropped = new AtomicLong();
+	// Only used by the thread calling record().
+	private boolean waitingForKeyFrame = false;
+	
 	private final RecordStatusListeners listeners = new RecordStatusListeners();
 	
 	public FileRecorder(String name, String recordingPath) {
+		this(name, recordingPath, DEFAULT_MAX_QUEUED_FRAMES);
+	}
+	
+	public FileRecorder(String name, String recordingPath, int maxQueuedFrames) {
+		this(name, recordingPath, new FrameRing(maxQueuedFrames));
+	}
+	
+	FileRecorder(String name, String recordingPath, FrameRing frames) {
 		session = name;
 		flvFilename = recordingPath + "/" + name + "-" + System.currentTimeMillis() + ".flv";
+		this.frames = frames;
 	}
 	
 	public void addListener(RecordStatusListener l) {
@@ -65,84 +105,187 @@ public class FileRecorder implements Recorder {
 		listeners.removeListener(l);
 	}
 	
-	public void record(IoBuffer frame) {
-		try {
-			screenQueue.put(frame);
-		} catch (InterruptedException e) {
-			log.info("InterruptedException while putting event into queue.");
+	public boolean record(IoBuffer frame) {
+		if (!recording) return true;
+		
+		ByteBuffer data = frame.buf();
+		if (waitingForKeyFrame) {
+			if (!isKeyFrame(data)) {
+				framesDropped.incrementAndGet();
+				return true;
+			}
+			waitingForKeyFrame = false;
+		}
+		
+		if (!frames.offer(data)) {
+			waitingForKeyFrame = true;
+			if (framesDropped.incrementAndGet() % 100 == 1) {
+				log.warn("Recording of " + session + " can't keep up. Dropped " + framesDropped.get() + " frames so far.");
+			}
+			return false;
 		}
+		return true;
+	}
+	
+	private boolean isKeyFrame(ByteBuffer frame) {
+		return frame.hasRemaining() && (frame.get(frame.position()) >> 4) == KEY_FRAME;
 	}
 
 	public void start() {
 		try {
 			fo = new FileOutputStream(flvFilename);
-			fo.write(svf.encodeHeader());
-		} catch (FileNotFoundException e1) {
-			log.error(StackTraceUtil.getStackTrace(e1));
-			RecordErrorEvent event = new RecordErrorEvent(session);
-			event.setReason("Failed to create recording output.");
-			listeners.notifyListeners(event);
+			channel = fo.getChannel();
+			index = new BufferedWriter(new FileWriter(flvFilename + ".idx"));
+			writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+			writeBuffer.put(svf.encodeHeader());
 		} catch (IOException e) {
 			log.error(StackTraceUtil.getStackTrace(e));
-			RecordErrorEvent event = new RecordErrorEvent(session);
-			event.setReason("Cannot record to recording output.");
-			listeners.notifyListeners(event);
+			notifyError("Failed to create recording output.");
+			return;
 		}
 		
-		sendCapturedScreen = true;
+		recording = true;
 		log.info("Starting stream");
-		capturedScreenSender = new Runnable() {
+		exec.execute(new Runnable() {
 			public void run() {
-				while (sendCapturedScreen) {
-					try {
-						IoBuffer frame = screenQueue.take();
-						recordFrameToFile(frame);
-					} catch (InterruptedException e) {
-						log.error("InterruptedExeption while taking event.");
-						RecordErrorEvent event = new RecordErrorEvent(session);
-						event.setReason("Cannot record to recording output.");
-						listeners.notifyListeners(event);
-					}
-				}
+				writeFrames();
 			}
-		};
-		exec.execute(capturedScreenSender);
+		});
 		RecordStartedEvent event = new RecordStartedEvent(session);
 		event.setFile(flvFilename);
 		listeners.notifyListeners(event);
 	}
 
-	private void recordFrameToFile(IoBuffer frame) {	
+	private void writeFrames() {
+		long lastFlush = System.currentTimeMillis();
+		long lastUpdate = 0;
+		
 		try {
-			fo.write(svf.encodeFlvData(frame.array()));
-			RecordUpdateEvent event = new RecordUpdateEvent(session);
-			listeners.notifyListeners(event);
+			while (recording || frames.size() > 0) {
+				int n = frames.await(flushInterval);
+				for (int i = 0; i < n; i++) {
+					writeFrame(frames.frame(i), frames.length(i));
+				}
+				frames.release(n);
+				framesRecorded.addAndGet(n);
+				
+				long now = System.currentTimeMillis();
+				if (now - lastFlush >= flushInterval || writeBuffer.position() > writeBuffer.capacity() / 2) {
+					flush();
+					lastFlush = now;
+				}
+				
+				if (n > 0 && now - lastUpdate >= updateInterval) {
+					listeners.notifyListeners(new RecordUpdateEvent(session));
+					lastUpdate = now;
+				}
+			}
+			flush();
 		} catch (IOException e) {
 			log.error(StackTraceUtil.getStackTrace(e));
-			RecordErrorEvent event = new RecordErrorEvent(session);
-			event.setReason("Cannot record to recording output.");
-			listeners.notifyListeners(event);
-		} catch (FlvEncodeException e) {
-			log.error(StackTraceUtil.getStackTrace(e));
-			RecordErrorEvent event = new RecordErrorEvent(session);
-			event.setReason("Cannot record to recording output.");
-			listeners.notifyListeners(event);
-		}		
+			recording = false;
+			notifyError("Cannot record to recording output.");
+		} catch (InterruptedException e) {
+			log.error("InterruptedException while writing recording.");
+			recording = false;
+			notifyError("Cannot record to recording output.");
+		}
+	}
+	
+	private void writeFrame(byte[] frame, int length) throws IOException {
+		int tagLength = length + ScreenVideoFlvEncoder.FLV_TAG_OVERHEAD;
+		if (writeBuffer.remaining() < tagLength) {
+			flush();
+		}
+		
+		long offset = bytesWritten + writeBuffer.position();
+		int timestamp;
+		if (tagLength <= writeBuffer.remaining()) {
+			timestamp = svf.encodeFlvData(frame, 0, length, writeBuffer);
+		} else {
+			// Bigger than the write buffer. Write it on its own.
+			ByteBuffer tag = ByteBuffer.allocate(tagLength);
+			timestamp = svf.encodeFlvData(frame, 0, length, tag);
+			tag.flip();
+			write(tag);
+		}
+		
+		if (length > 0 && (frame[0] >> 4) == KEY_FRAME) {
+			index.write(timestamp + " " + offset);
+			index.newLine();
+		}
+	}
+	
+	/*
+	 * Write the buffered tags to the file then the index entries, so the index
+	 * never points past the end of the file.
+	 */
+	private void flush() throws IOException {
+		writeBuffer.flip();
+		write(writeBuffer);
+		writeBuffer.clear();
+		index.flush();
+	}
+	
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			bytesWritten += channel.write(buffer);
+		}
+	}
+	
+	private void notifyError(String reason) {
+		RecordErrorEvent event = new RecordErrorEvent(session);
+		event.setReason(reason);
+		listeners.notifyListeners(event);
 	}
 	
 	public void stop() {
+		if (recording) {
+			recording = false;
+			frames.wakeUp();
+		}
+		
+		exec.shutdown();
     	try {
-    		log.info("Closing stream");
-			fo.close();
+    		if (!exec.awaitTermination(10, TimeUnit.SECONDS)) {
+    			log.warn("Timed out writing the end of the recording of " + session);
+    			exec.shutdownNow();
+    		}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+    	try {
+    		log.info("Closing stream. Recorded " + framesRecorded.get() + " frames, dropped " + framesDropped.get());
+    		if (fo != null) {
+    			fo.close();
+    		}
+    		if (index != null) {
+    			index.close();
+    		}
 			svf = null;
 		} catch (IOException e) {
 			log.error(StackTraceUtil.getStackTrace(e));
-			RecordErrorEvent event = new RecordErrorEvent(session);
-			event.setReason("Cannot record to recording output.");
-			listeners.notifyListeners(event);
+			notifyError("Cannot record to recording output.");
 		}
 		RecordStoppedEvent event = new RecordStoppedEvent(session);
 		event.setFile(flvFilename);
 		listeners.notifyListeners(event);
 	}
+	
+	public long getFramesRecorded() {
+		return framesRecorded.get();
+	}
+	
+	public long getFramesDropped() {
+		return framesDropped.get();
+	}
+	
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+	
+	public void setUpdateInterval(long updateInterval) {
+		this.updateInterval = updateInterval;
+	}
 }
@@ -27,10 +27,11 @@ public class FileRecordingServiceImp implements RecordingService {
 	
 	private String recordingDir;
 	private EventRecorder redisDispatcher;
+	private int maxQueuedFrames = FileRecorder.DEFAULT_MAX_QUEUED_FRAMES;
 	
 	@Override
 	public Recorder getRecorderFor(String name) {
-		FileRecorder r = new FileRecorder(name, recordingDir);
+		FileRecorder r = new FileRecorder(name, recordingDir, maxQueuedFrames);
 		r.addListener(redisDispatcher);
 		return r;
 	}
@@ -57,4 +58,12 @@ public class FileRecordingServiceImp implements RecordingService {
 	public void setRedisDispatcher(EventRecorder d) {
 		redisDispatcher = d;
 	}
+	
+	/**
+	 * Set the number of frames a recorder queues before it drops frames
+	 * because it can't write them fast enough.
+	 */
+	public void setMaxQueuedFrames(int max) {
+		maxQueuedFrames = max;
+	}
 }
@@ -0,0 +1,98 @@
+/**
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+*
+* Copyright (c) 2012 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 3.0 of the License, or (at your option) any later
+* version.
+*
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.bigbluebutton.deskshare.server.recorder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded ring of reusable frame buffers between one producer and one consumer.
+ *
+ * The producer copies frames in with offer(). The consumer waits for frames with
+ * await(), reads them in place and hands the slots back with release(). A slot
+ * is only reallocated when a frame doesn't fit in it.
+ */
+class FrameRing {
+	private final byte[][] slots;
+	private final int[] lengths;
+	private int head = 0;
+	private int tail = 0;
+	private int count = 0;
+
+	FrameRing(int capacity) {
+		slots = new byte[capacity][];
+		lengths = new int[capacity];
+	}
+
+	/**
+	 * Copies the remaining bytes of the frame into the ring without moving its position.
+	 * @return false if the ring is full and the frame was dropped
+	 */
+	synchronized boolean offer(ByteBuffer frame) {
+		if (count == slots.length) return false;
+
+		int length = frame.remaining();
+		if (slots[tail] == null || slots[tail].length < length) {
+			slots[tail] = new byte[length];
+		}
+		frame.duplicate().get(slots[tail], 0, length);
+		lengths[tail] = length;
+		tail = (tail + 1) % slots.length;
+		count++;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Waits up to timeout ms for a frame.
+	 * @return the number of frames that can be read
+	 */
+	synchronized int await(long timeout) throws InterruptedException {
+		if (count == 0) {
+			wait(timeout);
+		}
+		return count;
+	}
+
+	/**
+	 * The i-th frame after the head. Only valid until it is released.
+	 */
+	byte[] frame(int i) {
+		return slots[(head + i) % slots.length];
+	}
+
+	int length(int i) {
+		return lengths[(head + i) % slots.length];
+	}
+
+	/**
+	 * Hands the first n frames back to the producer.
+	 */
+	synchronized void release(int n) {
+		head = (head + n) % slots.length;
+		count -= n;
+	}
+
+	synchronized void wakeUp() {
+		notifyAll();
+	}
+
+	synchronized int size() {
+		return count;
+	}
+}
@@ -21,7 +21,10 @@ package org.bigbluebutton.deskshare.server.recorder;
 import org.apache.mina.core.buffer.IoBuffer;
 
 public interface Recorder {
-	public void record(IoBuffer frame);
+	/**
+	 * @return false if the frame was dropped and the recording needs a key frame to carry on
+	 */
+	public boolean record(IoBuffer frame);
 	public void start();
 	public void stop();
 	public void addListener(RecordStatusListener l);
@@ -21,11 +21,15 @@ package org.bigbluebutton.deskshare.server.servlet;
 import java.util.*;
 
 import java.awt.Point;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.bigbluebutton.deskshare.common.BlockBatchProtocol;
 import org.bigbluebutton.deskshare.common.Dimension;
 import org.bigbluebutton.deskshare.server.session.ISessionManagerGateway;
 import org.springframework.context.ApplicationContext;
@@ -58,6 +62,44 @@ public class HttpTunnelStreamController extends MultiActionController {
 		return null;
 	}	
 	
+	/**
+	 * Receives batches of changed blocks as a binary body (see {@link BlockBatchProtocol}).
+	 * The body is read as it arrives, so the applet can stream many batches in one
+	 * chunked request.
+	 */
+	public ModelAndView screenCaptureBatchHandler(HttpServletRequest request, HttpServletResponse response) throws Exception {
+		String room = request.getParameter("room");
+		if (room == null) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing room.");
+			return null;
+		}
+		
+		if (! hasSessionManager) {
+			sessionManager = getSessionManager();
+			hasSessionManager = true;
+		}
+		
+		DataInputStream in = new DataInputStream(new BufferedInputStream(request.getInputStream()));
+		int[] seqNum = new int[1];
+		try {
+			int numBlocks;
+			while ((numBlocks = BlockBatchProtocol.readBatchHeader(in, seqNum)) >= 0) {
+				for (int i = 0; i < numBlocks; i++) {
+					int position = BlockBatchProtocol.readBlockPosition(in);
+					byte[] blockData = BlockBatchProtocol.readBlockData(in);
+					sessionManager.updateBlock(room, position, blockData, false, seqNum[0]);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("HttpTunnel: Failed to read block batch for " + room + ": " + e.getMessage());
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return null;
+		}
+		
+		response.setStatus(HttpServletResponse.SC_OK);
+		return null;
+	}
+	
 	private void handleUpdateMouseLocationRequest(HttpServletRequest request, HttpServletResponse response) throws Exception {		
 		String room = request.getParameterValues("room")[0];
 		String mouseX = request.getParameterValues("mousex")[0];
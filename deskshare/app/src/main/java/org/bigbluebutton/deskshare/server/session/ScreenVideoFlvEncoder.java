@@ -20,6 +20,7 @@ package org.bigbluebutton.deskshare.server.session;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public final class ScreenVideoFlvEncoder {
 	private final static byte[] flvHeader = {'F','L','V',0x01,0x01,0x00,0x00,0x00,0x09};
@@ -29,6 +30,8 @@ public final class ScreenVideoFlvEncoder {
 	private boolean firstTag = true;
 	
 	private static byte FLV_TAG_HEADER_SIZE = 11;	
+	/** Bytes added around the video data of a tag: the tag header and the previous tag size. */
+	public static final int FLV_TAG_OVERHEAD = FLV_TAG_HEADER_SIZE + 4;
 	private ByteArrayOutputStream flvDataStream = new ByteArrayOutputStream();
 	
 	public byte[] encodeHeader() {
@@ -59,6 +62,23 @@ public final class ScreenVideoFlvEncoder {
         return flvData;
 	}
 	
+    /**
+     * Writes the FLV tag for the video data into out, which must have
+     * FLV_TAG_OVERHEAD bytes of room more than the data.
+     * @return the timestamp of the tag
+     */
+    public int encodeFlvData(byte[] videoData, int offset, int length, ByteBuffer out) {
+    	int timestamp = (int) elapsedTime();
+    	
+    	out.put(videoTagType);
+    	out.put((byte) (length >> 16)).put((byte) (length >> 8)).put((byte) length);
+    	out.put((byte) (timestamp >> 16)).put((byte) (timestamp >> 8)).put((byte) timestamp).put((byte) (timestamp >> 24));
+    	out.put(streamId);
+    	out.put(videoData, offset, length);
+    	out.putInt(FLV_TAG_HEADER_SIZE + length);
+    	return timestamp;
+    }
+	
 	private byte[] encodeFlvTag(byte[] videoData) throws IOException {   
 		flvDataStream.reset();		
 		flvDataStream.write(videoTagType);
@@ -79,7 +99,7 @@ public final class ScreenVideoFlvEncoder {
     	return new byte[] {(byte) byte1, (byte) byte2, (byte) byte3};
     }
     
-    private byte[] encodeTimestamp() {
+    private long elapsedTime() {
     	long now = System.currentTimeMillis();
     	
     	if (firstTag) {
@@ -87,7 +107,11 @@ public final class ScreenVideoFlvEncoder {
     		firstTag = false;
     	}
     	
-    	long elapsed = now - startTimestamp;
+    	return now - startTimestamp;
+    }
+    
+    private byte[] encodeTimestamp() {
+    	long elapsed = elapsedTime();
     	
     	int byte1 = (int)(elapsed & 0xff0000) >> 16;
     	int byte2 = (int)(elapsed & 0xff00) >> 8;
@@ -21,7 +21,6 @@ package org.bigbluebutton.deskshare.server.socket;
 import java.awt.Point;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
-import java.util.Arrays;
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
@@ -34,80 +33,94 @@ import org.bigbluebutton.deskshare.server.events.MouseLocationEvent;
 import org.red5.logging.Red5LoggerFactory;
 import org.slf4j.Logger;
 
+/**
+ * Decodes the frames sent by the applet:
+ * 
+ *   HEADER ("BBB-DS") | message length (int) | message | END FRAME ("DS-END")
+ * 
+ * where the length covers the message and the END FRAME. The length tells how much 
+ * to wait for, so a frame is looked at once it has arrived instead of being scanned
+ * for its END FRAME as it comes in. The END FRAME only validates the frame, and is 
+ * searched for to resynchronize after a corrupted one.
+ */
 public class BlockStreamProtocolDecoder extends CumulativeProtocolDecoder {
 	final private Logger log = Red5LoggerFactory.getLogger(BlockStreamProtocolDecoder.class, "deskshare");
 	
 	private static final String ROOM = "ROOM";
 	private static final byte[] END_FRAME = new byte[] {'D', 'S', '-', 'E', 'N', 'D'};
     private static final byte[] HEADER = new byte[] {'B', 'B', 'B', '-', 'D', 'S'};
+    private static final int FRAME_HEADER_LENGTH = HEADER.length + 4;
+    private static final int MAX_MESSAGE_LENGTH = 16 * 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
     private static final byte CAPTURE_START_EVENT = 0;
     private static final byte CAPTURE_UPDATE_EVENT = 1;
     private static final byte CAPTURE_END_EVENT = 2;
     private static final byte MOUSE_LOCATION_EVENT = 3;
     
     protected boolean doDecode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
-    	// Remember the initial position.
+    	if (in.remaining() < FRAME_HEADER_LENGTH) return false;
+    	
         int start = in.position();
-        byte[] endFrame = new byte[END_FRAME.length];
+        if (! matches(in, start, HEADER)) {
+        	log.info("Invalid header. Discarding up to the next end of frame.");
+        	return skipToEndFrame(in);
+        }
         
-        // Now find the END FRAME delimeter in the buffer.
-        int curpos = 0;
-        while (in.remaining() >= END_FRAME.length) {
-        	curpos = in.position();
-            in.get(endFrame);
-
-            if (Arrays.equals(endFrame, END_FRAME)) {
-            	//log.debug("***** END FRAME {} = {}", endFrame, END_FRAME);
-                // Remember the current position and limit.
-                int position = in.position();
-                int limit = in.limit();
-                try {
-                    in.position(start);
-                    in.limit(position);
-                    // The bytes between in.position() and in.limit()
-                    // now contain a full frame.
-                    parseFrame(session, in.slice(), out);
-                } finally {
-                    // Set the position to point right after the
-                    // detected END FRAME and set the limit to the old
-                    // one.
-                    in.position(position);
-                    in.limit(limit);
-                }
-                return true;
-            }
-
-            in.position(curpos+1);
+        int messageLength = in.getInt(start + HEADER.length);
+        if (messageLength < END_FRAME.length || messageLength > MAX_MESSAGE_LENGTH) {
+        	log.info("Invalid length {}. Discarding up to the next end of frame.", messageLength);
+        	return skipToEndFrame(in);
         }
-
-        // Could not find END FRAME in the buffer. Reset the initial
-        // position to the one we recorded above.
-        in.position(start);
-        return false;
+        
+        int frameEnd = start + FRAME_HEADER_LENGTH + messageLength;
+        if (in.limit() < frameEnd) {
+        	// Wait for the rest of the frame.
+        	return false;
+        }
+        
+        if (! matches(in, frameEnd - END_FRAME.length, END_FRAME)) {
+        	log.info("Frame doesn't end with the end frame delimiter. Discarding up to the next end of frame.");
+        	return skipToEndFrame(in);
+        }
+        
+        int limit = in.limit();
+        try {
+        	in.position(start + FRAME_HEADER_LENGTH);
+        	in.limit(frameEnd - END_FRAME.length);
+        	// The bytes between in.position() and in.limit() now contain the message.
+        	parseMessage(session, in.slice(), out);
+        } finally {
+        	in.limit(limit);
+        	in.position(frameEnd);
+        }
+        return true;
+    }
+    
+    private boolean matches(IoBuffer in, int index, byte[] expected) {
+    	for (int i = 0; i < expected.length; i++) {
+    		if (in.get(index + i) != expected[i]) return false;
+    	}
+    	return true;
+    }
+    
+    /**
+     * Fallback for a corrupted frame. Discard everything up to and including the next 
+     * END FRAME delimiter, or wait for more data if there is none yet.
+     */
+    private boolean skipToEndFrame(IoBuffer in) {
+    	int last = in.limit() - END_FRAME.length;
+    	for (int index = in.position(); index <= last; index++) {
+    		if (matches(in, index, END_FRAME)) {
+    			in.position(index + END_FRAME.length);
+    			return true;
+    		}
+    	}
+    	return false;
     }
 
-    private void parseFrame(IoSession session, IoBuffer in, ProtocolDecoderOutput out) {
-    	//log.debug("Frame = {}", in.toString());
+    private void parseMessage(IoSession session, IoBuffer in, ProtocolDecoderOutput out) {
      	try {       		
-        	byte[] header = new byte[HEADER.length];    
-      	
-        	in.get(header, 0, HEADER.length);    	
-        	
-        	if (! Arrays.equals(header, HEADER)) {
-	    		log.info("Invalid header. Discarding. {}", header);     
-	    		return;
-        	}
-        	
-        	int messageLength = in.getInt();    	
-
-        	if (in.remaining() < messageLength) {
-        		log.info("Invalid length. Discarding. [{} < {}]", in.remaining(), messageLength);
-        		return;
-        	}
-        	
         	decodeMessage(session, in, out);
-        	
-        	return;    		
      	} catch (Exception e) {
 	    	log.warn("Failed to parse frame. Discarding.");			
 		}    	
@@ -147,9 +160,6 @@ public class BlockStreamProtocolDecoder extends CumulativeProtocolDecoder {
         int seqNum = in.getInt();
         int mouseX = in.getInt();
         int mouseY = in.getInt();
-        	
-        /** Swallow end frame **/
-        in.get(new byte[END_FRAME.length]);
 
         MouseLocationEvent event = new MouseLocationEvent(room, new Point(mouseX, mouseY), seqNum);
         out.write(event);    		
@@ -165,9 +175,6 @@ public class BlockStreamProtocolDecoder extends CumulativeProtocolDecoder {
     	log.info("CaptureEndEvent for " + room);
     	int seqNum = in.getInt();
         	
-        /** Swallow end frame **/
-        in.get(new byte[END_FRAME.length]);
-        	
     	CaptureEndBlockEvent event = new CaptureEndBlockEvent(room, seqNum);
     	out.write(event);
     }
@@ -187,9 +194,6 @@ public class BlockStreamProtocolDecoder extends CumulativeProtocolDecoder {
     	
     	boolean useSVC2 = (in.get() == 1);
     	
-        /** Swallow end frame **/
-        in.get(new byte[END_FRAME.length]);
-        			
         log.info("CaptureStartEvent for " + room);
         CaptureStartBlockEvent event = new CaptureStartBlockEvent(room, screenDim, blockDim, seqNum, useSVC2);	
         out.write(event);    		
@@ -206,7 +210,7 @@ public class BlockStreamProtocolDecoder extends CumulativeProtocolDecoder {
 //    	System.out.println("Room length = " + roomLength);
     	String room = "";
     	try {    		
-    		room = in.getString(roomLength, Charset.forName( "UTF-8" ).newDecoder());
+    		room = in.getString(roomLength, UTF8.newDecoder());
     		if (session.containsAttribute(ROOM)) {
         		String attRoom = (String) session.getAttribute(ROOM);
         		if (!attRoom.equals(room)) {
@@ -230,21 +234,16 @@ public class BlockStreamProtocolDecoder extends CumulativeProtocolDecoder {
         int seqNum = in.getInt();
         int numBlocks = in.getShort();
 
-        String blocksStr = "Blocks changed ";
-        	
         for (int i = 0; i < numBlocks; i++) {
             int position = in.getShort();
-            blocksStr += " " + position;
             	
             boolean isKeyFrame = (in.get() == 1) ? true : false;
             int length = in.getInt();
+            // Copy the block out, the cumulated buffer is compacted once we return.
             byte[] data = new byte[length];
             in.get(data, 0, length);    	
             CaptureUpdateBlockEvent event = new CaptureUpdateBlockEvent(room, position, data, isKeyFrame, seqNum);
             out.write(event);    		
         }
-        	
-        /** Swallow end frame **/
-        in.get(new byte[END_FRAME.length]);   		   	
     }
 }
@@ -24,19 +24,27 @@ import org.bigbluebutton.deskshare.server.session.ISessionManagerGateway
 import java.awt.Point
 import net.lag.logging.Logger
 
-class SessionManagerGateway(streamManager: StreamManager, keyFrameInterval: Int, interframeInterval: Int, waitForAllBlocks: Boolean) extends ISessionManagerGateway {  
+class SessionManagerGateway(streamManager: StreamManager, keepAliveInterval: Int, interframeInterval: Int, waitForAllBlocks: Boolean) extends ISessionManagerGateway {  
 	
 	private val log = Logger.get 
 
+	// Milliseconds to wait for the session manager to create a session.
+	private val createSessionTimeout = 5000
+
 	streamManager.start
-	val sessionManager: SessionManagerSVC = new SessionManagerSVC(streamManager, keyFrameInterval, interframeInterval, waitForAllBlocks)
+	val sessionManager: SessionManagerSVC = new SessionManagerSVC(streamManager, keepAliveInterval, interframeInterval, waitForAllBlocks)
     sessionManager.start 
   
 	def createSession(room: String, screenDim: org.bigbluebutton.deskshare.common.Dimension, blockDim: org.bigbluebutton.deskshare.common.Dimension, seqNum: Int, useSVC2: Boolean): Unit = {
 		log.info("SessionManagerGateway:createSession for %s", room)
-		sessionManager ! new CreateSession(room, new Dimension(screenDim.getWidth(), screenDim.getHeight()), 
-	                                       new Dimension(blockDim.getWidth(), blockDim.getHeight()), seqNum, useSVC2)
-		log.info("SessionManagerGateway:Sent create session for %s", room)	    
+		// Wait for the session so the block updates that follow find it, but don't hold
+		// the decoder thread if the manager is busy. Updates that arrive before the
+		// session exists are dropped, as they were before.
+		sessionManager !? (createSessionTimeout, new CreateSession(room, new Dimension(screenDim.getWidth(), screenDim.getHeight()), 
+	                                       new Dimension(blockDim.getWidth(), blockDim.getHeight()), seqNum, useSVC2)) match {
+		  case Some(_) => log.info("SessionManagerGateway:Sent create session for %s", room)
+		  case None => log.warning("SessionManagerGateway:Timed out after %dms creating session for %s", createSessionTimeout, room)
+		}
 	}
 
 	def removeSession(room: String, seqNum: Int): Unit = {
@@ -45,13 +53,19 @@ class SessionManagerGateway(streamManager: StreamManager, keyFrameInterval: Int,
 	}
 	
 	def updateBlock(room : String, position : Int, blockData : Array[Byte], keyframe : Boolean, seqNum: Int): Unit = {
-		sessionManager ! new UpdateBlock(room, position, blockData, keyframe, seqNum)
+		sessionManager.getSession(room) match {
+		  case Some(s) => s ! new UpdateSessionBlock(position, blockData, keyframe, seqNum)
+		  case None => log.warning("SessionManagerGateway: Could not update session %s. Does not exist.", room)
+		}
 	}
  
 	def updateMouseLocation(room: String, mouseLoc: Point, seqNum: Int): Unit = {
-	    sessionManager ! new UpdateMouseLocation(room, mouseLoc, seqNum)
+		sessionManager.getSession(room) match {
+		  case Some(s) => s ! new UpdateSessionMouseLocation(mouseLoc, seqNum)
+		  case None => log.warning("SessionManagerGateway: Could not update mouse loc for session %s. Does not exist.", room)
+		}
 	}
- 
+	
 	def sendKeyFrame(room: String) {
 	  log.info("SessionManagerGateway:sendKeyFrame for %s", room)
 	  sessionManager ! new SendKeyFrame(room)
@@ -22,30 +22,31 @@ import scala.actors.Actor
 import scala.actors.Actor._
 import net.lag.logging.Logger
 
-import scala.collection.mutable.HashMap
+import java.util.concurrent.ConcurrentHashMap
 import org.bigbluebutton.deskshare.server.svc1.Dimension
 import org.bigbluebutton.deskshare.server.stream.StreamManager
-import java.awt.Point
 
 case class CreateSession(room: String, screenDim: Dimension, blockDim: Dimension, seqNum: Int, useSVC2: Boolean)
 case class RemoveSession(room: String)
 case class SendKeyFrame(room: String)
-case class UpdateBlock(room: String, position: Int, blockData: Array[Byte], keyframe: Boolean, seqNum: Int)
-case class UpdateMouseLocation(room: String, mouseLoc:Point, seqNum: Int)
 
-class SessionManagerSVC(streamManager: StreamManager, keyFrameInterval: Int, interframeInterval: Int, waitForAllBlocks: Boolean) extends Actor {
+/**
+ * Creates and removes the sessions, one at a time. Block and mouse updates don't go
+ * through here. The gateway looks up the room's session and sends them to it directly,
+ * so each room's updates queue in the mailbox of its own session.
+ */
+class SessionManagerSVC(streamManager: StreamManager, keepAliveInterval: Int, interframeInterval: Int, waitForAllBlocks: Boolean) extends Actor {
 	private val log = Logger.get 
  
- 	private val sessions = new HashMap[String, SessionSVC]
+ 	// Only changed by this actor. Read by the gateway from the decoder threads.
+ 	private val sessions = new ConcurrentHashMap[String, SessionSVC]
  	  
 	def act() = {
 	  loop {
 	    react {
-	      case c: CreateSession => createSession(c); printMailbox("CreateSession") 
+	      case c: CreateSession => createSession(c); reply(sessions.containsKey(c.room)); printMailbox("CreateSession") 
 	      case r: RemoveSession => removeSession(r.room); printMailbox("RemoveSession")
 	      case k: SendKeyFrame => sendKeyFrame(k.room); printMailbox("SendKeyFrame")
-	      case ub: UpdateBlock => updateBlock(ub.room, ub.position, ub.blockData, ub.keyframe, ub.seqNum)
-	      case ml: UpdateMouseLocation => updateMouseLocation(ml.room, ml.mouseLoc, ml.seqNum)
 	      case m: Any => log.warning("SessionManager: Unknown message " + m); printMailbox("Any")
 	    }
 	  }
@@ -55,9 +56,13 @@ class SessionManagerSVC(streamManager: StreamManager, keyFrameInterval: Int, int
 	  log.debug("SessionManager: mailbox %d message %s", mailboxSize, caseMethod)
 	}
  
+	def getSession(room: String): Option[SessionSVC] = {
+		Option(sessions.get(room))
+	}
+	
 	private def sendKeyFrame(room: String) {
 		log.debug("SessionManager: Request to send key frame for room %s", room)  
-        sessions.get(room) match {
+        getSession(room) match {
           case Some(s) => s ! GenerateKeyFrame
           case None => log.warning("SessionManager: Could not find room %s", room)
         }
@@ -65,13 +70,13 @@ class SessionManagerSVC(streamManager: StreamManager, keyFrameInterval: Int, int
  
 	private def createSession(c: CreateSession): Unit = {
 		log.debug("Creating session for %s", c.room)
-		sessions.get(c.room) match {
+		getSession(c.room) match {
 		  case None => {
 			  log.debug("SessionManager: Created session " + c.room)
-			  val session: SessionSVC = new SessionSVC(this, c.room, c.screenDim, c.blockDim, streamManager, keyFrameInterval, interframeInterval, waitForAllBlocks, c.useSVC2) 
+			  val session: SessionSVC = new SessionSVC(this, c.room, c.screenDim, c.blockDim, streamManager, keepAliveInterval, interframeInterval, waitForAllBlocks, c.useSVC2) 
 			  if (session.initMe()) {
 				  val old:Int = sessions.size
-				  sessions += c.room -> session
+				  sessions.put(c.room, session)
 				  session.start			  
 				  session ! StartSession
 				  log.debug("CreateSession: Session length [%d,%d]", old, sessions.size)			    
@@ -86,31 +91,17 @@ class SessionManagerSVC(streamManager: StreamManager, keyFrameInterval: Int, int
 
 	private def removeSession(room: String): Unit = {
 		log.debug("SessionManager: Removing session " + room);
-    	sessions.get(room) match {
+    	getSession(room) match {
     	  case Some(s) => {
 	    	    s ! StopSession; log.debug("++++ REMOVE SESSION +++%s", room);
 	            val old:Int = sessions.size
-	            sessions -= room; 
+	            sessions.remove(room) 
 	            log.debug("RemoveSession: Session length [%d,%d]", old, sessions.size)
             }
     	  case None => log.warning("SessionManager: Could not remove session %s. Does not exist.", room)
     	}
 	}
 	
-	private def updateMouseLocation(room: String, mouseLoc: Point, seqNum: Int): Unit = {
-		sessions.get(room) match {
-		  case Some(s) => s ! new UpdateSessionMouseLocation(mouseLoc, seqNum)
-		  case None => log.warning("SessionManager: Could not update mouse loc for session %s. Does not exist.", room)
-		}
-	}
-	
-	private def updateBlock(room: String, position: Int, blockData: Array[Byte], keyframe: Boolean, seqNum: Int): Unit = {
-		sessions.get(room) match {
-		  case Some(s) => s ! new UpdateSessionBlock(position, blockData, keyframe, seqNum)
-		  case None => log.warning("SessionManager: Could not update session %s. Does not exist.", room)
-		}
-	}
-		
 	override def  exit() : Nothing = {
 	  log.warning("SessionManager: **** Exiting Actor")
 	  super.exit()
@@ -20,12 +20,14 @@ package org.bigbluebutton.deskshare.server.sessions
 
 
 import org.bigbluebutton.deskshare.server.svc1.{BlockManager, Dimension}
-import org.bigbluebutton.deskshare.server.stream.{StreamManager, Stream, UpdateStream, StartStream, StopStream, UpdateStreamMouseLocation}
+import org.bigbluebutton.deskshare.server.stream.{StreamManager, Stream, UpdateStream, StartStream, StopStream, UpdateStreamMouseLocation, UpdateStreamKeyFrame, RecordingNeedsKeyFrame}
 
 import scala.actors.Actor
 import scala.actors.Actor._
 import net.lag.logging.Logger
 import java.awt.Point
+import org.apache.mina.core.buffer.IoBuffer
+import java.util.concurrent.{Executors, ScheduledFuture, ThreadFactory, TimeUnit}
 
 case object StartSession
 case class UpdateSessionBlock(position: Int, blockData: Array[Byte], keyframe: Boolean, seqNum: Int)
@@ -33,9 +35,36 @@ case class UpdateSessionMouseLocation(loc: Point, seqNum: Int)
                                       
 case object StopSession
 case object GenerateKeyFrame
+case class GenerateFrame(id: Long)
 
+object SessionSVC {
+	// Minimum interval in ms between rebuilds of the key frame snapshot given to viewers that join.
+	val SNAPSHOT_INTERVAL = 1000
+	
+	// Fires the frames of all the sessions. The frames themselves are built by the session actors.
+	private val frameScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		def newThread(r: Runnable): Thread = {
+			val t = new Thread(r, "DeskshareFrameScheduler")
+			t.setDaemon(true)
+			t
+		}
+	})
+}
+
+/**
+ * Sends a frame to the stream when blocks arrive, at most one every interframeInterval.
+ * Mouse moves also trigger a frame as the mouse location goes out with each frame.
+ * When the screen doesn't change, a frame is still sent every keepAliveInterval. It only
+ * carries the block being refreshed, the others are marked unchanged.
+ *
+ * Viewers that join get a snapshot of the screen as a key frame from the stream right
+ * away. The snapshot is rebuilt from the last data of the blocks at most every
+ * SNAPSHOT_INTERVAL so viewers joining together share it. The next frame then carries 
+ * the blocks that changed since the snapshot. When the recording drops frames, the
+ * next frame is a key frame for the recording to carry on from.
+ */
 class SessionSVC(sessionManager:SessionManagerSVC, room: String, screenDim: Dimension, 
-                 blockDim: Dimension, streamManager: StreamManager, keyFrameInterval: Int, interframeInterval: Int, waitForAllBlocks: Boolean, useSVC2: Boolean) extends Actor {
+                 blockDim: Dimension, streamManager: StreamManager, keepAliveInterval: Int, interframeInterval: Int, waitForAllBlocks: Boolean, useSVC2: Boolean) extends Actor {
 	private val log = Logger.get
  
 	private var blockManager: BlockManager = new BlockManager(room, screenDim, blockDim, waitForAllBlocks, useSVC2)
@@ -43,61 +72,91 @@ class SessionSVC(sessionManager:SessionManagerSVC, room: String, screenDim: Dime
 	private var lastUpdate:Long = System.currentTimeMillis()
 	private var stop = true
 	private var mouseLoc:Point = new Point(100,100)
-	private var pendingGenKeyFrameRequest = false
-	private var timestamp = 0L;
+	private var catchUpRequested = false
+	private var keyFrameRequested = false
+	private var snapshot: IoBuffer = null
+	private var lastSnapshotTime = 0L
+	
+	// Frame timestamps are the milliseconds since the session started, from a monotonic clock.
+	private var startNanos = 0L
+	private var timestamp = 0L
+	private var lastFrameTime = 0L
+	
+	// Only the frame with the latest id is generated, older scheduled frames are ignored.
+	private var frameId = 0L
+	private var pendingFrame: ScheduledFuture[_] = null
+	private var pendingFrameTime = 0L
+	
+	private def now(): Long = (System.nanoTime() - startNanos) / 1000000
 	
 	/*
-	 * Schedule to generate a key frame after 30seconds of a request.
-	 * This prevents us from generating unnecessary key frames when
-	 * users join within seconds of each other.
+	 * Schedule a frame at the given time unless one is already due by then.
 	 */
-	def scheduleGenerateKeyFrame() {
-		val mainActor = self
-		actor {
-			Thread.sleep(keyFrameInterval)
-			mainActor ! "GenerateAKeyFrame"
+	private def scheduleFrame(time: Long) {
+		if (stop) return
+		if (pendingFrame != null) {
+		  if (pendingFrameTime <= time) return
+		  pendingFrame.cancel(false)
 		}
+		
+		frameId += 1
+		val id = frameId
+		val mainActor = self
+		pendingFrameTime = time
+		pendingFrame = SessionSVC.frameScheduler.schedule(new Runnable() {
+			def run() { mainActor ! GenerateFrame(id) }
+		}, math.max(0L, time - now()), TimeUnit.MILLISECONDS)
 	}
 	
-	def scheduleGenerateFrame() {
-		val mainActor = self
-		actor {
-			Thread.sleep(interframeInterval)
-			mainActor ! "GenerateFrame"
-		}
+	/*
+	 * Schedule the next frame as soon as the max frame rate allows.
+	 */
+	private def requestFrame() {
+		scheduleFrame(math.max(now(), lastFrameTime + interframeInterval))
 	}
 	
 	def act() = {
       loop {
         react {
           case StartSession => initialize()
-          case StopSession => stopSession()    
-          case ml: UpdateSessionMouseLocation => mouseLoc = ml.loc 
-          case "GenerateFrame" => {
-	            generateFrame(false)
-	            if (!stop) {
-	              scheduleGenerateFrame()
-	            } else {
-	              exit()
-	            }
+          case StopSession => stopSession(); exit()
+          case ml: UpdateSessionMouseLocation => {
+        	  mouseLoc = ml.loc
+        	  requestFrame()
+            }
+          case f: GenerateFrame => {
+        	  if (f.id == frameId && !stop) {
+        	    pendingFrame = null
+        	    printMailbox()
+        	    if (catchUpRequested) log.debug("Session: Sending blocks changed since the key frame snapshot for room %s", room)
+        	    generateFrame(keyFrameRequested, catchUpRequested)
+        	    catchUpRequested = false
+        	    keyFrameRequested = false
+        	    scheduleFrame(lastFrameTime + keepAliveInterval)
+        	  }
             }
           case GenerateKeyFrame => {
-        	  if (!pendingGenKeyFrameRequest) {
-        	 	  pendingGenKeyFrameRequest = true
-        	 	  scheduleGenerateKeyFrame()
-        	  }        	  
+        	  catchUpRequested = true
+        	  requestFrame()
+            }
+          case RecordingNeedsKeyFrame => {
+        	  log.debug("Session: Sending a key frame for the recording of room %s", room)
+        	  keyFrameRequested = true
+        	  requestFrame()
+            }
+          case b: UpdateSessionBlock => {
+        	  updateBlock(b.position, b.blockData, b.keyframe, b.seqNum)
+        	  requestFrame()
             }
-          case "GenerateAKeyFrame" => {
-        	  pendingGenKeyFrameRequest = false
-         	  log.debug("Session: Generating Key Frame for room %s", room)
-        	  generateFrame(true)       	  
-          }
-          case b: UpdateSessionBlock => updateBlock(b.position, b.blockData, b.keyframe, b.seqNum)
           case m: Any => log.warning("Session: Unknown message [%s]", m)
         }
       }
     }
 
+	private def printMailbox() {
+	  log.debug("Session: mailbox %d for room %s", mailboxSize, room)
+	}
+	
 	def initMe():Boolean = {	   
 		streamManager.createStream(room, screenDim.width, screenDim.height) match {
 		  case None => log.error("Session: Failed to create stream for room %s", room); return false
@@ -108,16 +167,18 @@ class SessionSVC(sessionManager:SessionManagerSVC, room: String, screenDim: Dime
 	private def initialize() {
 		log.debug("Session: Starting session %s", room)
 		blockManager.initialize()	
+		startNanos = System.nanoTime()
 		stop = false
 		stream ! StartStream
-		generateFrame(true)
-		scheduleGenerateFrame()
+		generateFrame(true, false)
+		scheduleFrame(lastFrameTime + keepAliveInterval)
 	}
  
 	private def stopSession() {
 		log.debug("Session: Stopping session %s", room)
 		stream ! StopStream
 		stop = true
+		if (pendingFrame != null) pendingFrame.cancel(false)
 		streamManager.destroyStream(room)
 		blockManager = null
 	}
@@ -127,16 +188,34 @@ class SessionSVC(sessionManager:SessionManagerSVC, room: String, screenDim: Dime
 		blockManager.updateBlock(position, videoData, keyFrame, seqNum)	
 	}
 	
-	private def generateFrame(keyframe:Boolean) {				  
+	private def generateFrame(keyframe:Boolean, catchUp: Boolean) {				  
 		if (System.currentTimeMillis() - lastUpdate > 60000) {
 			log.warning("Session: Did not received updates for more than 1 minute. Removing session %s", room)
 			sessionManager ! new RemoveSession(room)
 		} else {
 		  if (blockManager != null) {
-			  timestamp += 50;
-			  stream ! new UpdateStream(room, blockManager.generateFrame(keyframe), timestamp)
+			  lastFrameTime = now()
+			  // Keep the timestamps increasing even if two frames go out within the same millisecond.
+			  timestamp = math.max(timestamp + 1, lastFrameTime)
+			  stream ! new UpdateStream(room, blockManager.generateFrame(keyframe, catchUp), timestamp)
 			  stream ! new UpdateStreamMouseLocation(room, mouseLoc)
+			  updateSnapshot(keyframe || catchUp)
+		  }
+		}
+	}
+ 
+	/*
+	 * Hand the stream a new key frame snapshot if blocks changed since the last one.
+	 * The snapshot is taken right after a frame so it matches what the viewers have.
+	 */
+	private def updateSnapshot(force: Boolean) {
+		if (force || lastFrameTime - lastSnapshotTime >= SessionSVC.SNAPSHOT_INTERVAL) {
+		  val s = blockManager.keyFrameSnapshot()
+		  if (s ne snapshot) {
+		    snapshot = s
+		    stream ! new UpdateStreamKeyFrame(room, s)
 		  }
+		  lastSnapshotTime = lastFrameTime
 		}
 	}
  
@@ -48,6 +48,7 @@ class DeskshareStream(app: DeskshareApplication, name: String, val width: Int, v
 	      case StartStream => startStream()
 	      case StopStream => stopStream()
 	      case us: UpdateStream => updateStream(us)
+	      case kf: UpdateStreamKeyFrame => broadcastStream.setKeyFrame(kf.videoData)
 	      case ml: UpdateStreamMouseLocation => updateStreamMouseLocation(ml)
 	      case m:Any => log.warning("DeskshareStream: Unknown message " + m);
 	    }
@@ -97,25 +98,19 @@ class DeskshareStream(app: DeskshareApplication, name: String, val width: Int, v
 	}
  
 	private def updateStream(us: UpdateStream) {
-		val buffer: IoBuffer  = IoBuffer.allocate(us.videoData.length, false);
-		buffer.put(us.videoData);
+		// The frame is built for this update only so it is sent as is, without copying.
+		val buffer: IoBuffer = us.videoData
 		
-		/* Set the marker back to zero position so that "gets" start from the beginning.
-		 * Otherwise, you get BufferUnderFlowException.
-		 */		
-		buffer.rewind();
-		
-		if (record) {
-			recorder.record(buffer)
+		if (record && !recorder.record(buffer)) {
+			sender ! RecordingNeedsKeyFrame
 		}	
 
 		val data: VideoData = new VideoData(buffer)
 		data.setSourceType(Constants.SOURCE_TYPE_LIVE);
 	    /*
-	     * Use timestamp increments. This will force
-	     * Flash Player to playback at proper timestamp. If we calculate timestamp using
-	     * System.currentTimeMillis() - startTimestamp, the video has tendency to drift and
-	     * introduce delay. See how we do the voice. (ralam may 10, 2012)
+	     * The session sets the timestamp. Frames are sent when the screen changes rather
+	     * than at a fixed rate, so it comes from a monotonic clock started with the session
+	     * instead of System.currentTimeMillis() which can jump and make the video drift.
 	     */
         data.setTimestamp(us.timestamp.toInt);
 		broadcastStream.dispatchEvent(data)
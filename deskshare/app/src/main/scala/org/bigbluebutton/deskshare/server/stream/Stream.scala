@@ -21,10 +21,14 @@ package org.bigbluebutton.deskshare.server.stream
 import scala.actors.Actor
 import scala.actors.Actor._
 import java.awt.Point
+import org.apache.mina.core.buffer.IoBuffer
 
 object StopStream
 object StartStream 
-class UpdateStream(val room: String, val videoData: Array[Byte], val timestamp: Long)
+class UpdateStream(val room: String, val videoData: IoBuffer, val timestamp: Long)
+class UpdateStreamKeyFrame(val room: String, val videoData: IoBuffer)
 class UpdateStreamMouseLocation(val room: String, val loc: Point)
+// From the stream to the session: the recording dropped frames and needs a key frame to carry on.
+object RecordingNeedsKeyFrame
 
 abstract class Stream extends Actor
\ No newline at end of file
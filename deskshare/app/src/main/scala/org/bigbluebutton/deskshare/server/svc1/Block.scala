@@ -21,8 +21,9 @@ package org.bigbluebutton.deskshare.server.svc1
 import java.util.Random
 import net.lag.logging.Logger
 import org.bigbluebutton.deskshare.common.ScreenVideoEncoder
+import org.bigbluebutton.deskshare.common.ScreenVideoV2BlockImage
 
-class Block(val dim: Dimension, val position: Int) {
+class Block(val dim: Dimension, val position: Int, useSVC2: Boolean) {
 	private val log = Logger.get
 
 	var firstBlockReceived = false;
@@ -34,6 +35,11 @@ class Block(val dim: Dimension, val position: Int) {
     var hasChanged = false
     var lastChanged = 0L
     var encodedBlock: Array[Byte] = null
+    // Last update that doesn't depend on the image the viewers have (SVC2 diff blocks do).
+    var fullBlock: Array[Byte] = null
+    var isIncremental = false
+    // SVC2: the block's current image, so it can be sent in full when a diff block won't do.
+    private val image = if (useSVC2) new ScreenVideoV2BlockImage(dim.width, dim.height) else null
     
     val random: Random = new Random();
     private var sequenceNumber = 0;
@@ -45,12 +51,24 @@ class Block(val dim: Dimension, val position: Int) {
 	}
     val encodedBlankPixels = ScreenVideoEncoder.encodePixels(blankPixels, dim.width, dim.height, false)
     
-    def update(videoData: Array[Byte], isKeyFrame: Boolean, seqNum: Int): Unit =  {	
+    def update(videoData: Array[Byte], isKeyFrame: Boolean, seqNum: Int, isIncremental: Boolean): Unit =  {	
       firstBlockReceived = true;
       if (seqNum >= sequenceNumber) {
     	sequenceNumber = seqNum				
     	this.isKeyFrame = isKeyFrame;
-	    encodedBlock = videoData;
+    	if (image != null) image.update(videoData)
+    	if (isIncremental && hasChanged) {
+    	  // The viewers don't have the image this diff block was made from yet, 
+    	  // the pending block hasn't been sent. Send the current image instead.
+    	  val currentBlock = getCurrentFullBlock()
+    	  encodedBlock = currentBlock
+    	  this.isIncremental = false
+    	  fullBlock = currentBlock
+    	} else {
+    	  encodedBlock = videoData;
+    	  this.isIncremental = isIncremental
+    	  if (!isIncremental) fullBlock = videoData
+    	}
 	    hasChanged = true;
       } else {
 		log.warning("Block[" + position + "[: Delayed sequence number [%s < %s]", seqNum, sequenceNumber)
@@ -66,6 +84,39 @@ class Block(val dim: Dimension, val position: Int) {
       return encodedBlock;
     }
     
+    /**
+     * Like getEncodedBlock but never a diff block, for key frames.
+     */
+    def getKeyFrameBlock(): Array[Byte] = {
+      if (!firstBlockReceived) return encodedBlankPixels;
+      
+      hasChanged = false;
+      if (!isIncremental) return encodedBlock;
+      return getCurrentFullBlock();
+    }
+    
+    /**
+     * The current image in full, or the last full block if the image isn't known
+     * (a diff block we couldn't apply) until the next full block.
+     */
+    private def getCurrentFullBlock(): Array[Byte] = {
+      if (image != null && image.hasImage()) return image.getFullBlock();
+      if (fullBlock == null) return encodedBlankPixels;
+      return fullBlock;
+    }
+    
+    /**
+     * The block to resend when it hasn't changed, either to refresh it or because
+     * of a key frame. A diff block only applies to the image it was made from so 
+     * it isn't resent (returns null). Key frames get the current image in full instead.
+     */
+    def getRefreshBlock(keyFrame: Boolean): Array[Byte] = {
+      if (!firstBlockReceived) return encodedBlankPixels;
+      if (!isIncremental) return encodedBlock;
+      if (!keyFrame) return null;
+      return getCurrentFullBlock();
+    }
+    
     def getDimension(): Dimension = {
     	return dim;
     }
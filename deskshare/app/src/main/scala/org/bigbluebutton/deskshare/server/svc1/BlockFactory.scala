@@ -45,7 +45,7 @@ trait BlockFactory {
     	return (screenDim.height % blockDim.height) != 0;
     }
   
-    def createBlock(screenDim: Dimension, blockDim: Dimension, position: Int): Block = {
+    def createBlock(screenDim: Dimension, blockDim: Dimension, position: Int, useSVC2: Boolean): Block = {
     	val numRows: Int = getNumberOfRows(screenDim, blockDim)
     	val numColumns: Int = getNumberOfColumns(screenDim, blockDim)
     	
@@ -54,7 +54,7 @@ trait BlockFactory {
 		val w: Int = computeTileWidth(col, screenDim, blockDim)
 		val h: Int = computeTileHeight(row, screenDim, blockDim)	
 		
-		return new Block(new Dimension(w, h), position) 
+		return new Block(new Dimension(w, h), position, useSVC2) 
     }
        
     private def computeRow(position: Int, numRows: Int, numColumns: Int): Int = {
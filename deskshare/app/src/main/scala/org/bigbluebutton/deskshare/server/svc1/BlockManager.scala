@@ -18,19 +18,21 @@
 */
 package org.bigbluebutton.deskshare.server.svc1
 
-import java.io.ByteArrayOutputStream
-import java.util.concurrent.ConcurrentHashMap
+import org.apache.mina.core.buffer.IoBuffer
 import org.bigbluebutton.deskshare.common.ScreenVideoEncoder
+import org.bigbluebutton.deskshare.common.ScreenVideoV2Encoder
+import org.bigbluebutton.deskshare.common.BlockReference
 import org.bigbluebutton.deskshare.server.session.ScreenVideoFrame
 import net.lag.logging.Logger
 
 class BlockManager(room: String, screenDim: Dimension, blockDim: Dimension, waitForAllBlocks: Boolean, useSVC2: Boolean) extends BlockFactory {
     private val log = Logger.get
     
-	private var blocksMap = new ConcurrentHashMap[Int, Block]
-	
 	private var numberOfRows = getNumberOfRows(screenDim, blockDim)
 	private var numberOfColumns = getNumberOfColumns(screenDim, blockDim)
+	
+	// Indexed by position - 1. 
+	private val blocks = new Array[Block](numberOfRows * numberOfColumns)
     private var lastFrameTime = 0L
     private var lastKeyFrameTime = 0L
     private val KEYFRAME_INTERVAL = 20000
@@ -38,12 +40,40 @@ class BlockManager(room: String, screenDim: Dimension, blockDim: Dimension, wait
     private var startTime = 0L
 	private var gotAllBlocksTime = 0L
 	private var gotAllBlocks = false;
+	private val frameBuilder = new FrameBuilder(screenDim, blockDim, numberOfRows * numberOfColumns, useSVC2)
+	
+	/*
+	 * Key frame for the viewers that join, built from the last data of each block.
+	 * It is only rebuilt when a block changed since, and handed as is to all the
+	 * viewers that join until then. Frames are numbered so we know which blocks
+	 * changed since a snapshot was built.
+	 */
+	private val snapshotBuilder = new FrameBuilder(screenDim, blockDim, numberOfRows * numberOfColumns, useSVC2)
+	private var snapshot: IoBuffer = null
+	private var frameNumber = 0L
+	private var snapshotFrame = -1L
+	private var previousSnapshotFrame = -1L
+	private var lastChangeFrame = 0L
+	// Indexed by position - 1. The number of the first frame with the block's current data.
+	private val blockChangedAt = new Array[Long](numberOfRows * numberOfColumns)
+	
+	/*
+	 * The full blocks received, by their hash, for the applet to reuse at any position
+	 * (see BlockReference). We keep twice as many as the applet remembers. References
+	 * that arrive before their block (they can come on another connection) wait for it.
+	 */
+	private val maxSentBlocks = numberOfRows * numberOfColumns * 4
+	private val sentBlocks = new java.util.LinkedHashMap[java.lang.Long, Array[Byte]](maxSentBlocks, 0.75f, true) {
+		override def removeEldestEntry(eldest: java.util.Map.Entry[java.lang.Long, Array[Byte]]): Boolean = size() > maxSentBlocks
+	}
+	private val pendingReferences = new scala.collection.mutable.HashMap[Long, List[(Int, Int)]]
+	private var blocksReused = 0L
 	
 	def initialize(): Unit = {
 		println("Initialize BlockManager")
 		val numberOfBlocks: Int = numberOfRows * numberOfColumns
 		for (position: Int <- 1 to numberOfBlocks) {
-			var block: Block = createBlock(screenDim, blockDim, position)
+			var block: Block = createBlock(screenDim, blockDim, position, useSVC2)
 			val dim: Dimension = block.getDimension();
 //			var blankPixels = new Array[Int](dim.width * dim.height)
 //			for (i: Int <- 0 until blankPixels.length) {
@@ -51,20 +81,56 @@ class BlockManager(room: String, screenDim: Dimension, blockDim: Dimension, wait
 //			}
 //			val encodedPixels = ScreenVideoEncoder.encodePixels(blankPixels, dim.width, dim.height)
 //			block.update(encodedPixels, true, 0)
-			blocksMap.put(position, block)
+			blocks(position - 1) = block
 		}
 		
 		startTime = System.currentTimeMillis()
 	}
 	
 	def updateBlock(position: Int, videoData: Array[Byte], keyFrame: Boolean, seqNum: Int): Unit = {
-		val block: Block = blocksMap.get(position)
-		block.update(videoData, keyFrame, seqNum)
+		if (BlockReference.isReference(videoData)) {
+		  reuseBlock(position, BlockReference.getBlockHash(videoData), seqNum)
+		  return
+		}
+		
+		val isIncremental = useSVC2 && ScreenVideoV2Encoder.isIncrementalBlock(videoData)
+		setBlock(position, videoData, keyFrame, seqNum, isIncremental)
+		if (!isIncremental) {
+		  val hash = BlockReference.hash(videoData)
+		  sentBlocks.put(hash, videoData)
+		  pendingReferences.remove(hash) match {
+		    case Some(references) => references.foreach(r => setBlock(r._1, videoData, false, r._2, false))
+		    case None =>
+		  }
+		}
+	}
+	
+	private def reuseBlock(position: Int, blockHash: Long, seqNum: Int): Unit = {
+		val videoData = sentBlocks.get(blockHash)
+		if (videoData != null) {
+		  blocksReused += 1
+		  setBlock(position, videoData, false, seqNum, false)
+		} else {
+		  if (pendingReferences.size >= numberOfRows * numberOfColumns) {
+		    log.warning("Block manager for %s: dropping %s block references that never got their block", room, pendingReferences.size)
+		    pendingReferences.clear()
+		  }
+		  pendingReferences.put(blockHash, (position, seqNum) :: pendingReferences.getOrElse(blockHash, Nil))
+		}
+	}
+	
+	private def setBlock(position: Int, videoData: Array[Byte], keyFrame: Boolean, seqNum: Int, isIncremental: Boolean): Unit = {
+		val block: Block = blocks(position - 1)
+		block.update(videoData, keyFrame, seqNum, isIncremental)
+		blockChangedAt(position - 1) = frameNumber + 1
+		lastChangeFrame = frameNumber + 1
 	}
 	
+	def getBlocksReused(): Long = blocksReused
+	
 	private def allBlocksReceived(numberOfBlocks: Int):Boolean = {
 		for (position: Int <- 1 to numberOfBlocks) {
-		  var block: Block = blocksMap.get(position)
+		  var block: Block = blocks(position - 1)
 		  if (!block.firstBlockReceived) {
 		    return false;
 		  }
@@ -74,46 +140,73 @@ class BlockManager(room: String, screenDim: Dimension, blockDim: Dimension, wait
 		return true;
 	}
 	
-	def generateFrame(genKeyFrame: Boolean): Array[Byte] = {
-		var screenVideoFrame: ByteArrayOutputStream = new ByteArrayOutputStream()
-		val encodedDim: Array[Byte] = ScreenVideoEncoder.encodeBlockAndScreenDimensions(blockDim.width, screenDim.width, blockDim.height, screenDim.height)
-     	    	
+	def generateFrame(genKeyFrame: Boolean): IoBuffer = generateFrame(genKeyFrame, false)
+	
+	/**
+	 * Generates the next frame. With catchUp, the blocks that changed since the
+	 * last two key frame snapshots are sent in full, as if in a key frame, for
+	 * the viewers that just joined with one of them.
+	 */
+	def generateFrame(genKeyFrame: Boolean, catchUp: Boolean): IoBuffer = {
     	val numberOfBlocks = numberOfRows * numberOfColumns 		
-    	val videoDataHeader: Byte = ScreenVideoEncoder.encodeFlvVideoDataHeader(genKeyFrame, useSVC2)
-    		    		
-    	screenVideoFrame.write(videoDataHeader)
-    	screenVideoFrame.write(encodedDim)
-    	
-    	if (useSVC2) {
-    	  val flags : Byte = 0; // 6 bits reserved (0); HasIFrameImage=0; HasPaletteInfo=0
-    	  screenVideoFrame.write(flags);
-    	}
     	
     	if (! gotAllBlocks ) {
     	  gotAllBlocks = allBlocksReceived(numberOfBlocks)
+    	  // The snapshot only has blank blocks until now.
+    	  if (gotAllBlocks && waitForAllBlocks) lastChangeFrame = frameNumber + 1
     	}
+    	frameNumber += 1
 		
-    	for (position: Int <- 1 to numberOfBlocks)  {
-    		var block: Block = blocksMap.get(position)
-    		var encodedBlock: Array[Byte] = ScreenVideoEncoder.encodeBlockUnchanged()
+    	var position = 1
+    	while (position <= numberOfBlocks)  {
+    		val block: Block = blocks(position - 1)
     		if (waitForAllBlocks && !gotAllBlocks) {
     		  // We need to wait for all the blocks. Just encode a blank block.
-    		  encodedBlock = block.getEncodedBlock(true);
+    		  frameBuilder.setBlock(position, block.getEncodedBlock(true))
+    		} else if (block.hasChanged && (genKeyFrame || catchUp)) {
+    		  // A viewer that joined with an older snapshot doesn't have the image a diff block is made from.
+    		  frameBuilder.setBlock(position, block.getKeyFrameBlock())
+    		} else if (block.hasChanged) {    		
+    		  frameBuilder.setBlock(position, block.getEncodedBlock(false))
+    		} else if (catchUp && blockChangedAt(position - 1) > previousSnapshotFrame) {
+    		  frameBuilder.setBlock(position, block.getRefreshBlock(true))
+    		} else if ((position == blockToUpdate) || genKeyFrame) {
+    		  val refreshBlock = block.getRefreshBlock(genKeyFrame)
+    		  if (refreshBlock == null) frameBuilder.setBlockUnchanged(position)
+    		  else frameBuilder.setBlock(position, refreshBlock)
     		} else {
-	    		if (block.hasChanged || (position == blockToUpdate) || genKeyFrame) {    		
-	    			encodedBlock = block.getEncodedBlock(false);
-	//    			println("Encoded block length[" + position + "] = " + encodedBlock.length)
-	    		}    		  
+    		  frameBuilder.setBlockUnchanged(position)
     		}
-
-    		screenVideoFrame.write(encodedBlock, 0, encodedBlock.length)
+    		position += 1
     	}
 
 		blockToUpdate += 1;
 		if (blockToUpdate > numberOfBlocks) blockToUpdate = 1;
-    	
-//		println("Key=" + genKeyFrame + " frame length=" + screenVideoFrame.toByteArray.length)
 		
-    	return screenVideoFrame.toByteArray	
+    	return frameBuilder.build(genKeyFrame)
+	}
+	
+	/**
+	 * The key frame for viewers that join, as of the last generated frame. It is
+	 * only rebuilt if a block changed since the last call.
+	 */
+	def keyFrameSnapshot(): IoBuffer = {
+		if (snapshot == null || lastChangeFrame > snapshotFrame) {
+			val numberOfBlocks = numberOfRows * numberOfColumns
+			var position = 1
+			while (position <= numberOfBlocks) {
+				val block: Block = blocks(position - 1)
+				if (waitForAllBlocks && !gotAllBlocks) {
+				  snapshotBuilder.setBlock(position, block.getEncodedBlock(true))
+				} else {
+				  snapshotBuilder.setBlock(position, block.getRefreshBlock(true))
+				}
+				position += 1
+			}
+			snapshot = snapshotBuilder.build(true)
+			previousSnapshotFrame = snapshotFrame
+			snapshotFrame = frameNumber
+		}
+		return snapshot
 	}
 }
@@ -0,0 +1,95 @@
+/**
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+* 
+* Copyright (c) 2012 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 3.0 of the License, or (at your option) any later
+* version.
+* 
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.bigbluebutton.deskshare.server.svc1
+
+import org.apache.mina.core.buffer.IoBuffer
+import org.bigbluebutton.deskshare.common.ScreenVideoEncoder
+
+/**
+ * Assembles Screen Video frames for one session.
+ * 
+ * The block and screen dimensions never change during a session so they are
+ * encoded once. The blocks for the next frame are collected by reference and
+ * the frame is then written in one pass into a byte array of exactly the 
+ * frame's size, which is handed to Red5 as is. The frame array can't be 
+ * reused as Red5 and the recorder hold on to it after it has been dispatched.
+ */
+class FrameBuilder(screenDim: Dimension, blockDim: Dimension, numberOfBlocks: Int, useSVC2: Boolean) {
+	private val UNCHANGED_BLOCK_LENGTH = 2
+	
+	private val encodedDim: Array[Byte] = ScreenVideoEncoder.encodeBlockAndScreenDimensions(blockDim.width, screenDim.width, blockDim.height, screenDim.height)
+	
+	// FLV video data header + dimensions + (for SVC2) the image flags.
+	private val headerLength = 1 + encodedDim.length + (if (useSVC2) 1 else 0)
+	
+	// Encoded data of the blocks in the next frame. null means unchanged.
+	private val blocks = new Array[Array[Byte]](numberOfBlocks)
+	
+	private var framesBuilt = 0L
+	private var bytesBuilt = 0L
+	
+	/**
+	 * Sets the encoded data of the block at position (1-based) for the next frame.
+	 */
+	def setBlock(position: Int, encodedBlock: Array[Byte]): Unit = {
+		blocks(position - 1) = encodedBlock
+	}
+	
+	def setBlockUnchanged(position: Int): Unit = {
+		blocks(position - 1) = null
+	}
+	
+	def build(keyFrame: Boolean): IoBuffer = {
+		var length = headerLength
+		var i = 0
+		while (i < numberOfBlocks) {
+			length += (if (blocks(i) == null) UNCHANGED_BLOCK_LENGTH else blocks(i).length)
+			i += 1
+		}
+		
+		val frame = new Array[Byte](length)
+		frame(0) = ScreenVideoEncoder.encodeFlvVideoDataHeader(keyFrame, useSVC2)
+		System.arraycopy(encodedDim, 0, frame, 1, encodedDim.length)
+		// The SVC2 flags byte stays 0. 6 bits reserved (0); HasIFrameImage=0; HasPaletteInfo=0
+		
+		var pos = headerLength
+		i = 0
+		while (i < numberOfBlocks) {
+			val block = blocks(i)
+			if (block == null) {
+				// Unchanged block is a 0 data size, which the new array already holds.
+				pos += UNCHANGED_BLOCK_LENGTH
+			} else {
+				System.arraycopy(block, 0, frame, pos, block.length)
+				pos += block.length
+				blocks(i) = null
+			}
+			i += 1
+		}
+		
+		framesBuilt += 1
+		bytesBuilt += length
+		
+		return IoBuffer.wrap(frame)
+	}
+	
+	def getFramesBuilt(): Long = framesBuilt
+	
+	def getBytesBuilt(): Long = bytesBuilt
+}
@@ -1,12 +1,229 @@
 package org.bigbluebutton.deskshare.server.recorder;
 
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
 import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
 
 public class FileRecorderTest {
-
+	private static final int FLV_HEADER_LENGTH = 13;
+	
+	private final List<File> dirs = new ArrayList<File>();
+	
+	private File newRecordingDir() {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "deskshare-rec-" + System.nanoTime());
+		dir.mkdirs();
+		dirs.add(dir);
+		return dir;
+	}
+	
+	@AfterMethod
+	public void deleteRecordingDirs() {
+		for (File dir : dirs) {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+		dirs.clear();
+	}
+	
+	private File recordingOf(File dir) {
+		for (File f : dir.listFiles()) {
+			if (f.getName().endsWith(".flv")) return f;
+		}
+		Assert.fail("No recording in " + dir);
+		return null;
+	}
+	
+	/*
+	 * A screen video frame. The high nibble of the first byte is the frame type, 1 for key frames.
+	 */
+	private byte[] frame(boolean keyFrame, int length, int seed) {
+		byte[] frame = new byte[length];
+		for (int i = 1; i < length; i++) {
+			frame[i] = (byte) (i * 31 + seed);
+		}
+		frame[0] = (byte) (keyFrame ? 0x13 : 0x23);
+		return frame;
+	}
+	
+	private List<byte[]> readTags(File flv) throws IOException {
+		List<byte[]> tags = new ArrayList<byte[]>();
+		DataInputStream in = new DataInputStream(new FileInputStream(flv));
+		try {
+			in.skipBytes(FLV_HEADER_LENGTH);
+			while (in.available() > 0) {
+				Assert.assertEquals(in.readUnsignedByte(), 0x09);
+				int length = (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+				in.skipBytes(7);
+				byte[] data = new byte[length];
+				in.readFully(data);
+				Assert.assertEquals(in.readInt(), length + 11);
+				tags.add(data);
+			}
+		} finally {
+			in.close();
+		}
+		return tags;
+	}
+	
+	private List<Long> readIndexOffsets(File flv) throws IOException {
+		List<Long> offsets = new ArrayList<Long>();
+		BufferedReader in = new BufferedReader(new FileReader(flv.getPath() + ".idx"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				offsets.add(Long.parseLong(line.split(" ")[1]));
+			}
+		} finally {
+			in.close();
+		}
+		return offsets;
+	}
+	
+	/*
+	 * A ring that can be made to look full, as if the disk couldn't keep up.
+	 */
+	private static class FullRing extends FrameRing {
+		volatile boolean full = false;
+		
+		FullRing() {
+			super(FileRecorder.DEFAULT_MAX_QUEUED_FRAMES);
+		}
+		
+		@Override
+		synchronized boolean offer(ByteBuffer frame) {
+			return !full && super.offer(frame);
+		}
+	}
+	
+	@Test
+	public void testRecordsFramesAndIndexesKeyFrames() throws IOException {
+		File dir = newRecordingDir();
+		FileRecorder recorder = new FileRecorder("room", dir.getPath());
+		recorder.start();
+		
+		List<byte[]> sent = new ArrayList<byte[]>();
+		for (int i = 0; i < 50; i++) {
+			sent.add(frame(i % 20 == 0, 100 + i * 50, i));
+			recorder.record(IoBuffer.wrap(sent.get(i)));
+		}
+		recorder.stop();
+		
+		File flv = recordingOf(dir);
+		List<byte[]> tags = readTags(flv);
+		Assert.assertEquals(tags.size(), sent.size());
+		for (int i = 0; i < sent.size(); i++) {
+			Assert.assertTrue(Arrays.equals(tags.get(i), sent.get(i)), "Frame " + i);
+		}
+		
+		List<Long> offsets = readIndexOffsets(flv);
+		Assert.assertEquals(offsets.size(), 3);
+		RandomAccessFile raf = new RandomAccessFile(flv, "r");
+		try {
+			for (long offset : offsets) {
+				raf.seek(offset);
+				Assert.assertEquals(raf.readUnsignedByte(), 0x09);
+				raf.skipBytes(10);
+				Assert.assertEquals(raf.readUnsignedByte() >> 4, 1);
+			}
+		} finally {
+			raf.close();
+		}
+		Assert.assertEquals(recorder.getFramesRecorded(), 50);
+		Assert.assertEquals(recorder.getFramesDropped(), 0);
+	}
+	
+	@Test
+	public void testRecordsFramesBiggerThanTheWriteBuffer() throws IOException {
+		File dir = newRecordingDir();
+		FileRecorder recorder = new FileRecorder("room", dir.getPath());
+		recorder.start();
+		byte[] small = frame(false, 1000, 1);
+		byte[] big = frame(true, 3 * 1024 * 1024, 2);
+		recorder.record(IoBuffer.wrap(small));
+		recorder.record(IoBuffer.wrap(big));
+		recorder.record(IoBuffer.wrap(small));
+		recorder.stop();
+		
+		File flv = recordingOf(dir);
+		List<byte[]> tags = readTags(flv);
+		Assert.assertEquals(tags.size(), 3);
+		Assert.assertTrue(Arrays.equals(tags.get(1), big));
+		Assert.assertEquals(readIndexOffsets(flv).get(0).longValue(), FLV_HEADER_LENGTH + small.length + 15);
+	}
+	
+	@Test
+	public void testDropsFramesUntilTheNextKeyFrame() throws IOException {
+		File dir = newRecordingDir();
+		FullRing ring = new FullRing();
+		FileRecorder recorder = new FileRecorder("room", dir.getPath(), ring);
+		recorder.start();
+		
+		byte[] first = frame(true, 100, 0);
+		Assert.assertTrue(recorder.record(IoBuffer.wrap(first)));
+		ring.full = true;
+		// Asks for a key frame once, when the frame is dropped.
+		Assert.assertFalse(recorder.record(IoBuffer.wrap(frame(false, 100, 1))));
+		ring.full = false;
+		Assert.assertTrue(recorder.record(IoBuffer.wrap(frame(false, 100, 2))));
+		Assert.assertTrue(recorder.record(IoBuffer.wrap(frame(false, 100, 3))));
+		byte[] keyFrame = frame(true, 100, 4);
+		byte[] next = frame(false, 100, 5);
+		Assert.assertTrue(recorder.record(IoBuffer.wrap(keyFrame)));
+		Assert.assertTrue(recorder.record(IoBuffer.wrap(next)));
+		recorder.stop();
+		
+		File flv = recordingOf(dir);
+		List<byte[]> tags = readTags(flv);
+		Assert.assertEquals(tags.size(), 3);
+		Assert.assertTrue(Arrays.equals(tags.get(0), first));
+		Assert.assertTrue(Arrays.equals(tags.get(1), keyFrame));
+		Assert.assertTrue(Arrays.equals(tags.get(2), next));
+		Assert.assertEquals(readIndexOffsets(flv).size(), 2);
+		Assert.assertEquals(recorder.getFramesDropped(), 3);
+	}
+	
+	@Test
+	public void testIgnoresFramesWhenNotRecording() {
+		File dir = newRecordingDir();
+		FileRecorder recorder = new FileRecorder("room", dir.getPath());
+		recorder.record(IoBuffer.wrap(frame(true, 100, 0)));
+		Assert.assertEquals(dir.listFiles().length, 0);
+		Assert.assertEquals(recorder.getFramesDropped(), 0);
+	}
+	
 	@Test
-	public void testHello() {
-		Assert.assertEquals(true, true);
+	public void testRingDropsFramesWhenFull() throws InterruptedException {
+		FrameRing ring = new FrameRing(2);
+		ByteBuffer frame = ByteBuffer.wrap(frame(false, 10, 0));
+		Assert.assertTrue(ring.offer(frame));
+		Assert.assertTrue(ring.offer(frame));
+		Assert.assertFalse(ring.offer(frame));
+		Assert.assertEquals(frame.position(), 0);
+		
+		Assert.assertEquals(ring.await(0), 2);
+		byte[] slot = ring.frame(0);
+		ring.release(2);
+		Assert.assertEquals(ring.size(), 0);
+		
+		// The slots are reused, and only grown for bigger frames.
+		Assert.assertTrue(ring.offer(ByteBuffer.wrap(frame(true, 5, 1))));
+		ring.await(0);
+		Assert.assertSame(ring.frame(0), slot);
+		Assert.assertEquals(ring.length(0), 5);
 	}
 }
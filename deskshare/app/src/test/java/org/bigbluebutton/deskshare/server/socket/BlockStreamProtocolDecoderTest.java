@@ -0,0 +1,195 @@
+package org.bigbluebutton.deskshare.server.socket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.bigbluebutton.deskshare.server.events.CaptureUpdateBlockEvent;
+import org.bigbluebutton.deskshare.server.events.MouseLocationEvent;
+import org.easymock.EasyMock;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class BlockStreamProtocolDecoderTest {
+	private static final byte[] END_FRAME = new byte[] {'D', 'S', '-', 'E', 'N', 'D'};
+	private static final byte[] HEADER = new byte[] {'B', 'B', 'B', '-', 'D', 'S'};
+	// Size of a TCP segment on ethernet
+	private static final int SEGMENT_SIZE = 1460;
+	
+	private static class Output implements ProtocolDecoderOutput {
+		final List<Object> messages = new ArrayList<Object>();
+		
+		public void write(Object message) {
+			messages.add(message);
+		}
+		
+		public void flush(NextFilter nextFilter, IoSession session) {
+		}
+	}
+	
+	/**
+	 * The decoder before frames were read using their length. It scanned the buffer 
+	 * for the END FRAME delimiter, copying it at every offset.
+	 */
+	private static class EndFrameScanningDecoder extends BlockStreamProtocolDecoder {
+		int frames = 0;
+		
+		protected boolean doDecode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
+			int start = in.position();
+			byte[] endFrame = new byte[END_FRAME.length];
+			int curpos = 0;
+			while (in.remaining() >= END_FRAME.length) {
+				curpos = in.position();
+				in.get(endFrame);
+				if (Arrays.equals(endFrame, END_FRAME)) {
+					frames++;
+					return true;
+				}
+				in.position(curpos + 1);
+			}
+			in.position(start);
+			return false;
+		}
+	}
+	
+	private byte[] encodeFrame(IoBuffer message) {
+		message.flip();
+		IoBuffer frame = IoBuffer.allocate(HEADER.length + 4 + message.remaining() + END_FRAME.length);
+		frame.put(HEADER);
+		frame.putInt(message.remaining() + END_FRAME.length);
+		frame.put(message);
+		frame.put(END_FRAME);
+		return frame.array();
+	}
+	
+	private void encodeRoom(IoBuffer message, String room) {
+		message.put((byte) room.length());
+		message.put(room.getBytes());
+	}
+	
+	private byte[] encodeUpdateFrame(int seqNum, int numBlocks, int blockLength) {
+		IoBuffer message = IoBuffer.allocate(64).setAutoExpand(true);
+		message.put((byte) 1);
+		encodeRoom(message, "room");
+		message.putInt(seqNum);
+		message.putShort((short) numBlocks);
+		for (int i = 0; i < numBlocks; i++) {
+			message.putShort((short) (i + 1));
+			message.put((byte) 0);
+			message.putInt(blockLength);
+			byte[] block = new byte[blockLength];
+			if (blockLength > END_FRAME.length * 2) {
+				// Block data that happens to contain the end frame delimiter.
+				System.arraycopy(END_FRAME, 0, block, blockLength / 2, END_FRAME.length);
+			}
+			block[0] = (byte) i;
+			message.put(block);
+		}
+		return encodeFrame(message);
+	}
+	
+	private byte[] encodeMouseFrame(int seqNum, int x, int y) {
+		IoBuffer message = IoBuffer.allocate(64).setAutoExpand(true);
+		message.put((byte) 3);
+		encodeRoom(message, "room");
+		message.putInt(seqNum);
+		message.putInt(x);
+		message.putInt(y);
+		return encodeFrame(message);
+	}
+	
+	/**
+	 * Feeds the stream to the decoder in TCP segments, the way mina cumulates it.
+	 */
+	private void decode(BlockStreamProtocolDecoder decoder, byte[] stream, ProtocolDecoderOutput out) throws Exception {
+		IoSession session = EasyMock.createNiceMock(IoSession.class);
+		EasyMock.replay(session);
+		IoBuffer in = IoBuffer.allocate(SEGMENT_SIZE * 4).setAutoExpand(true);
+		for (int offset = 0; offset < stream.length; offset += SEGMENT_SIZE) {
+			in.put(stream, offset, Math.min(SEGMENT_SIZE, stream.length - offset));
+			in.flip();
+			while (in.hasRemaining() && decoder.doDecode(session, in, out)) {
+				// Decode all the frames that have arrived.
+			}
+			in.compact();
+		}
+	}
+	
+	private byte[] concat(byte[]... frames) {
+		IoBuffer stream = IoBuffer.allocate(1024).setAutoExpand(true);
+		for (byte[] frame : frames) {
+			stream.put(frame);
+		}
+		stream.flip();
+		byte[] data = new byte[stream.remaining()];
+		stream.get(data);
+		return data;
+	}
+	
+	@Test
+	public void testDecodesFramesSplitAcrossSegments() throws Exception {
+		Output out = new Output();
+		byte[] stream = concat(encodeUpdateFrame(1, 3, 2000), encodeMouseFrame(2, 10, 20), encodeUpdateFrame(3, 1, 10));
+		decode(new BlockStreamProtocolDecoder(), stream, out);
+		
+		Assert.assertEquals(out.messages.size(), 5);
+		for (int i = 0; i < 3; i++) {
+			CaptureUpdateBlockEvent event = (CaptureUpdateBlockEvent) out.messages.get(i);
+			Assert.assertEquals(event.getRoom(), "room");
+			Assert.assertEquals(event.getPosition(), i + 1);
+			Assert.assertEquals(event.getSequenceNum(), 1);
+			Assert.assertEquals(event.getVideoData().length, 2000);
+			Assert.assertEquals(event.getVideoData()[0], (byte) i);
+		}
+		MouseLocationEvent mouse = (MouseLocationEvent) out.messages.get(3);
+		Assert.assertEquals(mouse.getLoc().x, 10);
+		Assert.assertEquals(mouse.getLoc().y, 20);
+		Assert.assertEquals(((CaptureUpdateBlockEvent) out.messages.get(4)).getSequenceNum(), 3);
+	}
+	
+	@Test
+	public void testSkipsCorruptedFrame() throws Exception {
+		Output out = new Output();
+		byte[] corrupted = encodeMouseFrame(1, 1, 1);
+		corrupted[0] = 'X';
+		byte[] stream = concat(corrupted, encodeMouseFrame(2, 5, 5));
+		decode(new BlockStreamProtocolDecoder(), stream, out);
+		
+		Assert.assertEquals(out.messages.size(), 1);
+		Assert.assertEquals(((MouseLocationEvent) out.messages.get(0)).getLoc().x, 5);
+	}
+	
+	@Test(groups = "benchmark")
+	public void benchmarkDecodeThroughput() throws Exception {
+		// A 1080p key frame: 510 blocks of about 1KB, and small updates.
+		byte[] stream = concat(encodeUpdateFrame(1, 510, 1000), encodeUpdateFrame(2, 20, 1000), 
+				encodeMouseFrame(3, 1, 1), encodeUpdateFrame(4, 2, 3000));
+		int iterations = 20;
+		
+		for (int i = 0; i < iterations; i++) {
+			decode(new BlockStreamProtocolDecoder(), stream, new Output());
+			decode(new EndFrameScanningDecoder(), stream, new Output());
+		}
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			decode(new BlockStreamProtocolDecoder(), stream, new Output());
+		}
+		long lengthNanos = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			decode(new EndFrameScanningDecoder(), stream, new Output());
+		}
+		long scanningNanos = System.nanoTime() - start;
+		
+		double megabytes = (double) stream.length * iterations / (1024 * 1024);
+		System.out.println("Decoding " + stream.length + " bytes in " + SEGMENT_SIZE + " byte segments:"
+				+ " length prefixed=" + (int) (megabytes * 1000000000L / lengthNanos) + " MB/s,"
+				+ " end frame scanning (framing only)=" + (int) (megabytes * 1000000000L / scanningNanos) + " MB/s");
+	}
+}
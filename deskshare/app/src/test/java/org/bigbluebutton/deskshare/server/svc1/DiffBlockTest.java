@@ -0,0 +1,159 @@
+package org.bigbluebutton.deskshare.server.svc1;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.bigbluebutton.deskshare.common.ScreenVideoV2BlockImage;
+import org.bigbluebutton.deskshare.common.ScreenVideoV2Encoder;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class DiffBlockTest {
+	private static final int BLOCK_SIZE = 64;
+	// 2 columns x 1 row
+	private static final int NUM_BLOCKS = 2;
+	// FLV video data header + block and screen dimensions + SVC2 image flags
+	private static final int HEADER_LENGTH = 6;
+
+	private final ScreenVideoV2Encoder[] encoders = new ScreenVideoV2Encoder[NUM_BLOCKS];
+	private final int[][] pixels = new int[NUM_BLOCKS][BLOCK_SIZE * BLOCK_SIZE];
+	private int seqNum = 0;
+
+	private BlockManager createBlockManager() {
+		BlockManager bm = new BlockManager("test", new Dimension(BLOCK_SIZE * NUM_BLOCKS, BLOCK_SIZE),
+				new Dimension(BLOCK_SIZE, BLOCK_SIZE), false, true);
+		bm.initialize();
+		for (int i = 0; i < NUM_BLOCKS; i++) {
+			encoders[i] = new ScreenVideoV2Encoder(BLOCK_SIZE, BLOCK_SIZE);
+			encoders[i].setPrimeWithPrevious(true);
+			for (int p = 0; p < pixels[i].length; p++) {
+				pixels[i][p] = 0xFFFFFF;
+			}
+			bm.updateBlock(i + 1, encoders[i].encode(pixels[i]), true, seqNum);
+		}
+		return bm;
+	}
+
+	/**
+	 * Draws a line on rows top to top + 3 (top-down) of the block and sends the diff block.
+	 */
+	private byte[] drawLine(BlockManager bm, int position, int top, int color) {
+		int[] block = pixels[position - 1];
+		for (int y = top; y < top + 4; y++) {
+			for (int x = 8; x < 56; x++) {
+				block[y * BLOCK_SIZE + x] = color;
+			}
+		}
+		byte[] encoded = encoders[position - 1].encode(block);
+		Assert.assertTrue(ScreenVideoV2Encoder.isIncrementalBlock(encoded));
+		seqNum++;
+		bm.updateBlock(position, encoded, false, seqNum);
+		return encoded;
+	}
+
+	/**
+	 * Applies the blocks of the frame to the images of a viewer, like the player does.
+	 */
+	private void play(IoBuffer frame, ScreenVideoV2BlockImage[] viewer) {
+		int pos = frame.position() + HEADER_LENGTH;
+		for (int i = 0; i < NUM_BLOCKS; i++) {
+			int dataSize = ((frame.get(pos) & 0xff) << 8) | (frame.get(pos + 1) & 0xff);
+			if (dataSize > 0) {
+				byte[] block = new byte[2 + dataSize];
+				for (int b = 0; b < block.length; b++) {
+					block[b] = frame.get(pos + b);
+				}
+				Assert.assertTrue(viewer[i].update(block), "Block " + (i + 1) + " doesn't apply to the viewer's image");
+			}
+			pos += 2 + dataSize;
+		}
+		Assert.assertEquals(pos, frame.limit());
+	}
+
+	private ScreenVideoV2BlockImage[] createViewer() {
+		ScreenVideoV2BlockImage[] viewer = new ScreenVideoV2BlockImage[NUM_BLOCKS];
+		for (int i = 0; i < NUM_BLOCKS; i++) {
+			viewer[i] = new ScreenVideoV2BlockImage(BLOCK_SIZE, BLOCK_SIZE);
+		}
+		return viewer;
+	}
+
+	private void assertViewerHasCurrentImage(ScreenVideoV2BlockImage[] viewer) {
+		for (int i = 0; i < NUM_BLOCKS; i++) {
+			ScreenVideoV2BlockImage current = new ScreenVideoV2BlockImage(BLOCK_SIZE, BLOCK_SIZE);
+			Assert.assertTrue(current.update(new ScreenVideoV2Encoder(BLOCK_SIZE, BLOCK_SIZE).encodeFull(pixels[i])));
+			Assert.assertEquals(viewer[i].getFullBlock(), current.getFullBlock(), "Block " + (i + 1));
+		}
+	}
+
+	@Test
+	public void testTwoDiffBlocksBetweenFrames() {
+		BlockManager bm = createBlockManager();
+		ScreenVideoV2BlockImage[] viewer = createViewer();
+		play(bm.generateFrame(true), viewer);
+		assertViewerHasCurrentImage(viewer);
+
+		// Two diff blocks on different rows before the next frame.
+		drawLine(bm, 1, 4, 0x000000);
+		drawLine(bm, 1, 40, 0xFF0000);
+		IoBuffer frame = bm.generateFrame(false);
+		play(frame, viewer);
+		assertViewerHasCurrentImage(viewer);
+
+		// And diff blocks again once the viewers are up to date.
+		drawLine(bm, 1, 20, 0x00FF00);
+		frame = bm.generateFrame(false);
+		Assert.assertEquals(frame.get(HEADER_LENGTH + 2) & 0x04, 0x04);
+		play(frame, viewer);
+		assertViewerHasCurrentImage(viewer);
+	}
+
+	@Test
+	public void testKeyFrameHasFullBlocks() {
+		BlockManager bm = createBlockManager();
+		ScreenVideoV2BlockImage[] watching = createViewer();
+		play(bm.generateFrame(true), watching);
+
+		drawLine(bm, 1, 4, 0x000000);
+		play(bm.generateFrame(false), watching);
+		drawLine(bm, 2, 10, 0x0000FF);
+		drawLine(bm, 1, 30, 0xFF0000);
+
+		// A changed block too is sent in full, for the viewers that start with this frame.
+		IoBuffer keyFrame = bm.generateFrame(true);
+		ScreenVideoV2BlockImage[] joining = createViewer();
+		play(keyFrame, joining);
+		assertViewerHasCurrentImage(joining);
+		play(keyFrame, watching);
+		assertViewerHasCurrentImage(watching);
+	}
+
+	@Test
+	public void testSnapshotHasCurrentImage() {
+		BlockManager bm = createBlockManager();
+		play(bm.generateFrame(true), createViewer());
+
+		drawLine(bm, 1, 4, 0x000000);
+		bm.generateFrame(false);
+		drawLine(bm, 1, 30, 0xFF0000);
+		bm.generateFrame(false);
+
+		ScreenVideoV2BlockImage[] joining = createViewer();
+		play(bm.keyFrameSnapshot(), joining);
+		assertViewerHasCurrentImage(joining);
+	}
+
+	@Test
+	public void testCatchUpFrameHasFullBlocks() {
+		BlockManager bm = createBlockManager();
+		bm.generateFrame(true);
+		ScreenVideoV2BlockImage[] joining = createViewer();
+		play(bm.keyFrameSnapshot(), joining);
+
+		// The viewer joined with the snapshot but missed this frame.
+		drawLine(bm, 1, 4, 0x000000);
+		bm.generateFrame(false);
+		drawLine(bm, 1, 30, 0xFF0000);
+
+		play(bm.generateFrame(false, true), joining);
+		assertViewerHasCurrentImage(joining);
+	}
+}
@@ -0,0 +1,81 @@
+package org.bigbluebutton.deskshare.server.svc1;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class FrameBuilderTest {
+	private static final int SCREEN_WIDTH = 1920;
+	private static final int SCREEN_HEIGHT = 1080;
+	private static final int BLOCK_SIZE = 64;
+	private static final int ENCODED_BLOCK_LENGTH = 1000;
+	
+	// 30 columns x 17 rows
+	private static final int NUM_BLOCKS = 510;
+	// FLV video data header + block and screen dimensions
+	private static final int HEADER_LENGTH = 5;
+	
+	private BlockManager createBlockManager() {
+		BlockManager bm = new BlockManager("test", new Dimension(SCREEN_WIDTH, SCREEN_HEIGHT), 
+				new Dimension(BLOCK_SIZE, BLOCK_SIZE), false, false);
+		bm.initialize();
+		for (int position = 1; position <= NUM_BLOCKS; position++) {
+			bm.updateBlock(position, new byte[ENCODED_BLOCK_LENGTH], true, 0);
+		}
+		return bm;
+	}
+	
+	@Test
+	public void testKeyFrameContainsAllBlocks() {
+		BlockManager bm = createBlockManager();
+		IoBuffer frame = bm.generateFrame(true);
+		Assert.assertEquals(frame.position(), 0);
+		Assert.assertEquals(frame.remaining(), HEADER_LENGTH + NUM_BLOCKS * ENCODED_BLOCK_LENGTH);
+		Assert.assertEquals(frame.array().length, frame.remaining());
+	}
+	
+	@Test
+	public void testInterFrameWritesUnchangedBlocks() {
+		BlockManager bm = createBlockManager();
+		bm.generateFrame(true);
+		
+		// Only the block being refreshed in round robin is sent.
+		IoBuffer frame = bm.generateFrame(false);
+		Assert.assertEquals(frame.remaining(), HEADER_LENGTH + (NUM_BLOCKS - 1) * 2 + ENCODED_BLOCK_LENGTH);
+		Assert.assertEquals(frame.get(HEADER_LENGTH), (byte) 0);
+		Assert.assertEquals(frame.get(HEADER_LENGTH + 1), (byte) 0);
+	}
+	
+	@Test(groups = "benchmark")
+	public void benchmarkBytesAllocatedPerFrame() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			System.out.println("Thread allocation counters not supported. Skipping benchmark.");
+			return;
+		}
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		long threadId = Thread.currentThread().getId();
+		
+		BlockManager bm = createBlockManager();
+		int frames = 1000;
+		for (int i = 0; i < frames; i++) {
+			bm.generateFrame(false);
+		}
+		
+		long frameBytes = 0;
+		long start = allocations.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < frames; i++) {
+			frameBytes += bm.generateFrame(false).remaining();
+		}
+		long allocated = allocations.getThreadAllocatedBytes(threadId) - start;
+		
+		System.out.println("1080p with 64x64 blocks: frame=" + (frameBytes / frames) 
+				+ " bytes, allocated=" + (allocated / frames) + " bytes per frame.");
+		
+		// Only the frame itself and its IoBuffer wrapper should be allocated.
+		Assert.assertTrue(allocated / frames < (frameBytes / frames) + 1024);
+	}
+}
@@ -0,0 +1,117 @@
+package org.bigbluebutton.deskshare.server.svc1;
+
+import java.util.Arrays;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class KeyFrameSnapshotTest {
+	private static final int SCREEN_WIDTH = 1920;
+	private static final int SCREEN_HEIGHT = 1080;
+	private static final int BLOCK_SIZE = 64;
+	private static final int ENCODED_BLOCK_LENGTH = 1000;
+	
+	// 30 columns x 17 rows
+	private static final int NUM_BLOCKS = 510;
+	// FLV video data header + block and screen dimensions
+	private static final int HEADER_LENGTH = 5;
+	
+	private BlockManager createBlockManager() {
+		BlockManager bm = new BlockManager("test", new Dimension(SCREEN_WIDTH, SCREEN_HEIGHT), 
+				new Dimension(BLOCK_SIZE, BLOCK_SIZE), false, false);
+		bm.initialize();
+		for (int position = 1; position <= NUM_BLOCKS; position++) {
+			bm.updateBlock(position, block((byte) 1), true, 0);
+		}
+		return bm;
+	}
+	
+	private byte[] block(byte value) {
+		byte[] block = new byte[ENCODED_BLOCK_LENGTH];
+		Arrays.fill(block, value);
+		return block;
+	}
+	
+	@Test
+	public void testSnapshotIsSharedUntilABlockChanges() {
+		BlockManager bm = createBlockManager();
+		bm.generateFrame(true);
+		IoBuffer snapshot = bm.keyFrameSnapshot();
+		Assert.assertEquals(snapshot.remaining(), HEADER_LENGTH + NUM_BLOCKS * ENCODED_BLOCK_LENGTH);
+		
+		bm.generateFrame(false);
+		Assert.assertSame(bm.keyFrameSnapshot(), snapshot);
+		
+		bm.updateBlock(3, block((byte) 7), false, 1);
+		bm.generateFrame(false);
+		IoBuffer updated = bm.keyFrameSnapshot();
+		Assert.assertNotSame(updated, snapshot);
+		Assert.assertEquals(updated.get(HEADER_LENGTH + 2 * ENCODED_BLOCK_LENGTH), (byte) 7);
+		// The snapshot handed out before is left as is.
+		Assert.assertEquals(snapshot.get(HEADER_LENGTH + 2 * ENCODED_BLOCK_LENGTH), (byte) 1);
+	}
+	
+	@Test
+	public void testCatchUpFrameSendsBlocksChangedSinceTheSnapshots() {
+		BlockManager bm = createBlockManager();
+		bm.generateFrame(true);
+		bm.keyFrameSnapshot();
+		
+		bm.updateBlock(10, block((byte) 2), false, 1);
+		bm.generateFrame(false);
+		bm.keyFrameSnapshot();
+		bm.updateBlock(20, block((byte) 3), false, 1);
+		bm.generateFrame(false);
+		
+		// A viewer may have joined with either snapshot so both blocks are sent, 
+		// plus the block refreshed in round robin.
+		IoBuffer frame = bm.generateFrame(false, true);
+		Assert.assertEquals(frame.remaining(), HEADER_LENGTH + (NUM_BLOCKS - 3) * 2 + 3 * ENCODED_BLOCK_LENGTH);
+	}
+	
+	/*
+	 * Screen changing a few blocks at a time while 100 viewers join within a second.
+	 * Before, each join made the next frame a key frame for everyone. Now a joiner gets
+	 * the snapshot when it starts playing, and the next frame only carries the blocks 
+	 * changed since.
+	 */
+	@Test(groups = "benchmark")
+	public void benchmarkJoinToFirstFrame() {
+		BlockManager bm = createBlockManager();
+		bm.generateFrame(true);
+		int viewers = 100;
+		int framesPerViewer = 2;
+		
+		long keyFrameNanos = 0;
+		long keyFrameBytes = 0;
+		long snapshotNanos = 0;
+		long catchUpBytes = 0;
+		for (int i = 0; i < viewers * framesPerViewer; i++) {
+			// Typing in a few blocks
+			int seq = i + 1;
+			for (int b = 0; b < 4; b++) {
+				bm.updateBlock(1 + (i * 4 + b) % NUM_BLOCKS, block((byte) seq), false, seq);
+			}
+			
+			if (i % framesPerViewer == 0) {
+				long start = System.nanoTime();
+				IoBuffer keyFrame = bm.generateFrame(true);
+				keyFrameNanos += System.nanoTime() - start;
+				keyFrameBytes += keyFrame.remaining();
+				
+				start = System.nanoTime();
+				bm.keyFrameSnapshot();
+				snapshotNanos += System.nanoTime() - start;
+				catchUpBytes += bm.generateFrame(false, true).remaining();
+			} else {
+				bm.generateFrame(false);
+			}
+		}
+		
+		System.out.println("Join to first frame: key frame " + (keyFrameNanos / viewers / 1000) + " us, " 
+				+ (keyFrameBytes / viewers) + " bytes to every viewer. Snapshot " + (snapshotNanos / viewers / 1000)
+				+ " us, then " + (catchUpBytes / viewers) + " bytes to every viewer.");
+		Assert.assertTrue(catchUpBytes < keyFrameBytes);
+	}
+}
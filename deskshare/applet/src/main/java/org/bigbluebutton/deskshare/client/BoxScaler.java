@@ -0,0 +1,124 @@
+/**
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+* 
+* Copyright (c) 2012 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 3.0 of the License, or (at your option) any later
+* version.
+* 
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.bigbluebutton.deskshare.client;
+
+/**
+ * Scales packed RGB pixels with an integer box filter.
+ *
+ * Each target pixel is the average of the source pixels it covers. When the target
+ * is larger than the source the nearest source pixel is used. Nothing is allocated
+ * per call so the same scaler and target can be used for every capture.
+ */
+public class BoxScaler {
+	private final int targetWidth;
+	private final int targetHeight;
+	
+	private int sourceWidth = -1;
+	private int sourceHeight = -1;
+	
+	// Source columns [columnStart, columnEnd) and rows [rowStart, rowEnd) covered by each target pixel.
+	private int[] columnStart, columnEnd;
+	private int[] rowStart, rowEnd;
+	
+	// Sums of the color components of each source column over the rows of the current target row.
+	private int[] red, green, blue;
+	
+	public BoxScaler(int targetWidth, int targetHeight) {
+		this.targetWidth = targetWidth;
+		this.targetHeight = targetHeight;
+		columnStart = new int[targetWidth];
+		columnEnd = new int[targetWidth];
+		rowStart = new int[targetHeight];
+		rowEnd = new int[targetHeight];
+	}
+	
+	/**
+	 * Scales the source pixels into the target. Both are packed 0xRRGGBB ints, row after
+	 * row, with scanlines of the given stride. The alpha byte of the source is ignored.
+	 */
+	public void scale(int[] source, int sourceStride, int sourceWidth, int sourceHeight, int[] target, int targetStride) {
+		if (sourceWidth != this.sourceWidth || sourceHeight != this.sourceHeight) {
+			setSourceSize(sourceWidth, sourceHeight);
+		}
+		
+		for (int ty = 0; ty < targetHeight; ty++) {
+			sumColumns(source, sourceStride, rowStart[ty], rowEnd[ty]);
+			
+			int rows = rowEnd[ty] - rowStart[ty];
+			int offset = ty * targetStride;
+			for (int tx = 0; tx < targetWidth; tx++) {
+				int r = 0, g = 0, b = 0;
+				for (int x = columnStart[tx]; x < columnEnd[tx]; x++) {
+					r += red[x];
+					g += green[x];
+					b += blue[x];
+				}
+				
+				int count = rows * (columnEnd[tx] - columnStart[tx]);
+				int half = count >> 1;
+				target[offset + tx] = ((r + half) / count) << 16 | ((g + half) / count) << 8 | (b + half) / count;
+			}
+		}
+	}
+	
+	private void sumColumns(int[] source, int sourceStride, int fromRow, int toRow) {
+		int offset = fromRow * sourceStride;
+		for (int x = 0; x < sourceWidth; x++) {
+			int p = source[offset + x];
+			red[x] = (p >> 16) & 0xFF;
+			green[x] = (p >> 8) & 0xFF;
+			blue[x] = p & 0xFF;
+		}
+		
+		for (int y = fromRow + 1; y < toRow; y++) {
+			offset = y * sourceStride;
+			for (int x = 0; x < sourceWidth; x++) {
+				int p = source[offset + x];
+				red[x] += (p >> 16) & 0xFF;
+				green[x] += (p >> 8) & 0xFF;
+				blue[x] += p & 0xFF;
+			}
+		}
+	}
+	
+	private void setSourceSize(int sourceWidth, int sourceHeight) {
+		this.sourceWidth = sourceWidth;
+		this.sourceHeight = sourceHeight;
+		coverage(sourceWidth, targetWidth, columnStart, columnEnd);
+		coverage(sourceHeight, targetHeight, rowStart, rowEnd);
+		red = new int[sourceWidth];
+		green = new int[sourceWidth];
+		blue = new int[sourceWidth];
+	}
+	
+	private static void coverage(int sourceLength, int targetLength, int[] start, int[] end) {
+		for (int t = 0; t < targetLength; t++) {
+			start[t] = (int) ((long) t * sourceLength / targetLength);
+			end[t] = Math.max(start[t] + 1, (int) ((long) (t + 1) * sourceLength / targetLength));
+		}
+	}
+	
+	public int getTargetWidth() {
+		return targetWidth;
+	}
+	
+	public int getTargetHeight() {
+		return targetHeight;
+	}
+}
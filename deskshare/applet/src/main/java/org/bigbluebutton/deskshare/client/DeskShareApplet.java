@@ -43,6 +43,8 @@ public class DeskShareApplet extends JApplet implements ClientListener {
     Boolean tunnelValue = true;
     Boolean fullScreenValue = false;
     Boolean useSVC2Value = false;
+    Integer numSendersValue = new Integer(1);
+    Integer tunnelBatchesValue = new Integer(0);
     DeskshareClient client;
     Image icon;
     
@@ -71,8 +73,14 @@ public class DeskShareApplet extends JApplet implements ClientListener {
 		String useSVC2 = getParameter("SVC2");
 		if (useSVC2 != null) useSVC2Value = Boolean.parseBoolean(useSVC2);
 
+		String numSenders = getParameter("SENDERS");
+		if (numSenders != null) numSendersValue = Integer.parseInt(numSenders);
+
 		String tunnel = getParameter("HTTP_TUNNEL");
 		if (tunnel != null) tunnelValue = Boolean.parseBoolean(tunnel);
+
+		String tunnelBatches = getParameter("TUNNEL_BATCHES");
+		if (tunnelBatches != null) tunnelBatchesValue = Integer.parseInt(tunnelBatches);
 		icon = getImage(getCodeBase(), "bbb.gif");
 	}
 		
@@ -85,7 +93,7 @@ public class DeskShareApplet extends JApplet implements ClientListener {
 					.captureHeight(cHeightValue).scaleWidth(sWidthValue).scaleHeight(sHeightValue)
 					.quality(qualityValue)
 					.x(xValue).y(yValue).fullScreen(fullScreenValue).useSVC2(useSVC2Value)
-					.httpTunnel(tunnelValue).trayIcon(icon).enableTrayIconActions(false).build();
+					.numSenders(numSendersValue).httpTunnel(tunnelValue).tunnelBatches(tunnelBatchesValue).trayIcon(icon).enableTrayIconActions(false).build();
 		client.addClientListener(this);
 		client.start();
 	}
@@ -94,6 +94,8 @@ public class DeskshareClient {
     	private boolean enableTrayActions = false;
     	private boolean fullScreen = false;
     	private boolean useSVC2 = false;
+    	private int numSenders = 1;
+    	private int tunnelBatches = 0;
     	
     	public NewBuilder host(String host) {
     		this.host = host;
@@ -165,6 +167,16 @@ public class DeskshareClient {
     		return this;
     	}
     	   	
+    	public NewBuilder numSenders(int numSenders) {
+    		this.numSenders = numSenders;
+    		return this;
+    	}
+    	   	
+    	public NewBuilder tunnelBatches(int tunnelBatches) {
+    		this.tunnelBatches = tunnelBatches;
+    		return this;
+    	}
+    	   	
     	public NewBuilder trayIcon(Image icon) {
     		this.sysTrayIcon = icon;
     		return this;
@@ -199,6 +211,8 @@ public class DeskshareClient {
     		ssi.httpTunnel = httpTunnel;
     		ssi.fullScreen = fullScreen;
     		ssi.useSVC2 = useSVC2;
+    		ssi.numSenders = numSenders;
+    		ssi.tunnelBatches = tunnelBatches;
     		ssi.sysTrayIcon = sysTrayIcon;
     		ssi.enableTrayActions = enableTrayActions;
     		
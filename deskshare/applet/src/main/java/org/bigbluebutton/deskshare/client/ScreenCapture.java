@@ -23,15 +23,21 @@ import java.awt.Graphics2D;
 import java.awt.GraphicsConfiguration;
 import java.awt.GraphicsDevice;
 import java.awt.GraphicsEnvironment;
-import java.awt.Image;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Robot;
 import java.awt.Transparency;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 
 /**
  * The Capture class uses the java Robot class to capture the screen.
+ * 
+ * Scaled captures are written into the same int packed image every time so only
+ * the Robot's own capture is allocated per snapshot. The image returned is only
+ * valid until the next snapshot is taken.
  * @author Snap
  *
  */
@@ -41,6 +47,11 @@ public class ScreenCapture {
 	private int scaleWidth, scaleHeight, x,y, captureWidth, captureHeight;
 	private boolean quality;
 	private GraphicsConfiguration graphicsConfig;
+	
+	private BoxScaler scaler;
+	private BufferedImage scaledImage;
+	// Pixels of captures the Robot didn't return as packed ints.
+	private int[] capturedPixels;
 
 	public ScreenCapture(int x, int y, int captureWidth, int captureHeight, int scaleWidth, int scaleHeight, boolean quality) {
 		this.captureWidth = captureWidth;
@@ -69,7 +80,7 @@ public class ScreenCapture {
 //				+ "[sw==" + scaleWidth + ",sh=" + scaleHeight + "]");
 		
 		if (needToScaleImage()) {
-			return useQuality(capturedImage);
+			return scale(capturedImage);
 		} else {
 			return capturedImage;
 		}
@@ -100,21 +111,42 @@ public class ScreenCapture {
 	}
 	
 	private boolean needToScaleImage() {
-		return (captureWidth != scaleWidth && captureHeight != scaleHeight);
+		return (captureWidth != scaleWidth || captureHeight != scaleHeight);
 	}
 
-	private BufferedImage useQuality(BufferedImage image) {	    
-	    BufferedImage resultImage = graphicsConfig.createCompatibleImage(scaleWidth, scaleHeight, Transparency.BITMASK);
-	    resultImage.setAccelerationPriority(1);
-	    
-		Graphics2D g2 = resultImage.createGraphics();
-					
-		Image scaledImage = image.getScaledInstance(scaleWidth, scaleHeight, Image.SCALE_AREA_AVERAGING);
-		g2.drawImage(scaledImage, 0, 0, scaleWidth, scaleHeight, null);				
-
-
-		g2.dispose();
-		return resultImage;
+	private BufferedImage scale(BufferedImage image) {
+		if (scaledImage == null) {
+			scaler = new BoxScaler(scaleWidth, scaleHeight);
+			scaledImage = new BufferedImage(scaleWidth, scaleHeight, BufferedImage.TYPE_INT_RGB);
+		}
+		
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] pixels;
+		int scanlineStride;
+		if (isIntPacked(image)) {
+			pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+			scanlineStride = ((SinglePixelPackedSampleModel) image.getRaster().getSampleModel()).getScanlineStride();
+		} else {
+			if (capturedPixels == null || capturedPixels.length != width * height) {
+				capturedPixels = new int[width * height];
+			}
+			pixels = image.getRGB(0, 0, width, height, capturedPixels, 0, width);
+			scanlineStride = width;
+		}
+		
+		int[] target = ((DataBufferInt) scaledImage.getRaster().getDataBuffer()).getData();
+		scaler.scale(pixels, scanlineStride, width, height, target, scaleWidth);
+		return scaledImage;
+	}
+	
+	private boolean isIntPacked(BufferedImage image) {
+		int type = image.getType();
+		if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB) return false;
+		
+		Raster raster = image.getRaster();
+		return raster.getParent() == null && raster.getDataBuffer().getNumBanks() == 1
+				&& raster.getDataBuffer().getOffset() == 0;
 	}
 	
 		 
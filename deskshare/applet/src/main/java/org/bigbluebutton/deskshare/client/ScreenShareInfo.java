@@ -37,4 +37,6 @@ public class ScreenShareInfo {
    	public Image sysTrayIcon;
    	public boolean enableTrayActions;
    	public boolean useSVC2;
+   	public int numSenders;
+   	public int tunnelBatches;
 }
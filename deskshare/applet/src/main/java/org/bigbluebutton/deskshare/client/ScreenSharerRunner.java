@@ -63,7 +63,8 @@ public class ScreenSharerRunner {
 		blockManager = new BlockManager();		
 		blockManager.initialize(screenDim, tileDim, ssi.useSVC2);
 		
-		sender = new NetworkStreamSender(blockManager, ssi.host, ssi.port, ssi.room, screenDim, tileDim, ssi.httpTunnel, ssi.useSVC2);
+		sender = new NetworkStreamSender(blockManager, ssi.host, ssi.port, ssi.room, screenDim, tileDim, ssi.httpTunnel, ssi.useSVC2, ssi.numSenders);
+		sender.setTunnelBatchesPerRequest(ssi.tunnelBatches);
 	}
 	
 	public void startSharing() {	
@@ -101,6 +102,7 @@ public class ScreenSharerRunner {
 		tray.removeIconFromSystemTray();
 		captureTaker.stop();
 		mouseLocTaker.stop();
+		blockManager.stop();
 		if (connected && started) {
 			try {
 				sender.stop();
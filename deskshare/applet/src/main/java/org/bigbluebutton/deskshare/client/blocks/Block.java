@@ -19,49 +19,58 @@
 package org.bigbluebutton.deskshare.client.blocks;
 
 import java.awt.Point;
-import java.awt.image.BufferedImage;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.bigbluebutton.deskshare.client.blocks.SentBlockCache.SentBlock;
 import org.bigbluebutton.deskshare.client.net.EncodedBlockData;
-import org.bigbluebutton.deskshare.common.PixelExtractException;
-import org.bigbluebutton.deskshare.common.ScreenVideoEncoder;
+import org.bigbluebutton.deskshare.common.BlockReference;
+import org.bigbluebutton.deskshare.common.ScreenVideoPixelEncoder;
+import org.bigbluebutton.deskshare.common.ScreenVideoV2Encoder;
 import org.bigbluebutton.deskshare.common.Dimension;
 
 public final class Block {
     private static final int KEEP_ALIVE_INTERVAL = 30000;
     private static final int DIRTY_COUNT_LIMIT = 10;
     
-    private final BlockChecksum checksum;
     private final Dimension dim;
     private final int position;
     private final Point location;    
     private int[] capturedPixels;
+    private long capturedPixelsHash;
     private final Object pixelsLock = new Object();
     private long lastSent = System.currentTimeMillis();
     private AtomicLong sentCount = new AtomicLong();
     private Integer dirtyCount = DIRTY_COUNT_LIMIT; // initially, blocks are sent immediately
     private boolean useSVC2;
+    private final ScreenVideoV2Encoder svc2Encoder;
+    
+    // Full blocks sent so far. null when blocks are always encoded.
+    private SentBlockCache sentBlocks;
+    // The last full block encoded, to add to sentBlocks once it is sent.
+    private long encodedPixelsHash;
+    private SentBlock encodedBlock;
     
     Block(Dimension dim, int position, Point location, boolean useSVC2) {
-        checksum = new BlockChecksum();
         this.dim = dim;
         this.position = position;
         this.location = location;
         this.useSVC2 = useSVC2;
+        svc2Encoder = useSVC2 ? new ScreenVideoV2Encoder(dim.getWidth(), dim.getHeight()) : null;
     }
     
-    public boolean hasChanged(BufferedImage capturedScreen) {	 
-    	synchronized(pixelsLock) {
-            try {
-            	capturedPixels = ScreenVideoEncoder.getPixels(capturedScreen, getX(), getY(), getWidth(), getHeight(), useSVC2);
-            } catch (PixelExtractException e) {
-            	System.out.println(e.toString());
-        	}  
-            
-            
-    	}
+    /**
+     * Checks if the block's area of the captured screen is different from the 
+     * previous capture. The captured pixels are only extracted when they changed.
+     * 
+     * @param screen - pixels of the captured screen
+     * @param previous - pixels of the previous capture, updated with the block's changed pixels
+     * @param scanlineStride - number of pixels between the start of two rows of the screen
+     */
+    public boolean hasChanged(int[] screen, int[] previous, int scanlineStride) {	 
+        boolean changed = updatePixels(screen, previous, scanlineStride);
+        
         synchronized (dirtyCount) {
-            if ((! checksumSame(capturedPixels)) || sendKeepAliveBlock()) {
+            if (changed || sendKeepAliveBlock()) {
                 if (dirtyCount >= DIRTY_COUNT_LIMIT) {
                     dirtyCount = 0;
                     return true;
@@ -98,43 +107,102 @@ public final class Block {
     	return false;
     }
     
+    void setSentBlockCache(SentBlockCache sentBlocks) {
+    	this.sentBlocks = sentBlocks;
+    }
+    
     public void sent() {
     	sentCount.incrementAndGet();
+    	if (sentBlocks != null) {
+    		synchronized (this) {
+    			if (encodedBlock != null) sentBlocks.blockSent(encodedPixelsHash, encodedBlock);
+    		}
+    	}
     }
     
     public EncodedBlockData encode() {   
     	int[] pixelsCopy = new int[capturedPixels.length];
+    	long pixelsHash;
     	
     	synchronized (pixelsLock) {     		
             System.arraycopy(capturedPixels, 0, pixelsCopy, 0, capturedPixels.length);
+            pixelsHash = capturedPixelsHash;
 		}
+    	
+    	if (sentBlocks != null) {
+    		SentBlock sent = sentBlocks.getSentBlock(pixelsHash);
+    		if (sent != null) {
+    			// The server has these pixels already, maybe at another position.
+    			if (useSVC2) {
+    				synchronized (svc2Encoder) {
+    					svc2Encoder.setImage(pixelsCopy);
+    				}
+    			}
+    			setEncodedBlock(pixelsHash, sent);
+    			sentBlocks.blockReused(sent);
+    			return new EncodedBlockData(position, BlockReference.encode(sent.blockHash));
+    		}
+    	}
 
-    	byte[] encodedBlock = useSVC2 ?
-    			ScreenVideoEncoder.encodePixelsSVC2(pixelsCopy, getWidth(), getHeight()) :
-    			ScreenVideoEncoder.encodePixels(pixelsCopy, getWidth(), getHeight(), (sentCount.longValue() < 5) /* send grayscale image */); 	
+    	byte[] encodedBlock;
+    	if (useSVC2) {
+    		synchronized (svc2Encoder) {
+    			encodedBlock = svc2Encoder.encode(pixelsCopy);
+    		}
+    	} else {
+    		encodedBlock = ScreenVideoPixelEncoder.forCurrentThread().encodePixels(pixelsCopy, getWidth(), getHeight());
+    	}
+    	
+    	if (sentBlocks != null) {
+    		// Diff blocks depend on the viewer's image of this block so can't be reused.
+    		boolean fullBlock = !useSVC2 || !ScreenVideoV2Encoder.isIncrementalBlock(encodedBlock);
+    		setEncodedBlock(pixelsHash, fullBlock ? new SentBlock(BlockReference.hash(encodedBlock), encodedBlock.length) : null);
+    	}
         return new EncodedBlockData(position, encodedBlock);		
     }
     
-    private boolean checksumSame(int[] pixels) {
-    	return checksum.isChecksumSame(convertIntPixelsToBytePixels(pixels)); 
+    private synchronized void setEncodedBlock(long pixelsHash, SentBlock block) {
+    	encodedPixelsHash = pixelsHash;
+    	encodedBlock = block;
     }
-          
-    private byte[] convertIntPixelsToBytePixels(int[] pixels) {
-    	byte[] p = new byte[pixels.length * 3];
-    	int position = 0;
-		
-		for (int i = 0; i < pixels.length; i++) {
-			byte red = (byte) ((pixels[i] >> 16) & 0xff);
-			byte green = (byte) ((pixels[i] >> 8) & 0xff);
-			byte blue = (byte) (pixels[i] & 0xff);
-
-			// Sequence should be BGR
-			p[position++] = blue;
-			p[position++] = green;
-			p[position++] = red;
-		}
-		
-		return p;
+    
+    private boolean updatePixels(int[] screen, int[] previous, int scanlineStride) {
+    	int width = dim.getWidth();
+    	int height = dim.getHeight();
+    	int offset = location.y * scanlineStride + location.x;
+    	
+    	int firstChangedRow = 0;
+    	if (capturedPixels != null) {
+    		firstChangedRow = findFirstChangedRow(screen, previous, offset, scanlineStride, width, height);
+    		if (firstChangedRow == height) return false;
+    	}
+    	
+    	// The rows above the first changed row are already in capturedPixels.
+    	synchronized (pixelsLock) {
+    		if (capturedPixels == null) {
+    			capturedPixels = new int[width * height];
+    		}
+    		for (int row = firstChangedRow; row < height; row++) {
+    			int pos = offset + row * scanlineStride;
+    			System.arraycopy(screen, pos, capturedPixels, row * width, width);
+    			System.arraycopy(screen, pos, previous, pos, width);
+    		}
+    		if (sentBlocks != null) {
+    			capturedPixelsHash = BlockReference.hash(capturedPixels, width, height);
+    		}
+    	}
+    	return true;
+    }
+    
+    private static int findFirstChangedRow(int[] screen, int[] previous, int offset, int scanlineStride, int width, int height) {
+    	for (int row = 0; row < height; row++) {
+    		int start = offset + row * scanlineStride;
+    		int end = start + width;
+    		for (int i = start; i < end; i++) {
+    			if (screen[i] != previous[i]) return row;
+    		}
+    	}
+    	return height;
     }
     
     public int getWidth() {
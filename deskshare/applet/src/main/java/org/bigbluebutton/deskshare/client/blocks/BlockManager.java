@@ -19,15 +19,41 @@
 package org.bigbluebutton.deskshare.client.blocks;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 import org.bigbluebutton.deskshare.client.net.BlockMessage;
 import org.bigbluebutton.deskshare.common.Dimension;
 
-
+/**
+ * Finds the blocks that changed in a captured screen.
+ * 
+ * The pixels of the captured screen are compared in place against the previous
+ * capture, which is kept here, and only the pixels of changed blocks are copied 
+ * out. When the presenter has more than one processor, the rows of blocks are 
+ * split between detection threads.
+ * 
+ * The pixels of the changed blocks are also hashed so that a block whose content
+ * was already sent, at the same or another position, is sent as a reference to 
+ * the block the server has instead of being encoded again. When the presenter 
+ * scrolls or moves a window by a multiple of the block size, most of the blocks
+ * are sent that way.
+ */
 public class BlockManager {
+    private static final int MAX_DETECTION_THREADS = 4;
+    
     private final Map<Integer, Block> blocksMap;
+    private Block[] blocks;
     private int numColumns;
     private int numRows;
     
@@ -35,6 +61,19 @@ public class BlockManager {
     private ChangedBlocksListener listeners;
     private Dimension screenDim, blockDim;
     
+    private int[] previousPixels;
+    private int[] screenPixels;
+    
+    private int numDetectionThreads = Math.min(Runtime.getRuntime().availableProcessors(), MAX_DETECTION_THREADS);
+    private ExecutorService detectionExec;
+    
+    private boolean reuseSentBlocks = true;
+    private SentBlockCache sentBlocks;
+    
+    private final AtomicLong capturesProcessed = new AtomicLong();
+    private final AtomicLong totalDetectionNanos = new AtomicLong();
+    private volatile long lastDetectionNanos = 0;
+    
     public BlockManager() {
     	blocksMap = new HashMap<Integer, Block>();
     }
@@ -50,50 +89,135 @@ public class BlockManager {
         int numberOfBlocks = numColumns * numRows;
         System.out.println("Sharing " + numberOfBlocks + " blocks [rows=" + numRows + ", cols=" + numColumns + "]");
         
+        blocks = new Block[numberOfBlocks];
+        if (reuseSentBlocks) {
+        	sentBlocks = new SentBlockCache(numberOfBlocks * 2);
+        }
         for (int position = 1; position <= numberOfBlocks; position++) {
         	Block block = factory.createBlock(position, useSVC2);
+        	block.setSentBlockCache(sentBlocks);
         	blocksMap.put(new Integer(position), block);
+        	blocks[position - 1] = block;
         }  
+        
+        if (numDetectionThreads > 1 && numRows > 1) {
+        	System.out.println("Detecting changed blocks with " + numDetectionThreads + " threads.");
+        	detectionExec = Executors.newFixedThreadPool(numDetectionThreads, new ThreadFactory() {
+        		public Thread newThread(Runnable r) {
+        			Thread t = new Thread(r, "BlockChangeDetector");
+        			t.setDaemon(true);
+        			return t;
+        		}
+        	});
+        }
+    }
+    
+    public void stop() {
+    	if (detectionExec != null) {
+    		detectionExec.shutdownNow();
+    	}
     }
     
     public void processCapturedScreen(BufferedImage capturedScreen) {    	
-    	long start = System.currentTimeMillis();
+    	long start = System.nanoTime();
     	
-    	Vector<Integer> changedBlocks = new Vector<Integer>();
-/*		
-		int numberOfBlocks = numColumns * numRows;
-		for (int position = 1; position <= numberOfBlocks; position++) {
-			Block block = blocksMap.get(new Integer(position));
-        	if (block.hasChanged(capturedScreen)) {
-        		changedBlocks.add(new Integer(position));        		
-        	}
-		}  
+    	final int scanlineStride = getScanlineStride(capturedScreen);
+    	final int[] screen = getPixels(capturedScreen, scanlineStride);
+    	if (previousPixels == null || previousPixels.length != screen.length) {
+    		previousPixels = new int[screen.length];
+    	}
     	
-		if (changedBlocks.size() > 0) {
-			Integer[] bc = new Integer[changedBlocks.size()];
-			System.arraycopy(changedBlocks.toArray(), 0, bc, 0, bc.length);
-			changedBlocks.clear();
-			notifyChangedBlockListener(new BlockMessage(bc));
-		}
-*/
-		
-		int numberOfBlocks = numColumns * numRows;
-		for (int position = 1; position <= numberOfBlocks; position++) {
-			Block block = blocksMap.get(new Integer(position));
-        	if (block.hasChanged(capturedScreen)) {
-        		changedBlocks.add(new Integer(position));        		
-        	}
-        	
-    		if ((position % numColumns == 0) && (changedBlocks.size() > 0)) {
-    			Integer[] bc = new Integer[changedBlocks.size()];
-    			System.arraycopy(changedBlocks.toArray(), 0, bc, 0, bc.length);
-    			changedBlocks.clear();
-    			notifyChangedBlockListener(new BlockMessage(bc));
+    	// Changed block positions for each row of blocks, starting from the bottom row.
+    	final Integer[][] changedBlocks = new Integer[numRows][];
+    	
+    	if (detectionExec == null) {
+    		detectChangedBlocks(0, numRows, screen, scanlineStride, changedBlocks);
+    	} else {
+    		int rowsPerThread = (numRows + numDetectionThreads - 1) / numDetectionThreads;
+    		List<Future<?>> detections = new ArrayList<Future<?>>(numDetectionThreads);
+    		for (int fromRow = 0; fromRow < numRows; fromRow += rowsPerThread) {
+    			final int from = fromRow;
+    			final int to = Math.min(numRows, fromRow + rowsPerThread);
+    			detections.add(detectionExec.submit(new Runnable() {
+    				public void run() {
+    					detectChangedBlocks(from, to, screen, scanlineStride, changedBlocks);
+    				}
+    			}));
     		}
+    		
+    		try {
+    			for (Future<?> detection : detections) {
+    				detection.get();
+    			}
+    		} catch (InterruptedException e) {
+    			System.out.println("Interrupted while detecting changed blocks.");
+    			Thread.currentThread().interrupt();
+    			return;
+    		} catch (ExecutionException e) {
+    			System.out.println("Failed to detect changed blocks: " + e.getCause());
+    			return;
+    		}
+    	}
+		
+		long end = System.nanoTime();
+		lastDetectionNanos = end - start;
+		totalDetectionNanos.addAndGet(lastDetectionNanos);
+		capturesProcessed.incrementAndGet();
+		
+		for (int row = 0; row < numRows; row++) {
+			if (changedBlocks[row] != null) {
+				notifyChangedBlockListener(new BlockMessage(changedBlocks[row]));
+			}
 		}
-
-		long end = System.currentTimeMillis();
-//		System.out.println("Processing blocks took " + (end - start) + " millis");
+    }
+    
+    private void detectChangedBlocks(int fromRow, int toRow, int[] screen, int scanlineStride, Integer[][] changedBlocks) {
+    	List<Integer> changed = new ArrayList<Integer>(numColumns);
+    	for (int row = fromRow; row < toRow; row++) {
+    		int firstPosition = row * numColumns + 1;
+    		for (int position = firstPosition; position < firstPosition + numColumns; position++) {
+    			if (blocks[position - 1].hasChanged(screen, previousPixels, scanlineStride)) {
+    				changed.add(new Integer(position));
+    			}
+    		}
+    		
+    		if (changed.size() > 0) {
+    			changedBlocks[row] = changed.toArray(new Integer[changed.size()]);
+    			changed.clear();
+    		}
+    	}
+    }
+    
+    /**
+     * Returns the pixels of the captured screen. Screens captured as packed ints
+     * are read in place, other images are converted once into a reused array.
+     */
+    private int[] getPixels(BufferedImage image, int scanlineStride) {
+    	if (isIntPacked(image)) {
+    		return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    	}
+    	
+    	int length = scanlineStride * image.getHeight();
+    	if (screenPixels == null || screenPixels.length != length) {
+    		screenPixels = new int[length];
+    	}
+    	return image.getRGB(0, 0, image.getWidth(), image.getHeight(), screenPixels, 0, scanlineStride);
+    }
+    
+    private int getScanlineStride(BufferedImage image) {
+    	if (isIntPacked(image)) {
+    		return ((SinglePixelPackedSampleModel) image.getRaster().getSampleModel()).getScanlineStride();
+    	}
+    	return image.getWidth();
+    }
+    
+    private boolean isIntPacked(BufferedImage image) {
+    	int type = image.getType();
+    	if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB) return false;
+    	
+    	Raster raster = image.getRaster();
+    	return raster.getParent() == null && raster.getDataBuffer().getNumBanks() == 1
+    			&& raster.getDataBuffer().getOffset() == 0;
     }
         
     private void notifyChangedBlockListener(BlockMessage position) {
@@ -118,6 +242,44 @@ public class BlockManager {
 		return (Block) blocksMap.get(new Integer(position));
 	}
 	
+	/**
+	 * Set before initialize. Less than 2 detects the changed blocks on the capture thread.
+	 */
+	public void setNumDetectionThreads(int numDetectionThreads) {
+		this.numDetectionThreads = numDetectionThreads;
+	}
+	
+	/**
+	 * Set before initialize. Whether blocks already sent are reused instead of sent again.
+	 */
+	public void setReuseSentBlocks(boolean reuseSentBlocks) {
+		this.reuseSentBlocks = reuseSentBlocks;
+	}
+	
+	public long getBlocksReused() {
+		return sentBlocks == null ? 0 : sentBlocks.getBlocksReused();
+	}
+	
+	public long getBytesReused() {
+		return sentBlocks == null ? 0 : sentBlocks.getBytesReused();
+	}
+	
+	public long getCapturesProcessed() {
+		return capturesProcessed.get();
+	}
+	
+	/**
+	 * Time, in microseconds, it took to find the changed blocks of the last capture.
+	 */
+	public long getLastDetectionTime() {
+		return lastDetectionNanos / 1000;
+	}
+	
+	public long getAverageDetectionTime() {
+		long processed = capturesProcessed.get();
+		return processed == 0 ? 0 : totalDetectionNanos.get() / processed / 1000;
+	}
+	
     public int getRowCount() {
         return numRows;
     }
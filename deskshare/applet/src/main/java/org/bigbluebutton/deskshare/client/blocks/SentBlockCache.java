@@ -0,0 +1,89 @@
+/**
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+* 
+* Copyright (c) 2012 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 3.0 of the License, or (at your option) any later
+* version.
+* 
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.bigbluebutton.deskshare.client.blocks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The full blocks that were sent, by the hash of their pixels. A block whose pixels
+ * are the same as a block in here is sent as a reference to it (see BlockReference)
+ * instead of being encoded and sent again.
+ * 
+ * The server keeps twice as many blocks as the applet so the blocks referenced are 
+ * still there. This class is threadsafe.
+ */
+public class SentBlockCache {
+	private final Map<Long, SentBlock> sentBlocks;
+	
+	private final AtomicLong blocksReused = new AtomicLong();
+	private final AtomicLong bytesReused = new AtomicLong();
+	
+	/**
+	 * @param capacity - number of blocks to remember. The least recently used are forgotten first.
+	 */
+	public SentBlockCache(final int capacity) {
+		sentBlocks = new LinkedHashMap<Long, SentBlock>(capacity, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, SentBlock> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+	
+	/**
+	 * Returns the block sent with these pixels, or null if there is none.
+	 */
+	synchronized SentBlock getSentBlock(long pixelsHash) {
+		return sentBlocks.get(new Long(pixelsHash));
+	}
+	
+	synchronized void blockSent(long pixelsHash, SentBlock block) {
+		sentBlocks.put(new Long(pixelsHash), block);
+	}
+	
+	void blockReused(SentBlock block) {
+		blocksReused.incrementAndGet();
+		bytesReused.addAndGet(block.length);
+	}
+	
+	public long getBlocksReused() {
+		return blocksReused.get();
+	}
+	
+	/**
+	 * Number of bytes of encoded blocks that were not sent because they were reused.
+	 */
+	public long getBytesReused() {
+		return bytesReused.get();
+	}
+	
+	static final class SentBlock {
+		final long blockHash;
+		final int length;
+		
+		SentBlock(long blockHash, int length) {
+			this.blockHash = blockHash;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/**
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+* 
+* Copyright (c) 2012 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 3.0 of the License, or (at your option) any later
+* version.
+* 
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.bigbluebutton.deskshare.client.net;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Blocks waiting to be sent, where the latest capture wins.
+ * 
+ * A block position is queued at most once. When a block changes again before 
+ * it was sent, the pending entry is kept (with its place in the queue) and the 
+ * sender encodes the newest pixels when it takes the block. Likewise only the 
+ * latest cursor location is kept.
+ * 
+ * A block taken by a sender is in flight until {@link #sent(int)} or 
+ * {@link #notSent(int)} is called. It isn't handed to another sender meanwhile, 
+ * so the updates of a block always go out in the order they were encoded.
+ */
+@ThreadSafe
+public class BlockSendQueue {
+	private final long[] queuedAt;
+	private final boolean[] inFlight;
+	private final LinkedList<Integer> pending = new LinkedList<Integer>();
+	private CursorMessage cursor;
+	private int poisonCount = 0;
+	
+	private long startedAt = 0;
+	private long captures = 0;
+	private long blocksQueued = 0;
+	private long blocksSuperseded = 0;
+	private long blocksTaken = 0;
+	private long totalQueueNanos = 0;
+	private long cursorsSuperseded = 0;
+	
+	/**
+	 * @param numBlocks - block positions go from 1 to numBlocks
+	 */
+	public BlockSendQueue(int numBlocks) {
+		queuedAt = new long[numBlocks + 1];
+		inFlight = new boolean[numBlocks + 1];
+	}
+	
+	public synchronized void offer(BlockMessage message) {
+		long now = System.nanoTime();
+		if (startedAt == 0) startedAt = now;
+		captures++;
+		Integer[] positions = message.getBlocks();
+		for (int i = 0; i < positions.length; i++) {
+			int position = positions[i].intValue();
+			blocksQueued++;
+			if (queuedAt[position] != 0) {
+				blocksSuperseded++;
+			} else {
+				queuedAt[position] = now;
+				pending.add(positions[i]);
+			}
+		}
+		notifyAll();
+	}
+	
+	public synchronized void offer(CursorMessage message) {
+		if (cursor != null) cursorsSuperseded++;
+		cursor = message;
+		notifyAll();
+	}
+	
+	/**
+	 * Makes one waiting sender stop. Poison is taken before anything else.
+	 */
+	public synchronized void poison() {
+		poisonCount++;
+		notifyAll();
+	}
+	
+	/**
+	 * Drops the pending blocks and cursor location.
+	 */
+	public synchronized void clear() {
+		for (Integer position : pending) {
+			queuedAt[position.intValue()] = 0;
+		}
+		pending.clear();
+		cursor = null;
+	}
+	
+	/**
+	 * Waits for the next message to send. A sender takes its share of the pending
+	 * blocks so that they are spread between the numSenders senders.
+	 */
+	public synchronized Message take(int numSenders) throws InterruptedException {
+		while (true) {
+			if (poisonCount > 0) {
+				poisonCount--;
+				return new PoisonMessage();
+			}
+			if (cursor != null) {
+				Message message = cursor;
+				cursor = null;
+				return message;
+			}
+			
+			int maxBlocks = (pending.size() + numSenders - 1) / Math.max(1, numSenders);
+			List<Integer> blocks = takeBlocks(Math.max(1, maxBlocks));
+			if (!blocks.isEmpty()) {
+				return new BlockMessage(blocks.toArray(new Integer[blocks.size()]));
+			}
+			wait();
+		}
+	}
+	
+	private List<Integer> takeBlocks(int maxBlocks) {
+		List<Integer> blocks = new ArrayList<Integer>(Math.min(maxBlocks, pending.size()));
+		long now = System.nanoTime();
+		Iterator<Integer> it = pending.iterator();
+		while (it.hasNext() && blocks.size() < maxBlocks) {
+			Integer position = it.next();
+			int pos = position.intValue();
+			if (inFlight[pos]) continue;
+			
+			it.remove();
+			totalQueueNanos += now - queuedAt[pos];
+			queuedAt[pos] = 0;
+			inFlight[pos] = true;
+			blocksTaken++;
+			blocks.add(position);
+		}
+		return blocks;
+	}
+	
+	public synchronized void sent(int position) {
+		inFlight[position] = false;
+		if (queuedAt[position] != 0) notifyAll();
+	}
+	
+	/**
+	 * The block couldn't be sent. Queue it again so its latest pixels go out.
+	 */
+	public synchronized void notSent(int position) {
+		inFlight[position] = false;
+		if (queuedAt[position] == 0) {
+			queuedAt[position] = System.nanoTime();
+			pending.add(new Integer(position));
+		}
+		notifyAll();
+	}
+	
+	public synchronized int getNumPendingBlocks() {
+		return pending.size();
+	}
+	
+	/**
+	 * How long, in milliseconds, the oldest pending block has been waiting.
+	 */
+	public synchronized long getOldestPendingAge() {
+		long oldest = 0;
+		long now = System.nanoTime();
+		for (Integer position : pending) {
+			oldest = Math.max(oldest, now - queuedAt[position.intValue()]);
+		}
+		return oldest / 1000000;
+	}
+	
+	/**
+	 * Average time, in milliseconds, blocks waited before being taken by a sender.
+	 */
+	public synchronized long getAverageQueueTime() {
+		return blocksTaken == 0 ? 0 : totalQueueNanos / blocksTaken / 1000000;
+	}
+	
+	public synchronized long getBlocksQueued() {
+		return blocksQueued;
+	}
+	
+	/**
+	 * Number of block changes that were merged into an already pending update of the block.
+	 */
+	public synchronized long getBlocksSuperseded() {
+		return blocksSuperseded;
+	}
+	
+	/**
+	 * Captures with changes per second, less the share of block changes that were
+	 * superseded before being sent. This is the frame rate the viewers actually get.
+	 */
+	public synchronized double getEffectiveFps() {
+		long elapsed = System.nanoTime() - startedAt;
+		if (startedAt == 0 || elapsed <= 0 || blocksQueued == 0) return 0;
+		double captureRate = captures * 1000000000.0 / elapsed;
+		return captureRate * (blocksQueued - blocksSuperseded) / blocksQueued;
+	}
+	
+	public synchronized long getCursorsSuperseded() {
+		return cursorsSuperseded;
+	}
+}
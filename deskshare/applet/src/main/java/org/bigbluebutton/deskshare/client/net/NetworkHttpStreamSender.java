@@ -19,16 +19,23 @@
 package org.bigbluebutton.deskshare.client.net;
 
 import java.awt.Point;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.net.URLEncoder;
 
 import org.bigbluebutton.deskshare.client.ExitCode;
+import org.bigbluebutton.deskshare.common.BlockBatchProtocol;
 import org.bigbluebutton.deskshare.common.CaptureEvents;
 import org.bigbluebutton.deskshare.common.Dimension;
+import org.bigbluebutton.deskshare.common.ScreenVideoPixelEncoder;
 
 import com.myjavatools.web.ClientHttpRequest;
 
@@ -55,6 +62,7 @@ public class NetworkHttpStreamSender implements Runnable {
 	
 	private String host = "localhost";
 	private static final String SCREEN_CAPTURE__URL = "/deskshare/tunnel/screenCapture";
+	private static final String SCREEN_CAPTURE_BATCH_URL = "/deskshare/tunnel/screenCaptureBatch";
 	private URL url;
 	private URLConnection conn;
 	private String room;
@@ -67,6 +75,12 @@ public class NetworkHttpStreamSender implements Runnable {
 	private NetworkStreamListener listener;
 	private final SequenceNumberGenerator seqNumGenerator;
 	
+	// Send the changed blocks as binary batches instead of multipart forms when > 0.
+	private int batchesPerRequest = 0;
+	private HttpURLConnection batchConn;
+	private DataOutputStream batchOut;
+	private int batchesInRequest = 0;
+	
 	public NetworkHttpStreamSender(int id, NextBlockRetriever retriever, String room, 
 									Dimension screenDim, Dimension blockDim, SequenceNumberGenerator seqNumGenerator, boolean useSVC2) {
 		this.id = id;
@@ -78,6 +92,15 @@ public class NetworkHttpStreamSender implements Runnable {
 		this.useSVC2 = useSVC2;
 	}
 	
+	/**
+	 * Send the changed blocks as binary batches to the screenCaptureBatch endpoint,
+	 * streaming batchesPerRequest batches in one chunked request. 0 (the default) 
+	 * posts each set of changed blocks as a multipart form.
+	 */
+	public void setBatchesPerRequest(int batchesPerRequest) {
+		this.batchesPerRequest = batchesPerRequest;
+	}
+	
 	public void addListener(NetworkStreamListener listener) {
 		this.listener = listener;
 	}
@@ -176,7 +199,16 @@ public class NetworkHttpStreamSender implements Runnable {
 
   private void processNextMessageToSend(Message message) {
 
-    if (message.getMessageType() == Message.MessageType.BLOCK) {
+    if (message.getMessageType() == Message.MessageType.BLOCK && batchesPerRequest > 0) {
+      Integer[] changedBlocks = ((BlockMessage) message).getBlocks();
+      try {
+        sendBlockBatch(changedBlocks);
+      } catch (IOException e) {
+        System.out.println("ERROR: Failed to send block batch. " + e.getMessage());
+        closeBatchRequest();
+        blocksNotSent(changedBlocks);
+      }
+    } else if (message.getMessageType() == Message.MessageType.BLOCK) {
 
       long start = System.currentTimeMillis();
       Integer[] changedBlocks = ((BlockMessage) message).getBlocks();
@@ -229,8 +261,10 @@ public class NetworkHttpStreamSender implements Runnable {
 
       } catch (IOException e) {
         e.printStackTrace();
+        blocksNotSent(changedBlocks);
       } catch (ConnectionException e) {
         System.out.println("ERROR: Failed to send block data.");
+        blocksNotSent(changedBlocks);
       }
 
       }
@@ -290,6 +324,84 @@ public class NetworkHttpStreamSender implements Runnable {
 		}
 	}
 
+	private void sendBlockBatch(Integer[] changedBlocks) throws IOException {
+		if (batchOut == null) {
+			openBatchRequest();
+		}
+		
+		BlockBatchProtocol.writeBatchHeader(batchOut, seqNumGenerator.getNext(), changedBlocks.length);
+		for (int i = 0; i < changedBlocks.length; i++) {
+			EncodedBlockData block = retriever.getBlockToSend(changedBlocks[i]);
+			BlockBatchProtocol.writeBlock(batchOut, block.getPosition(), block.getVideoData());
+		}
+		// Push the batch out now, in its own chunk when streaming.
+		batchOut.flush();
+		
+		if (++batchesInRequest >= batchesPerRequest) {
+			endBatchRequest();
+		}
+		for (int i = 0; i < changedBlocks.length; i++) {
+			retriever.blockSent(changedBlocks[i]);
+		}
+	}
+	
+	private void openBatchRequest() throws IOException {
+		URL batchUrl = new URL("http://" + host + SCREEN_CAPTURE_BATCH_URL + "?room=" + URLEncoder.encode(room, "UTF-8"));
+		batchConn = (HttpURLConnection) batchUrl.openConnection();
+		batchConn.setDoOutput(true);
+		batchConn.setRequestMethod("POST");
+		batchConn.setRequestProperty("Content-Type", BlockBatchProtocol.CONTENT_TYPE);
+		if (batchesPerRequest > 1) {
+			// Otherwise the whole body is buffered until the request is done.
+			batchConn.setChunkedStreamingMode(0);
+		}
+		batchOut = new DataOutputStream(new BufferedOutputStream(batchConn.getOutputStream()));
+		batchesInRequest = 0;
+	}
+	
+	/**
+	 * Completes the request and reads the response so the connection can be kept alive 
+	 * for the next one.
+	 */
+	private void endBatchRequest() throws IOException {
+		try {
+			batchOut.close();
+			int status = batchConn.getResponseCode();
+			InputStream response = status < 400 ? batchConn.getInputStream() : batchConn.getErrorStream();
+			if (response != null) {
+				while (response.read() != -1) {}
+				response.close();
+			}
+			if (status != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Block batch rejected with status " + status);
+			}
+		} finally {
+			batchOut = null;
+			batchConn = null;
+		}
+	}
+	
+	private void finishBatchRequest() {
+		if (batchOut == null) return;
+		try {
+			endBatchRequest();
+		} catch (IOException e) {
+			System.out.println("ERROR: Failed to finish block batch request. " + e.getMessage());
+		}
+	}
+	
+	private void closeBatchRequest() {
+		if (batchConn != null) batchConn.disconnect();
+		batchOut = null;
+		batchConn = null;
+	}
+	
+	private void blocksNotSent(Integer[] changedBlocks) {
+		for (int i = 0; i < changedBlocks.length; i++) {
+			retriever.blockNotSent(changedBlocks[i]);
+		}
+	}
+
    // NEW
    public void stopProcessingBlocks() { processBlocks = false; }
 
@@ -308,6 +420,9 @@ public class NetworkHttpStreamSender implements Runnable {
 				processBlocks = false;
 			}								
 		}
+		finishBatchRequest();
+		// The blocks are encoded on this thread.
+		ScreenVideoPixelEncoder.releaseCurrentThread();
 	}
 	
 	private void sendCursor(Point mouseLoc, String room) {
@@ -28,6 +28,7 @@ import java.util.Vector;
 
 import org.bigbluebutton.deskshare.client.ExitCode;
 import org.bigbluebutton.deskshare.common.Dimension;
+import org.bigbluebutton.deskshare.common.ScreenVideoPixelEncoder;
 
 public class NetworkSocketStreamSender implements Runnable {
 	private Socket socket = null;
@@ -180,10 +181,18 @@ public class NetworkSocketStreamSender implements Runnable {
 		}
 	}
 	
+	private void blocksNotSent(Message message) {
+		if (message == null || message.getMessageType() != Message.MessageType.BLOCK) return;
+		Integer[] blocks = ((BlockMessage)message).getBlocks();
+		for (int i = 0; i < blocks.length; i++) {
+			retriever.blockNotSent(blocks[i]);
+		}
+	}
+	
 	public void run() {
 		processMessages = true;		
 		while (processMessages) {
-			Message message;
+			Message message = null;
 			try {
 				message = retriever.getNextMessageToSend();
 				processNextMessageToSend(message);
@@ -192,10 +201,13 @@ public class NetworkSocketStreamSender implements Runnable {
 				e.printStackTrace();
 			} catch (IOException e) {
 				e.printStackTrace();
+				blocksNotSent(message);
 				processMessages = false;
 				notifyNetworkStreamListener(ExitCode.CONNECTION_TO_DESKSHARE_SERVER_DROPPED);
 			}
 		}
+		// The blocks are encoded on this thread.
+		ScreenVideoPixelEncoder.releaseCurrentThread();
 		
 		try {
 			outstream.close();
@@ -22,21 +22,33 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import net.jcip.annotations.ThreadSafe;
 import org.bigbluebutton.deskshare.client.ExitCode;
 import org.bigbluebutton.deskshare.client.blocks.BlockManager;
 import org.bigbluebutton.deskshare.common.Dimension;
 
+/**
+ * Sends the changed blocks and the cursor location to the server on one or more
+ * senders (socket connections, or http tunnels). 
+ * 
+ * Changed blocks wait in a {@link BlockSendQueue}, which keeps at most one pending 
+ * update per block, and are encoded when a sender takes them. On a slow uplink the 
+ * viewers get fewer updates of a block instead of ever older ones.
+ */
 @ThreadSafe
 public class NetworkStreamSender implements NextBlockRetriever, NetworkStreamListener {	
 	public static final String NAME = "NETWORKSTREAMSENDER: ";
+	private static final int STATS_INTERVAL_SECONDS = 30;
 	
 	private ExecutorService executor;	
-    private final BlockingQueue<Message> blockDataQ = new LinkedBlockingQueue<Message>();
+	private ScheduledExecutorService statsReporter;
+    private final BlockSendQueue sendQueue;
     
     private final int numThreads;
     private final String host;
@@ -48,7 +60,8 @@ public class NetworkStreamSender implements NextBlockRetriever, NetworkStreamLis
     private NetworkHttpStreamSender[] httpSenders;
     private boolean tunneling = false;
     private boolean stopped = true;
-    private int numRunningThreads = 0;
+    private final AtomicInteger numRunningThreads = new AtomicInteger(0);
+    private int tunnelBatchesPerRequest = 0;
 	private Dimension screenDim;
 	private Dimension blockDim;
 	private BlockManager blockManager;
@@ -56,7 +69,7 @@ public class NetworkStreamSender implements NextBlockRetriever, NetworkStreamLis
 	private final SequenceNumberGenerator seqNumGenerator = new SequenceNumberGenerator();
 	
 	public NetworkStreamSender(BlockManager blockManager, String host, int port,
-			String room, Dimension screenDim, Dimension blockDim, boolean httpTunnel, boolean useSVC2) {
+			String room, Dimension screenDim, Dimension blockDim, boolean httpTunnel, boolean useSVC2, int numSenders) {
 		this.blockManager = blockManager;
 		this.host = host;
 		this.port = port;
@@ -66,19 +79,20 @@ public class NetworkStreamSender implements NextBlockRetriever, NetworkStreamLis
 		this.httpTunnel = httpTunnel;
 		this.useSVC2 = useSVC2;
 		
-		//numThreads = Runtime.getRuntime().availableProcessors() * 3;
-
-      //++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
-      // Use one thread per row of tiles
-      //++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
-      //numThreads = screenDim.getHeight() / blockDim.getHeight();
-
-      // Use one single thread to save resources
-      numThreads = 1;
+		sendQueue = new BlockSendQueue(blockManager.getRowCount() * blockManager.getColumnCount());
+		numThreads = Math.max(1, numSenders);
 		System.out.println(NAME + "Starting up " + numThreads + " sender threads.");
 		executor = Executors.newFixedThreadPool(numThreads);
 	}
 	
+	/**
+	 * When tunneling, send the changed blocks as binary batches, this many per http
+	 * request. 0 sends them as multipart forms. Set before connecting.
+	 */
+	public void setTunnelBatchesPerRequest(int tunnelBatchesPerRequest) {
+		this.tunnelBatchesPerRequest = tunnelBatchesPerRequest;
+	}
+	
 	public void addNetworkConnectionListener(NetworkConnectionListener listener) {
 		this.listener = listener;
 	}
@@ -114,7 +128,7 @@ public class NetworkStreamSender implements NextBlockRetriever, NetworkStreamLis
 			for (int i = 0; i < numThreads; i++) {
 				try {
 					createSender(i);
-					numRunningThreads++;
+					numRunningThreads.incrementAndGet();
 				} catch (ConnectionException e) {
 					System.out.println("Failed to connect using socket.");
 				}
@@ -122,7 +136,7 @@ public class NetworkStreamSender implements NextBlockRetriever, NetworkStreamLis
 		} else {
 			if (httpTunnel) {
 				System.out.println(NAME + "Trying http tunneling");
-				numRunningThreads = 0;
+				numRunningThreads.set(0);
 				if (tryHttpTunneling()) {
 					tunneling = true;
 					System.out.println(NAME + "Will use http tunneling");
@@ -130,7 +144,7 @@ public class NetworkStreamSender implements NextBlockRetriever, NetworkStreamLis
 					for (int i = 0; i < numThreads; i++) {
 						try {
 							createHttpSender(i);
-							numRunningThreads++;
+							numRunningThreads.incrementAndGet();
 						} catch (ConnectionException e) {
 							System.out.println("Failed to connect using http.");
 						}					
@@ -139,7 +153,7 @@ public class NetworkStreamSender implements NextBlockRetriever, NetworkStreamLis
 			}			
 		}
 
-		if (numRunningThreads != numThreads) {
+		if (numRunningThreads.get() != numThreads) {
 			try {
 				stop();
 			} catch (ConnectionException e) {
@@ -160,12 +174,18 @@ public class NetworkStreamSender implements NextBlockRetriever, NetworkStreamLis
 	private void createHttpSender(int i) throws ConnectionException {
 		httpSenders[i] = new NetworkHttpStreamSender(i, this, room, screenDim, blockDim, seqNumGenerator, useSVC2);
 		httpSenders[i].addListener(this);
+		httpSenders[i].setBatchesPerRequest(tunnelBatchesPerRequest);
 		httpSenders[i].connect(host);
 	}
 	
 	public void send(Message message) {
-             boolean added = blockDataQ.offer(message);
-//             System.out.println("Offered to queue: res="+added+" size="+blockDataQ.size()+" remaining_capacity="+blockDataQ.remainingCapacity());
+		if (message.getMessageType() == Message.MessageType.BLOCK) {
+			sendQueue.offer((BlockMessage) message);
+		} else if (message.getMessageType() == Message.MessageType.CURSOR) {
+			sendQueue.offer((CursorMessage) message);
+		} else {
+			sendQueue.poison();
+		}
 	}
 	
 	public void start() {
@@ -175,11 +195,11 @@ public class NetworkStreamSender implements NextBlockRetriever, NetworkStreamLis
          // NEW
          httpSenders[0].sendStartStreamMessage();
 
-			for (int i = 0; i < numRunningThreads; i++) {
+			for (int i = 0; i < numRunningThreads.get(); i++) {
 				executor.execute(httpSenders[i]);
 			}
 		} else {			
-			for (int i = 0; i < numRunningThreads; i++) {					
+			for (int i = 0; i < numRunningThreads.get(); i++) {					
 				try {
 					socketSenders[i].sendStartStreamMessage();
 					executor.execute(socketSenders[i]);
@@ -191,6 +211,28 @@ public class NetworkStreamSender implements NextBlockRetriever, NetworkStreamLis
 		}
 
 		stopped = false;
+		startStatsReporter();
+	}
+	
+	/**
+	 * Logs how the send queue keeps up with the screen changes every 
+	 * STATS_INTERVAL_SECONDS while the sender runs.
+	 */
+	private void startStatsReporter() {
+		statsReporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "NetworkStreamSenderStats");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		statsReporter.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				System.out.println(NAME + "Pending blocks=" + getNumPendingBlocks() + " oldest=" + getOldestPendingAge() 
+						+ "ms avgQueueTime=" + getAverageQueueTime() + "ms superseded=" + getBlocksSuperseded() 
+						+ " effectiveFps=" + String.format("%.1f", getEffectiveFps()) + " senders=" + numRunningThreads.get());
+			}
+		}, STATS_INTERVAL_SECONDS, STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
 	}
 	
 	private volatile boolean clearQ = true;
@@ -198,6 +240,9 @@ public class NetworkStreamSender implements NextBlockRetriever, NetworkStreamLis
 	public void stop() throws ConnectionException {
 		stopped = true;
 		System.out.println(NAME + "Stopping network sender");
+		if (statsReporter != null) {
+			statsReporter.shutdownNow();
+		}
 
       // NEW
       		if (tunneling) {
@@ -210,7 +255,7 @@ public class NetworkStreamSender implements NextBlockRetriever, NetworkStreamLis
 		if (socketSenders == null)
 			return;
 
-		for (int i = 0; i < numRunningThreads; i++) {
+		for (int i = 0; i < numRunningThreads.get(); i++) {
 		   try {
 			if (tunneling) {
                                 if (httpSenders[i] != null)
@@ -219,7 +264,7 @@ public class NetworkStreamSender implements NextBlockRetriever, NetworkStreamLis
 				//socketSenders[i].disconnect();
 				if (clearQ) {
 					clearQ = false;
-					blockDataQ.clear();
+					sendQueue.clear();
 				}
 				send(new PoisonMessage());
                                 // LRP changed 06-06-2012
@@ -251,16 +296,21 @@ public class NetworkStreamSender implements NextBlockRetriever, NetworkStreamLis
 	}
 	
 	public void blockSent(int position) {
+		sendQueue.sent(position);
 		blockManager.blockSent(position);
 	}
 	
+	public void blockNotSent(int position) {
+		sendQueue.notSent(position);
+	}
+	
 	public EncodedBlockData getBlockToSend(int position) {		
 		return blockManager.getBlock(position).encode();
 	}	
 	
 	public Message getNextMessageToSend() throws InterruptedException {
 		try {
-			return (Message) blockDataQ.take();			
+			return sendQueue.take(numRunningThreads.get());			
 		} catch (InterruptedException e) {
 			if (!stopped)
 				e.printStackTrace();
@@ -268,10 +318,37 @@ public class NetworkStreamSender implements NextBlockRetriever, NetworkStreamLis
 		}
 	}
 
+	public int getNumSenders() {
+		return numThreads;
+	}
+	
+	public int getNumPendingBlocks() {
+		return sendQueue.getNumPendingBlocks();
+	}
+	
+	/**
+	 * Age, in milliseconds, of the oldest block waiting to be sent.
+	 */
+	public long getOldestPendingAge() {
+		return sendQueue.getOldestPendingAge();
+	}
+	
+	public long getAverageQueueTime() {
+		return sendQueue.getAverageQueueTime();
+	}
+	
+	public long getBlocksSuperseded() {
+		return sendQueue.getBlocksSuperseded();
+	}
+	
+	public double getEffectiveFps() {
+		return sendQueue.getEffectiveFps();
+	}
+
 	@Override
 	public void networkException(int id, ExitCode reason) {
 		try {
-			numRunningThreads--;
+			int remaining = numRunningThreads.decrementAndGet();
 		
 			if (tunneling) {								
 //				httpSenders[id].disconnect();
@@ -281,21 +358,21 @@ public class NetworkStreamSender implements NextBlockRetriever, NetworkStreamLis
 			} else {
 				socketSenders[id].disconnect();
 			}
-			if (numRunningThreads < 1) {
+			if (remaining < 1) {
 				System.out.println(NAME + "No more sender threads. Stopping.");
 				stop();
 				notifyNetworkConnectionListener(reason);
 			} else {
-				System.out.println(NAME + "Sender thread stopped. " + numRunningThreads + " sender threads remaining.");
+				System.out.println(NAME + "Sender thread stopped. " + remaining + " sender threads remaining.");
 			}
 		} catch (ConnectionException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
-			if (numRunningThreads < 1) {
+			if (numRunningThreads.get() < 1) {
 				System.out.println(NAME + "No more sender threads. Stopping.");
 				notifyNetworkConnectionListener(reason);
 			} else {
-				System.out.println(NAME + "Sender thread stopped. " + numRunningThreads + " sender threads remaining.");
+				System.out.println(NAME + "Sender thread stopped. " + numRunningThreads.get() + " sender threads remaining.");
 			}
 		}		
 	}
@@ -0,0 +1,118 @@
+package org.bigbluebutton.deskshare.client;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class BoxScalerTest {
+	
+	@Test
+	public void testAveragesCoveredPixels() {
+		int[] source = {
+				0x000000, 0x0000FF, 0xFF0000, 0xFF0000,
+				0x0000FF, 0x000000, 0xFF0000, 0x00FF00 };
+		int[] target = new int[2];
+		new BoxScaler(2, 1).scale(source, 4, 4, 2, target, 2);
+		
+		Assert.assertEquals(target[0], 0x000080);
+		Assert.assertEquals(target[1], 0xBF4000);
+	}
+	
+	@Test
+	public void testIgnoresAlphaAndStridePadding() {
+		int[] source = {
+				0xFF102030, 0xFF102030, 0x7FFFFFFF,
+				0xFF102030, 0xFF102030, 0x7FFFFFFF };
+		int[] target = new int[1];
+		new BoxScaler(1, 1).scale(source, 3, 2, 2, target, 1);
+		
+		Assert.assertEquals(target[0], 0x102030);
+	}
+	
+	@Test
+	public void testUpscalesToNearestPixel() {
+		int[] source = {0x112233, 0x445566};
+		int[] target = new int[4];
+		new BoxScaler(4, 1).scale(source, 2, 2, 1, target, 4);
+		
+		Assert.assertTrue(Arrays.equals(target, new int[] {0x112233, 0x112233, 0x445566, 0x445566}));
+	}
+	
+	@Test
+	public void testFollowsSourceSizeChanges() {
+		BoxScaler scaler = new BoxScaler(2, 2);
+		int[] target = new int[4];
+		
+		int[] small = {1, 2, 3, 4};
+		scaler.scale(small, 2, 2, 2, target, 2);
+		Assert.assertTrue(Arrays.equals(target, small));
+		
+		int[] large = new int[16];
+		Arrays.fill(large, 0x808080);
+		scaler.scale(large, 4, 4, 4, target, 2);
+		Assert.assertTrue(Arrays.equals(target, new int[] {0x808080, 0x808080, 0x808080, 0x808080}));
+	}
+	
+	@Test(groups = "benchmark")
+	public void benchmarkBytesAllocatedPerCapture() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			System.out.println("Thread allocation counters not supported. Skipping benchmark.");
+			return;
+		}
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		long threadId = Thread.currentThread().getId();
+		
+		// A 1080p screen scaled to 720p, with some text-like noise on a flat background.
+		int sourceWidth = 1920, sourceHeight = 1080, targetWidth = 1280, targetHeight = 720;
+		BufferedImage screen = new BufferedImage(sourceWidth, sourceHeight, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt) screen.getRaster().getDataBuffer()).getData();
+		Random random = new Random(1);
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = random.nextInt(8) == 0 ? random.nextInt(0x1000000) : 0xF0F0F0;
+		}
+		
+		BoxScaler scaler = new BoxScaler(targetWidth, targetHeight);
+		BufferedImage scaled = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
+		int[] target = ((DataBufferInt) scaled.getRaster().getDataBuffer()).getData();
+		
+		int captures = 50;
+		for (int i = 0; i < captures; i++) {
+			scaler.scale(pixels, sourceWidth, sourceWidth, sourceHeight, target, targetWidth);
+		}
+		
+		long start = allocations.getThreadAllocatedBytes(threadId);
+		long startTime = System.nanoTime();
+		for (int i = 0; i < captures; i++) {
+			scaler.scale(pixels, sourceWidth, sourceWidth, sourceHeight, target, targetWidth);
+		}
+		long boxTime = (System.nanoTime() - startTime) / captures;
+		long boxAllocated = (allocations.getThreadAllocatedBytes(threadId) - start) / captures;
+		
+		// The area averaging scaling the capture used before.
+		int areaCaptures = 3;
+		start = allocations.getThreadAllocatedBytes(threadId);
+		startTime = System.nanoTime();
+		for (int i = 0; i < areaCaptures; i++) {
+			BufferedImage result = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g2 = result.createGraphics();
+			g2.drawImage(screen.getScaledInstance(targetWidth, targetHeight, Image.SCALE_AREA_AVERAGING), 0, 0, targetWidth, targetHeight, null);
+			g2.dispose();
+		}
+		long areaTime = (System.nanoTime() - startTime) / areaCaptures;
+		long areaAllocated = (allocations.getThreadAllocatedBytes(threadId) - start) / areaCaptures;
+		
+		System.out.println("1080p to 720p: box filter " + (boxTime / 1000000) + "ms, allocated=" + boxAllocated 
+				+ " bytes per capture; area averaging " + (areaTime / 1000000) + "ms, allocated=" + areaAllocated + " bytes per capture.");
+		
+		Assert.assertTrue(boxAllocated < 1024);
+	}
+}
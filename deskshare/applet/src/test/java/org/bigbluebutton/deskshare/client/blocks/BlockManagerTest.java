@@ -0,0 +1,234 @@
+package org.bigbluebutton.deskshare.client.blocks;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.bigbluebutton.deskshare.client.net.BlockMessage;
+import org.bigbluebutton.deskshare.common.BlockReference;
+import org.bigbluebutton.deskshare.common.Dimension;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class BlockManagerTest {
+	private static final int SCREEN_WIDTH = 1920;
+	private static final int SCREEN_HEIGHT = 1080;
+	private static final int BLOCK_SIZE = 64;
+	
+	private final List<Integer> changed = new ArrayList<Integer>();
+	
+	private BlockManager createBlockManager(int numDetectionThreads) {
+		BlockManager bm = new BlockManager();
+		bm.setNumDetectionThreads(numDetectionThreads);
+		bm.initialize(new Dimension(SCREEN_WIDTH, SCREEN_HEIGHT), new Dimension(BLOCK_SIZE, BLOCK_SIZE), false);
+		bm.addListener(new ChangedBlocksListener() {
+			public void onChangedBlock(BlockMessage message) {
+				changed.addAll(Arrays.asList(message.getBlocks()));
+			}
+		});
+		return bm;
+	}
+	
+	private BufferedImage createScreen(int color) {
+		BufferedImage screen = new BufferedImage(SCREEN_WIDTH, SCREEN_HEIGHT, BufferedImage.TYPE_INT_RGB);
+		Arrays.fill(((DataBufferInt) screen.getRaster().getDataBuffer()).getData(), color);
+		return screen;
+	}
+	
+	/**
+	 * Blocks that keep changing are held back until they settle so capture the 
+	 * same screen until the changed blocks have been reported.
+	 */
+	private void settle(BlockManager bm, BufferedImage screen) {
+		for (int i = 0; i < 12; i++) {
+			bm.processCapturedScreen(screen);
+		}
+		changed.clear();
+	}
+	
+	private void testDetectsChangedBlock(int numDetectionThreads) {
+		BlockManager bm = createBlockManager(numDetectionThreads);
+		BufferedImage screen = createScreen(0x336699);
+		settle(bm, screen);
+		
+		// Top left pixel is in the first column of the top row.
+		screen.setRGB(0, 0, 0xffffff);
+		bm.processCapturedScreen(screen);
+		bm.processCapturedScreen(screen);
+		
+		int topLeft = (bm.getRowCount() - 1) * bm.getColumnCount() + 1;
+		Assert.assertEquals(changed, Arrays.asList(new Integer(topLeft)));
+		bm.stop();
+	}
+	
+	@Test
+	public void testDetectsChangedBlock() {
+		testDetectsChangedBlock(1);
+	}
+	
+	@Test
+	public void testDetectsChangedBlockInParallel() {
+		testDetectsChangedBlock(4);
+	}
+	
+	@Test
+	public void testDetectsChangesInOtherImageTypes() {
+		BlockManager bm = createBlockManager(1);
+		BufferedImage screen = new BufferedImage(SCREEN_WIDTH, SCREEN_HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+		settle(bm, screen);
+		
+		screen.setRGB(SCREEN_WIDTH - 1, SCREEN_HEIGHT - 1, 0xffffff);
+		bm.processCapturedScreen(screen);
+		bm.processCapturedScreen(screen);
+		
+		Assert.assertEquals(changed, Arrays.asList(new Integer(bm.getColumnCount())));
+	}
+	
+	@Test(groups = "benchmark")
+	public void benchmarkCaptureToChangedBlocks() {
+		int[] threads = {1, Runtime.getRuntime().availableProcessors()};
+		for (int numDetectionThreads : threads) {
+			BlockManager bm = createBlockManager(numDetectionThreads);
+			BufferedImage[] screens = {createScreen(0x336699), createScreen(0x996633)};
+			settle(bm, screens[0]);
+			
+			// Alternate between an unchanged and a fully changed screen.
+			int captures = 100;
+			long unchangedNanos = 0;
+			long changedNanos = 0;
+			for (int i = 0; i < captures; i++) {
+				long start = System.nanoTime();
+				bm.processCapturedScreen(screens[0]);
+				unchangedNanos += System.nanoTime() - start;
+				
+				start = System.nanoTime();
+				bm.processCapturedScreen(screens[1]);
+				changedNanos += System.nanoTime() - start;
+				
+				BufferedImage s = screens[0];
+				screens[0] = screens[1];
+				screens[1] = s;
+			}
+			bm.stop();
+			
+			System.out.println("1080p with 64x64 blocks and " + numDetectionThreads + " threads: unchanged=" 
+					+ (unchangedNanos / captures / 1000) + "us, all changed=" + (changedNanos / captures / 1000) + "us");
+		}
+	}
+	
+	/**
+	 * A page of text, twice as tall as the screen, to scroll through.
+	 */
+	private int[] createDocument(int height) {
+		int[] document = new int[SCREEN_WIDTH * height];
+		Arrays.fill(document, 0xffffff);
+		Random random = new Random(42);
+		// 16 pixel lines of 8x12 glyphs
+		for (int line = 0; line < height / 16; line++) {
+			int glyphs = random.nextInt(SCREEN_WIDTH / 8);
+			for (int glyph = 0; glyph < glyphs; glyph++) {
+				for (int y = 0; y < 12; y++) {
+					int bits = random.nextInt(256);
+					for (int x = 0; x < 8; x++) {
+						if ((bits & (1 << x)) != 0) {
+							document[(line * 16 + 2 + y) * SCREEN_WIDTH + glyph * 8 + x] = 0x202020;
+						}
+					}
+				}
+			}
+		}
+		return document;
+	}
+	
+	private static class TraceResult {
+		long bytesSent = 0;
+		long encodeNanos = 0;
+		long blocksReused = 0;
+		// Last block the server has at each position, references resolved.
+		final Map<Integer, byte[]> serverBlocks = new HashMap<Integer, byte[]>();
+	}
+	
+	/**
+	 * Scrolls the document by scrollStep pixels at a time, sending the changed blocks 
+	 * like the network senders do, and keeps the blocks the server ends up with.
+	 */
+	private TraceResult scrollTrace(int scrollStep, boolean reuseSentBlocks) {
+		BlockManager bm = new BlockManager();
+		bm.setNumDetectionThreads(1);
+		bm.setReuseSentBlocks(reuseSentBlocks);
+		bm.initialize(new Dimension(SCREEN_WIDTH, SCREEN_HEIGHT), new Dimension(BLOCK_SIZE, BLOCK_SIZE), false);
+		final List<Integer> changedBlocks = new ArrayList<Integer>();
+		bm.addListener(new ChangedBlocksListener() {
+			public void onChangedBlock(BlockMessage message) {
+				changedBlocks.addAll(Arrays.asList(message.getBlocks()));
+			}
+		});
+		
+		int[] document = createDocument(SCREEN_HEIGHT * 2);
+		BufferedImage screen = new BufferedImage(SCREEN_WIDTH, SCREEN_HEIGHT, BufferedImage.TYPE_INT_RGB);
+		int[] screenPixels = ((DataBufferInt) screen.getRaster().getDataBuffer()).getData();
+		
+		TraceResult result = new TraceResult();
+		Map<Long, byte[]> serverCache = new HashMap<Long, byte[]>();
+		for (int top = 0; top + SCREEN_HEIGHT <= document.length / SCREEN_WIDTH; top += scrollStep) {
+			System.arraycopy(document, top * SCREEN_WIDTH, screenPixels, 0, screenPixels.length);
+			// A second capture of the same screen sends the blocks held back while they were changing.
+			bm.processCapturedScreen(screen);
+			bm.processCapturedScreen(screen);
+			
+			for (Integer position : changedBlocks) {
+				long start = System.nanoTime();
+				byte[] encoded = bm.getBlock(position).encode().getVideoData();
+				result.encodeNanos += System.nanoTime() - start;
+				result.bytesSent += encoded.length;
+				bm.blockSent(position);
+				
+				if (BlockReference.isReference(encoded)) {
+					byte[] reused = serverCache.get(BlockReference.getBlockHash(encoded));
+					Assert.assertNotNull(reused, "Reference to a block that wasn't sent");
+					result.serverBlocks.put(position, reused);
+				} else {
+					serverCache.put(BlockReference.hash(encoded), encoded);
+					result.serverBlocks.put(position, encoded);
+				}
+			}
+			changedBlocks.clear();
+		}
+		result.blocksReused = bm.getBlocksReused();
+		bm.stop();
+		return result;
+	}
+	
+	@Test
+	public void testScrolledBlocksAreReused() {
+		TraceResult encoded = scrollTrace(BLOCK_SIZE, false);
+		TraceResult reused = scrollTrace(BLOCK_SIZE, true);
+		
+		Assert.assertTrue(reused.blocksReused > 0);
+		Assert.assertTrue(reused.bytesSent < encoded.bytesSent / 2);
+		// The viewers end up with the same screen.
+		Assert.assertEquals(reused.serverBlocks.keySet(), encoded.serverBlocks.keySet());
+		for (Integer position : encoded.serverBlocks.keySet()) {
+			Assert.assertTrue(Arrays.equals(reused.serverBlocks.get(position), encoded.serverBlocks.get(position)), 
+					"Block " + position);
+		}
+	}
+	
+	@Test(groups = "benchmark")
+	public void benchmarkScrollTraces() {
+		// Scrolling by a multiple of the block size, and by 3 lines of text which isn't.
+		int[] scrollSteps = {BLOCK_SIZE, 48};
+		for (int scrollStep : scrollSteps) {
+			TraceResult encoded = scrollTrace(scrollStep, false);
+			TraceResult reused = scrollTrace(scrollStep, true);
+			System.out.println("Scrolling 1080p by " + scrollStep + "px: " + (encoded.bytesSent / 1024) + "KB in " 
+					+ (encoded.encodeNanos / 1000000) + "ms encoding, reusing sent blocks " + (reused.bytesSent / 1024) 
+					+ "KB in " + (reused.encodeNanos / 1000000) + "ms (" + reused.blocksReused + " blocks reused)");
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package org.bigbluebutton.deskshare.client.encoder;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.bigbluebutton.deskshare.common.ScreenVideoPixelEncoder;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ScreenVideoPixelEncoderTest {
+	private static final int BLOCK_SIZE = 64;
+	private static final int NUM_PIXELS = BLOCK_SIZE * BLOCK_SIZE;
+	
+	private int[] createBlankBlock() {
+		int[] pixels = new int[NUM_PIXELS];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = 0xCECECE;
+		}
+		return pixels;
+	}
+	
+	/**
+	 * Black strokes of random length on a white background, like text.
+	 */
+	private int[] createTextBlock() {
+		Random random = new Random(1);
+		int[] pixels = new int[NUM_PIXELS];
+		int i = 0;
+		while (i < pixels.length) {
+			int run = 1 + random.nextInt(6);
+			int color = random.nextInt(3) == 0 ? 0x000000 : 0xFFFFFF;
+			for (int j = 0; j < run && i < pixels.length; j++) {
+				pixels[i++] = color;
+			}
+		}
+		return pixels;
+	}
+	
+	/**
+	 * Gradient with noise, like a photo.
+	 */
+	private int[] createPhotoBlock() {
+		Random random = new Random(1);
+		int[] pixels = new int[NUM_PIXELS];
+		for (int y = 0; y < BLOCK_SIZE; y++) {
+			for (int x = 0; x < BLOCK_SIZE; x++) {
+				int r = (x * 3 + random.nextInt(16)) & 0xff;
+				int g = (y * 3 + random.nextInt(16)) & 0xff;
+				int b = ((x + y) + random.nextInt(16)) & 0xff;
+				pixels[y * BLOCK_SIZE + x] = (r << 16) | (g << 8) | b;
+			}
+		}
+		return pixels;
+	}
+	
+	private byte[] decode(byte[] encoded) throws DataFormatException {
+		int length = ((encoded[0] & 0xff) << 8) | (encoded[1] & 0xff);
+		Assert.assertEquals(length, encoded.length - 2);
+		
+		Inflater inflater = new Inflater();
+		inflater.setInput(encoded, 2, length);
+		byte[] bgr = new byte[NUM_PIXELS * 3];
+		Assert.assertEquals(inflater.inflate(bgr), bgr.length);
+		inflater.end();
+		return bgr;
+	}
+	
+	@Test
+	public void testEncodesBottomUpBGR() throws DataFormatException {
+		int[] pixels = createPhotoBlock();
+		int[] original = pixels.clone();
+		byte[] bgr = decode(ScreenVideoPixelEncoder.forCurrentThread().encodePixels(pixels, BLOCK_SIZE, BLOCK_SIZE));
+		
+		Assert.assertTrue(Arrays.equals(pixels, original));
+		for (int y = 0; y < BLOCK_SIZE; y++) {
+			for (int x = 0; x < BLOCK_SIZE; x++) {
+				int pixel = pixels[(BLOCK_SIZE - 1 - y) * BLOCK_SIZE + x];
+				int pos = (y * BLOCK_SIZE + x) * 3;
+				Assert.assertEquals(bgr[pos], (byte) (pixel & 0xff));
+				Assert.assertEquals(bgr[pos + 1], (byte) ((pixel >> 8) & 0xff));
+				Assert.assertEquals(bgr[pos + 2], (byte) ((pixel >> 16) & 0xff));
+			}
+		}
+	}
+	
+	@Test
+	public void testEncodesIncompressibleBlock() throws DataFormatException {
+		Random random = new Random(1);
+		int[] pixels = new int[NUM_PIXELS];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = random.nextInt();
+		}
+		decode(ScreenVideoPixelEncoder.forCurrentThread().encodePixels(pixels, BLOCK_SIZE, BLOCK_SIZE, Deflater.BEST_COMPRESSION));
+	}
+	
+	@Test
+	public void testChoosesCompressionLevelFromContent() {
+		Assert.assertEquals(ScreenVideoPixelEncoder.chooseCompressionLevel(createBlankBlock(), BLOCK_SIZE, BLOCK_SIZE), Deflater.BEST_COMPRESSION);
+		Assert.assertEquals(ScreenVideoPixelEncoder.chooseCompressionLevel(createPhotoBlock(), BLOCK_SIZE, BLOCK_SIZE), Deflater.BEST_SPEED);
+		int level = ScreenVideoPixelEncoder.chooseCompressionLevel(createTextBlock(), BLOCK_SIZE, BLOCK_SIZE);
+		Assert.assertTrue(level > Deflater.BEST_SPEED && level < Deflater.BEST_COMPRESSION);
+	}
+	
+	@Test
+	public void testReleaseCurrentThreadGivesTheThreadANewEncoder() throws DataFormatException {
+		ScreenVideoPixelEncoder released = ScreenVideoPixelEncoder.forCurrentThread();
+		Assert.assertSame(ScreenVideoPixelEncoder.forCurrentThread(), released);
+		ScreenVideoPixelEncoder.releaseCurrentThread();
+		ScreenVideoPixelEncoder.releaseCurrentThread();
+		
+		ScreenVideoPixelEncoder encoder = ScreenVideoPixelEncoder.forCurrentThread();
+		Assert.assertNotSame(encoder, released);
+		decode(encoder.encodePixels(createTextBlock(), BLOCK_SIZE, BLOCK_SIZE));
+	}
+	
+	@Test(groups = "benchmark")
+	public void benchmarkEncodeBlocks() {
+		String[] names = {"blank", "text", "photo"};
+		int[][] blocks = {createBlankBlock(), createTextBlock(), createPhotoBlock()};
+		int[] levels = {Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION, ScreenVideoPixelEncoder.ADAPTIVE_COMPRESSION};
+		ScreenVideoPixelEncoder encoder = ScreenVideoPixelEncoder.forCurrentThread();
+		int iterations = 500;
+		
+		for (int b = 0; b < blocks.length; b++) {
+			StringBuilder result = new StringBuilder("64x64 " + names[b] + " block:");
+			for (int level : levels) {
+				int size = 0;
+				for (int i = 0; i < iterations; i++) {
+					size = encoder.encodePixels(blocks[b], BLOCK_SIZE, BLOCK_SIZE, level).length;
+				}
+				
+				long start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					encoder.encodePixels(blocks[b], BLOCK_SIZE, BLOCK_SIZE, level);
+				}
+				long micros = (System.nanoTime() - start) / iterations / 1000;
+				
+				result.append(" [level=").append(level == ScreenVideoPixelEncoder.ADAPTIVE_COMPRESSION ? "adaptive" : String.valueOf(level))
+					.append(",").append(size).append(" bytes,").append(micros).append("us]");
+			}
+			System.out.println(result);
+		}
+	}
+}
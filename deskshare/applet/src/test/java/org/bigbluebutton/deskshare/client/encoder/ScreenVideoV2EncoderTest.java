@@ -0,0 +1,158 @@
+package org.bigbluebutton.deskshare.client.encoder;
+
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.bigbluebutton.deskshare.common.ScreenVideoV2Encoder;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ScreenVideoV2EncoderTest {
+	private static final int BLOCK_SIZE = 64;
+	private static final int NUM_PIXELS = BLOCK_SIZE * BLOCK_SIZE;
+	
+	private int[] createBlankBlock() {
+		int[] pixels = new int[NUM_PIXELS];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = 0xFFFFFF;
+		}
+		return pixels;
+	}
+	
+	/**
+	 * Types a character (a few black pixels) on one text line of the block.
+	 */
+	private void typeCharacter(int[] pixels, Random random, int line, int column) {
+		int top = line * 12;
+		int left = column * 6;
+		for (int y = top; y < top + 10 && y < BLOCK_SIZE; y++) {
+			for (int x = left; x < left + 5 && x < BLOCK_SIZE; x++) {
+				if (random.nextInt(3) == 0) pixels[y * BLOCK_SIZE + x] = 0x000000;
+			}
+		}
+	}
+	
+	private int dataSize(byte[] encoded) {
+		return ((encoded[0] & 0xff) << 8) | (encoded[1] & 0xff);
+	}
+	
+	@Test
+	public void testSendsChangedRowsAsDiffBlock() throws DataFormatException {
+		ScreenVideoV2Encoder encoder = new ScreenVideoV2Encoder(BLOCK_SIZE, BLOCK_SIZE);
+		int[] pixels = createBlankBlock();
+		
+		byte[] full = encoder.encode(pixels);
+		Assert.assertEquals(dataSize(full), full.length - 2);
+		Assert.assertEquals(full[2], (byte) 0x10);
+		Assert.assertFalse(ScreenVideoV2Encoder.isIncrementalBlock(full));
+		
+		// Change rows 0 to 29 (top-down), i.e. rows 34 to 63 counted from the bottom.
+		typeCharacter(pixels, new Random(1), 0, 0);
+		for (int y = 20; y < 30; y++) {
+			pixels[y * BLOCK_SIZE + 7] = 0x000000;
+		}
+		byte[] diff = encoder.encode(pixels);
+		Assert.assertEquals(dataSize(diff), diff.length - 2);
+		Assert.assertEquals(diff[2], (byte) 0x14);
+		Assert.assertTrue(ScreenVideoV2Encoder.isIncrementalBlock(diff));
+		Assert.assertEquals(diff[3] & 0xff, BLOCK_SIZE - 30);
+		Assert.assertEquals(diff[4] & 0xff, 30);
+		
+		// Each pixel is 1 (palette) or 2 (15 bit color) bytes.
+		Inflater inflater = new Inflater();
+		inflater.setInput(diff, 5, diff.length - 5);
+		byte[] rows = new byte[30 * BLOCK_SIZE * 2];
+		int length = inflater.inflate(rows);
+		Assert.assertTrue(inflater.finished());
+		Assert.assertTrue(length >= 30 * BLOCK_SIZE && length <= 30 * BLOCK_SIZE * 2);
+		inflater.end();
+	}
+	
+	@Test
+	public void testSendsFullBlockWhenNothingChangedOrIntervalReached() {
+		ScreenVideoV2Encoder encoder = new ScreenVideoV2Encoder(BLOCK_SIZE, BLOCK_SIZE);
+		encoder.setFullBlockInterval(3);
+		int[] pixels = createBlankBlock();
+		Random random = new Random(1);
+		
+		Assert.assertFalse(ScreenVideoV2Encoder.isIncrementalBlock(encoder.encode(pixels)));
+		Assert.assertFalse(ScreenVideoV2Encoder.isIncrementalBlock(encoder.encode(pixels)));
+		typeCharacter(pixels, random, 1, 1);
+		Assert.assertTrue(ScreenVideoV2Encoder.isIncrementalBlock(encoder.encode(pixels)));
+		typeCharacter(pixels, random, 1, 2);
+		Assert.assertTrue(ScreenVideoV2Encoder.isIncrementalBlock(encoder.encode(pixels)));
+		typeCharacter(pixels, random, 1, 3);
+		Assert.assertFalse(ScreenVideoV2Encoder.isIncrementalBlock(encoder.encode(pixels)));
+	}
+	
+	@Test
+	public void testPrimesDiffBlockWithPreviousImage() throws DataFormatException {
+		ScreenVideoV2Encoder encoder = new ScreenVideoV2Encoder(BLOCK_SIZE, BLOCK_SIZE);
+		encoder.setPrimeWithPrevious(true);
+		int[] pixels = createBlankBlock();
+		Random random = new Random(1);
+		
+		byte[] full = encoder.encode(pixels);
+		Assert.assertEquals(full[2], (byte) 0x10);
+		typeCharacter(pixels, random, 2, 2);
+		byte[] diff = encoder.encode(pixels);
+		Assert.assertEquals(diff[2], (byte) 0x15);
+		
+		// The previous image is the dictionary of the diff block.
+		Inflater previous = new Inflater();
+		previous.setInput(full, 3, full.length - 3);
+		byte[] dictionary = new byte[NUM_PIXELS * 2];
+		int dictionaryLength = previous.inflate(dictionary);
+		previous.end();
+		
+		Inflater inflater = new Inflater();
+		inflater.setInput(diff, 5, diff.length - 5);
+		byte[] rows = new byte[NUM_PIXELS * 2];
+		Assert.assertEquals(inflater.inflate(rows), 0);
+		Assert.assertTrue(inflater.needsDictionary());
+		inflater.setDictionary(dictionary, 0, dictionaryLength);
+		Assert.assertTrue(inflater.inflate(rows) > 0);
+		Assert.assertTrue(inflater.finished());
+		inflater.end();
+	}
+	
+	/**
+	 * Bytes sent for a block while someone types on it, one character per image.
+	 * A full block interval of 1 is what the encoder sent before diff blocks.
+	 */
+	@Test(groups = "benchmark")
+	public void benchmarkTypingTrace() {
+		int images = 300;
+		int[] intervals = {1, 10, 30};
+		StringBuilder result = new StringBuilder("64x64 block, " + images + " images of typing:");
+		long fullOnlyBytes = 0;
+		
+		for (int interval : intervals) {
+			for (int prime = 0; prime < 2; prime++) {
+				if (interval == 1 && prime == 1) continue;
+				ScreenVideoV2Encoder encoder = new ScreenVideoV2Encoder(BLOCK_SIZE, BLOCK_SIZE);
+				encoder.setFullBlockInterval(interval);
+				encoder.setPrimeWithPrevious(prime == 1);
+				
+				Random random = new Random(1);
+				int[] pixels = createBlankBlock();
+				long bytes = 0;
+				long start = System.nanoTime();
+				for (int i = 0; i < images; i++) {
+					int character = i % 50;
+					if (character == 0) pixels = createBlankBlock();
+					typeCharacter(pixels, random, character / 10, character % 10);
+					bytes += encoder.encode(pixels).length;
+				}
+				long micros = (System.nanoTime() - start) / images / 1000;
+				if (interval == 1) fullOnlyBytes = bytes;
+				
+				result.append(" [interval=").append(interval).append(prime == 1 ? ",primed" : "")
+					.append(",").append(bytes / images).append(" bytes/image,").append(micros).append("us]");
+			}
+		}
+		System.out.println(result);
+		Assert.assertTrue(fullOnlyBytes > 0);
+	}
+}
@@ -0,0 +1,53 @@
+package org.bigbluebutton.deskshare.client.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.bigbluebutton.deskshare.common.BlockBatchProtocol;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class BlockBatchProtocolTest {
+	
+	@Test
+	public void testReadsStreamedBatches() throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(body);
+		BlockBatchProtocol.writeBatchHeader(out, 7, 2);
+		BlockBatchProtocol.writeBlock(out, 1, new byte[] {1, 2, 3});
+		BlockBatchProtocol.writeBlock(out, 510, new byte[0]);
+		BlockBatchProtocol.writeBatchHeader(out, 8, 1);
+		BlockBatchProtocol.writeBlock(out, 40000, new byte[] {4});
+		out.flush();
+		
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.toByteArray()));
+		int[] seqNum = new int[1];
+		Assert.assertEquals(BlockBatchProtocol.readBatchHeader(in, seqNum), 2);
+		Assert.assertEquals(seqNum[0], 7);
+		Assert.assertEquals(BlockBatchProtocol.readBlockPosition(in), 1);
+		Assert.assertTrue(Arrays.equals(BlockBatchProtocol.readBlockData(in), new byte[] {1, 2, 3}));
+		Assert.assertEquals(BlockBatchProtocol.readBlockPosition(in), 510);
+		Assert.assertEquals(BlockBatchProtocol.readBlockData(in).length, 0);
+		
+		Assert.assertEquals(BlockBatchProtocol.readBatchHeader(in, seqNum), 1);
+		Assert.assertEquals(seqNum[0], 8);
+		Assert.assertEquals(BlockBatchProtocol.readBlockPosition(in), 40000);
+		Assert.assertTrue(Arrays.equals(BlockBatchProtocol.readBlockData(in), new byte[] {4}));
+		Assert.assertEquals(BlockBatchProtocol.readBatchHeader(in, seqNum), -1);
+	}
+	
+	@Test
+	public void testRejectsInvalidBody() {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream("room=test".getBytes()));
+		try {
+			BlockBatchProtocol.readBatchHeader(in, new int[1]);
+			Assert.fail("Expected an IOException");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+}
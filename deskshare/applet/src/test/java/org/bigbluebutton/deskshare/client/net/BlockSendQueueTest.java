@@ -0,0 +1,127 @@
+package org.bigbluebutton.deskshare.client.net;
+
+import java.awt.Point;
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class BlockSendQueueTest {
+	
+	private Integer[] blocks(int... positions) {
+		Integer[] blocks = new Integer[positions.length];
+		for (int i = 0; i < positions.length; i++) {
+			blocks[i] = new Integer(positions[i]);
+		}
+		return blocks;
+	}
+	
+	private Integer[] takeBlocks(BlockSendQueue queue, int numSenders) throws InterruptedException {
+		Message message = queue.take(numSenders);
+		Assert.assertEquals(message.getMessageType(), Message.MessageType.BLOCK);
+		return ((BlockMessage) message).getBlocks();
+	}
+	
+	@Test
+	public void testKeepsOnePendingUpdatePerBlock() throws InterruptedException {
+		BlockSendQueue queue = new BlockSendQueue(10);
+		queue.offer(new BlockMessage(blocks(1, 2, 3)));
+		queue.offer(new BlockMessage(blocks(2, 3, 4)));
+		queue.offer(new BlockMessage(blocks(3)));
+		
+		Assert.assertEquals(queue.getNumPendingBlocks(), 4);
+		Assert.assertEquals(queue.getBlocksQueued(), 7);
+		Assert.assertEquals(queue.getBlocksSuperseded(), 3);
+		Assert.assertTrue(Arrays.equals(takeBlocks(queue, 1), blocks(1, 2, 3, 4)));
+		Assert.assertEquals(queue.getNumPendingBlocks(), 0);
+	}
+	
+	@Test
+	public void testSpreadsBlocksBetweenSenders() throws InterruptedException {
+		BlockSendQueue queue = new BlockSendQueue(10);
+		queue.offer(new BlockMessage(blocks(1, 2, 3, 4, 5, 6, 7)));
+		
+		Assert.assertTrue(Arrays.equals(takeBlocks(queue, 2), blocks(1, 2, 3, 4)));
+		Assert.assertTrue(Arrays.equals(takeBlocks(queue, 2), blocks(5, 6)));
+		Assert.assertTrue(Arrays.equals(takeBlocks(queue, 2), blocks(7)));
+	}
+	
+	@Test
+	public void testHoldsBackBlocksInFlight() throws InterruptedException {
+		BlockSendQueue queue = new BlockSendQueue(10);
+		queue.offer(new BlockMessage(blocks(1, 2)));
+		Assert.assertTrue(Arrays.equals(takeBlocks(queue, 1), blocks(1, 2)));
+		
+		// Block 1 changes while it is being sent. It waits for the send to finish.
+		queue.offer(new BlockMessage(blocks(1, 3)));
+		Assert.assertTrue(Arrays.equals(takeBlocks(queue, 1), blocks(3)));
+		queue.sent(1);
+		Assert.assertTrue(Arrays.equals(takeBlocks(queue, 1), blocks(1)));
+		
+		// A block that failed to send is queued again.
+		queue.notSent(2);
+		Assert.assertTrue(Arrays.equals(takeBlocks(queue, 1), blocks(2)));
+	}
+	
+	@Test
+	public void testSendsPoisonThenLatestCursorFirst() throws InterruptedException {
+		BlockSendQueue queue = new BlockSendQueue(10);
+		queue.offer(new BlockMessage(blocks(1)));
+		queue.offer(new CursorMessage(new Point(1, 1), "room"));
+		queue.offer(new CursorMessage(new Point(2, 2), "room"));
+		queue.poison();
+		
+		Assert.assertEquals(queue.take(1).getMessageType(), Message.MessageType.POISON);
+		Message cursor = queue.take(1);
+		Assert.assertEquals(((CursorMessage) cursor).getMouseLocation(), new Point(2, 2));
+		Assert.assertEquals(queue.getCursorsSuperseded(), 1);
+		Assert.assertTrue(Arrays.equals(takeBlocks(queue, 1), blocks(1)));
+	}
+	
+	/**
+	 * Captures of a 1080p screen with 64x64 blocks arrive faster than a slow uplink
+	 * can send them. The queue stays bounded by the number of blocks.
+	 */
+	@Test(groups = "benchmark")
+	public void benchmarkSlowUplink() throws InterruptedException {
+		final int numBlocks = 510;
+		final BlockSendQueue queue = new BlockSendQueue(numBlocks);
+		Thread sender = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Message message = queue.take(1);
+						if (message.getMessageType() == Message.MessageType.POISON) return;
+						Integer[] sent = ((BlockMessage) message).getBlocks();
+						// 2ms per block on the wire.
+						Thread.sleep(2 * sent.length);
+						for (int i = 0; i < sent.length; i++) {
+							queue.sent(sent[i]);
+						}
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		});
+		sender.start();
+		
+		// 10 captures per second, each changing a quarter of the screen.
+		int captures = 30;
+		for (int c = 0; c < captures; c++) {
+			Integer[] changed = new Integer[numBlocks / 4];
+			for (int i = 0; i < changed.length; i++) {
+				changed[i] = new Integer(1 + (c * 37 + i) % numBlocks);
+			}
+			queue.offer(new BlockMessage(changed));
+			Assert.assertTrue(queue.getNumPendingBlocks() <= numBlocks);
+			Thread.sleep(100);
+		}
+		System.out.println("Slow uplink: pending=" + queue.getNumPendingBlocks() + " oldest=" + queue.getOldestPendingAge() 
+				+ "ms avgQueueTime=" + queue.getAverageQueueTime() + "ms superseded=" + queue.getBlocksSuperseded() 
+				+ "/" + queue.getBlocksQueued() + " effectiveFps=" + queue.getEffectiveFps());
+		queue.clear();
+		queue.poison();
+		sender.join();
+	}
+}
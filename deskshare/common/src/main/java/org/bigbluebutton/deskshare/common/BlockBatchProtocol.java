@@ -0,0 +1,80 @@
+/**
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+* 
+* Copyright (c) 2012 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 3.0 of the License, or (at your option) any later
+* version.
+* 
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.bigbluebutton.deskshare.common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Binary body of the http tunnel block batches. A request carries one or more batches:
+ * 
+ *   batch = BATCH_MARKER (byte) | sequence number (int) | number of blocks (unsigned short) | block*
+ *   block = position (unsigned short) | length (int) | encoded block
+ * 
+ * and ends with the request body. The room is passed as a request parameter.
+ */
+public final class BlockBatchProtocol {
+	public static final String CONTENT_TYPE = "application/octet-stream";
+	public static final int MAX_BLOCK_LENGTH = 1024 * 1024;
+	
+	private static final int BATCH_MARKER = 0xB1;
+	
+	private BlockBatchProtocol() {}
+	
+	public static void writeBatchHeader(DataOutputStream out, int seqNum, int numBlocks) throws IOException {
+		out.write(BATCH_MARKER);
+		out.writeInt(seqNum);
+		out.writeShort(numBlocks);
+	}
+	
+	public static void writeBlock(DataOutputStream out, int position, byte[] encodedBlock) throws IOException {
+		out.writeShort(position);
+		out.writeInt(encodedBlock.length);
+		out.write(encodedBlock);
+	}
+	
+	/**
+	 * Reads the next batch header and returns its number of blocks, or -1 at the end of the 
+	 * body. The sequence number is stored in seqNum[0].
+	 */
+	public static int readBatchHeader(DataInputStream in, int[] seqNum) throws IOException {
+		int marker = in.read();
+		if (marker == -1) return -1;
+		if (marker != BATCH_MARKER) {
+			throw new IOException("Invalid block batch marker " + marker);
+		}
+		seqNum[0] = in.readInt();
+		return in.readUnsignedShort();
+	}
+	
+	public static int readBlockPosition(DataInputStream in) throws IOException {
+		return in.readUnsignedShort();
+	}
+	
+	public static byte[] readBlockData(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_BLOCK_LENGTH) {
+			throw new IOException("Invalid block length " + length);
+		}
+		byte[] data = new byte[length];
+		in.readFully(data);
+		return data;
+	}
+}
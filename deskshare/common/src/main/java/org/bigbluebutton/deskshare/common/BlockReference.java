@@ -0,0 +1,96 @@
+/**
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+* 
+* Copyright (c) 2012 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 3.0 of the License, or (at your option) any later
+* version.
+* 
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.bigbluebutton.deskshare.common;
+
+/**
+ * A block whose content is the same as a block the applet already sent, at any 
+ * position. Instead of encoding it again, the applet sends a reference to the
+ * encoded block and the server reuses the one it has. This is what happens to
+ * most of the blocks when the presenter scrolls by a multiple of the block size,
+ * moves a window, or has the same background in many blocks.
+ * 
+ * A reference is sent in place of the encoded block:
+ * 
+ *   reference = 0xFFFF (unsigned short) | hash of the encoded block (long)
+ * 
+ * A Screen Video block starts with the size of the data that follows so a valid 
+ * block with a size of 0xFFFF is always longer than a reference.
+ * 
+ * Only blocks that don't depend on the viewer's image (full blocks) can be 
+ * referenced.
+ */
+public final class BlockReference {
+	public static final int LENGTH = 10;
+	
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	
+	private BlockReference() {}
+	
+	public static byte[] encode(long blockHash) {
+		byte[] reference = new byte[LENGTH];
+		reference[0] = (byte) 0xff;
+		reference[1] = (byte) 0xff;
+		for (int i = 0; i < 8; i++) {
+			reference[2 + i] = (byte) (blockHash >>> (56 - 8 * i));
+		}
+		return reference;
+	}
+	
+	public static boolean isReference(byte[] encodedBlock) {
+		return encodedBlock != null && encodedBlock.length == LENGTH 
+				&& encodedBlock[0] == (byte) 0xff && encodedBlock[1] == (byte) 0xff;
+	}
+	
+	public static long getBlockHash(byte[] reference) {
+		long hash = 0;
+		for (int i = 0; i < 8; i++) {
+			hash = (hash << 8) | (reference[2 + i] & 0xff);
+		}
+		return hash;
+	}
+	
+	/**
+	 * 64 bit FNV-1a hash of an encoded block.
+	 */
+	public static long hash(byte[] encodedBlock) {
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = 0; i < encodedBlock.length; i++) {
+			hash ^= encodedBlock[i] & 0xff;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+	
+	/**
+	 * Hash of the pixels of a block, one pixel at a time. The dimensions are part of
+	 * the hash as blocks on the edges of the screen are smaller.
+	 */
+	public static long hash(int[] pixels, int width, int height) {
+		long hash = FNV_OFFSET_BASIS;
+		hash = (hash ^ width) * FNV_PRIME;
+		hash = (hash ^ height) * FNV_PRIME;
+		int length = width * height;
+		for (int i = 0; i < length; i++) {
+			hash ^= pixels[i] & 0xffffffffL;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+}
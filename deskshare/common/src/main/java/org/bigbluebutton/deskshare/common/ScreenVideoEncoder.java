@@ -21,11 +21,7 @@ package org.bigbluebutton.deskshare.common;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 public final class ScreenVideoEncoder {
 
@@ -106,122 +102,24 @@ public final class ScreenVideoEncoder {
 		return pixels;	
 	}
 	
-	public static byte[] encodePixels(int pixels[], int width, int height, boolean grayscale) {
-		
-		changePixelScanFromBottomLeftToTopRight(pixels, width, height);
-		
-		byte[] bgrPixels = convertFromRGBtoBGR(pixels, grayscale);
-		
-		byte[] compressedPixels = compressUsingZlib(bgrPixels);  
-		
-    	byte[] encodedDataLength = ScreenVideoEncoder.encodeCompressedPixelsDataLength(compressedPixels.length);
-    	byte[] encodedData = new byte[encodedDataLength.length + compressedPixels.length];
-    	
-    	System.arraycopy(encodedDataLength, 0, encodedData, 0, encodedDataLength.length);
-    	
-    	System.arraycopy(compressedPixels, 0, encodedData, encodedDataLength.length, compressedPixels.length);
-
-		return encodedData;
-	}
-	
-	private static byte[] encodeCompressedPixelsDataLength(int length) {
-		int byte1 =  ((length & 0xFF00) >> 8);
-		int byte2 =  (length & 0x0FFF);
-//		System.out.println("Block size = " + length + " hex=" + Integer.toHexString(length) + " bytes= " + Integer.toHexString(byte1) + " " + Integer.toHexString(byte2));
-		return new byte[] {(byte)byte1 , (byte) (byte2 &0xFFF) };
-	}
-	
-	public static byte[] encodeBlockUnchanged() {
-		return new byte[] { (byte) 0, (byte) 0 };
-	}
-	
 	/**
-	 * Screen capture pixels are arranged top-left to bottom-right. ScreenVideo encoding
-	 * expects pixels are arranged bottom-left to top-right.
-	 * @param pixels - contains pixels of the image
-	 * @param width - width of the image
-	 * @param height - height of the image
+	 * Encodes the pixels with the best compression. The grayscale flag is currently ignored.
+	 * Only used by the server, for the blank blocks of a new session, so the encoder 
+	 * isn't kept on the calling thread.
 	 */
-	private static void changePixelScanFromBottomLeftToTopRight(int[] pixels, int width, int height) {
-		int[] swap = new int[pixels.length];
-		
-		long start = System.currentTimeMillis();
-		for (int i = 0; i < height; i++) {
-			int sourcePos = i * width;
-			int destPos = (height - (i+1)) * width;
-			System.arraycopy(pixels, sourcePos, swap, destPos, width);
+	public static byte[] encodePixels(int pixels[], int width, int height, boolean grayscale) {
+		ScreenVideoPixelEncoder encoder = new ScreenVideoPixelEncoder();
+		try {
+			return encoder.encodePixels(pixels, width, height, Deflater.BEST_COMPRESSION);
+		} finally {
+			encoder.end();
 		}
-		
-		System.arraycopy(swap, 0, pixels, 0, pixels.length);
-		long end = System.currentTimeMillis();
-//		System.out.println("Scanning pixels[" + pixels.length + "] took " + (end-start) + " ms.");
 	}
 	
-	
-	/**
-	 * Compress the byte array using Zlib.
-	 * @param pixels
-	 * @return a byte array of compressed data
-	 */
-	private static byte[] compressUsingZlib(byte[] pixels) {
-		long start = System.currentTimeMillis();
-	    // Create the compressed stream
-		 byte[] output = new byte[pixels.length];
-		 Deflater compresser = new Deflater(Deflater.BEST_COMPRESSION);
-		 compresser.setInput(pixels);
-		 compresser.finish();
-		 int compressedDataLength = compresser.deflate(output);
-
-		 byte[] zData = new byte[compressedDataLength] ;
-		 System.arraycopy(output, 0, zData, 0, compressedDataLength);
-
-		long end = System.currentTimeMillis();
-//		System.out.println("Compressing pixels[" + pixels.length + "] took " + (end-start) + " ms.");
-
-		// set the byte array to the newly compressed data
-		return zData;
+	public static byte[] encodeBlockUnchanged() {
+		return new byte[] { (byte) 0, (byte) 0 };
 	}
 	
-	/**
-	 * Extracts the RGB bytes from a pixel represented by a 4-byte integer (ARGB).
-	 * @param pixels
-	 * @return pixels in BGR order
-	 */
-	private static byte[] convertFromRGBtoBGR(int[] pixels, boolean grayscale) {	
-//		long start = System.currentTimeMillis();
-		byte[] rgbPixels = new byte[pixels.length * 3];
-		int position = 0;
-		
-		for (int i = 0; i < pixels.length; i++) {
-			byte red = (byte) ((pixels[i] >> 16) & 0xff);
-			byte green = (byte) ((pixels[i] >> 8) & 0xff);
-			byte blue = (byte) (pixels[i] & 0xff);
-/*
-			if (grayscale) {
-				byte brightness = convertToGrayScale(red, green, blue);
-				
-				// Sequence should be BGR
-				rgbPixels[position++] = brightness;
-				rgbPixels[position++] = brightness;
-				rgbPixels[position++] = brightness;	
-			} else {
-				// Sequence should be BGR
-				rgbPixels[position++] = blue;
-				rgbPixels[position++] = green;
-				rgbPixels[position++] = red;				
-			}	
-*/				
-			// Sequence should be BGR
-			rgbPixels[position++] = blue;
-			rgbPixels[position++] = green;
-			rgbPixels[position++] = red;
-		}
-		
-		long end = System.currentTimeMillis();
-//		System.out.println("Extracting pixels[" + pixels.length + "] took " + (end-start) + " ms.");				
-		return rgbPixels;
-	}
-			
 	private static byte convertToGrayScale(int r, int g, int b) {
 		return (byte)(0.212671 * r + 0.715160 * g + 0.072169 * b);
 	}
@@ -258,51 +156,12 @@ public final class ScreenVideoEncoder {
 	    return buf.toString();
 	}    
 	
+	/**
+	 * Encodes the pixels as a full IMAGEBLOCKV2. Use a {@link ScreenVideoV2Encoder} per
+	 * block to send diff blocks.
+	 */
 	public static byte[] encodePixelsSVC2(int pixels[], int width, int height) {
-		changePixelScanFromBottomLeftToTopRight(pixels, width, height);
-		
-		// write the block as IMAGEBLOCKV2
-		
-		if (paletteIndex == null)
-			createPaletteIndex();
-		
-		try {
-			ByteArrayOutputStream baos1 = new ByteArrayOutputStream(); // TODO calibrate initial size
-
-			for (int i=0; i<pixels.length; i++) {
-				writeAs15_7(pixels[i], baos1);
-			}
-			
-			// baos2 contains everything from IMAGEBLOCKV2 except the DataSize field
-			ByteArrayOutputStream baos2 = new ByteArrayOutputStream(); // TODO calibrate initial size
-			
-			// IMAGEFORMAT:
-			// ColorDepth: UB[2] 10 (15/7 hybrid color image); HasDiffBlocks: UB[1] 0; Zlib prime stuff (2 bits) not used (0)
-			baos2.write(16);
-			
-			// No ImageBlockHeader (IMAGEDIFFPOSITION, IMAGEPRIMEPOSITION)
-			
-			Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
-			DeflaterOutputStream deflateroutputstream = new DeflaterOutputStream(baos2, deflater);
-			deflateroutputstream.write(baos1.toByteArray());
-			deflateroutputstream.finish();
-			byte dataBuffer[] = baos2.toByteArray();
-			
-			// DataSize field
-			int dataSize = dataBuffer.length;
-			ByteArrayOutputStream baos = new ByteArrayOutputStream(); // TODO calibrate initial size
-			writeShort(((OutputStream) (baos)), dataSize);
-			// Data
-			baos.write(dataBuffer, 0, dataSize);
-			return baos.toByteArray();
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
-	}
-	
-	private static void writeShort(OutputStream outputstream, int l) throws IOException {
-		outputstream.write(l >> 8 & 0xff);
-		outputstream.write(l & 0xff);
+		return new ScreenVideoV2Encoder(width, height).encodeFull(pixels);
 	}
 	
 	private static int chromaDifference(int c1, int c2) {
@@ -326,8 +185,15 @@ public final class ScreenVideoEncoder {
 		return minc;
 	}
 
-	private static int createPaletteIndex() {
-		paletteIndex = new int[32768];
+	static synchronized int[] getPaletteIndex() {
+		if (paletteIndex == null) {
+			paletteIndex = createPaletteIndex();
+		}
+		return paletteIndex;
+	}
+	
+	private static int[] createPaletteIndex() {
+		int[] paletteIndex = new int[32768];
 		for (int r = 4; r < 256; r += 8) {
 			for (int g = 4; g < 256; g += 8) {
 				for (int b = 4; b < 256; b += 8) {
@@ -338,10 +204,15 @@ public final class ScreenVideoEncoder {
 				}
 			}
 		}
-		return 0;
+		return paletteIndex;
 	}
 	
-	private static void writeAs15_7(int rgb, ByteArrayOutputStream stream) throws IOException {
+	/**
+	 * Writes the pixel as a 7 bit palette index, or as 15 bit RGB when no palette
+	 * color is close enough.
+	 * @return the position after the written pixel
+	 */
+	static int writeAs15_7(int rgb, int[] paletteIndex, byte[] out, int pos) {
 		// convert from 24 bit RGB to 15 bit RGB
 		int c15 = ((rgb & 0xf80000) >> 9 | (rgb & 0xf800) >> 6 | (rgb & 0xf8) >> 3) & 0x7fff;
 		int d15 = chromaDifference(rgb, rgb & 0x00f8f8f8);
@@ -349,9 +220,12 @@ public final class ScreenVideoEncoder {
 		int d7 = chromaDifference(rgb, PALETTE[c7]);
 		if (d7 - d15 <= C7_C15_THRESHOLD) {
 			// write c7, c15 isn't much better
-			stream.write(c7);
+			out[pos++] = (byte) c7;
 		} else {
-			writeShort(stream, 0x8000 | c15); // high bit set as marker for c15
+			// high bit set as marker for c15
+			out[pos++] = (byte) (0x80 | (c15 >> 8));
+			out[pos++] = (byte) (c15 & 0xff);
 		}
+		return pos;
 	}
 }
@@ -0,0 +1,183 @@
+/** 
+*
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+*
+* Copyright (c) 2010 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 2.1 of the License, or (at your option) any later
+* version.
+*
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+* 
+**/
+package org.bigbluebutton.deskshare.common;
+
+import java.util.zip.Deflater;
+
+/**
+ * Encodes the pixels of a block into a Screen Video image block (data size + 
+ * zlib compressed BGR pixels). 
+ * 
+ * The Deflater and the buffers are reused from one block to the next so an
+ * encoder must only be used by one thread at a time. Use {@link #forCurrentThread()}
+ * to get the encoder of the calling thread, and {@link #releaseCurrentThread()} 
+ * before that thread exits to free its Deflater. Threads that aren't ours (e.g. 
+ * the server's) should use their own encoder and {@link #end()} it instead.
+ */
+public final class ScreenVideoPixelEncoder {
+	/** Pick the compression level from the content of the block. */
+	public static final int ADAPTIVE_COMPRESSION = -2;
+	
+	/* Fraction of neighbouring pixels that differ, in percent, below which a block 
+	 * is considered flat (blank, solid backgrounds) and above which it is considered 
+	 * a photo. Anything in between is text and UI.
+	 */
+	private static final int FLAT_BLOCK_THRESHOLD = 5;
+	private static final int PHOTO_BLOCK_THRESHOLD = 50;
+	private static final int TEXT_COMPRESSION_LEVEL = 6;
+	
+	private static final ThreadLocal<ScreenVideoPixelEncoder> encoders = new ThreadLocal<ScreenVideoPixelEncoder>();
+	
+	private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+	private int deflaterLevel = Deflater.BEST_COMPRESSION;
+	private byte[] bgrPixels = new byte[0];
+	private byte[] compressed = new byte[0];
+	
+	public static ScreenVideoPixelEncoder forCurrentThread() {
+		ScreenVideoPixelEncoder encoder = encoders.get();
+		if (encoder == null) {
+			encoder = new ScreenVideoPixelEncoder();
+			encoders.set(encoder);
+		}
+		return encoder;
+	}
+	
+	/**
+	 * Frees the encoder of the calling thread, if it has one.
+	 */
+	public static void releaseCurrentThread() {
+		ScreenVideoPixelEncoder encoder = encoders.get();
+		if (encoder != null) {
+			encoders.remove();
+			encoder.end();
+		}
+	}
+	
+	/**
+	 * Encodes the pixels, choosing the compression level from the content of the block.
+	 */
+	public byte[] encodePixels(int[] pixels, int width, int height) {
+		return encodePixels(pixels, width, height, ADAPTIVE_COMPRESSION);
+	}
+	
+	/**
+	 * Encodes the pixels without modifying them.
+	 * 
+	 * @param pixels - pixels of the block arranged top-left to bottom-right
+	 * @param compressionLevel - zlib level (0-9) or ADAPTIVE_COMPRESSION
+	 */
+	public byte[] encodePixels(int[] pixels, int width, int height, int compressionLevel) {
+		if (compressionLevel == ADAPTIVE_COMPRESSION) {
+			compressionLevel = chooseCompressionLevel(pixels, width, height);
+		}
+		int bgrLength = convertToBottomUpBGR(pixels, width, height);
+		int compressedLength = compress(bgrLength, compressionLevel);
+		
+		byte[] encodedData = new byte[compressedLength + 2];
+		encodedData[0] = (byte) ((compressedLength & 0xFF00) >> 8);
+		encodedData[1] = (byte) (compressedLength & 0xFF);
+		System.arraycopy(compressed, 0, encodedData, 2, compressedLength);
+		return encodedData;
+	}
+	
+	/**
+	 * Guesses how compressible the block is from the number of neighbouring pixels
+	 * that differ. Flat blocks compress to almost nothing at any level so they get 
+	 * the best compression. Photos gain little from the higher levels, which cost 
+	 * the most time on them, so they get the fastest.
+	 */
+	public static int chooseCompressionLevel(int[] pixels, int width, int height) {
+		int length = width * height;
+		if (length < 2) return Deflater.BEST_COMPRESSION;
+		
+		int transitions = 0;
+		for (int i = 1; i < length; i++) {
+			if (pixels[i] != pixels[i - 1]) transitions++;
+		}
+		
+		int percent = (int) ((transitions * 100L) / (length - 1));
+		if (percent < FLAT_BLOCK_THRESHOLD) return Deflater.BEST_COMPRESSION;
+		if (percent < PHOTO_BLOCK_THRESHOLD) return TEXT_COMPRESSION_LEVEL;
+		return Deflater.BEST_SPEED;
+	}
+	
+	/**
+	 * Screen capture pixels are arranged top-left to bottom-right. ScreenVideo encoding
+	 * expects pixels arranged bottom-left to top-right, in BGR order. Flip the rows
+	 * and extract the BGR bytes in one pass.
+	 * @return the number of bytes written to bgrPixels
+	 */
+	private int convertToBottomUpBGR(int[] pixels, int width, int height) {
+		int length = width * height * 3;
+		if (bgrPixels.length < length) {
+			bgrPixels = new byte[length];
+		}
+		
+		int position = 0;
+		for (int row = height - 1; row >= 0; row--) {
+			int end = (row + 1) * width;
+			for (int i = row * width; i < end; i++) {
+				int pixel = pixels[i];
+				bgrPixels[position++] = (byte) (pixel & 0xff);
+				bgrPixels[position++] = (byte) ((pixel >> 8) & 0xff);
+				bgrPixels[position++] = (byte) ((pixel >> 16) & 0xff);
+			}
+		}
+		return length;
+	}
+	
+	/**
+	 * Compress bgrPixels into the compressed buffer.
+	 * @return the length of the compressed data
+	 */
+	private int compress(int length, int level) {
+		if (level != deflaterLevel) {
+			deflater.setLevel(level);
+			deflaterLevel = level;
+		}
+		
+		// Upper bound of the zlib output. Grown below if it is ever too small.
+		int bound = length + (length >> 12) + (length >> 14) + 64;
+		if (compressed.length < bound) {
+			compressed = new byte[bound];
+		}
+		
+		deflater.reset();
+		deflater.setInput(bgrPixels, 0, length);
+		deflater.finish();
+		int compressedLength = 0;
+		while (!deflater.finished()) {
+			if (compressedLength == compressed.length) {
+				byte[] larger = new byte[compressed.length * 2];
+				System.arraycopy(compressed, 0, larger, 0, compressedLength);
+				compressed = larger;
+			}
+			compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+		}
+		return compressedLength;
+	}
+	
+	/**
+	 * Frees the Deflater. The encoder can't be used afterwards.
+	 */
+	public void end() {
+		deflater.end();
+	}
+}
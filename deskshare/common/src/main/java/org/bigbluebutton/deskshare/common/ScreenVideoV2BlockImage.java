@@ -0,0 +1,234 @@
+/** 
+*
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+*
+* Copyright (c) 2010 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 2.1 of the License, or (at your option) any later
+* version.
+*
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+* 
+**/
+package org.bigbluebutton.deskshare.common;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The current image of one block, rebuilt from the Screen Video V2 full and 
+ * diff blocks received for it, so the server can send the block in full to 
+ * viewers that don't have the image a diff block was made from.
+ * 
+ * The image is kept as the palette mapped rows, bottom-up, that the blocks are
+ * compressed from (see {@link ScreenVideoV2Encoder}). A full block is only 
+ * compressed when asked for, once per image. It is not thread-safe. The Inflater,
+ * Deflater and scratch buffers are shared by the images used on the same thread.
+ */
+public final class ScreenVideoV2BlockImage {
+	private static final int COLOR_DEPTH_MASK = 0x18;
+	private static final int COLOR_DEPTH_15_7 = 0x10;
+	private static final int HAS_DIFF_BLOCKS = 0x04;
+	private static final int ZLIB_PRIME_COMPRESS_CURRENT = 0x02;
+	private static final int ZLIB_PRIME_COMPRESS_PREVIOUS = 0x01;
+	
+	private static final ThreadLocal<Scratch> scratches = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+	
+	private final int width;
+	private final int height;
+	
+	// Rows bottom-up. A pixel is 1 byte (palette index) or 2 bytes (15 bit color, high bit set).
+	private byte[] mapped;
+	private int mappedLength = 0;
+	// Offset of each row in mapped, and mappedLength at the end.
+	private final int[] rowOffsets;
+	private boolean hasImage = false;
+	
+	private byte[] fullBlock;
+	
+	public ScreenVideoV2BlockImage(int width, int height) {
+		this.width = width;
+		this.height = height;
+		mapped = new byte[width * height * 2];
+		rowOffsets = new int[height + 1];
+	}
+	
+	/**
+	 * Applies a full or diff block to the image.
+	 * @return false if the block can't be applied, for example a diff block when 
+	 * there is no image yet. The image is then unknown until the next full block.
+	 */
+	public boolean update(byte[] encodedBlock) {
+		fullBlock = null;
+		if (!apply(encodedBlock)) {
+			hasImage = false;
+			return false;
+		}
+		hasImage = true;
+		return true;
+	}
+	
+	private boolean apply(byte[] encodedBlock) {
+		if (encodedBlock == null || encodedBlock.length < 3) return false;
+		int dataSize = ((encodedBlock[0] & 0xff) << 8) | (encodedBlock[1] & 0xff);
+		if (dataSize + 2 > encodedBlock.length) return false;
+		
+		int format = encodedBlock[2] & 0xff;
+		if ((format & COLOR_DEPTH_MASK) != COLOR_DEPTH_15_7) return false;
+		if ((format & ZLIB_PRIME_COMPRESS_CURRENT) != 0) return false;
+		
+		boolean diff = (format & HAS_DIFF_BLOCKS) != 0;
+		boolean primed = (format & ZLIB_PRIME_COMPRESS_PREVIOUS) != 0;
+		if ((diff || primed) && !hasImage) return false;
+		
+		// Rows counted from the bottom of the block.
+		int firstRow = 0;
+		int numRows = height;
+		int offset = 3;
+		if (diff) {
+			if (dataSize < 3) return false;
+			firstRow = encodedBlock[3] & 0xff;
+			numRows = encodedBlock[4] & 0xff;
+			if (numRows == 0 || firstRow + numRows > height) return false;
+			offset = 5;
+		}
+		
+		Scratch scratch = scratches.get();
+		byte[] inflated = scratch.inflatedBuffer(width * height * 2);
+		int inflatedLength = inflate(scratch.inflater, encodedBlock, offset, dataSize + 2 - offset, primed, inflated);
+		return inflatedLength >= 0 && replaceRows(firstRow, numRows, inflated, inflatedLength);
+	}
+	
+	/**
+	 * @return the number of bytes inflated, or -1 if the data isn't valid
+	 */
+	private int inflate(Inflater inflater, byte[] data, int offset, int length, boolean primed, byte[] inflated) {
+		inflater.reset();
+		inflater.setInput(data, offset, length);
+		try {
+			int inflatedLength = inflater.inflate(inflated);
+			if (inflater.needsDictionary()) {
+				if (!primed) return -1;
+				inflater.setDictionary(mapped, 0, mappedLength);
+				inflatedLength = inflater.inflate(inflated);
+			}
+			if (!inflater.finished()) return -1;
+			return inflatedLength;
+		} catch (DataFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Replaces numRows rows, from firstRow up, with the inflated rows.
+	 */
+	private boolean replaceRows(int firstRow, int numRows, byte[] inflated, int inflatedLength) {
+		// Find where the inflated rows end, checking they are whole rows.
+		int pos = 0;
+		for (int i = 0; i < numRows * width; i++) {
+			if (pos >= inflatedLength) return false;
+			pos += (inflated[pos] & 0x80) != 0 ? 2 : 1;
+		}
+		if (pos != inflatedLength) return false;
+		
+		if (firstRow == 0 && numRows == height) {
+			System.arraycopy(inflated, 0, mapped, 0, inflatedLength);
+			mappedLength = inflatedLength;
+		} else {
+			int start = rowOffsets[firstRow];
+			int end = rowOffsets[firstRow + numRows];
+			int tailLength = mappedLength - end;
+			System.arraycopy(mapped, end, mapped, start + inflatedLength, tailLength);
+			System.arraycopy(inflated, 0, mapped, start, inflatedLength);
+			mappedLength = start + inflatedLength + tailLength;
+		}
+		indexRows();
+		return true;
+	}
+	
+	private void indexRows() {
+		int pos = 0;
+		for (int row = 0; row < height; row++) {
+			rowOffsets[row] = pos;
+			for (int i = 0; i < width; i++) {
+				pos += (mapped[pos] & 0x80) != 0 ? 2 : 1;
+			}
+		}
+		rowOffsets[height] = pos;
+	}
+	
+	public boolean hasImage() {
+		return hasImage;
+	}
+	
+	/**
+	 * The image as a full block that doesn't depend on any other image, or null 
+	 * if there is no image.
+	 */
+	public byte[] getFullBlock() {
+		if (!hasImage) return null;
+		if (fullBlock == null) {
+			fullBlock = encodeFull();
+		}
+		return fullBlock;
+	}
+	
+	private byte[] encodeFull() {
+		Scratch scratch = scratches.get();
+		int compressedLength = scratch.compress(mapped, mappedLength);
+		
+		int dataSize = 1 + compressedLength;
+		byte[] encodedData = new byte[2 + dataSize];
+		encodedData[0] = (byte) ((dataSize >> 8) & 0xff);
+		encodedData[1] = (byte) (dataSize & 0xff);
+		encodedData[2] = (byte) COLOR_DEPTH_15_7;
+		System.arraycopy(scratch.compressed, 0, encodedData, 3, compressedLength);
+		return encodedData;
+	}
+	
+	private static final class Scratch {
+		final Inflater inflater = new Inflater();
+		final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		byte[] inflated = new byte[0];
+		byte[] compressed = new byte[0];
+		
+		byte[] inflatedBuffer(int length) {
+			if (inflated.length < length) {
+				inflated = new byte[length];
+			}
+			return inflated;
+		}
+		
+		int compress(byte[] data, int length) {
+			if (compressed.length < length + 64) {
+				compressed = new byte[length + 64];
+			}
+			deflater.reset();
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			int compressedLength = 0;
+			while (!deflater.finished()) {
+				if (compressedLength == compressed.length) {
+					byte[] larger = new byte[compressed.length * 2];
+					System.arraycopy(compressed, 0, larger, 0, compressedLength);
+					compressed = larger;
+				}
+				compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+			}
+			return compressedLength;
+		}
+	}
+}
@@ -0,0 +1,241 @@
+/** 
+*
+* BigBlueButton open source conferencing system - http://www.bigbluebutton.org/
+*
+* Copyright (c) 2010 BigBlueButton Inc. and by respective authors (see below).
+*
+* This program is free software; you can redistribute it and/or modify it under the
+* terms of the GNU Lesser General Public License as published by the Free Software
+* Foundation; either version 2.1 of the License, or (at your option) any later
+* version.
+*
+* BigBlueButton is distributed in the hope that it will be useful, but WITHOUT ANY
+* WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+* PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License along
+* with BigBlueButton; if not, see <http://www.gnu.org/licenses/>.
+* 
+**/
+package org.bigbluebutton.deskshare.common;
+
+import java.util.zip.Deflater;
+
+/**
+ * Encodes the successive images of one block as Screen Video V2 image blocks.
+ * 
+ * After a full block, only the range of rows that changed since the last encoded 
+ * image is sent, as a diff block (HasDiffBlocks=1). A full block is sent every
+ * fullBlockInterval images so viewers that missed a diff, or joined after the
+ * last full block, catch up.
+ * 
+ * Optionally the zlib stream of diff blocks is primed with the previous image of 
+ * the block (ZlibPrimeCompressPrevious). The viewer must then have decoded exactly
+ * the previous image, so only enable it when no block updates can be lost.
+ * 
+ * An encoder keeps the last image of its block so use one encoder per block. It is 
+ * not thread-safe. The Deflater and the scratch buffers are shared by the encoders 
+ * used on the same thread.
+ */
+public final class ScreenVideoV2Encoder {
+	// IMAGEFORMAT: Reserved UB[3] 0; ColorDepth UB[2] 10 (15/7 hybrid color image); 
+	// HasDiffBlocks UB[1]; ZlibPrimeCompressCurrent UB[1] 0; ZlibPrimeCompressPrevious UB[1]
+	private static final int IMAGE_FORMAT_15_7 = 0x10;
+	private static final int HAS_DIFF_BLOCKS = 0x04;
+	private static final int ZLIB_PRIME_COMPRESS_CURRENT = 0x02;
+	private static final int ZLIB_PRIME_COMPRESS_PREVIOUS = 0x01;
+	
+	private static final ThreadLocal<Scratch> scratches = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+	
+	private final int width;
+	private final int height;
+	private final int[] paletteIndex = ScreenVideoEncoder.getPaletteIndex();
+	
+	private final int[] previousPixels;
+	private boolean hasPrevious = false;
+	private int sinceFullBlock = 0;
+	private int fullBlockInterval = 10;
+	
+	private boolean primeWithPrevious = false;
+	private byte[] previousMapped;
+	private int previousMappedLength;
+	
+	public ScreenVideoV2Encoder(int width, int height) {
+		this.width = width;
+		this.height = height;
+		previousPixels = new int[width * height];
+	}
+	
+	/**
+	 * Encodes the pixels as a diff block when possible, else as a full block.
+	 * @param pixels - pixels of the block arranged top-left to bottom-right
+	 */
+	public byte[] encode(int[] pixels) {
+		if (!hasPrevious || sinceFullBlock + 1 >= fullBlockInterval) {
+			return encodeFull(pixels);
+		}
+		
+		int firstRow = 0;
+		while (firstRow < height && sameRow(pixels, firstRow)) firstRow++;
+		if (firstRow == height) {
+			// Nothing changed since the last image. Refresh the viewers with a full block.
+			return encodeFull(pixels);
+		}
+		int lastRow = height - 1;
+		while (sameRow(pixels, lastRow)) lastRow--;
+		
+		sinceFullBlock++;
+		return encodeRows(pixels, firstRow, lastRow, true);
+	}
+	
+	public byte[] encodeFull(int[] pixels) {
+		sinceFullBlock = 0;
+		return encodeRows(pixels, 0, height - 1, false);
+	}
+	
+	/**
+	 * The viewers got this image of the block without it being encoded here (see 
+	 * BlockReference). The next diff blocks are made from it.
+	 */
+	public void setImage(int[] pixels) {
+		System.arraycopy(pixels, 0, previousPixels, 0, width * height);
+		hasPrevious = true;
+		sinceFullBlock = 0;
+		if (primeWithPrevious) {
+			savePreviousImage(true, null, 0);
+		}
+	}
+	
+	private boolean sameRow(int[] pixels, int row) {
+		int end = (row + 1) * width;
+		for (int i = row * width; i < end; i++) {
+			if (pixels[i] != previousPixels[i]) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Encodes rows firstRow to lastRow (top-down) of the pixels. The image is sent
+	 * bottom-up so the rows are written from lastRow up to firstRow.
+	 */
+	private byte[] encodeRows(int[] pixels, int firstRow, int lastRow, boolean diff) {
+		boolean prime = diff && primeWithPrevious && previousMapped != null;
+		
+		Scratch scratch = scratches.get();
+		byte[] mapped = scratch.mappedBuffer(width * height * 2);
+		int mappedLength = 0;
+		for (int row = lastRow; row >= firstRow; row--) {
+			int end = (row + 1) * width;
+			for (int i = row * width; i < end; i++) {
+				mappedLength = ScreenVideoEncoder.writeAs15_7(pixels[i], paletteIndex, mapped, mappedLength);
+			}
+		}
+		
+		Deflater deflater = scratch.deflater;
+		deflater.reset();
+		if (prime) {
+			deflater.setDictionary(previousMapped, 0, previousMappedLength);
+		}
+		int compressedLength = scratch.compress(mappedLength);
+		
+		int headerLength = diff ? 2 : 0;
+		int dataSize = 1 + headerLength + compressedLength;
+		byte[] encodedData = new byte[2 + dataSize];
+		encodedData[0] = (byte) ((dataSize >> 8) & 0xff);
+		encodedData[1] = (byte) (dataSize & 0xff);
+		encodedData[2] = (byte) (IMAGE_FORMAT_15_7 | (diff ? HAS_DIFF_BLOCKS : 0) | (prime ? ZLIB_PRIME_COMPRESS_PREVIOUS : 0));
+		if (diff) {
+			// IMAGEDIFFPOSITION: RowStart UI8, Height UI8. Rows are counted from the bottom of the block.
+			encodedData[3] = (byte) (height - 1 - lastRow);
+			encodedData[4] = (byte) (lastRow - firstRow + 1);
+		}
+		System.arraycopy(scratch.compressed, 0, encodedData, 3 + headerLength, compressedLength);
+		
+		for (int row = firstRow; row <= lastRow; row++) {
+			System.arraycopy(pixels, row * width, previousPixels, row * width, width);
+		}
+		hasPrevious = true;
+		
+		if (primeWithPrevious) {
+			savePreviousImage(diff, mapped, mappedLength);
+		}
+		return encodedData;
+	}
+	
+	/**
+	 * Keeps the palette mapped image of the whole block as the dictionary of the next diff block.
+	 */
+	private void savePreviousImage(boolean diff, byte[] mapped, int mappedLength) {
+		if (previousMapped == null) {
+			previousMapped = new byte[width * height * 2];
+		}
+		if (!diff) {
+			System.arraycopy(mapped, 0, previousMapped, 0, mappedLength);
+			previousMappedLength = mappedLength;
+			return;
+		}
+		
+		int length = 0;
+		for (int row = height - 1; row >= 0; row--) {
+			int end = (row + 1) * width;
+			for (int i = row * width; i < end; i++) {
+				length = ScreenVideoEncoder.writeAs15_7(previousPixels[i], paletteIndex, previousMapped, length);
+			}
+		}
+		previousMappedLength = length;
+	}
+	
+	/**
+	 * Whether the encoded block depends on the image the viewer already has (a
+	 * diff block or a block primed with another image).
+	 */
+	public static boolean isIncrementalBlock(byte[] encodedBlock) {
+		if (encodedBlock == null || encodedBlock.length < 3) return false;
+		return (encodedBlock[2] & (HAS_DIFF_BLOCKS | ZLIB_PRIME_COMPRESS_CURRENT | ZLIB_PRIME_COMPRESS_PREVIOUS)) != 0;
+	}
+	
+	/**
+	 * Send a full block every fullBlockInterval images. 1 sends only full blocks.
+	 */
+	public void setFullBlockInterval(int fullBlockInterval) {
+		this.fullBlockInterval = fullBlockInterval;
+	}
+	
+	public void setPrimeWithPrevious(boolean primeWithPrevious) {
+		this.primeWithPrevious = primeWithPrevious;
+	}
+	
+	private static final class Scratch {
+		final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		byte[] mapped = new byte[0];
+		byte[] compressed = new byte[0];
+		
+		byte[] mappedBuffer(int length) {
+			if (mapped.length < length) {
+				mapped = new byte[length];
+				compressed = new byte[length + 64];
+			}
+			return mapped;
+		}
+		
+		int compress(int length) {
+			deflater.setInput(mapped, 0, length);
+			deflater.finish();
+			int compressedLength = 0;
+			while (!deflater.finished()) {
+				if (compressedLength == compressed.length) {
+					byte[] larger = new byte[compressed.length * 2];
+					System.arraycopy(compressed, 0, larger, 0, compressedLength);
+					compressed = larger;
+				}
+				compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+			}
+			return compressedLength;
+		}
+	}
+}